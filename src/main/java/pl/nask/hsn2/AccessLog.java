@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous access log. Request threads put fixed-size records (time, method, path, status, duration) into
+ * lock-free ring buffer, background thread formats them and writes them in batches, to given writer or to 'AccessLog'
+ * logger (one log call per batch). Recording never blocks: when buffer is more than half full only every n-th request
+ * is recorded (sampling), when it is full records are dropped. Numbers of sampled out and dropped records are written
+ * to log as well.
+ * <p>
+ * Slot of ring buffer is claimed by CAS on claim sequence, filled and then published by storing its sequence number
+ * in slot sequence array. Writer thread reads slots in sequence order while they are published.
+ */
+public class AccessLog implements Runnable {
+	public static final int DEFAULT_CAPACITY = 65536;
+	public static final int DEFAULT_SAMPLE_RATE = 10;
+	private static final Logger LOGGER = LoggerFactory.getLogger(AccessLog.class);
+	private static final Logger ACCESS_LOGGER = LoggerFactory.getLogger("AccessLog");
+	private static final int BATCH_SIZE = 1024;
+	private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long NANOS_IN_MICRO = 1000;
+	private final int capacity;
+	private final int mask;
+	private final int sampleRate;
+	private final long[] times;
+	private final long[] durations;
+	private final int[] statuses;
+	private final String[] methods;
+	private final String[] paths;
+	private final AtomicLongArray published;
+	private final AtomicLong claimSequence = new AtomicLong();
+	private final AtomicLong writeSequence = new AtomicLong();
+	private final AtomicLong offered = new AtomicLong();
+	private final AtomicLong sampledOut = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final Writer out;
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+	private final StringBuilder batch = new StringBuilder();
+	private long reportedDropped;
+	private long reportedSampledOut;
+	private volatile boolean stopped;
+	private Thread thread;
+
+	/**
+	 * Creates access log with default capacity and sample rate.
+	 *
+	 * @param writer
+	 *            Writer of access log or {@code null} if records should go to 'AccessLog' logger.
+	 */
+	public AccessLog(Writer writer) {
+		this(writer, DEFAULT_CAPACITY, DEFAULT_SAMPLE_RATE);
+	}
+
+	/**
+	 * Creates access log.
+	 *
+	 * @param writer
+	 *            Writer of access log or {@code null} if records should go to 'AccessLog' logger.
+	 * @param bufferCapacity
+	 *            Number of records in ring buffer, rounded up to power of two.
+	 * @param overloadSampleRate
+	 *            When buffer is more than half full only one of that many requests is recorded.
+	 */
+	public AccessLog(Writer writer, int bufferCapacity, int overloadSampleRate) {
+		out = writer;
+		capacity = Integer.highestOneBit(Math.max(2, bufferCapacity) * 2 - 1);
+		mask = capacity - 1;
+		sampleRate = Math.max(1, overloadSampleRate);
+		times = new long[capacity];
+		durations = new long[capacity];
+		statuses = new int[capacity];
+		methods = new String[capacity];
+		paths = new String[capacity];
+		published = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			published.set(i, -1);
+		}
+	}
+
+	public final synchronized void start() {
+		thread = new Thread(this, "AccessLog");
+		thread.setDaemon(true);
+		thread.start();
+		LOGGER.info("Access log started. (capacity={}, sampleRate={})", capacity, sampleRate);
+	}
+
+	/**
+	 * Stops writer thread after all claimed records (also those still being published) are written. Server should be
+	 * stopped first, records of requests finished after shutdown are lost.
+	 */
+	public final synchronized void shutdown() {
+		stopped = true;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+			try {
+				thread.join(TimeUnit.SECONDS.toMillis(1));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+	}
+
+	/**
+	 * Records request. Never blocks, record is sampled out or dropped if writer does not keep up.
+	 *
+	 * @param method
+	 *            Request method.
+	 * @param path
+	 *            Request path.
+	 * @param status
+	 *            Response status (-1 if no response has been sent).
+	 * @param startTime
+	 *            Request start time (ms since epoch).
+	 * @param durationNanos
+	 *            Request duration.
+	 */
+	public final void record(String method, String path, int status, long startTime, long durationNanos) {
+		long sequence;
+		do {
+			sequence = claimSequence.get();
+			long used = sequence - writeSequence.get();
+			if (used >= capacity) {
+				dropped.incrementAndGet();
+				return;
+			}
+			if (used >= capacity / 2 && offered.incrementAndGet() % sampleRate != 0) {
+				sampledOut.incrementAndGet();
+				return;
+			}
+		} while (!claimSequence.compareAndSet(sequence, sequence + 1));
+		int slot = (int) (sequence & mask);
+		times[slot] = startTime;
+		durations[slot] = durationNanos;
+		statuses[slot] = status;
+		methods[slot] = method;
+		paths[slot] = path;
+		// Ordered write: fields above are visible to writer thread which sees the sequence.
+		published.lazySet(slot, sequence);
+	}
+
+	/**
+	 * @return Number of records dropped because buffer was full.
+	 */
+	public final long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return Number of records not recorded because of sampling.
+	 */
+	public final long getSampledOutCount() {
+		return sampledOut.get();
+	}
+
+	@Override
+	public final void run() {
+		try {
+			while (true) {
+				int count = writeBatch();
+				if (count == 0) {
+					// Claimed slot not published yet is written in one of next batches.
+					if (stopped && writeSequence.get() == claimSequence.get()) {
+						break;
+					}
+					LockSupport.parkNanos(IDLE_WAIT_NANOS);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.error("Could not write access log, access log disabled.", e);
+		} finally {
+			closeWriter();
+		}
+	}
+
+	/**
+	 * Formats and writes all published records (up to batch size).
+	 *
+	 * @return Number of written records.
+	 */
+	final int writeBatch() throws IOException {
+		long sequence = writeSequence.get();
+		int count = 0;
+		batch.setLength(0);
+		while (count < BATCH_SIZE && published.get((int) (sequence & mask)) == sequence) {
+			int slot = (int) (sequence & mask);
+			batch.append(dateFormat.format(new Date(times[slot]))).append(' ').append(methods[slot]).append(' ')
+					.append(paths[slot]).append(' ').append(statuses[slot]).append(' ')
+					.append(durations[slot] / NANOS_IN_MICRO).append("us\n");
+			methods[slot] = null;
+			paths[slot] = null;
+			sequence++;
+			count++;
+		}
+		if (count > 0) {
+			writeSequence.set(sequence);
+		}
+		appendLost();
+		write();
+		return count;
+	}
+
+	private void appendLost() {
+		long droppedNow = dropped.get();
+		long sampledOutNow = sampledOut.get();
+		if (droppedNow != reportedDropped || sampledOutNow != reportedSampledOut) {
+			batch.append("# access log overloaded (sampledOut=").append(sampledOutNow - reportedSampledOut)
+					.append(", dropped=").append(droppedNow - reportedDropped).append(")\n");
+			reportedDropped = droppedNow;
+			reportedSampledOut = sampledOutNow;
+		}
+	}
+
+	private void write() throws IOException {
+		if (batch.length() == 0) {
+			return;
+		}
+		if (out == null) {
+			// Trailing new line is added by logger.
+			batch.setLength(batch.length() - 1);
+			ACCESS_LOGGER.info(batch.toString());
+		} else {
+			out.append(batch);
+			out.flush();
+		}
+	}
+
+	private void closeWriter() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				LOGGER.warn("Could not close access log.", e);
+			}
+		}
+	}
+}
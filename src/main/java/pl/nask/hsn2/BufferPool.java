@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of reusable I/O buffers for request and response bodies. Buffer is taken from the pool for one transfer and
+ * returned when the transfer ends, new buffer is allocated only when the pool is empty (miss). At most given number of
+ * idle buffers is kept.
+ * <p>
+ * Buffers are heap arrays: all body streams (HTTP exchange, H2 LOB, URL connection) are {@code java.io} streams, so
+ * direct buffer would only add one more copy.
+ */
+public class BufferPool {
+	/**
+	 * Default buffer size: socket and H2 LOB reads return at most tens of KB each, so bigger buffer does not make
+	 * transfer faster, while every miss (more transfers than idle buffers) allocates whole buffer. It is also default
+	 * maximum size of write-behind entry, which is read whole into one buffer.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	public static final int DEFAULT_MAX_IDLE = 64;
+	private final int bufferSize;
+	private final int maxIdle;
+	private final Queue<byte[]> idle = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Creates pool with default buffer size and number of idle buffers.
+	 */
+	public BufferPool() {
+		this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_IDLE);
+	}
+
+	/**
+	 * Creates new pool.
+	 *
+	 * @param size
+	 *            Size of buffer in bytes.
+	 * @param maxIdleBuffers
+	 *            Maximum number of idle buffers kept in the pool.
+	 */
+	public BufferPool(int size, int maxIdleBuffers) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Buffer size has to be positive. Got: " + size);
+		}
+		bufferSize = size;
+		maxIdle = maxIdleBuffers;
+	}
+
+	/**
+	 * Takes buffer from the pool, allocates new one if pool is empty. Buffer should be given back with
+	 * {@link #release(byte[])}.
+	 */
+	public final byte[] acquire() {
+		byte[] buffer = idle.poll();
+		if (buffer == null) {
+			misses.incrementAndGet();
+			return new byte[bufferSize];
+		}
+		idleCount.decrementAndGet();
+		hits.incrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Gives buffer back to the pool. Buffer of other size or buffer over idle limit is left to garbage collector.
+	 */
+	public final void release(byte[] buffer) {
+		if (buffer != null && buffer.length == bufferSize) {
+			if (idleCount.incrementAndGet() <= maxIdle) {
+				idle.offer(buffer);
+			} else {
+				idleCount.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Copies whole input to output through pooled buffer. Streams are not closed.
+	 *
+	 * @return Number of copied bytes.
+	 */
+	public final long copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = acquire();
+		try {
+			long total = 0;
+			int count;
+			while ((count = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, count);
+				total += count;
+			}
+			return total;
+		} finally {
+			release(buffer);
+		}
+	}
+
+	/**
+	 * Wraps stream with pooled read buffer: source is read in buffer size blocks, however small reads of the consumer
+	 * are. Buffer goes back to the pool at the end of stream or when stream is closed.
+	 */
+	public final InputStream buffered(InputStream in) {
+		return new PooledInputStream(in);
+	}
+
+	/**
+	 * @return Size of pooled buffers in bytes.
+	 */
+	public final int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return Number of buffers taken from the pool.
+	 */
+	public final long getHitsCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return Number of buffers allocated because the pool was empty.
+	 */
+	public final long getMissesCount() {
+		return misses.get();
+	}
+
+	private final class PooledInputStream extends FilterInputStream {
+		private byte[] buffer = acquire();
+		private int position;
+		private int limit;
+
+		private PooledInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (position == limit && !fill()) {
+				return -1;
+			}
+			return buffer[position++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (position == limit) {
+				if (buffer != null && len >= buffer.length) {
+					// Big read goes straight to the source.
+					int count = in.read(b, off, len);
+					if (count < 0) {
+						releaseBuffer();
+					}
+					return count;
+				}
+				if (!fill()) {
+					return -1;
+				}
+			}
+			int count = Math.min(len, limit - position);
+			System.arraycopy(buffer, position, b, off, count);
+			position += count;
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			if (n <= 0) {
+				return 0;
+			}
+			if (position < limit) {
+				int count = (int) Math.min(n, limit - position);
+				position += count;
+				return count;
+			}
+			return buffer == null ? 0 : in.skip(n);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return buffer == null ? 0 : limit - position + in.available();
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void mark(int readlimit) {
+			// Not supported.
+		}
+
+		@Override
+		public void reset() throws IOException {
+			throw new IOException("Mark not supported.");
+		}
+
+		@Override
+		public void close() throws IOException {
+			releaseBuffer();
+			super.close();
+		}
+
+		/**
+		 * @return {@code false} at the end of stream.
+		 */
+		private boolean fill() throws IOException {
+			if (buffer == null) {
+				return false;
+			}
+			int count = in.read(buffer, 0, buffer.length);
+			if (count < 0) {
+				releaseBuffer();
+				return false;
+			}
+			position = 0;
+			limit = count;
+			return true;
+		}
+
+		private void releaseBuffer() {
+			if (buffer != null) {
+				release(buffer);
+				buffer = null;
+				position = 0;
+				limit = 0;
+			}
+		}
+	}
+}
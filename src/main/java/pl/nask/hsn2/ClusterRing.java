@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Consistent hash ring of cluster nodes. Every job is owned by one node, the one which stores its data. Membership is
+ * read from static config file; every line contains node id and node address separated with white space, e.g.
+ * {@code node1 10.0.0.1:8080}. Lines starting with '#' are ignored. All nodes should use the same file.
+ */
+public class ClusterRing {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ClusterRing.class);
+	private static final int VIRTUAL_NODES = 128;
+	private final List<Node> nodes;
+	private final Node localNode;
+	private final TreeMap<Long, Node> ring = new TreeMap<>();
+
+	/**
+	 * Creates ring from config file.
+	 *
+	 * @param configPath
+	 *            Cluster config file.
+	 * @param localNodeId
+	 *            Id of this node.
+	 * @throws IOException
+	 *             When config file could not be read or is invalid.
+	 */
+	public ClusterRing(String configPath, String localNodeId) throws IOException {
+		this(readConfig(configPath), localNodeId);
+	}
+
+	/**
+	 * Creates ring.
+	 *
+	 * @param clusterNodes
+	 *            All cluster nodes, order does not matter.
+	 * @param localNodeId
+	 *            Id of this node.
+	 * @throws IOException
+	 *             When local node is not one of cluster nodes.
+	 */
+	public ClusterRing(List<Node> clusterNodes, String localNodeId) throws IOException {
+		nodes = Collections.unmodifiableList(new ArrayList<>(clusterNodes));
+		Node local = null;
+		for (Node node : nodes) {
+			if (node.id.equals(localNodeId)) {
+				local = node;
+			}
+			// Node positions depend on node id only, so address of node may change.
+			long seed = node.id.hashCode();
+			for (int i = 0; i < VIRTUAL_NODES; i++) {
+				ring.put(DataPlacement.mix(seed << 32 | i), node);
+			}
+		}
+		if (local == null) {
+			throw new IOException("Local node not found in cluster config. (nodeId=" + localNodeId + ")");
+		}
+		localNode = local;
+		LOGGER.info("Cluster ring created. (nodes={}, localNode={})", nodes.size(), localNode);
+	}
+
+	public final List<Node> getNodes() {
+		return nodes;
+	}
+
+	public final Node getLocalNode() {
+		return localNode;
+	}
+
+	/**
+	 * @return Node which owns given job.
+	 */
+	public final Node getOwner(long jobId) {
+		Entry<Long, Node> node = ring.ceilingEntry(DataPlacement.mix(jobId));
+		return node == null ? ring.firstEntry().getValue() : node.getValue();
+	}
+
+	/**
+	 * @return {@code True} if given job is owned by this node.
+	 */
+	public final boolean isLocal(long jobId) {
+		return getOwner(jobId) == localNode;
+	}
+
+	private static List<Node> readConfig(String configPath) throws IOException {
+		List<Node> nodes = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(configPath))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				int colon = fields.length == 2 ? fields[1].lastIndexOf(':') : -1;
+				if (colon < 1) {
+					throw new IOException("Invalid line in cluster config file: " + line);
+				}
+				try {
+					nodes.add(new Node(fields[0], fields[1].substring(0, colon), Integer.parseInt(fields[1].substring(colon + 1))));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid port in cluster config file: " + line, e);
+				}
+			}
+		}
+		if (nodes.isEmpty()) {
+			throw new IOException("No nodes in cluster config file: " + configPath);
+		}
+		return nodes;
+	}
+
+	/**
+	 * Cluster node.
+	 */
+	public static final class Node {
+		private final String id;
+		private final String host;
+		private final int port;
+
+		public Node(String nodeId, String hostName, int portNumber) {
+			id = nodeId;
+			host = hostName;
+			port = portNumber;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 * @return Base URL of node, e.g. {@code http://10.0.0.1:8080}.
+		 */
+		public String getUrl() {
+			return "http://" + host + ":" + port;
+		}
+
+		@Override
+		public String toString() {
+			return id + "(" + host + ":" + port + ")";
+		}
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Placement of job data in data directories (one per disk). Every component which resolves location of job data goes
+ * through this class. Jobs are placed with consistent hashing, so adding data directory moves only part of new jobs
+ * placement; data of existing jobs is always found, because directories other than preferred one are checked when job
+ * data is not where it should be.
+ */
+public class DataPlacement {
+	public static enum Strategy {
+		/**
+		 * Every data directory gets the same share of jobs.
+		 */
+		HASH,
+		/**
+		 * Share of jobs is proportional to free space of data directory (measured on start).
+		 */
+		FREE_SPACE
+	}
+
+	public static enum Layout {
+		/**
+		 * Job files directly in data directory.
+		 */
+		FLAT,
+		/**
+		 * Job files in two levels of subdirectories (256 each) of fan-out directory, chosen by hash of job id. Files
+		 * left in data directory by flat layout are still found (see {@link FanOutMigration}).
+		 */
+		FAN_OUT
+	}
+
+	/**
+	 * Name of fan-out directory in data directory. Not numeric, so it is never taken for old style job directory.
+	 */
+	static final String FAN_OUT_DIR_NAME = "jobs";
+	private static final Logger LOGGER = LoggerFactory.getLogger(DataPlacement.class);
+	private static final int VIRTUAL_NODES = 128;
+	private static final int FAN_OUT_MASK = 0xff;
+	private static final int FAN_OUT_SHIFT = 8;
+	private static final int LOCK_STRIPES = 256;
+	private final List<File> dataDirs;
+	private final TreeMap<Long, File> ring = new TreeMap<>();
+	private final Layout layout;
+	private final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[LOCK_STRIPES];
+
+	/**
+	 * Creates placement with single data directory.
+	 *
+	 * @param dataPath
+	 *            Data directory.
+	 */
+	public DataPlacement(String dataPath) {
+		this(Collections.singletonList(dataPath), Strategy.HASH, Layout.FLAT);
+	}
+
+	/**
+	 * Creates new placement.
+	 *
+	 * @param dataPaths
+	 *            Data directories, order does not matter.
+	 * @param strategy
+	 *            Placement strategy.
+	 * @param dirLayout
+	 *            Layout of job files in data directory.
+	 */
+	public DataPlacement(List<String> dataPaths, Strategy strategy, Layout dirLayout) {
+		if (dataPaths.isEmpty()) {
+			throw new IllegalArgumentException("No data directory given.");
+		}
+		layout = dirLayout;
+		List<File> dirs = new ArrayList<>(dataPaths.size());
+		long maxFreeSpace = 1;
+		for (String path : dataPaths) {
+			File dir = new File(path);
+			dirs.add(dir);
+			maxFreeSpace = Math.max(maxFreeSpace, getUsableSpace(dir));
+		}
+		dataDirs = Collections.unmodifiableList(dirs);
+		for (File dir : dataDirs) {
+			int nodes = VIRTUAL_NODES;
+			if (strategy == Strategy.FREE_SPACE) {
+				nodes = (int) Math.max(1, VIRTUAL_NODES * getUsableSpace(dir) / maxFreeSpace);
+			}
+			// Node positions depend on directory path only, so they are stable between restarts.
+			long seed = dir.getAbsolutePath().hashCode();
+			for (int i = 0; i < nodes; i++) {
+				ring.put(mix(seed << 32 | i), dir);
+			}
+			LOGGER.info("Data directory added. (dir={}, virtualNodes={}, layout={})", new Object[] { dir, nodes, layout });
+		}
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	/**
+	 * @return All data directories.
+	 */
+	public final List<File> getDataDirs() {
+		return dataDirs;
+	}
+
+	public final Layout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * Gets data directory of job. It is directory where job data exists or, for new jobs, directory job is placed in.
+	 *
+	 * @param jobId
+	 *            Job id.
+	 * @return Data directory.
+	 */
+	public final File getDataDir(long jobId) {
+		File preferred = getPreferredDataDir(jobId);
+		if (dataDirs.size() > 1 && findJobDir(preferred, jobId) == null) {
+			for (File dir : dataDirs) {
+				if (dir != preferred && findJobDir(dir, jobId) != null) {
+					return dir;
+				}
+			}
+		}
+		return preferred;
+	}
+
+	/**
+	 * Gets directory holding job files. It is directory where job data exists or, for new jobs, directory job files
+	 * should be created in.
+	 *
+	 * @param jobId
+	 *            Job id.
+	 * @return Job files directory.
+	 */
+	public final File getJobDir(long jobId) {
+		File dataDir = getDataDir(jobId);
+		File jobDir = findJobDir(dataDir, jobId);
+		return jobDir == null ? getLayoutDir(dataDir, jobId) : jobDir;
+	}
+
+	/**
+	 * Lock guarding job files location. Shared lock is held while job files are used, exclusive one while they are moved
+	 * to other directory or replaced.
+	 *
+	 * @param jobId
+	 *            Job id.
+	 * @return Shared lock.
+	 */
+	public final Lock getJobLock(long jobId) {
+		return locks[(int) (mix(jobId) & (LOCK_STRIPES - 1))].readLock();
+	}
+
+	/**
+	 * @param jobId
+	 *            Job id.
+	 * @return Exclusive lock of job files (see {@link #getJobLock(long)}).
+	 */
+	public final Lock getJobMoveLock(long jobId) {
+		return locks[(int) (mix(jobId) & (LOCK_STRIPES - 1))].writeLock();
+	}
+
+	/**
+	 * @return Directory where job files should be according to layout.
+	 */
+	final File getLayoutDir(File dataDir, long jobId) {
+		if (layout == Layout.FLAT) {
+			return dataDir;
+		}
+		long hash = mix(jobId);
+		return new File(new File(new File(dataDir, FAN_OUT_DIR_NAME), toHex(hash >>> FAN_OUT_SHIFT)), toHex(hash));
+	}
+
+	/**
+	 * @return Directory in which job database exists or {@code null}.
+	 */
+	private File findJobDir(File dataDir, long jobId) {
+		File layoutDir = getLayoutDir(dataDir, jobId);
+		if (getDbFile(layoutDir, jobId).exists()) {
+			return layoutDir;
+		}
+		if (layoutDir != dataDir && getDbFile(dataDir, jobId).exists()) {
+			// Not migrated yet.
+			return dataDir;
+		}
+		return null;
+	}
+
+	/**
+	 * @return Directory job is placed in by strategy (regardless where its data is).
+	 */
+	final File getPreferredDataDir(long jobId) {
+		Entry<Long, File> node = ring.ceilingEntry(mix(jobId));
+		return node == null ? ring.firstEntry().getValue() : node.getValue();
+	}
+
+	/**
+	 * @return All directories which may hold job files: data directories and existing fan-out directories.
+	 * @throws IOException
+	 *             When fan-out directory could not be listed.
+	 */
+	public final List<File> getJobDirs() throws IOException {
+		List<File> jobDirs = new ArrayList<>();
+		for (File dataDir : dataDirs) {
+			jobDirs.addAll(listJobDirs(dataDir));
+		}
+		return jobDirs;
+	}
+
+	/**
+	 * Lists directories which may hold job files in given data directory (for any layout).
+	 *
+	 * @param dataDir
+	 *            Data directory.
+	 * @return Data directory and its existing fan-out directories.
+	 * @throws IOException
+	 *             When fan-out directory could not be listed.
+	 */
+	public static List<File> listJobDirs(File dataDir) throws IOException {
+		List<File> jobDirs = new ArrayList<>();
+		jobDirs.add(dataDir);
+		try (DirectoryStream<Path> level1 = Files.newDirectoryStream(new File(dataDir, FAN_OUT_DIR_NAME).toPath())) {
+			for (Path dir1 : level1) {
+				if (Files.isDirectory(dir1)) {
+					try (DirectoryStream<Path> level2 = Files.newDirectoryStream(dir1)) {
+						for (Path dir2 : level2) {
+							if (Files.isDirectory(dir2)) {
+								jobDirs.add(dir2.toFile());
+							}
+						}
+					}
+				}
+			}
+		} catch (NoSuchFileException e) {
+			LOGGER.trace("No fan-out directory in {}", dataDir);
+		}
+		return jobDirs;
+	}
+
+	/**
+	 * @return Sum of usable space of all data directories.
+	 */
+	public final long getUsableSpace() {
+		long freeBytes = 0;
+		for (File dir : dataDirs) {
+			freeBytes += getUsableSpace(dir);
+		}
+		return freeBytes;
+	}
+
+	private static long getUsableSpace(File dir) {
+		// Not existing directory (created on first upload) is checked on its parent's disk.
+		File existing = dir.getAbsoluteFile();
+		while (existing != null && !existing.exists()) {
+			existing = existing.getParentFile();
+		}
+		return existing == null ? 0 : existing.getUsableSpace();
+	}
+
+	static File getDbFile(File jobDir, long jobId) {
+		return new File(jobDir, DataStore.DB_FILE_PREFIX + jobId + DataStore.DB_FILE_SUFFIX);
+	}
+
+	private static String toHex(long value) {
+		return String.format("%02x", value & FAN_OUT_MASK);
+	}
+
+	/**
+	 * MurmurHash3 64 bit finalizer. Spreads consecutive job ids evenly over the ring (also used by cluster ring).
+	 */
+	static long mix(long value) {
+		long h = value;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -20,14 +20,26 @@
 package pl.nask.hsn2;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
+import java.io.Writer;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.ParseException;
@@ -38,6 +50,9 @@ import org.apache.commons.daemon.DaemonInitException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import pl.nask.hsn2.DataPlacement.Layout;
+import pl.nask.hsn2.DataPlacement.Strategy;
+import pl.nask.hsn2.DataStoreActiveCleaner.LeaveJobOption;
 import pl.nask.hsn2.logger.LoggerForLog4j;
 import pl.nask.hsn2.logger.LoggerManager;
 
@@ -56,11 +71,27 @@ public final class DataStore implements Daemon {
 			throw new IllegalArgumentException("Can't parse URL", e);
 		}
 	}
-	private static final String DATA_PATH = DATA_STORE_PATH + "data";
-	private static final String SEQ_PATH = DATA_STORE_PATH + "dataId.seq";
+	private static final String DATA_DIR_NAME = "data";
+	private static final String DATA_PATH = DATA_STORE_PATH + DATA_DIR_NAME;
+	static final String DB_FILE_PREFIX = "data-store-";
+	static final String DB_FILE_SUFFIX = ".h2.db";
+	private static final String SEQ_FILE_NAME = "dataId.seq";
+	private static final String CATALOG_NAME = "catalog";
+	private static final String TRASH_DIR_NAME = "trash";
+	private static final String SNAPSHOTS_NAME = "snapshots";
 
 	private static long idCount;
+	private static String seqPath = DATA_STORE_PATH + SEQ_FILE_NAME;
+	private static volatile DataPlacement dataPlacement = new DataPlacement(DATA_PATH);
+	private static volatile SnapshotRegistry snapshotRegistry = new SnapshotRegistry();
 	private DataStoreServer server;
+	private JobCatalog jobCatalog;
+	private TrashCollector trashCollector;
+	private DurabilityManager durabilityManager;
+	private JobDataReconciler reconciler;
+	private ScheduledExecutorService reconcileExecutor;
+	private int reconcileInterval;
+	private FanOutMigration fanOutMigration;
 
 	public static void main(final String[] args) throws DaemonInitException {
 		DataStore ds = new DataStore();
@@ -79,28 +110,68 @@ public final class DataStore implements Daemon {
 	}
 
 	private static void setIdFromConf() {
-		try (BufferedReader bufferedReader = new BufferedReader(new FileReader(SEQ_PATH))) {
+		try (BufferedReader bufferedReader = new BufferedReader(new FileReader(seqPath))) {
 			idCount = Long.parseLong(bufferedReader.readLine());
 		} catch (IOException e) {
-			LOGGER.info("Sequence file {} does not exist. New will be created.", SEQ_PATH);
+			LOGGER.info("Sequence file {} does not exist. New will be created.", seqPath);
 			idCount = 1;
 		}
 	}
 
 	public static synchronized long updateIdCount() throws IOException {
 		long oldId = idCount++;
-		try (RandomAccessFile rr = new RandomAccessFile(SEQ_PATH, "rw")) {
+		writeIdCount();
+		return oldId;
+	}
+
+	/**
+	 * @return Last assigned entry id.
+	 */
+	public static synchronized long getLastAssignedId() {
+		return idCount - 1;
+	}
+
+	/**
+	 * Makes sure ids up to given one are never assigned (used when entries keep ids given by other instance).
+	 */
+	public static synchronized void reserveIds(long lastUsedId) throws IOException {
+		if (idCount <= lastUsedId) {
+			idCount = lastUsedId + 1;
+			writeIdCount();
+		}
+	}
+
+	private static void writeIdCount() throws IOException {
+		try (RandomAccessFile rr = new RandomAccessFile(seqPath, "rw")) {
 			try (FileChannel fileChannel = rr.getChannel()) {
 				fileChannel.write(ByteBuffer.wrap((Long.toString(idCount) + "\n").getBytes()));
 			}
 		}
-		return oldId;
 	}
 
+	/**
+	 * @return Default data directory (used when no data directories are configured).
+	 */
 	public static String getDataPath() {
 		return DATA_PATH;
 	}
 
+	public static DataPlacement getDataPlacement() {
+		return dataPlacement;
+	}
+
+	static void setDataPlacement(DataPlacement placement) {
+		dataPlacement = placement;
+	}
+
+	public static SnapshotRegistry getSnapshotRegistry() {
+		return snapshotRegistry;
+	}
+
+	static void setSnapshotRegistry(SnapshotRegistry registry) {
+		snapshotRegistry = registry;
+	}
+
 	@Override
 	public void init(DaemonContext context) throws DaemonInitException {
 		DataStoreCmdLineOptions opt = null;
@@ -120,15 +191,100 @@ public final class DataStore implements Daemon {
 			String rbtHostName = opt.getRbtHostname();
 			if (rbtHostName != null) {
 				// Start server.
+				String statePath = DATA_STORE_PATH;
+				String dataPath = DATA_PATH;
+				if (opt.getStateDir() != null) {
+					// E.g. several cluster nodes run from one installation.
+					statePath = opt.getStateDir() + File.separator;
+					dataPath = statePath + DATA_DIR_NAME;
+					Files.createDirectories(new File(statePath).toPath());
+				}
+				seqPath = statePath + SEQ_FILE_NAME;
 				setIdFromConf();
-				server = new DataStoreServer(opt.getPort());
+				if (opt.getDataDirs() != null) {
+					setDataPlacement(new DataPlacement(opt.getDataDirs(), opt.getDataPlacementStrategy(), opt.getDataLayout()));
+				} else if (opt.getStateDir() != null || opt.getDataLayout() != Layout.FLAT) {
+					setDataPlacement(new DataPlacement(Collections.singletonList(dataPath), Strategy.HASH, opt.getDataLayout()));
+				}
+				if (dataPlacement.getLayout() == Layout.FAN_OUT) {
+					// Started after server, see start() method.
+					fanOutMigration = new FanOutMigration(dataPlacement);
+				}
+				setSnapshotRegistry(new SnapshotRegistry(statePath + SNAPSHOTS_NAME));
+				jobCatalog = new JobCatalog(statePath + CATALOG_NAME);
+				jobCatalog.open();
+				durabilityManager = new DurabilityManager(opt.getDurabilityMode(), seqPath, opt.getGroupCommitInterval(),
+						opt.getGroupCommitBytes());
+				durabilityManager.start();
+				server = new DataStoreServer(opt.getPort(), jobCatalog, durabilityManager);
+				server.setIdempotencyKeysLimit(opt.getIdempotencyKeys());
+				server.setBufferPool(new BufferPool(opt.getBufferSize(), opt.getBufferPoolSize()));
+				if (opt.getAccessLogBuffer() > 0) {
+					Writer accessLogWriter = null;
+					if (opt.getAccessLogFile() != null) {
+						accessLogWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(opt.getAccessLogFile(),
+								true), "UTF-8"));
+					}
+					server.enableAccessLog(new AccessLog(accessLogWriter, opt.getAccessLogBuffer(), AccessLog.DEFAULT_SAMPLE_RATE));
+				}
+				if (opt.getWriteBehindThreads() > 0) {
+					server.enableWriteBehind(opt.getWriteBehindThreads(), opt.getWriteBehindMaxSize());
+				}
+				if (opt.getJobDbPoolSize() > 0) {
+					server.enableJobDbPool(opt.getJobDbPoolSize());
+				}
+				if (opt.getClusterConfig() != null) {
+					server.enableCluster(new ClusterRing(opt.getClusterConfig(), opt.getClusterNodeId()), opt.isClusterRedirect());
+				}
+				ReplicationPublisher replicationPublisher = null;
+				if (opt.getReplicationFollowers() != null) {
+					replicationPublisher = new ReplicationPublisher(opt.getReplicationFollowers(), opt.getReplicationBacklog());
+					server.enableReplication(replicationPublisher);
+				} else if (opt.getReplicationListenPort() > 0) {
+					server.enableFollower(opt.getReplicationListenPort());
+				}
+				JobCompactor compactor = null;
+				if (opt.getCompactDeadRatio() > 0) {
+					compactor = new JobCompactor(opt.getCompactDeadRatio(), opt.getCompactRate());
+					server.enableCompaction(compactor);
+				}
 
 				// Start job data cleaner. (Not thread safe. Only one cleaner should be active all the time.)
-				new Thread(new DataStoreActiveCleaner(rbtHostName, opt.getRbtNotifyExch(), opt.getLeaveData(),
-						opt.getCleaningThreadsNumber())).start();
+				DataStoreActiveCleaner cleaner = new DataStoreActiveCleaner(rbtHostName, opt.getRbtNotifyExch(),
+						opt.getRbtNotifyQueue(), opt.getRbtPrefetch(), opt.getLeaveData(), opt.getCleaningThreadsNumber());
+				cleaner.setJobCatalog(jobCatalog);
+				// Rename into trash works only within file system: trash directory in every data directory. Old trash in
+				// state directory is still emptied.
+				List<File> trashDirs = new ArrayList<>();
+				for (File dataDir : dataPlacement.getDataDirs()) {
+					trashDirs.add(new File(dataDir, TRASH_DIR_NAME));
+				}
+				trashDirs.add(new File(statePath + TRASH_DIR_NAME));
+				trashCollector = new TrashCollector(trashDirs, opt.getTrashRate());
+				trashCollector.start();
+				cleaner.setTrashCollector(trashCollector);
+				cleaner.setRetentionPolicy(opt.getRetentionPolicy());
+				if (replicationPublisher != null) {
+					cleaner.getScheduler().addListener(replicationPublisher);
+				}
+				if (compactor != null) {
+					cleaner.getScheduler().addListener(compactor);
+				}
+				new Thread(cleaner).start();
+
+				// Orphaned job data reconciliation. (Started after server, see start() method.)
+				if (opt.getJobStatusFile() != null && opt.getLeaveData() != LeaveJobOption.ALL) {
+					reconciler = new JobDataReconciler(cleaner, new FileJobStatusSource(opt.getJobStatusFile()),
+							opt.getCleaningThreadsNumber());
+					reconcileInterval = opt.getReconcileInterval();
+				}
 			}
 		} catch (ClassNotFoundException e1) {
 			throw new DaemonInitException("H2 database initialization, failed.", e1);
+		} catch (SQLException e) {
+			throw new DaemonInitException("Job catalog or job database pool initialization, failed.", e);
+		} catch (IOException e) {
+			throw new DaemonInitException("Directory, cluster config or replication initialization, failed.", e);
 		}
 	}
 
@@ -143,31 +299,128 @@ public final class DataStore implements Daemon {
 		if (server != null) {
 			server.start();
 		}
+		if (fanOutMigration != null) {
+			Thread migrationThread = new Thread(fanOutMigration, "FanOutMigration");
+			migrationThread.setDaemon(true);
+			migrationThread.start();
+		}
+		if (reconciler != null) {
+			// Runs in background, so requests are served while data directory is being checked.
+			reconcileExecutor = Executors.newSingleThreadScheduledExecutor();
+			if (reconcileInterval > 0) {
+				reconcileExecutor.scheduleWithFixedDelay(reconciler, 0, reconcileInterval, TimeUnit.MINUTES);
+			} else {
+				reconcileExecutor.execute(reconciler);
+			}
+		}
 	}
 
 	@Override
 	public void stop() throws DaemonInitException {
+		if (fanOutMigration != null) {
+			fanOutMigration.stop();
+		}
+		if (reconcileExecutor != null) {
+			reconcileExecutor.shutdownNow();
+			reconciler.shutdown();
+		}
 		try {
 			server.close();
 		} catch (SQLException e) {
 			throw new DaemonInitException("Finalization failure.", e);
+		} finally {
+			if (jobCatalog != null) {
+				jobCatalog.close();
+			}
+			if (trashCollector != null) {
+				trashCollector.shutdown();
+			}
 		}
 	}
 
 	@Override
 	public void destroy() {
-		File data = new File(DATA_PATH);
-		for (File file : data.listFiles()) {
-			file.delete();
+		try {
+			for (File data : dataPlacement.getJobDirs()) {
+				File[] files = data.listFiles();
+				if (files != null) {
+					for (File file : files) {
+						file.delete();
+					}
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Could not list data directories.", e);
 		}
 	}
 
 	public static String getDbFileName(long jobId) {
-		return DATA_PATH + File.separator + "data-store-" + jobId;
+		return dataPlacement.getJobDir(jobId) + File.separator + DB_FILE_PREFIX + jobId;
+	}
+
+	public static File getDbFile(long jobId) {
+		return new File(getDbFileName(jobId) + DB_FILE_SUFFIX);
 	}
 
 	public static boolean isDbFileExists(long jobId) {
-		File dbFile = new File(DataStore.getDbFileName(jobId) + ".h2.db");
-		return dbFile.exists();
+		return getDbFile(jobId).exists();
+	}
+
+	/**
+	 * @return Ids of all jobs which have database (in any data directory).
+	 * @throws IOException
+	 *             When data directories could not be listed.
+	 */
+	public static TreeSet<Long> getJobIds() throws IOException {
+		TreeSet<Long> jobIds = new TreeSet<>();
+		for (File jobDir : dataPlacement.getJobDirs()) {
+			String[] names = jobDir.list();
+			if (names != null) {
+				for (String name : names) {
+					Long jobId = getJobIdFromDbFileName(name);
+					if (jobId != null) {
+						jobIds.add(jobId);
+					}
+				}
+			}
+		}
+		return jobIds;
+	}
+
+	/**
+	 * Gets job id from name of any job file (database, lock, trace or other file of job storage).
+	 *
+	 * @param fileName
+	 *            File name (without directory).
+	 * @return Job id or {@code null} if it is not name of job file.
+	 */
+	public static Long getJobIdFromJobFileName(String fileName) {
+		if (fileName.startsWith(DB_FILE_PREFIX)) {
+			int end = fileName.indexOf('.', DB_FILE_PREFIX.length());
+			try {
+				return Long.valueOf(fileName.substring(DB_FILE_PREFIX.length(), end < 0 ? fileName.length() : end));
+			} catch (NumberFormatException e) {
+				LOGGER.debug("Not a job file: {}", fileName);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets job id from name of job database file.
+	 *
+	 * @param fileName
+	 *            File name (without directory).
+	 * @return Job id or {@code null} if it is not name of job database file.
+	 */
+	public static Long getJobIdFromDbFileName(String fileName) {
+		if (fileName.startsWith(DB_FILE_PREFIX) && fileName.endsWith(DB_FILE_SUFFIX)) {
+			try {
+				return Long.valueOf(fileName.substring(DB_FILE_PREFIX.length(), fileName.length() - DB_FILE_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				LOGGER.debug("Not a job database file: {}", fileName);
+			}
+		}
+		return null;
 	}
 }
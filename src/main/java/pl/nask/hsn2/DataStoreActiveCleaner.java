@@ -20,17 +20,16 @@
 package pl.nask.hsn2;
 
 import java.io.IOException;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
-import java.util.Set;
-
-import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import pl.nask.hsn2.JobCatalog.JobInfo;
 import pl.nask.hsn2.protobuff.Jobs.JobFinished;
 import pl.nask.hsn2.protobuff.Jobs.JobFinishedReminder;
 import pl.nask.hsn2.protobuff.Jobs.JobStatus;
@@ -54,16 +53,25 @@ public class DataStoreActiveCleaner implements Runnable {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(DataStoreActiveCleaner.class);
 	private static final boolean AUTO_ACK = true;
+	private static final long ACK_FLUSH_INTERVAL = 1000;
+	private static final long RECONNECT_DELAY = 5000;
+	private static final long RETENTION_INTERVAL = 60;
 	private final String rbtHostName;
 	private final String rbtNotifyExchName;
+	/**
+	 * Durable queue name. If set, cleaner works in manual acknowledgement mode.
+	 */
+	private final String rbtNotifyQueueName;
+	private final int prefetchCount;
 	private final LeaveJobOption leaveJob;
+	private volatile boolean running = true;
 	/**
-	 * Set containing jobs id for which cleaning process has been initialized. Job id should be removed when all job
-	 * data has been cleared.
+	 * Tracks cleaning state of finished jobs and retries failed removals.
 	 */
-	private final ConcurrentSkipListSet<Long> actualCleaningJobs = new ConcurrentSkipListSet<>();
-	private final FixedSizeLinkedHashMap<Long,String> finishedJobs = new FixedSizeLinkedHashMap<>(20);
-	private final ExecutorService executor;
+	private final JobCleaningScheduler scheduler;
+	private JobCatalog jobCatalog;
+	private RetentionPolicy retentionPolicy;
+	private ScheduledExecutorService retentionExecutor;
 	/**
 	 * RabbitMQ connection.
 	 */
@@ -80,17 +88,39 @@ public class DataStoreActiveCleaner implements Runnable {
 	 *            Leave job option, in order to filter out jobs to clean using their completion status.
 	 * @param cleaningThreadsNumber
 	 *            Number of thread pool of single job cleaner.
-	 * @param h2Connector
-	 * @param activeJobsSet
 	 */
 	public DataStoreActiveCleaner(String rbtServerHostname, String rbtNotifyExchangeName, LeaveJobOption leaveJobValue,
 			int cleaningThreadsNumber) {
+		this(rbtServerHostname, rbtNotifyExchangeName, null, 0, leaveJobValue, cleaningThreadsNumber);
+	}
+
+	/**
+	 * Creates new active cleaner.
+	 *
+	 * @param rbtServerHostname
+	 *            RabbitMQ server host name.
+	 * @param rbtNotifyExchangeName
+	 *            RabbitMQ notification exchange name.
+	 * @param rbtNotifyQueue
+	 *            Durable RabbitMQ queue name. If {@code null}, server named queue with auto acknowledgement is used.
+	 *            Otherwise notifications are acknowledged when job data is removed.
+	 * @param rbtPrefetchCount
+	 *            Maximum number of not acknowledged notifications (used only with durable queue).
+	 * @param leaveJobValue
+	 *            Leave job option, in order to filter out jobs to clean using their completion status.
+	 * @param cleaningThreadsNumber
+	 *            Number of thread pool of single job cleaner.
+	 */
+	public DataStoreActiveCleaner(String rbtServerHostname, String rbtNotifyExchangeName, String rbtNotifyQueue,
+			int rbtPrefetchCount, LeaveJobOption leaveJobValue, int cleaningThreadsNumber) {
 		rbtHostName = rbtServerHostname;
 		rbtNotifyExchName = rbtNotifyExchangeName;
+		rbtNotifyQueueName = rbtNotifyQueue;
+		prefetchCount = rbtPrefetchCount;
 		leaveJob = leaveJobValue;
-		executor = Executors.newFixedThreadPool(cleaningThreadsNumber);
-		LOGGER.info("Active cleaner initialized. (leaveJob={}, rbtHost={}, rbtNotifyExch={}, threads={})", new Object[] { leaveJob,
-				rbtHostName, rbtNotifyExchName, cleaningThreadsNumber });
+		scheduler = new JobCleaningScheduler(cleaningThreadsNumber);
+		LOGGER.info("Active cleaner initialized. (leaveJob={}, rbtHost={}, rbtNotifyExch={}, rbtNotifyQueue={}, threads={})",
+				new Object[] { leaveJob, rbtHostName, rbtNotifyExchName, rbtNotifyQueueName, cleaningThreadsNumber });
 	}
 
 	/**
@@ -99,13 +129,19 @@ public class DataStoreActiveCleaner implements Runnable {
 	@Override
 	public final void run() {
 		LOGGER.info("Active cleaner started.");
+		startRetention();
+
 		// Check if cleaner is needed.
 		if (leaveJob == LeaveJobOption.ALL) {
 			LOGGER.info("Option to leave all job data intact set. Cleaner not needed - exiting.");
 			return;
 		}
 
-		listenAndClean();
+		if (rbtNotifyQueueName == null) {
+			listenAndClean();
+		} else {
+			listenAndCleanWithAcks();
+		}
 
 		shutdown();
 	}
@@ -124,16 +160,9 @@ public class DataStoreActiveCleaner implements Runnable {
 				LOGGER.debug("Got delivery {}", type);
 
 				// Clean if job finished data.
-				try {
-					if ("JobFinished".equals(type)) {
-						JobFinished jobFinishedData = JobFinished.parseFrom(delivery.getBody());
-						startJobDataRemoving(jobFinishedData.getJob(), jobFinishedData.getStatus());
-					} else if ("JobFinishedReminder".equals(type)) {
-						JobFinishedReminder jobFinishedData = JobFinishedReminder.parseFrom(delivery.getBody());
-						startJobDataRemoving(jobFinishedData.getJob(), jobFinishedData.getStatus());
-					}
-				} catch (InvalidProtocolBufferException e) {
-					LOGGER.warn("Invalid message! Expected: " + type, e);
+				Long jobId = getJobToClean(type, delivery.getBody());
+				if (jobId != null) {
+					scheduler.schedule(jobId);
 				}
 			}
 		} catch (ShutdownSignalException e) {
@@ -146,54 +175,193 @@ public class DataStoreActiveCleaner implements Runnable {
 			LOGGER.error("Connection issue.", e);
 		}
 	}
+
+	/**
+	 * Main loop in manual acknowledgement mode. Notifications are consumed from durable queue and acknowledged (in
+	 * batches) when job data is removed. Connection is restored after failure.
+	 */
+	private void listenAndCleanWithAcks() {
+		int ackBatchSize = Math.max(1, prefetchCount / 2);
+		while (running) {
+			NotificationAckTracker ackTracker = null;
+			try {
+				Channel channel = initRabbitMqDurableConnection();
+				ackTracker = new NotificationAckTracker(channel, ackBatchSize);
+				scheduler.addListener(ackTracker);
+				channel.basicConsume(rbtNotifyQueueName, !AUTO_ACK, new NotificationConsumer(channel, this, ackTracker));
+				LOGGER.info("Waiting for messages... (queue={}, prefetch={})", rbtNotifyQueueName, prefetchCount);
+				while (running && channel.isOpen()) {
+					Thread.sleep(ACK_FLUSH_INTERVAL);
+					ackTracker.flush();
+				}
+			} catch (IOException | ShutdownSignalException e) {
+				LOGGER.warn("Connection issue. Reconnecting in {} ms.", RECONNECT_DELAY);
+				LOGGER.debug(e.getMessage(), e);
+			} catch (InterruptedException e) {
+				LOGGER.error("Interrupted.", e);
+				running = false;
+			} finally {
+				if (ackTracker != null) {
+					scheduler.removeListener(ackTracker);
+				}
+				closeRabbitMqConnection();
+			}
+			if (running) {
+				try {
+					Thread.sleep(RECONNECT_DELAY);
+				} catch (InterruptedException e) {
+					LOGGER.error("Interrupted.", e);
+					running = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parses notification and checks if it requests job data removal.
+	 *
+	 * @param type
+	 *            Message type.
+	 * @param body
+	 *            Message body.
+	 * @return Id of job to clean or {@code null} if message does not request cleaning (or job is not eligible).
+	 */
+	final Long getJobToClean(String type, byte[] body) {
+		try {
+			if ("JobFinished".equals(type)) {
+				JobFinished jobFinishedData = JobFinished.parseFrom(body);
+				return getJobToClean(jobFinishedData.getJob(), jobFinishedData.getStatus());
+			} else if ("JobFinishedReminder".equals(type)) {
+				JobFinishedReminder jobFinishedData = JobFinishedReminder.parseFrom(body);
+				return getJobToClean(jobFinishedData.getJob(), jobFinishedData.getStatus());
+			}
+		} catch (InvalidProtocolBufferException e) {
+			LOGGER.warn("Invalid message! Expected: " + type, e);
+		}
+		return null;
+	}
+
+	private Long getJobToClean(long jobId, JobStatus jobStatus) {
+		if (isJobStatusEligibleToClean(jobStatus)) {
+			return jobId;
+		} else {
+			LOGGER.trace("Job data clean request ignored. Job status not eligible. (jobId={}, status={})", jobId, jobStatus);
+			if (jobCatalog != null) {
+				jobCatalog.jobKept(jobId);
+			}
+			return null;
+		}
+	}
+
+	final JobCleaningScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Sets job catalog. Catalog is updated when job data is removed and when job is kept. Has to be called before
+	 * cleaner is started.
+	 *
+	 * @param catalog
+	 *            Job catalog.
+	 */
+	public final void setJobCatalog(JobCatalog catalog) {
+		jobCatalog = catalog;
+		scheduler.addListener(catalog);
+	}
+
+	/**
+	 * Sets trash collector used to remove job database files in background. Has to be called before cleaner is started.
+	 *
+	 * @param trashCollector
+	 *            Trash collector.
+	 */
+	public final void setTrashCollector(TrashCollector trashCollector) {
+		scheduler.setTrashCollector(trashCollector);
+	}
+
+	/**
+	 * Sets retention policy for kept jobs. Policy is enforced periodically, also when all job data is left intact. Job
+	 * catalog is required. Has to be called before cleaner is started.
+	 *
+	 * @param policy
+	 *            Retention policy.
+	 */
+	public final void setRetentionPolicy(RetentionPolicy policy) {
+		retentionPolicy = policy;
+	}
+
+	private void startRetention() {
+		if (retentionPolicy == null || !retentionPolicy.isEnabled()) {
+			return;
+		}
+		if (jobCatalog == null) {
+			LOGGER.warn("Retention policy ignored. Job catalog not set.");
+			return;
+		}
+		LOGGER.info("Retention of kept jobs started. ({})", retentionPolicy);
+		retentionExecutor = Executors.newSingleThreadScheduledExecutor();
+		retentionExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				enforceRetention();
+			}
+		}, RETENTION_INTERVAL, RETENTION_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Evicts kept jobs according to retention policy. Jobs are removed by the same cleaners pool as finished jobs.
+	 *
+	 * @return Number of evicted jobs.
+	 */
+	final int enforceRetention() {
+		List<JobInfo> keptJobs = new ArrayList<>();
+		for (JobInfo job : jobCatalog.getKeptJobs()) {
+			// Jobs already being removed are not taken into account.
+			if (scheduler.getState(job.getJobId()) == null) {
+				keptJobs.add(job);
+			}
+		}
+		long freeBytes = DataStore.getDataPlacement().getUsableSpace();
+
+		int evicted = 0;
+		for (Long jobId : retentionPolicy.selectJobsToEvict(keptJobs, freeBytes, System.currentTimeMillis())) {
+			if (scheduler.schedule(jobId)) {
+				LOGGER.info("Kept job data evicted by retention policy. (jobId={})", jobId);
+				evicted++;
+			}
+		}
+		return evicted;
+	}
+
 	public static void main(String[] args) {
 		DataStoreActiveCleaner d = new DataStoreActiveCleaner(null, null, null, 1);
 
 		d.startJobDataRemoving(1, JobStatus.FAILED);
 	}
 	/**
-	 * Starts new cleaning task if eligible (according to leaveJob option)
-	 * and run cleaning for last 20 jobs if needed.
+	 * Starts new cleaning task if eligible (according to leaveJob option). Jobs already being cleaned are ignored by
+	 * scheduler, failed removals are retried by scheduler as well.
 	 *
-	 * @param newJobId
+	 * @param jobId
 	 *            Id of job to clean.
 	 * @param jobStatus
 	 *            Job status (needed to filter failed jobs).
+	 * @return {@code True} if new cleaning task has been scheduled, {@code false} otherwise.
 	 */
-	private void startJobDataRemoving(long newJobId, JobStatus jobStatus) {
-		if (!finishedJobs.containsKey(newJobId)){
-			finishedJobs.put(newJobId, null);
-		}
-		Set<Long> oldKeySet = new LinkedHashSet<>();
-		oldKeySet.addAll(finishedJobs.keySet());
-		for(Long oldJobId : oldKeySet){
-			if (actualCleaningJobs.contains(oldJobId)) {
-				finishedJobs.get(oldJobId);
-				LOGGER.debug("Job data clean request ignored. Already cleaning. (jobId={})", oldJobId);
-			} else if (!DataStore.isDbFileExists(oldJobId)) {
-				LOGGER.trace("Data not found for job. (jobId={})", newJobId);
-			} else if (isJobStatusEligibleToClean(jobStatus)) {
-				LOGGER.info("Job data clean request added. (jobId={})", oldJobId);
-				executor.execute(new DataStoreCleanSingleJob(actualCleaningJobs, oldJobId));
-				finishedJobs.get(oldJobId);
-			} else {
-				LOGGER.trace("Job data clean request ignored. Job status not eligible. (jobId={}, status={})", oldJobId, jobStatus.toString());
-			}
-
-		}
+	public final boolean startJobDataRemoving(long jobId, JobStatus jobStatus) {
+		return getJobToClean(jobId, jobStatus) != null && scheduler.schedule(jobId);
 	}
 
 	/**
 	 * If {@code leaveJob} is set to NONE - all data will be erased. If {@code leaveJob} is set to FAILED, all data will
-	 * be erased but failed jobs will not be erased.
+	 * be erased but failed jobs will not be erased. If {@code leaveJob} is set to ALL, nothing will be erased.
 	 *
 	 * @param jobStatus
 	 *            Status of job to check.
 	 * @return {@code True} if job data should be erased, {@code false} otherwise.
 	 */
 	private boolean isJobStatusEligibleToClean(JobStatus jobStatus) {
-		// As this point we are sure that if leaveJob is not NONE, then it must be FAILED.
-		return leaveJob == LeaveJobOption.NONE || jobStatus != JobStatus.FAILED;
+		return leaveJob == LeaveJobOption.NONE || leaveJob == LeaveJobOption.FAILED && jobStatus != JobStatus.FAILED;
 	}
 
 	/**
@@ -216,31 +384,48 @@ public class DataStoreActiveCleaner implements Runnable {
 		return consumer;
 	}
 
+	/**
+	 * Initialize RabbitMQ connection with durable queue bound to notification exchange. Notifications published while
+	 * data store is down wait in the queue.
+	 *
+	 * @return RabbitMQ channel with prefetch limit set.
+	 * @throws IOException
+	 *             When there's some connection issues.
+	 */
+	private Channel initRabbitMqDurableConnection() throws IOException {
+		ConnectionFactory connFactory = new ConnectionFactory();
+		connFactory.setHost(rbtHostName);
+		rbtConnection = connFactory.newConnection();
+		Channel channel = rbtConnection.createChannel();
+		channel.exchangeDeclare(rbtNotifyExchName, "fanout");
+		channel.queueDeclare(rbtNotifyQueueName, true, false, false, null);
+		channel.queueBind(rbtNotifyQueueName, rbtNotifyExchName, "");
+		channel.basicQos(prefetchCount);
+		return channel;
+	}
+
 	/**
 	 * Cleaner shutdown request. It will not stop ongoing clean tasks but will take no new tasks and then ends when all
 	 * actual tasks are completed.
 	 */
 	public final void shutdown() {
-		try {
-			rbtConnection.close();
-		} catch (IOException e) {
-			LOGGER.error("Error while closing RabbitMQ connection.", e);
+		running = false;
+		if (retentionExecutor != null) {
+			retentionExecutor.shutdownNow();
 		}
-		executor.shutdown();
+		closeRabbitMqConnection();
+		scheduler.shutdown();
 	}
 
-	private static class FixedSizeLinkedHashMap<T,V> extends LinkedHashMap<T,V>{
-		private static final long serialVersionUID = -2000072674384966125L;
-		private int maxSize;
-
-		public FixedSizeLinkedHashMap(int maxSize) {
-			super(maxSize + 1, 1, true);
-			this.maxSize = maxSize;
-		}
-
-		@Override
-		protected boolean removeEldestEntry(java.util.Map.Entry<T, V> eldest) {
-			return maxSize < this.size();
+	private void closeRabbitMqConnection() {
+		Connection connection = rbtConnection;
+		rbtConnection = null;
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (IOException | ShutdownSignalException e) {
+				LOGGER.error("Error while closing RabbitMQ connection.", e);
+			}
 		}
 	}
 }
@@ -22,7 +22,10 @@ package pl.nask.hsn2;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.Lock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,10 +35,31 @@ public class DataStoreCleanSingleJob implements Runnable {
 	private static final Logger LOGGER = LoggerFactory.getLogger(DataStoreCleanSingleJob.class);
 	private final ConcurrentSkipListSet<Long> currentlyCleaningJobs;
 	private final long jobId;
+	private final JobCleaningListener listener;
+	private final TrashCollector trashCollector;
 
 	public DataStoreCleanSingleJob(ConcurrentSkipListSet<Long> actualCleaningJobsList, long jobIdToClean) {
+		this(actualCleaningJobsList, jobIdToClean, null, null);
+	}
+
+	/**
+	 * Creates new single job cleaner.
+	 *
+	 * @param actualCleaningJobsList
+	 *            Set of jobs being cleaned. Job is removed from it when task ends.
+	 * @param jobIdToClean
+	 *            Job id.
+	 * @param cleaningListener
+	 *            Listener notified about result, may be {@code null}.
+	 * @param trash
+	 *            Trash collector which unlinks database file in background, if {@code null} file is deleted at once.
+	 */
+	public DataStoreCleanSingleJob(ConcurrentSkipListSet<Long> actualCleaningJobsList, long jobIdToClean,
+			JobCleaningListener cleaningListener, TrashCollector trash) {
 		currentlyCleaningJobs = actualCleaningJobsList;
 		jobId = jobIdToClean;
+		listener = cleaningListener;
+		trashCollector = trash;
 		currentlyCleaningJobs.add(jobId);
 		LOGGER.debug("Single cleaner initialized. (job={})", jobIdToClean);
 	}
@@ -46,26 +70,59 @@ public class DataStoreCleanSingleJob implements Runnable {
 		long time = System.currentTimeMillis();
 
 		// Clean.
-		removeJobData();
+		IOException failure = null;
+		try {
+			removeJobData();
+		} catch (IOException e) {
+			LOGGER.warn("Could not delete H2 Database file. (" + DataStore.getDbFileName(jobId) + ".h2.db)", e);
+			failure = e;
+		}
 
 		// Task ended. Remove job from actual cleaning jobs list.
 		currentlyCleaningJobs.remove(jobId);
+		if (listener != null) {
+			if (failure == null) {
+				listener.jobDataRemoved(jobId);
+			} else {
+				listener.jobDataRemovalFailed(jobId, failure);
+			}
+		}
 
 		time = System.currentTimeMillis() - time;
 		LOGGER.info("Single cleaner task finished. (job={}, time[sec]={})", jobId, time / ONE_SEC_IN_MS);
 	}
 
 	/**
-	 * Removes database file. (Every job has its own database file.)
+	 * Removes database file. (Every job has its own database file.) Missing database file is not an error, it means
+	 * there is nothing to clean. If trash collector is set, database file is only moved to trash here. Data of job
+	 * snapshots is preserved first.
+	 *
+	 * @throws IOException
+	 *             When database file exists but could not be deleted.
 	 */
-	private void removeJobData() {
-		String filename = DataStore.getDbFileName(jobId);
+	private void removeJobData() throws IOException {
+		Lock jobLock = DataStore.getDataPlacement().getJobLock(jobId);
+		jobLock.lock();
 		try {
-			Files.delete(new File(filename + ".h2.db").toPath());
+			String filename = DataStore.getDbFileName(jobId);
+			SnapshotRegistry snapshots = DataStore.getSnapshotRegistry();
+			try {
+				Path dbFile = new File(filename + ".h2.db").toPath();
+				// Linked file keeps its data, so it is only unlinked (never truncated by trash collector).
+				if (snapshots.preserveJobData(jobId, dbFile) || trashCollector == null) {
+					Files.delete(dbFile);
+				} else {
+					trashCollector.moveToTrash(dbFile);
+				}
+			} catch (NoSuchFileException e) {
+				LOGGER.trace("Data not found for job. (jobId={})", jobId);
+			} finally {
+				snapshots.jobDataRemoved(jobId);
+			}
 			Files.deleteIfExists(new File(filename + ".lock.db").toPath());
 			Files.deleteIfExists(new File(filename + ".trace.db").toPath());
-		} catch (IOException e) {
-			LOGGER.warn("Could not delete H2 Database file. (" + filename + ".h2.db)", e);
+		} finally {
+			jobLock.unlock();
 		}
 	}
 }
@@ -20,6 +20,20 @@
 package pl.nask.hsn2;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,13 +47,33 @@ import pl.nask.hsn2.exceptions.InvalidArgument;
 public final class DataStoreCleaner {
 	private static final Logger LOGGER = LoggerFactory.getLogger(DataStoreCleaner.class);
 	public static final String DATA_PATH = DataStore.getDataPath();
+	private static final double ONE_SEC_IN_MS = 1000d;
+	private static final long MS_IN_DAY = 86400000L;
+	private static final double BYTES_IN_MB = 1048576d;
+	/**
+	 * Number of jobs removed by single fork join task without splitting.
+	 */
+	private static final int JOBS_PER_TASK = 64;
+	private List<String> dataPaths = Collections.singletonList(DATA_PATH);
 	private long jobNumberArgSet = -1;
 	private boolean jobArgSet = false;
+	private long rangeFrom = -1;
+	private long rangeTo = -1;
+	private long olderThanDays = -1;
+	private boolean dryRun = false;
+	private int threads = Runtime.getRuntime().availableProcessors();
 	private boolean helpArgSet = false;
-	private static final String HELP_MSG = "DataStoreCleaner will clean data for all jobs with ID number less\nthan provided in parameters."
-			+ "\n\nUsage:\n-h      Show help page.\n-j N    Set current job number. All previous job directories will\n        be cleaned.\n\n";
+	private static final String HELP_MSG = "DataStoreCleaner will clean data of jobs selected with parameters.\nAt least one of "
+			+ "-j, -r, -a has to be given, all given conditions have to be met.\n\nUsage:\n"
+			+ "-h          Show help page.\n"
+			+ "-j N        Set current job number. All previous jobs will be cleaned.\n"
+			+ "-r N-M      Clean jobs with id from N to M (inclusive).\n"
+			+ "-a DAYS     Clean jobs not modified for given number of days.\n"
+			+ "-n          Dry run. Only show what would be cleaned.\n"
+			+ "-t N        Number of deleting threads. (Default: number of processors)\n"
+			+ "-d PATHS    Comma separated data directories. (Default: " + DATA_PATH + ")\n\n";
 
-	private DataStoreCleaner() {
+	DataStoreCleaner() {
 		// this is utility class
 	}
 
@@ -54,7 +88,7 @@ public final class DataStoreCleaner {
 		}
 	}
 
-	private void parseStartArguments(String[] args) throws InvalidArgument {
+	final void parseStartArguments(String[] args) throws InvalidArgument {
 		if (args.length == 0) {
 			helpArgSet = true;
 			throw new InvalidArgument("No arguments provided.");
@@ -67,17 +101,13 @@ public final class DataStoreCleaner {
 				} else if (arg.equals("-j")) {
 					// Jobs argument provided.
 					jobArgSet = true;
+				} else if (arg.equals("-n")) {
+					dryRun = true;
+				} else if (arg.equals("-r") || arg.equals("-a") || arg.equals("-t") || arg.equals("-d")) {
+					// Value expected in next argument.
+					LOGGER.trace("Option {} found.", arg);
 				} else {
-					if (prevArg.equals("-j")) {
-						// Number expected.
-						jobNumberArgSet = Long.parseLong(arg);
-						if (jobNumberArgSet < 1) {
-							throw new InvalidArgument("Job number should be positive and it is: " + jobNumberArgSet);
-						}
-					} else {
-						// Unknown argument.
-						throw new InvalidArgument("Invalid argument: " + arg);
-					}
+					parseOptionValue(prevArg, arg);
 				}
 				prevArg = arg;
 			}
@@ -91,29 +121,134 @@ public final class DataStoreCleaner {
 		}
 		if (helpArgSet) {
 			System.out.println(HELP_MSG); //NOPMD
+		} else if (!jobArgSet && rangeFrom == -1 && olderThanDays == -1) {
+			throw new InvalidArgument("No jobs selected. Use -j, -r or -a option.");
 		}
 	}
 
-	private void clean() {
-		if (jobArgSet && jobNumberArgSet > 0) {
-			LOGGER.info("Cleaning started.");
-			File dataDir = new File(DATA_PATH);
-			File[] files = dataDir.listFiles();
-			for (File f : files) {
-				if (f.isDirectory()) {
-					try {
-						String name = f.getName();
-						long id = Long.parseLong(name);
-						if (id < jobNumberArgSet) {
-							deleteNonEmptyDirectory(f);
+	private void parseOptionValue(String option, String value) throws InvalidArgument {
+		if (option.equals("-j")) {
+			// Number expected.
+			jobNumberArgSet = Long.parseLong(value);
+			if (jobNumberArgSet < 1) {
+				throw new InvalidArgument("Job number should be positive and it is: " + jobNumberArgSet);
+			}
+		} else if (option.equals("-r")) {
+			String[] range = value.split("-");
+			if (range.length != 2) {
+				throw new InvalidArgument("Invalid range: " + value);
+			}
+			rangeFrom = Long.parseLong(range[0]);
+			rangeTo = Long.parseLong(range[1]);
+			if (rangeFrom < 0 || rangeTo < rangeFrom) {
+				throw new InvalidArgument("Invalid range: " + value);
+			}
+		} else if (option.equals("-a")) {
+			olderThanDays = Long.parseLong(value);
+			if (olderThanDays < 0) {
+				throw new InvalidArgument("Number of days should not be negative and it is: " + olderThanDays);
+			}
+		} else if (option.equals("-t")) {
+			threads = Integer.parseInt(value);
+			if (threads < 1) {
+				throw new InvalidArgument("Threads number should be positive and it is: " + threads);
+			}
+		} else if (option.equals("-d")) {
+			dataPaths = Arrays.asList(value.split(","));
+		} else {
+			// Unknown argument.
+			throw new InvalidArgument("Invalid argument: " + value);
+		}
+	}
+
+	/**
+	 * Cleans selected jobs.
+	 *
+	 * @return Cleaning summary or {@code null} if there was nothing to do (help requested).
+	 * @throws IOException
+	 *             When data directories could not be listed.
+	 */
+	final Summary clean() throws IOException {
+		if (helpArgSet) {
+			return null;
+		}
+		LOGGER.info("Cleaning started.{}", dryRun ? " (dry run)" : "");
+		long time = System.currentTimeMillis();
+		List<List<Path>> jobs = findJobsToClean();
+
+		Summary summary = new Summary();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new CleanJobsTask(jobs, 0, jobs.size(), summary));
+		} finally {
+			pool.shutdown();
+		}
+
+		time = Math.max(1, System.currentTimeMillis() - time);
+		double mbPerSec = summary.getBytes() / BYTES_IN_MB / (time / ONE_SEC_IN_MS);
+		LOGGER.info("Cleaning ended.{} (jobs={}, files={}, bytes={}, time[sec]={}, MB/sec={})", new Object[] {
+				dryRun ? " (dry run, nothing deleted)" : "", summary.getJobs(), summary.getFiles(), summary.getBytes(),
+				time / ONE_SEC_IN_MS, String.format("%.2f", mbPerSec) });
+		return summary;
+	}
+
+	/**
+	 * Lists data directories (with fan-out directories) and groups job files (database, lock, trace and any other file
+	 * of job storage, also old style job directories) by job id.
+	 */
+	private List<List<Path>> findJobsToClean() throws IOException {
+		Map<Long, List<Path>> jobFiles = new HashMap<>();
+		List<File> jobDirs = new ArrayList<>();
+		for (String dataPath : dataPaths) {
+			jobDirs.addAll(DataPlacement.listJobDirs(new File(dataPath)));
+		}
+		for (File jobDir : jobDirs) {
+			try (DirectoryStream<Path> dataDir = Files.newDirectoryStream(jobDir.toPath())) {
+				for (Path path : dataDir) {
+					String name = path.getFileName().toString();
+					Long jobId = Files.isDirectory(path) ? getJobIdFromDirName(name) : DataStore.getJobIdFromJobFileName(name);
+					if (jobId == null) {
+						LOGGER.info("Directory/File is not job data, leave it untouched: {}", path);
+					} else if (isJobIdSelected(jobId)) {
+						List<Path> files = jobFiles.get(jobId);
+						if (files == null) {
+							files = new ArrayList<>(1);
+							jobFiles.put(jobId, files);
 						}
-					} catch (NumberFormatException e) {
-						LOGGER.info("Directory/File is not number, leave it untouched: {}", f.getAbsolutePath());
+						files.add(path);
 					}
 				}
 			}
-			LOGGER.info("Cleaning ended.");
 		}
+
+		List<List<Path>> jobs = new ArrayList<>(jobFiles.size());
+		long cutoff = System.currentTimeMillis() - olderThanDays * MS_IN_DAY;
+		for (Entry<Long, List<Path>> job : jobFiles.entrySet()) {
+			if (olderThanDays == -1 || getLastModified(job.getValue()) < cutoff) {
+				jobs.add(job.getValue());
+			}
+		}
+		return jobs;
+	}
+
+	private static Long getJobIdFromDirName(String name) {
+		try {
+			return Long.valueOf(name);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private boolean isJobIdSelected(long jobId) {
+		return (!jobArgSet || jobId < jobNumberArgSet) && (rangeFrom == -1 || jobId >= rangeFrom && jobId <= rangeTo);
+	}
+
+	private static long getLastModified(List<Path> files) throws IOException {
+		long lastModified = 0;
+		for (Path file : files) {
+			lastModified = Math.max(lastModified, Files.getLastModifiedTime(file).toMillis());
+		}
+		return lastModified;
 	}
 
 	public static void deleteNonEmptyDirectory(File dir) {
@@ -131,4 +266,88 @@ public final class DataStoreCleaner {
 			LOGGER.info("Cannot delete: {}", dir.getAbsolutePath());
 		}
 	}
+
+	private static long sizeOf(File file) {
+		if (file.isDirectory()) {
+			long size = 0;
+			for (File inside : file.listFiles()) {
+				size += sizeOf(inside);
+			}
+			return size;
+		}
+		return file.length();
+	}
+
+	/**
+	 * Cleaning totals. In dry run mode it shows what would be cleaned.
+	 */
+	static final class Summary {
+		private final AtomicLong jobs = new AtomicLong();
+		private final AtomicLong files = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+
+		long getJobs() {
+			return jobs.get();
+		}
+
+		long getFiles() {
+			return files.get();
+		}
+
+		long getBytes() {
+			return bytes.get();
+		}
+	}
+
+	/**
+	 * Removes jobs from given part of list. Splits work in halves until it is small enough.
+	 */
+	private final class CleanJobsTask extends RecursiveAction {
+		private static final long serialVersionUID = 2717339815208557402L;
+		private final List<List<Path>> jobs;
+		private final int from;
+		private final int to;
+		private final Summary summary;
+
+		private CleanJobsTask(List<List<Path>> jobsToClean, int fromIndex, int toIndex, Summary cleaningSummary) {
+			jobs = jobsToClean;
+			from = fromIndex;
+			to = toIndex;
+			summary = cleaningSummary;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= JOBS_PER_TASK) {
+				for (int i = from; i < to; i++) {
+					cleanJob(jobs.get(i));
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new CleanJobsTask(jobs, from, middle, summary), new CleanJobsTask(jobs, middle, to, summary));
+			}
+		}
+
+		private void cleanJob(List<Path> jobFiles) {
+			for (Path path : jobFiles) {
+				File file = path.toFile();
+				long size = sizeOf(file);
+				if (dryRun) {
+					LOGGER.debug("Would delete: {} ({} bytes)", path, size);
+				} else if (file.isDirectory()) {
+					deleteNonEmptyDirectory(file);
+				} else {
+					try {
+						Files.delete(path);
+					} catch (IOException e) {
+						LOGGER.info("Cannot delete: {}", path);
+						continue;
+					}
+				}
+				summary.files.incrementAndGet();
+				summary.bytes.addAndGet(size);
+			}
+			summary.jobs.incrementAndGet();
+		}
+	}
 }
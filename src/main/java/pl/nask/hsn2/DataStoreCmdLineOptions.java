@@ -19,6 +19,9 @@
 
 package pl.nask.hsn2;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.OptionBuilder;
@@ -26,7 +29,11 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 
+import pl.nask.hsn2.DataPlacement.Layout;
+import pl.nask.hsn2.DataPlacement.Strategy;
 import pl.nask.hsn2.DataStoreActiveCleaner.LeaveJobOption;
+import pl.nask.hsn2.DurabilityManager.Mode;
+import pl.nask.hsn2.RetentionPolicy.EvictionOrder;
 
 public class DataStoreCmdLineOptions {
 	private static final int CONSOLE_WIDTH = 110;
@@ -38,12 +45,58 @@ public class DataStoreCmdLineOptions {
 	private static final String DEFAULT_RBT_HOSTNAME = "localhost";
 	private static final String DEFAULT_RBT_NOTIFY_EXCH = "notify";
 	private static final int DEFAULT_CLEANING_THREADS_NUMBER = 3;
+	private static final int DEFAULT_RBT_PREFETCH = 100;
+	private static final int DEFAULT_RECONCILE_INTERVAL = 60;
+	private static final long MS_IN_HOUR = 3600000L;
+	private static final long BYTES_IN_MB = 1048576L;
+	private static final int DEFAULT_TRASH_RATE = 50;
+	private static final long BYTES_IN_KB = 1024L;
+	private static final long DEFAULT_GROUP_COMMIT_INTERVAL = 10;
+	private static final long DEFAULT_GROUP_COMMIT_SIZE = 1024;
+	private static final int DEFAULT_WRITE_BEHIND_SIZE = 64;
+	private static final int DEFAULT_REPLICATION_BACKLOG = 100000;
+	private static final int DEFAULT_COMPACT_DEAD_RATIO = 50;
+	private static final int DEFAULT_COMPACT_RATE = 50;
+	private static final double PERCENT = 100.0;
+	private static final int DEFAULT_IDEMPOTENCY_KEYS = 100000;
+	private static final int DEFAULT_ACCESS_LOG_BUFFER = 65536;
+	private static final int DEFAULT_BUFFER_SIZE = 64;
+	private static final int DEFAULT_BUFFER_POOL_SIZE = 64;
 
 	private int port;
 	private String rbtHostname;
 	private String rbtNotifyExch;
+	private String rbtNotifyQueue;
+	private int rbtPrefetch;
 	private LeaveJobOption leaveData;
 	private int cleaningThreadsNumber;
+	private String jobStatusFile;
+	private int reconcileInterval;
+	private RetentionPolicy retentionPolicy;
+	private long trashRate;
+	private Mode durabilityMode;
+	private long groupCommitInterval;
+	private long groupCommitBytes;
+	private int writeBehindThreads;
+	private int writeBehindMaxSize;
+	private int jobDbPoolSize;
+	private List<String> dataDirs;
+	private Strategy dataPlacementStrategy;
+	private Layout dataLayout;
+	private String stateDir;
+	private String clusterConfig;
+	private String clusterNodeId;
+	private boolean clusterRedirect;
+	private List<String> replicationFollowers;
+	private int replicationBacklog;
+	private int replicationListenPort;
+	private double compactDeadRatio;
+	private long compactRate;
+	private int idempotencyKeys;
+	private String accessLogFile;
+	private int accessLogBuffer;
+	private int bufferSize;
+	private int bufferPoolSize;
 
 	private CommandLine cmd;
 
@@ -90,11 +143,233 @@ public class DataStoreCmdLineOptions {
 		OptionBuilder.withArgName("name");
 		options.addOption(OptionBuilder.create("rne"));
 
+		OptionBuilder.withDescription("Durable RabbitMQ notification queue name. If set, notifications are acknowledged after "
+				+ "job data is removed. (Default: server named queue, auto acknowledged)");
+		OptionBuilder.withLongOpt("rbtNotifyQueue");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("name");
+		options.addOption(OptionBuilder.create("rnq"));
+
+		OptionBuilder.withDescription("Maximum number of not acknowledged notifications, used with '-rnq'. (Default: "
+				+ DEFAULT_RBT_PREFETCH + ")");
+		OptionBuilder.withLongOpt("rbtPrefetch");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("number");
+		options.addOption(OptionBuilder.create("rpf"));
+
 		OptionBuilder.withDescription("Cleaning threads number. (Default: " + DEFAULT_CLEANING_THREADS_NUMBER + ")");
 		OptionBuilder.withLongOpt("cleaningThreads");
 		OptionBuilder.hasArgs(1);
 		OptionBuilder.withArgName("number");
 		options.addOption(OptionBuilder.create("ct"));
+
+		OptionBuilder.withDescription("File with statuses of finished jobs ('<jobId> <status>' lines). If set, data of finished "
+				+ "jobs which has never been cleaned is removed on startup and periodically.");
+		OptionBuilder.withLongOpt("jobStatusFile");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("file");
+		options.addOption(OptionBuilder.create("jsf"));
+
+		OptionBuilder.withDescription("Interval between job data reconciliations in minutes, 0 means on startup only. (Default: "
+				+ DEFAULT_RECONCILE_INTERVAL + ")");
+		OptionBuilder.withLongOpt("reconcileInterval");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("minutes");
+		options.addOption(OptionBuilder.create("ri"));
+
+		OptionBuilder.withDescription("Retention of kept jobs: maximum age of job data in hours. (Default: no limit)");
+		OptionBuilder.withLongOpt("retentionMaxAge");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("hours");
+		options.addOption(OptionBuilder.create("rma"));
+
+		OptionBuilder.withDescription("Retention of kept jobs: maximum total size of kept jobs in MB. (Default: no limit)");
+		OptionBuilder.withLongOpt("retentionMaxSize");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("MB");
+		options.addOption(OptionBuilder.create("rms"));
+
+		OptionBuilder.withDescription("Retention of kept jobs: free disk space in MB below which kept jobs are evicted. "
+				+ "(Default: no limit)");
+		OptionBuilder.withLongOpt("retentionFreeLow");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("MB");
+		options.addOption(OptionBuilder.create("rfl"));
+
+		OptionBuilder.withDescription("Retention of kept jobs: free disk space in MB which eviction tries to reach. (Default: "
+				+ "same as '-rfl')");
+		OptionBuilder.withLongOpt("retentionFreeHigh");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("MB");
+		options.addOption(OptionBuilder.create("rfh"));
+
+		OptionBuilder.withDescription("Retention of kept jobs: eviction order. (Default: oldest)");
+		OptionBuilder.withLongOpt("retentionOrder");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("oldest|lru");
+		options.addOption(OptionBuilder.create("ro"));
+
+		OptionBuilder.withDescription("Rate of unlinking removed job files in MB per second, 0 means unlimited. (Default: "
+				+ DEFAULT_TRASH_RATE + ")");
+		OptionBuilder.withLongOpt("trashRate");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("MB/s");
+		options.addOption(OptionBuilder.create("tr"));
+
+		OptionBuilder.withDescription("Durability of uploaded data: none (page cache only), group (common sync of concurrent "
+				+ "uploads), request (sync on every upload). Upload is confirmed after data is durable. (Default: none)");
+		OptionBuilder.withLongOpt("durability");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("none|group|request");
+		options.addOption(OptionBuilder.create("dm"));
+
+		OptionBuilder.withDescription("Group commit interval in ms, used with '-dm group'. (Default: "
+				+ DEFAULT_GROUP_COMMIT_INTERVAL + ")");
+		OptionBuilder.withLongOpt("groupCommitInterval");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("ms");
+		options.addOption(OptionBuilder.create("gci"));
+
+		OptionBuilder.withDescription("Number of KB written which triggers group commit before interval ends, used with "
+				+ "'-dm group'. (Default: " + DEFAULT_GROUP_COMMIT_SIZE + ")");
+		OptionBuilder.withLongOpt("groupCommitSize");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("KB");
+		options.addOption(OptionBuilder.create("gcs"));
+
+		OptionBuilder.withDescription("Number of write-behind threads. If set, small uploads to the same job are inserted in "
+				+ "batches, one transaction per batch. (Default: 0, disabled)");
+		OptionBuilder.withLongOpt("writeBehindThreads");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("number");
+		options.addOption(OptionBuilder.create("wbt"));
+
+		OptionBuilder.withDescription("Maximum size of upload in KB handled by write-behind, used with '-wbt'. (Default: "
+				+ DEFAULT_WRITE_BEHIND_SIZE + ")");
+		OptionBuilder.withLongOpt("writeBehindSize");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("KB");
+		options.addOption(OptionBuilder.create("wbs"));
+
+		OptionBuilder.withDescription("Number of prepared empty job databases kept ready for new jobs in every data "
+				+ "directory. (Default: 0, databases created on first upload)");
+		OptionBuilder.withLongOpt("jobDbPool");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("number");
+		options.addOption(OptionBuilder.create("jdp"));
+
+		OptionBuilder.withDescription("Comma separated list of data directories, one per disk. (Default: 'data' directory "
+				+ "next to application)");
+		OptionBuilder.withLongOpt("dataDirs");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("dirs");
+		options.addOption(OptionBuilder.create("dd"));
+
+		OptionBuilder.withDescription("Placement of jobs in data directories: hash (equal shares) or space (shares "
+				+ "proportional to free space). (Default: hash)");
+		OptionBuilder.withLongOpt("dataPlacement");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("hash|space");
+		options.addOption(OptionBuilder.create("dps"));
+
+		OptionBuilder.withDescription("Layout of job files in data directory: flat or fanout (two levels of subdirectories, "
+				+ "flat files are moved in background). (Default: flat)");
+		OptionBuilder.withLongOpt("dataLayout");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("flat|fanout");
+		options.addOption(OptionBuilder.create("dl"));
+
+		OptionBuilder.withDescription("Directory of id sequence file, job catalog, trash and default data directory. "
+				+ "(Default: directory of application)");
+		OptionBuilder.withLongOpt("stateDir");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("dir");
+		options.addOption(OptionBuilder.create("sd"));
+
+		OptionBuilder.withDescription("Cluster config file ('<nodeId> <host>:<port>' lines). If set, jobs are spread over "
+				+ "cluster nodes and requests for jobs of other nodes are forwarded to them.");
+		OptionBuilder.withLongOpt("clusterConfig");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("file");
+		options.addOption(OptionBuilder.create("cc"));
+
+		OptionBuilder.withDescription("Id of this node in cluster config, required with '-cc'.");
+		OptionBuilder.withLongOpt("clusterNode");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("id");
+		options.addOption(OptionBuilder.create("cn"));
+
+		OptionBuilder.withDescription("Redirect clients to job owner node instead of forwarding requests, used with '-cc'.");
+		OptionBuilder.withLongOpt("clusterRedirect");
+		options.addOption(OptionBuilder.create("cr"));
+
+		OptionBuilder.withDescription("Comma separated list of followers ('<host>:<port>') to which committed entries and "
+				+ "job removals are replicated asynchronously.");
+		OptionBuilder.withLongOpt("replicationFollowers");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("followers");
+		options.addOption(OptionBuilder.create("rep"));
+
+		OptionBuilder.withDescription("Maximum number of replication events waiting for every follower, follower which "
+				+ "falls further behind is fully resynchronized. (Default: " + DEFAULT_REPLICATION_BACKLOG + ")");
+		OptionBuilder.withLongOpt("replicationBacklog");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("events");
+		options.addOption(OptionBuilder.create("reb"));
+
+		OptionBuilder.withDescription("Run as read-only follower: receive replication stream from primary on given port.");
+		OptionBuilder.withLongOpt("replicationListen");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("port");
+		options.addOption(OptionBuilder.create("rel"));
+
+		OptionBuilder.withDescription("Percent of job database taken by deleted entries which triggers background compaction "
+				+ "of the database, 0 disables compaction. (Default: " + DEFAULT_COMPACT_DEAD_RATIO + ")");
+		OptionBuilder.withLongOpt("compactDeadRatio");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("percent");
+		options.addOption(OptionBuilder.create("cdr"));
+
+		OptionBuilder.withDescription("Rate of job databases compaction in MB per second, 0 means unlimited. (Default: "
+				+ DEFAULT_COMPACT_RATE + ")");
+		OptionBuilder.withLongOpt("compactRate");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("MB/s");
+		options.addOption(OptionBuilder.create("cra"));
+
+		OptionBuilder.withDescription("Number of recent upload Idempotency-Key headers kept in memory, older ones are looked "
+				+ "up in job database. (Default: " + DEFAULT_IDEMPOTENCY_KEYS + ")");
+		OptionBuilder.withLongOpt("idempotencyKeys");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("number");
+		options.addOption(OptionBuilder.create("ikc"));
+
+		OptionBuilder.withDescription("Access log file. (Default: access log is written with 'AccessLog' logger)");
+		OptionBuilder.withLongOpt("accessLog");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("file");
+		options.addOption(OptionBuilder.create("al"));
+
+		OptionBuilder.withDescription("Number of requests buffered for access log writer, when buffer fills up requests are "
+				+ "sampled and then dropped from access log. 0 disables access log. (Default: " + DEFAULT_ACCESS_LOG_BUFFER + ")");
+		OptionBuilder.withLongOpt("accessLogBuffer");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("number");
+		options.addOption(OptionBuilder.create("alb"));
+
+		OptionBuilder.withDescription("Size of I/O buffer for request and response bodies in KB. (Default: " + DEFAULT_BUFFER_SIZE
+				+ ")");
+		OptionBuilder.withLongOpt("bufferSize");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("KB");
+		options.addOption(OptionBuilder.create("bs"));
+
+		OptionBuilder.withDescription("Maximum number of idle I/O buffers kept for reuse. (Default: " + DEFAULT_BUFFER_POOL_SIZE
+				+ ")");
+		OptionBuilder.withLongOpt("bufferPoolSize");
+		OptionBuilder.hasArgs(1);
+		OptionBuilder.withArgName("number");
+		options.addOption(OptionBuilder.create("bps"));
 	}
 
 	public final CommandLine getCmd() {
@@ -124,9 +399,150 @@ public class DataStoreCmdLineOptions {
 			setPortOption(cmd);
 			setRabbitMqServerName(cmd);
 			setRabbitMqNotifyExchange(cmd);
+			setRabbitMqNotifyQueue(cmd);
+			setRabbitMqPrefetch(cmd);
 			setLeaveDataOption(cmd);
 			setCleaningThreadsNumber(cmd);
+			setReconciliationOptions(cmd);
+			setRetentionPolicy(cmd);
+			trashRate = (cmd.hasOption("tr") ? getNonNegativeLong(cmd, "tr") : DEFAULT_TRASH_RATE) * BYTES_IN_MB;
+			setDurabilityOptions(cmd);
+			setWriteBehindOptions(cmd);
+			jobDbPoolSize = (int) getNonNegativeLong(cmd, "jdp");
+			setDataPlacementOptions(cmd);
+			setClusterOptions(cmd);
+			setReplicationOptions(cmd);
+			setCompactionOptions(cmd);
+			long keys = cmd.hasOption("ikc") ? getNonNegativeLong(cmd, "ikc") : DEFAULT_IDEMPOTENCY_KEYS;
+			if (keys > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Illegal '-ikc' argument. Got: " + cmd.getOptionValue("ikc"));
+			}
+			idempotencyKeys = (int) keys;
+			setAccessLogOptions(cmd);
+			setBufferOptions(cmd);
+		}
+	}
+
+	private void setBufferOptions(CommandLine cmd) {
+		long size = cmd.hasOption("bs") ? getNonNegativeLong(cmd, "bs") : DEFAULT_BUFFER_SIZE;
+		if (size < 1 || size > Integer.MAX_VALUE / BYTES_IN_KB) {
+			throw new IllegalArgumentException("Illegal '-bs' argument. Got: " + cmd.getOptionValue("bs"));
+		}
+		bufferSize = (int) (size * BYTES_IN_KB);
+		long poolSize = cmd.hasOption("bps") ? getNonNegativeLong(cmd, "bps") : DEFAULT_BUFFER_POOL_SIZE;
+		if (poolSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Illegal '-bps' argument. Got: " + cmd.getOptionValue("bps"));
+		}
+		bufferPoolSize = (int) poolSize;
+	}
+
+	private void setAccessLogOptions(CommandLine cmd) {
+		accessLogFile = cmd.getOptionValue("al");
+		long buffer = cmd.hasOption("alb") ? getNonNegativeLong(cmd, "alb") : DEFAULT_ACCESS_LOG_BUFFER;
+		if (buffer > Integer.MAX_VALUE / 2) {
+			throw new IllegalArgumentException("Illegal '-alb' argument. Got: " + cmd.getOptionValue("alb"));
+		}
+		accessLogBuffer = (int) buffer;
+	}
+
+	private void setCompactionOptions(CommandLine cmd) {
+		long ratio = cmd.hasOption("cdr") ? getNonNegativeLong(cmd, "cdr") : DEFAULT_COMPACT_DEAD_RATIO;
+		if (ratio > PERCENT) {
+			throw new IllegalArgumentException("Illegal '-cdr' argument. Got: " + cmd.getOptionValue("cdr"));
+		}
+		compactDeadRatio = ratio / PERCENT;
+		compactRate = (cmd.hasOption("cra") ? getNonNegativeLong(cmd, "cra") : DEFAULT_COMPACT_RATE) * BYTES_IN_MB;
+	}
+
+	private void setReplicationOptions(CommandLine cmd) throws ParseException {
+		if (cmd.hasOption("rep")) {
+			replicationFollowers = new ArrayList<>();
+			for (String follower : cmd.getOptionValue("rep").split(",")) {
+				if (!follower.trim().isEmpty()) {
+					replicationFollowers.add(follower.trim());
+				}
+			}
+			if (replicationFollowers.isEmpty()) {
+				throw new ParseException("No follower given for '-rep' option.");
+			}
+		} else {
+			replicationFollowers = null;
+		}
+		long backlog = cmd.hasOption("reb") ? getNonNegativeLong(cmd, "reb") : DEFAULT_REPLICATION_BACKLOG;
+		if (backlog < 1 || backlog > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Illegal '-reb' argument. Got: " + cmd.getOptionValue("reb"));
+		}
+		replicationBacklog = (int) backlog;
+		replicationListenPort = (int) getNonNegativeLong(cmd, "rel");
+		if (replicationListenPort > 0 && replicationFollowers != null) {
+			throw new ParseException("Options '-rel' and '-rep' can't be used together.");
+		}
+	}
+
+	private void setClusterOptions(CommandLine cmd) throws ParseException {
+		stateDir = cmd.getOptionValue("sd");
+		clusterConfig = cmd.getOptionValue("cc");
+		clusterNodeId = cmd.getOptionValue("cn");
+		clusterRedirect = cmd.hasOption("cr");
+		if (clusterConfig != null && clusterNodeId == null) {
+			throw new ParseException("Option '-cn' is required with '-cc' option.");
+		}
+	}
+
+	private void setDataPlacementOptions(CommandLine cmd) throws ParseException {
+		if (cmd.hasOption("dd")) {
+			dataDirs = new ArrayList<>();
+			for (String dir : cmd.getOptionValue("dd").split(",")) {
+				if (!dir.trim().isEmpty()) {
+					dataDirs.add(dir.trim());
+				}
+			}
+			if (dataDirs.isEmpty()) {
+				throw new ParseException("No data directory given for '-dd' option.");
+			}
+		} else {
+			dataDirs = null;
+		}
+		String temp = cmd.getOptionValue("dps", "hash");
+		if ("hash".equals(temp)) {
+			dataPlacementStrategy = Strategy.HASH;
+		} else if ("space".equals(temp)) {
+			dataPlacementStrategy = Strategy.FREE_SPACE;
+		} else {
+			throw new ParseException("Only 'hash' and 'space' arguments allowed for '-dps' option. Got: " + temp);
 		}
+		temp = cmd.getOptionValue("dl", "flat");
+		if ("flat".equals(temp)) {
+			dataLayout = Layout.FLAT;
+		} else if ("fanout".equals(temp)) {
+			dataLayout = Layout.FAN_OUT;
+		} else {
+			throw new ParseException("Only 'flat' and 'fanout' arguments allowed for '-dl' option. Got: " + temp);
+		}
+	}
+
+	private void setWriteBehindOptions(CommandLine cmd) {
+		writeBehindThreads = (int) getNonNegativeLong(cmd, "wbt");
+		long size = (cmd.hasOption("wbs") ? getNonNegativeLong(cmd, "wbs") : DEFAULT_WRITE_BEHIND_SIZE) * BYTES_IN_KB;
+		if (size > Integer.MAX_VALUE / 2) {
+			throw new IllegalArgumentException("Illegal '-wbs' argument. Got: " + cmd.getOptionValue("wbs"));
+		}
+		writeBehindMaxSize = (int) size;
+	}
+
+	private void setDurabilityOptions(CommandLine cmd) throws ParseException {
+		String temp = cmd.getOptionValue("dm", "none");
+		if ("none".equals(temp)) {
+			durabilityMode = Mode.NONE;
+		} else if ("group".equals(temp)) {
+			durabilityMode = Mode.GROUP_COMMIT;
+		} else if ("request".equals(temp)) {
+			durabilityMode = Mode.REQUEST;
+		} else {
+			throw new ParseException("Only 'none', 'group' and 'request' arguments allowed for '-dm' option. Got: " + temp);
+		}
+		groupCommitInterval = cmd.hasOption("gci") ? getNonNegativeLong(cmd, "gci") : DEFAULT_GROUP_COMMIT_INTERVAL;
+		groupCommitBytes = (cmd.hasOption("gcs") ? getNonNegativeLong(cmd, "gcs") : DEFAULT_GROUP_COMMIT_SIZE) * BYTES_IN_KB;
 	}
 
 	private void setCleaningThreadsNumber(CommandLine cmd) {
@@ -144,6 +560,57 @@ public class DataStoreCmdLineOptions {
 		}
 	}
 
+	private void setReconciliationOptions(CommandLine cmd) {
+		jobStatusFile = cmd.getOptionValue("jsf");
+		if (cmd.hasOption("ri")) {
+			try {
+				reconcileInterval = Integer.parseInt(cmd.getOptionValue("ri"));
+				if (reconcileInterval < 0) {
+					throw new NumberFormatException("Negative '-ri' value. Got: " + cmd.getOptionValue("ri"));
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Illegal '-ri' argument. Got: " + cmd.getOptionValue("ri"), e);
+			}
+		} else {
+			reconcileInterval = DEFAULT_RECONCILE_INTERVAL;
+		}
+	}
+
+	private void setRetentionPolicy(CommandLine cmd) throws ParseException {
+		long maxAge = getNonNegativeLong(cmd, "rma") * MS_IN_HOUR;
+		long maxSize = getNonNegativeLong(cmd, "rms") * BYTES_IN_MB;
+		long freeLow = getNonNegativeLong(cmd, "rfl") * BYTES_IN_MB;
+		long freeHigh = cmd.hasOption("rfh") ? getNonNegativeLong(cmd, "rfh") * BYTES_IN_MB : freeLow;
+		if (freeHigh < freeLow) {
+			throw new ParseException("'-rfh' value lower than '-rfl' value.");
+		}
+		EvictionOrder order;
+		String temp = cmd.getOptionValue("ro", "oldest");
+		if ("oldest".equals(temp)) {
+			order = EvictionOrder.OLDEST;
+		} else if ("lru".equals(temp)) {
+			order = EvictionOrder.LEAST_RECENTLY_READ;
+		} else {
+			throw new ParseException("Only 'oldest' and 'lru' arguments allowed for '-ro' option. Got: " + temp);
+		}
+		retentionPolicy = new RetentionPolicy(maxAge, maxSize, freeLow, freeHigh, order);
+	}
+
+	private long getNonNegativeLong(CommandLine cmd, String option) {
+		if (!cmd.hasOption(option)) {
+			return 0;
+		}
+		try {
+			long value = Long.parseLong(cmd.getOptionValue(option));
+			if (value < 0) {
+				throw new NumberFormatException("Negative '-" + option + "' value. Got: " + cmd.getOptionValue(option));
+			}
+			return value;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Illegal '-" + option + "' argument. Got: " + cmd.getOptionValue(option), e);
+		}
+	}
+
 	private void setLeaveDataOption(CommandLine cmd) throws ParseException {
 		if (cmd.hasOption("ld")) {
 			String temp = cmd.getOptionValue("ld");
@@ -167,6 +634,29 @@ public class DataStoreCmdLineOptions {
 		}
 	}
 
+	private void setRabbitMqNotifyQueue(CommandLine cmd) {
+		if (cmd.hasOption("rnq")) {
+			rbtNotifyQueue = cmd.getOptionValue("rnq");
+		} else {
+			rbtNotifyQueue = null;
+		}
+	}
+
+	private void setRabbitMqPrefetch(CommandLine cmd) {
+		if (cmd.hasOption("rpf")) {
+			try {
+				rbtPrefetch = Integer.parseInt(cmd.getOptionValue("rpf"));
+				if (rbtPrefetch < 1) {
+					throw new NumberFormatException("Negative '-rpf' value. Got: " + cmd.getOptionValue("rpf"));
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Illegal '-rpf' argument. Got: " + cmd.getOptionValue("rpf"), e);
+			}
+		} else {
+			rbtPrefetch = DEFAULT_RBT_PREFETCH;
+		}
+	}
+
 	private void setRabbitMqServerName(CommandLine cmd) {
 		if (cmd.hasOption("rs")) {
 			rbtHostname = cmd.getOptionValue("rs");
@@ -202,6 +692,14 @@ public class DataStoreCmdLineOptions {
 		return rbtNotifyExch;
 	}
 
+	public final String getRbtNotifyQueue() {
+		return rbtNotifyQueue;
+	}
+
+	public final int getRbtPrefetch() {
+		return rbtPrefetch;
+	}
+
 	public final LeaveJobOption getLeaveData() {
 		return leaveData;
 	}
@@ -209,4 +707,170 @@ public class DataStoreCmdLineOptions {
 	public final int getCleaningThreadsNumber() {
 		return cleaningThreadsNumber;
 	}
+
+	public final String getJobStatusFile() {
+		return jobStatusFile;
+	}
+
+	public final int getReconcileInterval() {
+		return reconcileInterval;
+	}
+
+	public final RetentionPolicy getRetentionPolicy() {
+		return retentionPolicy;
+	}
+
+	/**
+	 * @return Rate of unlinking removed job files in bytes per second, 0 means unlimited.
+	 */
+	public final long getTrashRate() {
+		return trashRate;
+	}
+
+	public final Mode getDurabilityMode() {
+		return durabilityMode;
+	}
+
+	/**
+	 * @return Group commit interval in ms.
+	 */
+	public final long getGroupCommitInterval() {
+		return groupCommitInterval;
+	}
+
+	/**
+	 * @return Number of bytes which triggers group commit.
+	 */
+	public final long getGroupCommitBytes() {
+		return groupCommitBytes;
+	}
+
+	/**
+	 * @return Number of write-behind threads, 0 means write-behind is disabled.
+	 */
+	public final int getWriteBehindThreads() {
+		return writeBehindThreads;
+	}
+
+	/**
+	 * @return Maximum size (bytes) of upload handled by write-behind.
+	 */
+	public final int getWriteBehindMaxSize() {
+		return writeBehindMaxSize;
+	}
+
+	/**
+	 * @return Number of prepared job databases, 0 means pool is disabled.
+	 */
+	public final int getJobDbPoolSize() {
+		return jobDbPoolSize;
+	}
+
+	/**
+	 * @return Data directories or {@code null} if default data directory should be used.
+	 */
+	public final List<String> getDataDirs() {
+		return dataDirs;
+	}
+
+	public final Strategy getDataPlacementStrategy() {
+		return dataPlacementStrategy;
+	}
+
+	public final Layout getDataLayout() {
+		return dataLayout;
+	}
+
+	/**
+	 * @return State directory or {@code null} if directory of application should be used.
+	 */
+	public final String getStateDir() {
+		return stateDir;
+	}
+
+	/**
+	 * @return Cluster config file or {@code null} if cluster mode is disabled.
+	 */
+	public final String getClusterConfig() {
+		return clusterConfig;
+	}
+
+	public final String getClusterNodeId() {
+		return clusterNodeId;
+	}
+
+	public final boolean isClusterRedirect() {
+		return clusterRedirect;
+	}
+
+	/**
+	 * @return Replication followers ('host:port') or {@code null} if data is not replicated.
+	 */
+	public final List<String> getReplicationFollowers() {
+		return replicationFollowers;
+	}
+
+	/**
+	 * @return Maximum number of replication events waiting for a follower.
+	 */
+	public final int getReplicationBacklog() {
+		return replicationBacklog;
+	}
+
+	/**
+	 * @return Port on which replication stream is received, 0 means this instance is not a follower.
+	 */
+	public final int getReplicationListenPort() {
+		return replicationListenPort;
+	}
+
+	/**
+	 * @return Part of job database (0-1) taken by deleted entries which triggers compaction, 0 means compaction is
+	 *         disabled.
+	 */
+	public final double getCompactDeadRatio() {
+		return compactDeadRatio;
+	}
+
+	/**
+	 * @return Rate of job databases compaction in bytes per second, 0 means unlimited.
+	 */
+	public final long getCompactRate() {
+		return compactRate;
+	}
+
+	/**
+	 * @return Number of recent upload Idempotency-Key headers kept in memory.
+	 */
+	public final int getIdempotencyKeys() {
+		return idempotencyKeys;
+	}
+
+	/**
+	 * @return Access log file or {@code null} if access log is written with 'AccessLog' logger.
+	 */
+	public final String getAccessLogFile() {
+		return accessLogFile;
+	}
+
+	/**
+	 * @return Number of requests buffered for access log writer, 0 means access log is disabled.
+	 */
+	public final int getAccessLogBuffer() {
+		return accessLogBuffer;
+	}
+
+	/**
+	 * @return Size of I/O buffer for request and response bodies in bytes.
+	 */
+	public final int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return Maximum number of idle I/O buffers kept for reuse.
+	 */
+	public final int getBufferPoolSize() {
+		return bufferPoolSize;
+	}
 }
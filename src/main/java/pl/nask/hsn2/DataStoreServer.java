@@ -22,40 +22,159 @@ package pl.nask.hsn2;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import pl.nask.hsn2.handlers.AbstractHandler;
 import pl.nask.hsn2.handlers.DataHandler;
 import pl.nask.hsn2.handlers.DefaultHandler;
+import pl.nask.hsn2.handlers.JobsHandler;
+import pl.nask.hsn2.handlers.ReplicationHandler;
 
 import com.sun.net.httpserver.HttpServer;
 
 @SuppressWarnings("restriction")
 public class DataStoreServer {
 	private static final Logger LOGGER = LoggerFactory.getLogger(DataStoreServer.class);
+	/**
+	 * Seconds server waits for requests in progress when stopped.
+	 */
+	private static final int STOP_DELAY = 1;
 	private HttpServer server;
+	private DataHandler dataHandler;
+	private JobCatalog catalog;
+	private ReplicationPublisher replicationPublisher;
+	private ReplicationFollower replicationFollower;
+	private final List<AbstractHandler> handlers = new ArrayList<>();
+	private AccessLog accessLog;
 
 	public DataStoreServer(int port) {
+		this(port, new JobCatalog());
+	}
+
+	public DataStoreServer(int port, JobCatalog jobCatalog) {
+		this(port, jobCatalog, new DurabilityManager());
+	}
+
+	public DataStoreServer(int port, JobCatalog jobCatalog, DurabilityManager durabilityManager) {
 		InetSocketAddress addr = new InetSocketAddress(port);
 		try {
 			server = HttpServer.create(addr, 0);
 		} catch (IOException e) {
 			throw new IllegalStateException("Server error.", e);
 		}
-		server.createContext("/", new DefaultHandler());
-		server.createContext("/data", new DataHandler());
+		createContext("/", new DefaultHandler());
+		catalog = jobCatalog;
+		dataHandler = new DataHandler(jobCatalog, durabilityManager);
+		createContext("/data", dataHandler);
+		createContext("/jobs", new JobsHandler(jobCatalog, dataHandler));
 		server.setExecutor(Executors.newCachedThreadPool());
 		LOGGER.info("Server is listening on port {}", port);
 	}
 
+	/**
+	 * Enables write-behind pipeline for small uploads (see {@link DataHandler#enableWriteBehind(int, int)}).
+	 */
+	public final void enableWriteBehind(int threads, int maxPayloadSize) {
+		dataHandler.enableWriteBehind(threads, maxPayloadSize);
+	}
+
+	/**
+	 * Enables pool of prepared job databases (see {@link DataHandler#enableJobDbPool(int)}).
+	 */
+	public final void enableJobDbPool(int size) throws IOException, SQLException {
+		dataHandler.enableJobDbPool(size);
+	}
+
+	/**
+	 * Enables cluster mode (see {@link DataHandler#enableCluster(ClusterRing, boolean)}).
+	 */
+	public final void enableCluster(ClusterRing ring, boolean redirect) {
+		dataHandler.enableCluster(ring, redirect);
+	}
+
+	/**
+	 * Enables replication of committed entries to followers (see {@link ReplicationPublisher}). Job removals are
+	 * published by publisher registered as job cleaning listener.
+	 */
+	public final void enableReplication(ReplicationPublisher publisher) {
+		replicationPublisher = publisher;
+		dataHandler.enableReplication(publisher);
+		createContext("/replication", new ReplicationHandler(publisher));
+	}
+
+	/**
+	 * Sets number of upload keys kept in memory (see {@link DataHandler#setIdempotencyKeysLimit(int)}).
+	 */
+	public final void setIdempotencyKeysLimit(int limit) {
+		dataHandler.setIdempotencyKeysLimit(limit);
+	}
+
+	/**
+	 * Sets pool of buffers for request and response bodies (see {@link DataHandler#setBufferPool(BufferPool)}).
+	 */
+	public final void setBufferPool(BufferPool pool) {
+		dataHandler.setBufferPool(pool);
+	}
+
+	/**
+	 * Enables background compaction of job databases (see {@link DataHandler#enableCompaction(JobCompactor)}).
+	 */
+	public final void enableCompaction(JobCompactor compactor) {
+		dataHandler.enableCompaction(compactor);
+	}
+
+	/**
+	 * Turns server into read-only follower which receives replication stream on given port.
+	 *
+	 * @throws IOException
+	 *             When replication port could not be bound.
+	 */
+	public final void enableFollower(int replicationPort) throws IOException {
+		replicationFollower = new ReplicationFollower(replicationPort, dataHandler, catalog);
+		dataHandler.enableReadOnly();
+		replicationFollower.start();
+		createContext("/replication", new ReplicationHandler(replicationFollower));
+	}
+
+	/**
+	 * Enables asynchronous access log of all handled requests (see {@link AccessLog}). Log is started here and stopped
+	 * when server is closed.
+	 */
+	public final synchronized void enableAccessLog(AccessLog log) {
+		accessLog = log;
+		for (AbstractHandler handler : handlers) {
+			handler.setAccessLog(log);
+		}
+		log.start();
+	}
+
+	private synchronized void createContext(String path, AbstractHandler handler) {
+		handler.setAccessLog(accessLog);
+		handlers.add(handler);
+		server.createContext(path, handler);
+	}
+
 	public final void start() {
 		server.start();
 	}
 
 	public final void close() throws SQLException {
-		server.stop(0);
+		server.stop(STOP_DELAY);
+		if (replicationFollower != null) {
+			replicationFollower.shutdown();
+		}
+		if (replicationPublisher != null) {
+			replicationPublisher.shutdown();
+		}
+		dataHandler.shutdown();
+		if (accessLog != null) {
+			accessLog.shutdown();
+		}
 		LOGGER.info("Server is stopped!");
 	}
 }
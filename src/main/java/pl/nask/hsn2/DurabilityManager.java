@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Controls when written job data (and id counter file) reaches the disk. Handler calls
+ * {@link #dataWritten(long, long)} after entry is committed and responds only when it returns, so the chosen guarantee
+ * holds for every acknowledged upload.
+ */
+public class DurabilityManager implements Runnable {
+	public static enum Mode {
+		/**
+		 * Data stays in page cache, nothing is synced (job databases are opened without transaction log).
+		 */
+		NONE,
+		/**
+		 * Concurrent uploads wait for common sync of all written files, done every given interval or after given number of
+		 * bytes, whichever comes first.
+		 */
+		GROUP_COMMIT,
+		/**
+		 * Every upload syncs its job database and id counter file.
+		 */
+		REQUEST
+	}
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(DurabilityManager.class);
+	private final Mode mode;
+	private final File idFile;
+	private final long groupCommitInterval;
+	private final long groupCommitBytes;
+	private final Object lock = new Object();
+	private Batch currentBatch = new Batch();
+	private Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * Creates manager with no durability (page cache only).
+	 */
+	public DurabilityManager() {
+		this(Mode.NONE, null, 0, 0);
+	}
+
+	/**
+	 * Creates new manager.
+	 *
+	 * @param durabilityMode
+	 *            Durability mode.
+	 * @param idFilePath
+	 *            Id counter file, synced together with job data.
+	 * @param groupCommitIntervalMillis
+	 *            Maximum time (ms) upload waits for group commit.
+	 * @param groupCommitBatchBytes
+	 *            Number of bytes written which triggers group commit before interval ends.
+	 */
+	public DurabilityManager(Mode durabilityMode, String idFilePath, long groupCommitIntervalMillis, long groupCommitBatchBytes) {
+		mode = durabilityMode;
+		idFile = idFilePath == null ? null : new File(idFilePath);
+		groupCommitInterval = groupCommitIntervalMillis;
+		groupCommitBytes = groupCommitBatchBytes;
+	}
+
+	public final Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return Options added to job database URL. Transaction log is needed when data is synced, otherwise synced file
+	 *         could still miss committed entries.
+	 */
+	public final String getDbUrlOptions() {
+		return mode == Mode.NONE ? ";LOG=0" : ";LOG=1";
+	}
+
+	/**
+	 * Starts group commit thread (only in group commit mode).
+	 */
+	public final synchronized void start() {
+		if (mode == Mode.GROUP_COMMIT && thread == null) {
+			running = true;
+			thread = new Thread(this, "GroupCommit");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		LOGGER.info("Durability manager started. (mode={}, interval={}, bytes={})", new Object[] { mode, groupCommitInterval,
+				groupCommitBytes });
+	}
+
+	/**
+	 * Stops group commit thread. Pending uploads are synced before it ends.
+	 */
+	public final synchronized void shutdown() {
+		if (thread != null) {
+			running = false;
+			synchronized (lock) {
+				lock.notifyAll();
+			}
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				LOGGER.warn("Interrupted while waiting for group commit.");
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+	}
+
+	/**
+	 * Informs that entry has been committed to job database. Blocks until data is durable according to mode.
+	 *
+	 * @param jobId
+	 *            Job id.
+	 * @param bytes
+	 *            Number of bytes written.
+	 * @throws IOException
+	 *             When sync failed.
+	 */
+	public final void dataWritten(long jobId, long bytes) throws IOException {
+		switch (mode) {
+		case REQUEST:
+			syncJob(jobId);
+			sync(idFile);
+			break;
+		case GROUP_COMMIT:
+			awaitGroupCommit(jobId, bytes);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void awaitGroupCommit(long jobId, long bytes) throws IOException {
+		Batch batch;
+		synchronized (lock) {
+			if (!running) {
+				throw new IOException("Group commit is not running.");
+			}
+			batch = currentBatch;
+			if (batch.jobs.isEmpty()) {
+				batch.started = System.currentTimeMillis();
+			}
+			batch.jobs.add(jobId);
+			batch.bytes += bytes;
+			lock.notifyAll();
+			while (!batch.done) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for group commit.", e);
+				}
+			}
+		}
+		if (batch.failure != null) {
+			throw new IOException("Group commit failed.", batch.failure);
+		}
+	}
+
+	@Override
+	public final void run() {
+		boolean lastRound = false;
+		while (!lastRound) {
+			Batch batch;
+			synchronized (lock) {
+				try {
+					waitForBatch();
+				} catch (InterruptedException e) {
+					LOGGER.warn("Group commit interrupted.");
+					running = false;
+				}
+				lastRound = !running;
+				batch = currentBatch;
+				currentBatch = new Batch();
+			}
+			if (!batch.jobs.isEmpty()) {
+				commit(batch);
+			}
+			synchronized (lock) {
+				batch.done = true;
+				lock.notifyAll();
+			}
+		}
+		LOGGER.info("Group commit stopped.");
+	}
+
+	/**
+	 * Waits (holding lock) until current batch is full, its interval passed or manager is stopped.
+	 */
+	private void waitForBatch() throws InterruptedException {
+		while (running) {
+			if (currentBatch.jobs.isEmpty()) {
+				lock.wait();
+			} else {
+				long remaining = currentBatch.started + groupCommitInterval - System.currentTimeMillis();
+				if (remaining <= 0 || currentBatch.bytes >= groupCommitBytes) {
+					return;
+				}
+				lock.wait(remaining);
+			}
+		}
+	}
+
+	private void commit(Batch batch) {
+		try {
+			for (long jobId : batch.jobs) {
+				syncJob(jobId);
+			}
+			sync(idFile);
+			LOGGER.debug("Group commit done. (jobs={}, bytes={})", batch.jobs.size(), batch.bytes);
+		} catch (IOException e) {
+			LOGGER.error("Group commit failed.", e);
+			batch.failure = e;
+		}
+	}
+
+	/**
+	 * Syncs job database. Job files are not moved meanwhile (see fan-out migration).
+	 */
+	private static void syncJob(long jobId) throws IOException {
+		Lock jobLock = DataStore.getDataPlacement().getJobLock(jobId);
+		jobLock.lock();
+		try {
+			sync(DataStore.getDbFile(jobId));
+		} finally {
+			jobLock.unlock();
+		}
+	}
+
+	private static void sync(File file) throws IOException {
+		if (file == null) {
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			channel.force(true);
+		} catch (NoSuchFileException e) {
+			// Job data removed in the meantime, nothing to sync.
+			LOGGER.debug("File to sync not found: {}", file);
+		}
+	}
+
+	/**
+	 * Uploads synced together. Guarded by manager lock.
+	 */
+	private static final class Batch {
+		private final Set<Long> jobs = new HashSet<>();
+		private long bytes;
+		private long started;
+		private boolean done;
+		private IOException failure;
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Online migration from flat to fan-out layout. Files of every job left directly in data directory are moved to its
+ * fan-out directory while server is running. Job is moved only when nobody uses its files (see
+ * {@link DataPlacement#getJobLock(long)}), jobs in use are retried later. Until job is moved its data is found in old
+ * place.
+ */
+public class FanOutMigration implements Runnable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(FanOutMigration.class);
+	private static final double ONE_SEC_IN_MS = 1000d;
+	private static final long RETRY_DELAY = 1000;
+	/**
+	 * Database file is moved last, job is looked up by it.
+	 */
+	private static final String[] FILE_SUFFIXES = { ".trace.db", ".lock.db", DataStore.DB_FILE_SUFFIX };
+	private final DataPlacement placement;
+	private volatile boolean stopped;
+	private int movedJobs;
+
+	public FanOutMigration(DataPlacement dataPlacement) {
+		placement = dataPlacement;
+	}
+
+	public final void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * @return Number of jobs moved so far.
+	 */
+	public final int getMovedJobsCount() {
+		return movedJobs;
+	}
+
+	@Override
+	public final void run() {
+		long time = System.currentTimeMillis();
+		Map<Long, File> busyJobs = new LinkedHashMap<>();
+		try {
+			for (File dataDir : placement.getDataDirs()) {
+				for (long jobId : findFlatJobs(dataDir)) {
+					if (stopped) {
+						return;
+					}
+					if (!migrate(dataDir, jobId)) {
+						busyJobs.put(jobId, dataDir);
+					}
+				}
+			}
+			while (!busyJobs.isEmpty() && !stopped) {
+				LOGGER.debug("Jobs in use, will be moved later. (count={})", busyJobs.size());
+				Thread.sleep(RETRY_DELAY);
+				for (Iterator<Entry<Long, File>> i = busyJobs.entrySet().iterator(); i.hasNext();) {
+					Entry<Long, File> job = i.next();
+					if (migrate(job.getValue(), job.getKey())) {
+						i.remove();
+					}
+				}
+			}
+			time = System.currentTimeMillis() - time;
+			LOGGER.info("Fan-out migration finished. (jobs={}, time[sec]={})", movedJobs, time / ONE_SEC_IN_MS);
+		} catch (IOException e) {
+			LOGGER.error("Fan-out migration failed, flat files are still served.", e);
+		} catch (InterruptedException e) {
+			LOGGER.info("Fan-out migration interrupted.");
+		}
+	}
+
+	private static TreeSet<Long> findFlatJobs(File dataDir) throws IOException {
+		TreeSet<Long> jobIds = new TreeSet<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dataDir.toPath())) {
+			for (Path path : files) {
+				Long jobId = DataStore.getJobIdFromJobFileName(path.getFileName().toString());
+				if (jobId != null) {
+					jobIds.add(jobId);
+				}
+			}
+		} catch (NoSuchFileException e) {
+			LOGGER.debug("Data directory does not exist. Nothing to migrate. (dir={})", dataDir);
+		}
+		if (!jobIds.isEmpty()) {
+			LOGGER.info("Jobs in flat layout found. (dir={}, jobs={})", dataDir, jobIds.size());
+		}
+		return jobIds;
+	}
+
+	/**
+	 * Moves job files to fan-out directory.
+	 *
+	 * @return {@code False} if job is in use and has not been moved.
+	 */
+	final boolean migrate(File dataDir, long jobId) throws IOException {
+		Lock lock = placement.getJobMoveLock(jobId);
+		if (!lock.tryLock()) {
+			return false;
+		}
+		try {
+			File jobDir = placement.getLayoutDir(dataDir, jobId);
+			Files.createDirectories(jobDir.toPath());
+			for (String suffix : FILE_SUFFIXES) {
+				String name = DataStore.DB_FILE_PREFIX + jobId + suffix;
+				Path file = new File(dataDir, name).toPath();
+				if (Files.exists(file)) {
+					Files.move(file, new File(jobDir, name).toPath(), StandardCopyOption.ATOMIC_MOVE);
+				}
+			}
+			movedJobs++;
+			LOGGER.debug("Job moved to fan-out directory. (jobId={}, dir={})", jobId, jobDir);
+		} finally {
+			lock.unlock();
+		}
+		return true;
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.protobuff.Jobs.JobStatus;
+
+/**
+ * Job status source reading statuses from text file. Every line contains job id and job status separated with white
+ * space, e.g. {@code 123 COMPLETED}. Lines starting with '#' are ignored. File is read again only if it has been
+ * modified.
+ */
+public class FileJobStatusSource implements JobStatusSource {
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileJobStatusSource.class);
+	private final File statusFile;
+	private long lastModified = -1;
+	private Map<Long, JobStatus> finishedJobs = Collections.emptyMap();
+
+	public FileJobStatusSource(String statusFilePath) {
+		statusFile = new File(statusFilePath);
+	}
+
+	@Override
+	public final Map<Long, JobStatus> getFinishedJobs(Collection<Long> jobIds) throws IOException {
+		Map<Long, JobStatus> allFinished = reloadIfNeeded();
+		Map<Long, JobStatus> result = new HashMap<>();
+		for (Long jobId : jobIds) {
+			JobStatus status = allFinished.get(jobId);
+			if (status != null) {
+				result.put(jobId, status);
+			}
+		}
+		return result;
+	}
+
+	private synchronized Map<Long, JobStatus> reloadIfNeeded() throws IOException {
+		long modified = statusFile.lastModified();
+		if (modified == 0) {
+			throw new IOException("Job status file not found: " + statusFile);
+		}
+		if (modified != lastModified) {
+			finishedJobs = readStatusFile();
+			lastModified = modified;
+			LOGGER.debug("Job status file loaded. (file={}, finishedJobs={})", statusFile, finishedJobs.size());
+		}
+		return finishedJobs;
+	}
+
+	private Map<Long, JobStatus> readStatusFile() throws IOException {
+		Map<Long, JobStatus> statuses = new HashMap<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(statusFile))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				try {
+					JobStatus status = JobStatus.valueOf(fields[1].toUpperCase());
+					if (isFinished(status)) {
+						statuses.put(Long.valueOf(fields[0]), status);
+					}
+				} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+					LOGGER.warn("Invalid line in job status file: {}", line);
+				}
+			}
+		}
+		return statuses;
+	}
+
+	private static boolean isFinished(JobStatus status) {
+		return status == JobStatus.COMPLETED || status == JobStatus.FAILED || status == JobStatus.CANCELLED;
+	}
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Catalog of jobs stored in data store. Keeps size, number of entries and access times of every job, so questions like
+ * "which jobs use the most disk" can be answered without scanning data directory or opening job databases.
+ *
+ * Catalog is updated in memory (O(1) per request) and persisted to its own H2 database in background.
+ */
+public class JobCatalog implements JobCleaningListener {
+	private static final Logger LOGGER = LoggerFactory.getLogger(JobCatalog.class);
+	private static final String H2_DB_PASSWORD = "hsn2";
+	private static final long FLUSH_INTERVAL = 10;
+
+	public static enum SortOrder {
+		ID, SIZE, LAST_WRITE, LAST_READ
+	}
+
+	private final ConcurrentSkipListMap<Long, JobInfo> jobs = new ConcurrentSkipListMap<>();
+	private final Set<Long> dirtyJobs = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	private final Set<Long> removedJobs = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	private final String catalogDbName;
+	private Connection h2Connection;
+	private ScheduledExecutorService flushExecutor;
+
+	/**
+	 * Creates catalog which is not persisted.
+	 */
+	public JobCatalog() {
+		this(null);
+	}
+
+	/**
+	 * Creates catalog persisted in H2 database.
+	 *
+	 * @param dbName
+	 *            H2 database name (path without extension) or {@code null} if catalog should not be persisted.
+	 */
+	public JobCatalog(String dbName) {
+		catalogDbName = dbName;
+	}
+
+	/**
+	 * Loads catalog from database and starts background flushing. If catalog database does not exist, catalog is built
+	 * from data directory (entries number of such jobs is unknown).
+	 *
+	 * @throws SQLException
+	 *             When catalog database could not be opened.
+	 */
+	public final void open() throws SQLException {
+		if (catalogDbName == null) {
+			return;
+		}
+		boolean isDbExistsBefore = new File(catalogDbName + ".h2.db").exists();
+		h2Connection = DriverManager.getConnection("jdbc:h2:" + catalogDbName, "sa", H2_DB_PASSWORD); //NOPMD
+		if (isDbExistsBefore) {
+			load();
+		} else {
+			try (Statement s = h2Connection.createStatement()) {
+				s.execute("CREATE TABLE JOB_CATALOG (JOB_ID BIGINT PRIMARY KEY, SIZE BIGINT, ENTRIES BIGINT, CREATED BIGINT, "
+						+ "LAST_WRITE BIGINT, LAST_READ BIGINT, KEPT BOOLEAN)");
+			}
+			rebuildFromDataDirectory();
+		}
+		flushExecutor = Executors.newSingleThreadScheduledExecutor();
+		flushExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (SQLException e) {
+					LOGGER.error("Job catalog flush failed.", e);
+				}
+			}
+		}, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.SECONDS);
+		LOGGER.info("Job catalog opened. (jobs={})", jobs.size());
+	}
+
+	private void load() throws SQLException {
+		try (Statement s = h2Connection.createStatement();
+				ResultSet rs = s.executeQuery("SELECT JOB_ID, SIZE, ENTRIES, CREATED, LAST_WRITE, LAST_READ, KEPT FROM JOB_CATALOG")) {
+			while (rs.next()) {
+				JobInfo info = new JobInfo(rs.getLong(1), rs.getLong(4));
+				info.size = rs.getLong(2);
+				info.entries = rs.getLong(3);
+				info.lastWrite = rs.getLong(5);
+				info.lastRead = rs.getLong(6);
+				info.kept = rs.getBoolean(7);
+				jobs.put(info.jobId, info);
+			}
+		}
+	}
+
+	private void rebuildFromDataDirectory() {
+		List<File> jobDirs;
+		try {
+			jobDirs = DataStore.getDataPlacement().getJobDirs();
+		} catch (IOException e) {
+			LOGGER.warn("Could not list data directories.", e);
+			return;
+		}
+		for (File dataDirFile : jobDirs) {
+			try (DirectoryStream<Path> dataDir = Files.newDirectoryStream(dataDirFile.toPath())) {
+				for (Path path : dataDir) {
+					Long jobId = DataStore.getJobIdFromDbFileName(path.getFileName().toString());
+					if (jobId != null) {
+						long modified = Files.getLastModifiedTime(path).toMillis();
+						JobInfo info = new JobInfo(jobId, modified);
+						info.size = Files.size(path);
+						info.entries = -1;
+						info.lastWrite = modified;
+						jobs.put(jobId, info);
+						dirtyJobs.add(jobId);
+					}
+				}
+			} catch (NoSuchFileException e) {
+				LOGGER.debug("Data directory does not exist. (dir={})", dataDirFile);
+			} catch (IOException e) {
+				LOGGER.warn("Could not build catalog from data directory: " + dataDirFile, e);
+			}
+		}
+	}
+
+	/**
+	 * Writes modified jobs info to catalog database.
+	 *
+	 * @throws SQLException
+	 *             When database update failed.
+	 */
+	public final synchronized void flush() throws SQLException {
+		if (h2Connection == null) {
+			return;
+		}
+		try (PreparedStatement delete = h2Connection.prepareStatement("DELETE FROM JOB_CATALOG WHERE JOB_ID=?")) {
+			for (Iterator<Long> i = removedJobs.iterator(); i.hasNext();) {
+				Long jobId = i.next();
+				i.remove();
+				delete.setLong(1, jobId);
+				delete.executeUpdate();
+			}
+		}
+		try (PreparedStatement merge = h2Connection.prepareStatement("MERGE INTO JOB_CATALOG KEY(JOB_ID) VALUES(?, ?, ?, ?, ?, ?, ?)")) {
+			for (Iterator<Long> i = dirtyJobs.iterator(); i.hasNext();) {
+				Long jobId = i.next();
+				i.remove();
+				JobInfo info = jobs.get(jobId);
+				if (info != null) {
+					synchronized (info) {
+						merge.setLong(1, info.jobId);
+						merge.setLong(2, info.size);
+						merge.setLong(3, info.entries);
+						merge.setLong(4, info.created);
+						merge.setLong(5, info.lastWrite);
+						merge.setLong(6, info.lastRead);
+						merge.setBoolean(7, info.kept);
+					}
+					merge.executeUpdate();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops background flushing, flushes catalog and closes database.
+	 */
+	public final synchronized void close() {
+		if (flushExecutor != null) {
+			flushExecutor.shutdown();
+		}
+		if (h2Connection != null) {
+			try {
+				flush();
+				h2Connection.close();
+			} catch (SQLException e) {
+				LOGGER.error("Could not close job catalog.", e);
+			}
+			h2Connection = null;
+		}
+	}
+
+	/**
+	 * Registers new entry of job.
+	 *
+	 * @param jobId
+	 *            Job id.
+	 * @param bytes
+	 *            Entry size.
+	 */
+	public final void dataAdded(long jobId, long bytes) {
+		long now = System.currentTimeMillis();
+		JobInfo info = getOrCreate(jobId, now);
+		synchronized (info) {
+			info.size += bytes;
+			if (info.entries >= 0) {
+				info.entries++;
+			}
+			info.lastWrite = now;
+		}
+		dirtyJobs.add(jobId);
+	}
+
+	/**
+	 * Registers deletion of job entry.
+	 *
+	 * @param jobId
+	 *            Job id.
+	 * @param bytes
+	 *            Entry size.
+	 */
+	public final void dataRemoved(long jobId, long bytes) {
+		JobInfo info = jobs.get(jobId);
+		if (info != null) {
+			synchronized (info) {
+				info.size = Math.max(0, info.size - bytes);
+				if (info.entries > 0) {
+					info.entries--;
+				}
+				info.lastWrite = System.currentTimeMillis();
+			}
+			dirtyJobs.add(jobId);
+		}
+	}
+
+	/**
+	 * Registers read of job entry.
+	 *
+	 * @param jobId
+	 *            Job id.
+	 */
+	public final void dataRead(long jobId) {
+		JobInfo info = jobs.get(jobId);
+		if (info != null) {
+			synchronized (info) {
+				info.lastRead = System.currentTimeMillis();
+			}
+			dirtyJobs.add(jobId);
+		}
+	}
+
+	private JobInfo getOrCreate(long jobId, long now) {
+		JobInfo info = jobs.get(jobId);
+		if (info == null) {
+			JobInfo newInfo = new JobInfo(jobId, now);
+			info = jobs.putIfAbsent(jobId, newInfo);
+			if (info == null) {
+				info = newInfo;
+				removedJobs.remove(jobId);
+			}
+		}
+		return info;
+	}
+
+	/**
+	 * Marks job as finished but kept (not eligible for cleaning). Such jobs are subject of retention policy.
+	 *
+	 * @param jobId
+	 *            Job id.
+	 */
+	public final void jobKept(long jobId) {
+		JobInfo info = jobs.get(jobId);
+		if (info != null) {
+			synchronized (info) {
+				info.kept = true;
+			}
+			dirtyJobs.add(jobId);
+		}
+	}
+
+	/**
+	 * @return Copies of info of all kept jobs.
+	 */
+	public final List<JobInfo> getKeptJobs() {
+		List<JobInfo> kept = new ArrayList<>();
+		for (JobInfo info : jobs.values()) {
+			JobInfo copy = info.copy();
+			if (copy.kept) {
+				kept.add(copy);
+			}
+		}
+		return kept;
+	}
+
+	@Override
+	public final void jobDataRemoved(long jobId) {
+		if (jobs.remove(jobId) != null) {
+			removedJobs.add(jobId);
+		}
+	}
+
+	@Override
+	public final void jobDataRemovalFailed(long jobId, IOException cause) {
+		// Job data still exists, nothing to update.
+	}
+
+	/**
+	 * Gets job info.
+	 *
+	 * @param jobId
+	 *            Job id.
+	 * @return Copy of job info or {@code null} if there is no such job in catalog.
+	 */
+	public final JobInfo getJob(long jobId) {
+		JobInfo info = jobs.get(jobId);
+		return info == null ? null : info.copy();
+	}
+
+	public final int getJobsCount() {
+		return jobs.size();
+	}
+
+	/**
+	 * Gets page of jobs info.
+	 *
+	 * @param order
+	 *            Sort order. Jobs sorted by size or access time are returned in descending order.
+	 * @param offset
+	 *            Number of jobs to skip.
+	 * @param limit
+	 *            Maximum number of jobs to return.
+	 * @return Copies of job info.
+	 */
+	public final List<JobInfo> getJobs(SortOrder order, int offset, int limit) {
+		List<JobInfo> all = new ArrayList<>(order == SortOrder.ID ? Math.min(limit, jobs.size()) : jobs.size());
+		int skipped = 0;
+		for (JobInfo info : jobs.values()) {
+			if (order == SortOrder.ID) {
+				// Already sorted, no need to copy all jobs.
+				if (skipped++ < offset) {
+					continue;
+				}
+				if (all.size() == limit) {
+					break;
+				}
+			}
+			all.add(info.copy());
+		}
+		if (order == SortOrder.ID) {
+			return all;
+		}
+		Collections.sort(all, new JobInfoComparator(order));
+		return all.subList(Math.min(offset, all.size()), Math.min(offset + limit, all.size()));
+	}
+
+	/**
+	 * Job info. Size is a sum of stored entries sizes.
+	 */
+	public static final class JobInfo {
+		private final long jobId;
+		private final long created;
+		private long size;
+		private long entries;
+		private long lastWrite;
+		private long lastRead;
+		private boolean kept;
+
+		private JobInfo(long id, long createdTime) {
+			jobId = id;
+			created = createdTime;
+		}
+
+		private synchronized JobInfo copy() {
+			JobInfo copy = new JobInfo(jobId, created);
+			copy.size = size;
+			copy.entries = entries;
+			copy.lastWrite = lastWrite;
+			copy.lastRead = lastRead;
+			copy.kept = kept;
+			return copy;
+		}
+
+		public long getJobId() {
+			return jobId;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return Number of entries or -1 if unknown (job found in data directory when catalog was created).
+		 */
+		public long getEntries() {
+			return entries;
+		}
+
+		public long getCreated() {
+			return created;
+		}
+
+		public long getLastWrite() {
+			return lastWrite;
+		}
+
+		/**
+		 * @return Time of last read or 0 if job has never been read.
+		 */
+		public long getLastRead() {
+			return lastRead;
+		}
+
+		/**
+		 * @return {@code True} if job is finished but its data is kept (see leave data option).
+		 */
+		public boolean isKept() {
+			return kept;
+		}
+	}
+
+	private static final class JobInfoComparator implements Comparator<JobInfo> {
+		private final SortOrder order;
+
+		private JobInfoComparator(SortOrder sortOrder) {
+			order = sortOrder;
+		}
+
+		@Override
+		public int compare(JobInfo o1, JobInfo o2) {
+			int result;
+			switch (order) {
+			case SIZE:
+				result = Long.compare(o2.size, o1.size);
+				break;
+			case LAST_WRITE:
+				result = Long.compare(o2.lastWrite, o1.lastWrite);
+				break;
+			case LAST_READ:
+				result = Long.compare(o2.lastRead, o1.lastRead);
+				break;
+			default:
+				result = 0;
+			}
+			return result == 0 ? Long.compare(o1.jobId, o2.jobId) : result;
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.IOException;
+
+/**
+ * Receives results of single job cleaning tasks.
+ */
+public interface JobCleaningListener {
+	/**
+	 * Called when all data of the job has been removed (or there was no data to remove).
+	 *
+	 * @param jobId
+	 *            Id of cleaned job.
+	 */
+	void jobDataRemoved(long jobId);
+
+	/**
+	 * Called when job data could not be removed.
+	 *
+	 * @param jobId
+	 *            Id of job.
+	 * @param cause
+	 *            Reason of failure.
+	 */
+	void jobDataRemovalFailed(long jobId, IOException cause);
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schedules job data removal tasks. Every job which cleaning has been requested is tracked until its data is removed.
+ * Failed removals are retried with exponential backoff (retries wait on delay queue, so they never block new
+ * requests).
+ */
+public class JobCleaningScheduler implements JobCleaningListener {
+	private static final Logger LOGGER = LoggerFactory.getLogger(JobCleaningScheduler.class);
+	private static final long DEFAULT_INITIAL_RETRY_DELAY = 5000;
+	private static final long DEFAULT_MAX_RETRY_DELAY = 600000;
+	private static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+	public static enum CleaningState {
+		/**
+		 * Cleaning task submitted to the cleaners pool.
+		 */
+		CLEANING,
+		/**
+		 * Last cleaning attempt failed. Next attempt is waiting on retry queue.
+		 */
+		WAITING_FOR_RETRY
+	}
+
+	/**
+	 * Jobs being cleaned. Job is removed from the map when its data is removed or when all attempts failed.
+	 */
+	private final ConcurrentHashMap<Long, JobCleaningState> jobs = new ConcurrentHashMap<>();
+	/**
+	 * Set containing jobs id for which cleaning task is running.
+	 */
+	private final ConcurrentSkipListSet<Long> actualCleaningJobs = new ConcurrentSkipListSet<>();
+	private final DelayQueue<JobCleaningState> retryQueue = new DelayQueue<>();
+	private final CopyOnWriteArrayList<JobCleaningListener> listeners = new CopyOnWriteArrayList<>();
+	private final ExecutorService executor;
+	private final Thread retryThread;
+	private final long initialRetryDelay;
+	private final long maxRetryDelay;
+	private final int maxAttempts;
+	private volatile TrashCollector trashCollector;
+
+	/**
+	 * Creates new scheduler with default retry policy.
+	 *
+	 * @param cleaningThreadsNumber
+	 *            Number of thread pool of single job cleaner.
+	 */
+	public JobCleaningScheduler(int cleaningThreadsNumber) {
+		this(cleaningThreadsNumber, DEFAULT_INITIAL_RETRY_DELAY, DEFAULT_MAX_RETRY_DELAY, DEFAULT_MAX_ATTEMPTS);
+	}
+
+	/**
+	 * Creates new scheduler.
+	 *
+	 * @param cleaningThreadsNumber
+	 *            Number of thread pool of single job cleaner.
+	 * @param initialRetryDelayMillis
+	 *            Delay before first retry. Every next retry waits twice as long.
+	 * @param maxRetryDelayMillis
+	 *            Upper limit of retry delay.
+	 * @param maxCleaningAttempts
+	 *            Number of attempts after which job is dropped.
+	 */
+	public JobCleaningScheduler(int cleaningThreadsNumber, long initialRetryDelayMillis, long maxRetryDelayMillis,
+			int maxCleaningAttempts) {
+		executor = Executors.newFixedThreadPool(cleaningThreadsNumber);
+		initialRetryDelay = initialRetryDelayMillis;
+		maxRetryDelay = maxRetryDelayMillis;
+		maxAttempts = maxCleaningAttempts;
+		retryThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				retryLoop();
+			}
+		}, "JobCleaningRetry");
+		retryThread.setDaemon(true);
+		retryThread.start();
+	}
+
+	/**
+	 * Schedules job data removal. Request for job which is already being cleaned (or waiting for retry) is ignored.
+	 *
+	 * @param jobId
+	 *            Id of job to clean.
+	 * @return {@code True} if new cleaning task has been scheduled, {@code false} otherwise.
+	 */
+	public final boolean schedule(long jobId) {
+		JobCleaningState state = new JobCleaningState(jobId);
+		while (true) {
+			JobCleaningState current = jobs.putIfAbsent(jobId, state);
+			if (current == null) {
+				break;
+			}
+			if (!current.finished) {
+				LOGGER.debug("Job data clean request ignored. Already cleaning. (jobId={})", jobId);
+				return false;
+			}
+			// Listeners of finished job could have been notified before this request, so it needs its own cleaning.
+			if (jobs.replace(jobId, current, state)) {
+				break;
+			}
+		}
+		LOGGER.info("Job data clean request added. (jobId={})", jobId);
+		submit(state);
+		return true;
+	}
+
+	/**
+	 * Adds listener notified when job data has been removed or when scheduler gave up cleaning the job (after all
+	 * attempts failed or when scheduler is shutting down).
+	 *
+	 * @param listener
+	 *            Listener to add.
+	 */
+	public final void addListener(JobCleaningListener listener) {
+		listeners.add(listener);
+	}
+
+	public final void removeListener(JobCleaningListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Sets trash collector. If set, job database files are moved to trash and unlinked in background.
+	 *
+	 * @param trash
+	 *            Trash collector.
+	 */
+	public final void setTrashCollector(TrashCollector trash) {
+		trashCollector = trash;
+	}
+
+	/**
+	 * Returns cleaning state of job.
+	 *
+	 * @param jobId
+	 *            Job id.
+	 * @return Cleaning state or {@code null} if job is not being cleaned.
+	 */
+	public final CleaningState getState(long jobId) {
+		JobCleaningState state = jobs.get(jobId);
+		return state == null ? null : state.state;
+	}
+
+	/**
+	 * @return Number of jobs being cleaned or waiting for retry.
+	 */
+	public final int getPendingJobsCount() {
+		return jobs.size();
+	}
+
+	private void submit(JobCleaningState state) {
+		state.attempts++;
+		state.state = CleaningState.CLEANING;
+		try {
+			executor.execute(new DataStoreCleanSingleJob(actualCleaningJobs, state.jobId, this, trashCollector));
+		} catch (RejectedExecutionException e) {
+			LOGGER.debug("Cleaner is shutting down. Job data clean request dropped. (jobId={})", state.jobId);
+			jobs.remove(state.jobId);
+			actualCleaningJobs.remove(state.jobId);
+			for (JobCleaningListener listener : listeners) {
+				listener.jobDataRemovalFailed(state.jobId, new IOException("Cleaner is shutting down.", e));
+			}
+		}
+	}
+
+	@Override
+	public final void jobDataRemoved(long jobId) {
+		JobCleaningState state = jobs.get(jobId);
+		if (state != null) {
+			state.finished = true;
+		}
+		// Job stays pending until listeners are notified.
+		for (JobCleaningListener listener : listeners) {
+			listener.jobDataRemoved(jobId);
+		}
+		if (state != null) {
+			jobs.remove(jobId, state);
+		}
+	}
+
+	@Override
+	public final void jobDataRemovalFailed(long jobId, IOException cause) {
+		JobCleaningState state = jobs.get(jobId);
+		if (state == null) {
+			return;
+		}
+		if (state.attempts >= maxAttempts || executor.isShutdown()) {
+			LOGGER.warn("Job data clean request dropped after {} attempts. (jobId={})", state.attempts, jobId);
+			state.finished = true;
+			for (JobCleaningListener listener : listeners) {
+				listener.jobDataRemovalFailed(jobId, cause);
+			}
+			jobs.remove(jobId, state);
+		} else {
+			long delay = Math.min(initialRetryDelay << Math.min(state.attempts - 1, Long.SIZE - 2), maxRetryDelay);
+			if (delay < 0) {
+				delay = maxRetryDelay;
+			}
+			LOGGER.info("Job data clean retry scheduled. (jobId={}, attempt={}, delay[ms]={})", new Object[] { jobId,
+					state.attempts + 1, delay });
+			state.state = CleaningState.WAITING_FOR_RETRY;
+			state.retryTime = System.currentTimeMillis() + delay;
+			retryQueue.put(state);
+		}
+	}
+
+	private void retryLoop() {
+		try {
+			while (!executor.isShutdown()) {
+				JobCleaningState state = retryQueue.take();
+				submit(state);
+			}
+		} catch (InterruptedException e) {
+			LOGGER.debug("Retry thread interrupted.");
+		}
+	}
+
+	/**
+	 * Scheduler shutdown request. It will not stop ongoing clean tasks but pending retries are dropped.
+	 */
+	public final void shutdown() {
+		retryThread.interrupt();
+		retryQueue.clear();
+		executor.shutdown();
+	}
+
+	/**
+	 * Waits for ongoing clean tasks after shutdown.
+	 *
+	 * @param timeoutMillis
+	 *            Maximum time to wait.
+	 * @return {@code True} if all tasks ended, {@code false} on timeout.
+	 * @throws InterruptedException
+	 *             When interrupted while waiting.
+	 */
+	public final boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+		return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private static final class JobCleaningState implements Delayed {
+		private final long jobId;
+		private volatile CleaningState state;
+		private volatile int attempts;
+		private volatile long retryTime;
+		/**
+		 * Set when listeners are being notified about the result.
+		 */
+		private volatile boolean finished;
+
+		private JobCleaningState(long id) {
+			jobId = id;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(retryTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			return Long.compare(getDelay(TimeUnit.MILLISECONDS), o.getDelay(TimeUnit.MILLISECONDS));
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.handlers.DataHandler;
+
+/**
+ * Background compaction of job databases. Space of deleted entries is reused by later uploads of the same job, H2 also
+ * compacts database when it is closed, but only for limited time (h2.maxCompactTime), so big databases keep most of their
+ * free pages. Bytes of deleted entries are counted per job and when they reach given part of database file, the job
+ * database is fully compacted (rewritten without free pages). Jobs are compacted one at a time, entries are copied
+ * according to bytes per second budget, so compaction does not compete with live requests for disk bandwidth. Requests
+ * of the job wait only while the copy replaces job database (see {@link DataHandler#compactJob(long, long)}), job still in
+ * use when the copy is ready is compacted again later. Deleted entry which data is still used by other entry of the job
+ * is not counted.
+ * <p>
+ * Counters are kept in memory only, space freed before restart is reclaimed with next compaction of the job.
+ */
+public class JobCompactor implements Runnable, JobCleaningListener {
+	private static final Logger LOGGER = LoggerFactory.getLogger(JobCompactor.class);
+	private static final long DEFAULT_MIN_DEAD_BYTES = 1024 * 1024;
+	private final double deadRatio;
+	private final long bytesPerSecond;
+	private final long minDeadBytes;
+	private final ConcurrentHashMap<Long, AtomicLong> deadBytes = new ConcurrentHashMap<>();
+	private final LinkedBlockingQueue<Long> queue = new LinkedBlockingQueue<>();
+	private final Set<Long> queuedJobs = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	private final AtomicLong compactions = new AtomicLong();
+	private final AtomicLong reclaimedBytes = new AtomicLong();
+	private volatile DataHandler dataSource;
+	private Thread thread;
+
+	/**
+	 * Creates new job compactor.
+	 *
+	 * @param deadRatioThreshold
+	 *            Part of database file (0-1) which has to be taken by deleted entries before job is compacted.
+	 * @param bytesPerSecondBudget
+	 *            Compaction budget, 0 means unlimited.
+	 */
+	public JobCompactor(double deadRatioThreshold, long bytesPerSecondBudget) {
+		this(deadRatioThreshold, bytesPerSecondBudget, DEFAULT_MIN_DEAD_BYTES);
+	}
+
+	/**
+	 * Creates new job compactor.
+	 *
+	 * @param deadRatioThreshold
+	 *            Part of database file (0-1) which has to be taken by deleted entries before job is compacted.
+	 * @param bytesPerSecondBudget
+	 *            Compaction budget, 0 means unlimited.
+	 * @param minDeadBytesThreshold
+	 *            Number of deleted bytes below which job is never compacted.
+	 */
+	public JobCompactor(double deadRatioThreshold, long bytesPerSecondBudget, long minDeadBytesThreshold) {
+		deadRatio = deadRatioThreshold;
+		bytesPerSecond = bytesPerSecondBudget;
+		minDeadBytes = minDeadBytesThreshold;
+	}
+
+	/**
+	 * Starts background compaction.
+	 *
+	 * @param source
+	 *            Data handler which compacts job databases.
+	 */
+	public final synchronized void start(DataHandler source) {
+		dataSource = source;
+		thread = new Thread(this, "JobCompactor");
+		thread.setDaemon(true);
+		thread.start();
+		LOGGER.info("Job compactor started. (deadRatio={}, bytesPerSecond={})", deadRatio, bytesPerSecond);
+	}
+
+	public final synchronized void shutdown() {
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * Registers deletion of job entry. Job is queued for compaction when enough of its database is dead.
+	 *
+	 * @param jobId
+	 *            Job id.
+	 * @param bytes
+	 *            Size of deleted entry.
+	 */
+	public final void entryDeleted(long jobId, long bytes) {
+		AtomicLong counter = deadBytes.get(jobId);
+		if (counter == null) {
+			AtomicLong newCounter = new AtomicLong();
+			counter = deadBytes.putIfAbsent(jobId, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		long dead = counter.addAndGet(bytes);
+		if (dead >= minDeadBytes && dead >= deadRatio * DataStore.getDbFile(jobId).length() && queuedJobs.add(jobId)) {
+			queue.add(jobId);
+		}
+	}
+
+	@Override
+	public final void jobDataRemoved(long jobId) {
+		deadBytes.remove(jobId);
+	}
+
+	@Override
+	public final void jobDataRemovalFailed(long jobId, IOException cause) {
+		// Job data still exists, its deleted entries are still to be reclaimed.
+	}
+
+	/**
+	 * @return Number of finished compactions.
+	 */
+	public final long getCompactionsCount() {
+		return compactions.get();
+	}
+
+	/**
+	 * @return Number of bytes by which job databases shrank.
+	 */
+	public final long getReclaimedBytes() {
+		return reclaimedBytes.get();
+	}
+
+	@Override
+	public final void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				long jobId = queue.take();
+				queuedJobs.remove(jobId);
+				try {
+					compact(jobId);
+				} catch (SQLException | IOException e) {
+					LOGGER.warn("Could not compact job database. (jobId=" + jobId + ")", e);
+				}
+			}
+		} catch (InterruptedException e) {
+			LOGGER.debug("Job compactor interrupted.");
+		}
+	}
+
+	/**
+	 * Compacts job database.
+	 */
+	private void compact(long jobId) throws SQLException, IOException, InterruptedException {
+		File file = DataStore.getDbFile(jobId);
+		if (!file.exists()) {
+			deadBytes.remove(jobId);
+			return;
+		}
+		long sizeBefore = file.length();
+		// Entries deleted from now on may be copied already, they are reclaimed with next compaction.
+		deadBytes.remove(jobId);
+		if (!dataSource.compactJob(jobId, bytesPerSecond)) {
+			if (DataStore.getDbFile(jobId).exists() && queuedJobs.add(jobId)) {
+				// Job in use or moved, compacted again after other queued jobs.
+				queue.add(jobId);
+				LOGGER.debug("Job database in use or moved during compaction, retried later. (jobId={})", jobId);
+			} else {
+				LOGGER.debug("Job database removed during compaction. (jobId={})", jobId);
+			}
+			return;
+		}
+		long sizeAfter = DataStore.getDbFile(jobId).length();
+		compactions.incrementAndGet();
+		reclaimedBytes.addAndGet(Math.max(0, sizeBefore - sizeAfter));
+		LOGGER.info("Job database compacted. (jobId={}, sizeBefore={}, sizeAfter={})", new Object[] { jobId, sizeBefore,
+				sizeAfter });
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.protobuff.Jobs.JobStatus;
+
+/**
+ * Finds data of finished jobs which has never been cleaned (e.g. because JobFinished notification was lost while data
+ * store was down) and passes it to active cleaner. Job ids found in data directory are checked against job status
+ * source in parallel, in chunks.
+ */
+public class JobDataReconciler implements Runnable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(JobDataReconciler.class);
+	private static final double ONE_SEC_IN_MS = 1000d;
+	private static final int CHUNK_SIZE = 1000;
+	private final DataStoreActiveCleaner cleaner;
+	private final JobStatusSource statusSource;
+	private final ExecutorService executor;
+
+	/**
+	 * Creates new reconciler.
+	 *
+	 * @param activeCleaner
+	 *            Cleaner which removes data of orphaned jobs (and decides if job is eligible to clean).
+	 * @param jobStatusSource
+	 *            Source of job statuses.
+	 * @param threadsNumber
+	 *            Number of threads checking job statuses.
+	 */
+	public JobDataReconciler(DataStoreActiveCleaner activeCleaner, JobStatusSource jobStatusSource, int threadsNumber) {
+		cleaner = activeCleaner;
+		statusSource = jobStatusSource;
+		executor = Executors.newFixedThreadPool(threadsNumber);
+	}
+
+	@Override
+	public final void run() {
+		try {
+			reconcile();
+		} catch (IOException e) {
+			LOGGER.error("Job data reconciliation failed.", e);
+		} catch (InterruptedException e) {
+			LOGGER.info("Job data reconciliation interrupted.");
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Runs one reconciliation pass.
+	 *
+	 * @return Number of orphaned jobs passed to cleaner.
+	 * @throws IOException
+	 *             When data directory could not be listed.
+	 * @throws InterruptedException
+	 *             When interrupted while waiting for status checks.
+	 */
+	public final int reconcile() throws IOException, InterruptedException {
+		long time = System.currentTimeMillis();
+		List<Future<Integer>> results = new ArrayList<>();
+		int jobsFound = 0;
+		List<Long> chunk = new ArrayList<>(CHUNK_SIZE);
+		for (File dataDirFile : DataStore.getDataPlacement().getJobDirs()) {
+			try (DirectoryStream<Path> dataDir = Files.newDirectoryStream(dataDirFile.toPath())) {
+				for (Path path : dataDir) {
+					Long jobId = DataStore.getJobIdFromDbFileName(path.getFileName().toString());
+					if (jobId != null) {
+						jobsFound++;
+						chunk.add(jobId);
+						if (chunk.size() == CHUNK_SIZE) {
+							results.add(executor.submit(new ChunkCheck(chunk)));
+							chunk = new ArrayList<>(CHUNK_SIZE);
+						}
+					}
+				}
+			} catch (NoSuchFileException e) {
+				LOGGER.debug("Data directory does not exist. Nothing to reconcile. (dir={})", dataDirFile);
+			}
+		}
+		if (!chunk.isEmpty()) {
+			results.add(executor.submit(new ChunkCheck(chunk)));
+		}
+
+		int orphans = 0;
+		for (Future<Integer> result : results) {
+			try {
+				orphans += result.get();
+			} catch (ExecutionException e) {
+				LOGGER.warn("Job status check failed.", e.getCause());
+			}
+		}
+		time = System.currentTimeMillis() - time;
+		LOGGER.info("Job data reconciliation finished. (jobs={}, orphans={}, time[sec]={})", new Object[] { jobsFound, orphans,
+				time / ONE_SEC_IN_MS });
+		return orphans;
+	}
+
+	public final void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private class ChunkCheck implements Callable<Integer> {
+		private final List<Long> jobIds;
+
+		public ChunkCheck(List<Long> jobIdsToCheck) {
+			jobIds = jobIdsToCheck;
+		}
+
+		@Override
+		public Integer call() throws IOException {
+			int orphans = 0;
+			for (Entry<Long, JobStatus> job : statusSource.getFinishedJobs(jobIds).entrySet()) {
+				LOGGER.debug("Orphaned job data found. (jobId={}, status={})", job.getKey(), job.getValue());
+				if (cleaner.startJobDataRemoving(job.getKey(), job.getValue())) {
+					orphans++;
+				}
+			}
+			return orphans;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+import pl.nask.hsn2.protobuff.Jobs.JobStatus;
+
+/**
+ * Source of job statuses used to find data of jobs which are finished but have never been cleaned.
+ */
+public interface JobStatusSource {
+	/**
+	 * Gets statuses of finished jobs.
+	 *
+	 * @param jobIds
+	 *            Ids of jobs to check.
+	 * @return Map of job id to final status. Jobs which are still running (or unknown) are not included.
+	 * @throws IOException
+	 *             When statuses could not be read.
+	 */
+	Map<Long, JobStatus> getFinishedJobs(Collection<Long> jobIds) throws IOException;
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Keeps delivery tags of notifications received on one channel and acknowledges them in batches, only when job data
+ * they requested to remove is really removed. Contiguous range of completed deliveries is acknowledged with single
+ * 'multiple' ack, completed deliveries behind a gap (job still being cleaned) are acknowledged one by one.
+ */
+public class NotificationAckTracker implements JobCleaningListener {
+	private static final Logger LOGGER = LoggerFactory.getLogger(NotificationAckTracker.class);
+	private final Channel channel;
+	private final int batchSize;
+	/**
+	 * All not acknowledged delivery tags.
+	 */
+	private final TreeSet<Long> unacked = new TreeSet<>();
+	/**
+	 * Delivery tags ready to be acknowledged.
+	 */
+	private final TreeSet<Long> completed = new TreeSet<>();
+	/**
+	 * Delivery tags waiting for job data removal.
+	 */
+	private final Map<Long, List<Long>> tagsByJob = new HashMap<>();
+
+	/**
+	 * Creates new tracker.
+	 *
+	 * @param rbtChannel
+	 *            Channel deliveries came from. Delivery tags are valid only within this channel.
+	 * @param ackBatchSize
+	 *            Number of completed deliveries which triggers acknowledgement.
+	 */
+	public NotificationAckTracker(Channel rbtChannel, int ackBatchSize) {
+		channel = rbtChannel;
+		batchSize = ackBatchSize;
+	}
+
+	/**
+	 * Registers delivery which will be acknowledged when data of given job is removed.
+	 *
+	 * @param deliveryTag
+	 *            Delivery tag.
+	 * @param jobId
+	 *            Job id.
+	 */
+	public final synchronized void track(long deliveryTag, long jobId) {
+		unacked.add(deliveryTag);
+		List<Long> tags = tagsByJob.get(jobId);
+		if (tags == null) {
+			tags = new ArrayList<>(1);
+			tagsByJob.put(jobId, tags);
+		}
+		tags.add(deliveryTag);
+	}
+
+	/**
+	 * Registers delivery which needs no more processing (e.g. not a job finished notification).
+	 *
+	 * @param deliveryTag
+	 *            Delivery tag.
+	 */
+	public final void complete(long deliveryTag) {
+		boolean batchReady;
+		synchronized (this) {
+			unacked.add(deliveryTag);
+			completed.add(deliveryTag);
+			batchReady = completed.size() >= batchSize;
+		}
+		if (batchReady) {
+			flushQuietly();
+		}
+	}
+
+	@Override
+	public final void jobDataRemoved(long jobId) {
+		completeJob(jobId);
+	}
+
+	@Override
+	public final void jobDataRemovalFailed(long jobId, IOException cause) {
+		LOGGER.debug("Notification acknowledged although job data has not been removed. (jobId={})", jobId);
+		completeJob(jobId);
+	}
+
+	private void completeJob(long jobId) {
+		boolean batchReady;
+		synchronized (this) {
+			List<Long> tags = tagsByJob.remove(jobId);
+			if (tags == null) {
+				return;
+			}
+			completed.addAll(tags);
+			batchReady = completed.size() >= batchSize;
+		}
+		if (batchReady) {
+			flushQuietly();
+		}
+	}
+
+	/**
+	 * Acknowledges all completed deliveries.
+	 *
+	 * @return Number of acknowledged deliveries.
+	 * @throws IOException
+	 *             When acknowledgement could not be sent.
+	 */
+	public final synchronized int flush() throws IOException {
+		if (completed.isEmpty()) {
+			return 0;
+		}
+		int count = 0;
+		long multipleTag = -1;
+		for (Long tag : unacked) {
+			if (!completed.contains(tag)) {
+				break;
+			}
+			multipleTag = tag;
+			count++;
+		}
+		if (multipleTag != -1) {
+			channel.basicAck(multipleTag, true);
+			unacked.headSet(multipleTag, true).clear();
+			completed.headSet(multipleTag, true).clear();
+		}
+		while (!completed.isEmpty()) {
+			long tag = completed.first();
+			channel.basicAck(tag, false);
+			completed.remove(tag);
+			unacked.remove(tag);
+			count++;
+		}
+		LOGGER.debug("Notifications acknowledged. (count={}, pending={})", count, unacked.size());
+		return count;
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (IOException | ShutdownSignalException e) {
+			// Not acknowledged deliveries will be redelivered after reconnection.
+			LOGGER.warn("Could not acknowledge notifications.", e);
+		}
+	}
+
+	/**
+	 * @return Number of not acknowledged deliveries.
+	 */
+	public final synchronized int getUnackedCount() {
+		return unacked.size();
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Consumer of job notifications working in manual acknowledgement mode. Every delivery is passed to
+ * {@link NotificationAckTracker} and acknowledged when job data has been removed (or immediately, if delivery does not
+ * request cleaning).
+ */
+public class NotificationConsumer extends DefaultConsumer {
+	private static final Logger LOGGER = LoggerFactory.getLogger(NotificationConsumer.class);
+	private final DataStoreActiveCleaner cleaner;
+	private final NotificationAckTracker ackTracker;
+
+	public NotificationConsumer(Channel channel, DataStoreActiveCleaner activeCleaner, NotificationAckTracker tracker) {
+		super(channel);
+		cleaner = activeCleaner;
+		ackTracker = tracker;
+	}
+
+	@Override
+	public final void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) {
+		String type = properties.getType();
+		long deliveryTag = envelope.getDeliveryTag();
+		LOGGER.debug("Got delivery {} (tag={})", type, deliveryTag);
+
+		Long jobId = cleaner.getJobToClean(type, body);
+		if (jobId == null) {
+			ackTracker.complete(deliveryTag);
+		} else {
+			// Tag has to be tracked before scheduling, otherwise job could be cleaned before tracking starts.
+			ackTracker.track(deliveryTag, jobId);
+			cleaner.getScheduler().schedule(jobId);
+		}
+	}
+
+	@Override
+	public final void handleCancel(String consumerTag) throws IOException {
+		LOGGER.warn("Consumer cancelled by broker. (consumerTag={})", consumerTag);
+		// Closing channel makes cleaner reconnect.
+		getChannel().close();
+	}
+}
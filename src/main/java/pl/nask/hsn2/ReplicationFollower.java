@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.exceptions.JobNotFoundException;
+import pl.nask.hsn2.handlers.DataHandler;
+
+/**
+ * Receives replication stream from primary (see {@link ReplicationPublisher}) and applies events in order. Entries keep
+ * their ids, removed jobs are removed at once. Only one primary is served at a time. During full resync jobs and
+ * entries which primary does not have are removed.
+ */
+public class ReplicationFollower implements Runnable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReplicationFollower.class);
+	private final ServerSocket serverSocket;
+	private final DataHandler dataHandler;
+	private final JobCatalog jobCatalog;
+	private final ConcurrentSkipListSet<Long> cleaningJobs = new ConcurrentSkipListSet<>();
+	private volatile boolean stopped;
+	private volatile Socket socket;
+	private long epoch;
+	private volatile long appliedSequence;
+	private volatile long appliedEventTime;
+	private volatile long lag;
+	// Full resync in progress: its events are neither duplicates nor acknowledged (until its end).
+	private boolean syncing;
+
+	/**
+	 * Creates follower and binds its port.
+	 *
+	 * @param port
+	 *            Port on which replication stream is received.
+	 * @param handler
+	 *            Data handler which stores replicated entries.
+	 * @param catalog
+	 *            Job catalog.
+	 * @throws IOException
+	 *             When port could not be bound.
+	 */
+	public ReplicationFollower(int port, DataHandler handler, JobCatalog catalog) throws IOException {
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(port));
+		dataHandler = handler;
+		jobCatalog = catalog;
+	}
+
+	public final void start() {
+		Thread thread = new Thread(this, "ReplicationFollower");
+		thread.setDaemon(true);
+		thread.start();
+		LOGGER.info("Replication follower is listening on port {}", serverSocket.getLocalPort());
+	}
+
+	public final void shutdown() {
+		stopped = true;
+		try {
+			serverSocket.close();
+			Socket s = socket;
+			if (s != null) {
+				s.close();
+			}
+		} catch (IOException e) {
+			LOGGER.debug("Could not close replication socket.", e);
+		}
+	}
+
+	@Override
+	public final void run() {
+		while (!stopped) {
+			try (Socket s = serverSocket.accept()) {
+				socket = s;
+				LOGGER.info("Replication primary connected from {}", s.getRemoteSocketAddress());
+				receive(new DataInputStream(new BufferedInputStream(s.getInputStream())),
+						new DataOutputStream(new BufferedOutputStream(s.getOutputStream())));
+			} catch (EOFException e) {
+				LOGGER.info("Replication primary disconnected.");
+			} catch (IOException | SQLException e) {
+				if (!stopped) {
+					LOGGER.warn("Replication stream broken.", e);
+				}
+			} finally {
+				socket = null;
+			}
+		}
+	}
+
+	private void receive(DataInputStream in, DataOutputStream out) throws IOException, SQLException {
+		long primaryEpoch = in.readLong();
+		if (primaryEpoch != epoch) {
+			// Primary restarted, its sequence starts again.
+			epoch = primaryEpoch;
+			appliedSequence = 0;
+		}
+		// Resync broken with previous connection is sent again from its start.
+		syncing = false;
+		while (true) {
+			byte type = in.readByte();
+			long sequence = in.readLong();
+			long time = in.readLong();
+			long jobId = in.readLong();
+			boolean duplicate = sequence <= appliedSequence && !syncing;
+			if (type == ReplicationPublisher.SYNC_JOBS) {
+				syncing = true;
+				LOGGER.info("Full resync from primary started.");
+				removeJobsExcept(readIds(in));
+			} else if (type == ReplicationPublisher.SYNC_JOB) {
+				removeEntriesExcept(jobId, readIds(in));
+			} else if (type == ReplicationPublisher.SYNC_END) {
+				syncing = false;
+				LOGGER.info("Full resync from primary finished.");
+			} else if (type == ReplicationPublisher.ENTRY_ADDED) {
+				applyEntry(in, jobId, in.readLong(), duplicate);
+			} else if (type == ReplicationPublisher.ENTRY_REMOVED) {
+				long entryId = in.readLong();
+				if (!duplicate) {
+					removeEntry(jobId, entryId);
+				}
+			} else if (type == ReplicationPublisher.JOB_REMOVED) {
+				if (!duplicate) {
+					new DataStoreCleanSingleJob(cleaningJobs, jobId, jobCatalog, null).run();
+				}
+			} else {
+				throw new IOException("Unknown replication event type: " + type);
+			}
+			if (syncing) {
+				continue;
+			}
+			appliedSequence = sequence;
+			appliedEventTime = time;
+			lag = System.currentTimeMillis() - time;
+			out.writeLong(sequence);
+			if (in.available() == 0) {
+				out.flush();
+			}
+		}
+	}
+
+	private static Set<Long> readIds(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0) {
+			throw new IOException("Invalid replication ids count: " + count);
+		}
+		Set<Long> ids = new HashSet<>();
+		for (int i = 0; i < count; i++) {
+			ids.add(in.readLong());
+		}
+		return ids;
+	}
+
+	private void removeJobsExcept(Set<Long> primaryJobIds) throws IOException {
+		for (long jobId : DataStore.getJobIds()) {
+			if (!primaryJobIds.contains(jobId)) {
+				new DataStoreCleanSingleJob(cleaningJobs, jobId, jobCatalog, null).run();
+			}
+		}
+	}
+
+	private void removeEntriesExcept(long jobId, Set<Long> primaryEntryIds) throws IOException, SQLException {
+		List<Long> entryIds = dataHandler.getEntryIds(jobId);
+		if (entryIds != null) {
+			for (long entryId : entryIds) {
+				if (!primaryEntryIds.contains(entryId)) {
+					removeEntry(jobId, entryId);
+				}
+			}
+		}
+	}
+
+	private void removeEntry(long jobId, long entryId) throws IOException, SQLException {
+		try {
+			dataHandler.deleteEntry(jobId, entryId);
+		} catch (JobNotFoundException e) {
+			LOGGER.debug("Deleted entry of unknown job. (jobId={}, entryId={})", jobId, entryId);
+		}
+	}
+
+	private void applyEntry(DataInputStream in, long jobId, long entryId, boolean duplicate) throws IOException, SQLException {
+		ChunkInputStream data = new ChunkInputStream(in);
+		try {
+			if (!duplicate) {
+				dataHandler.putReplicatedEntry(jobId, entryId, data);
+			}
+		} catch (IOException | SQLException e) {
+			if (!data.isMissing()) {
+				throw e;
+			}
+		}
+		// Rest of entry is skipped (duplicate, already stored or entry gone on primary).
+		data.drain();
+		if (data.isMissing()) {
+			LOGGER.debug("Replicated entry is gone on primary. (jobId={}, entryId={})", jobId, entryId);
+		}
+	}
+
+	/**
+	 * @return Replication status line: last applied sequence number, commit time on primary of last applied event and
+	 *         lag (ms between commit on primary and apply of last event).
+	 */
+	public final String getStatus() {
+		return "connected\tapplied\tappliedTime\tlagMs\n" + (socket != null) + '\t' + appliedSequence + '\t' + appliedEventTime
+				+ '\t' + lag + '\n';
+	}
+
+	/**
+	 * @return Number of last applied event.
+	 */
+	public final long getAppliedSequence() {
+		return appliedSequence;
+	}
+
+	/**
+	 * Reads entry data sent as chunks.
+	 */
+	private static final class ChunkInputStream extends InputStream {
+		private final DataInputStream in;
+		private int remaining;
+		private boolean ended;
+		private boolean missing;
+
+		private ChunkInputStream(DataInputStream in) {
+			this.in = in;
+		}
+
+		private boolean nextChunk() throws IOException {
+			while (!ended && remaining == 0) {
+				int length = in.readInt();
+				if (length == ReplicationPublisher.NO_DATA) {
+					ended = true;
+					missing = true;
+				} else if (length == 0) {
+					ended = true;
+				} else if (length < 0) {
+					throw new IOException("Invalid replication chunk length: " + length);
+				} else {
+					remaining = length;
+				}
+			}
+			if (missing) {
+				throw new IOException("Entry is gone on primary.");
+			}
+			return !ended;
+		}
+
+		private void drain() throws IOException {
+			while (!ended) {
+				// Skipped, not read: chunk can be as long as whole entry.
+				while (remaining > 0) {
+					int skipped = in.skipBytes(remaining);
+					if (skipped == 0 && in.read() < 0) {
+						throw new EOFException("Replication stream ended inside entry data.");
+					}
+					remaining -= skipped == 0 ? 1 : skipped;
+				}
+				int length = in.readInt();
+				if (length == 0 || length == ReplicationPublisher.NO_DATA) {
+					ended = true;
+					missing = length == ReplicationPublisher.NO_DATA;
+				} else if (length < 0) {
+					throw new IOException("Invalid replication chunk length: " + length);
+				} else {
+					remaining = length;
+				}
+			}
+		}
+
+		private boolean isMissing() {
+			return missing;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!nextChunk()) {
+				return -1;
+			}
+			int count = in.read(b, off, Math.min(len, remaining));
+			if (count < 0) {
+				throw new EOFException();
+			}
+			remaining -= count;
+			return count;
+		}
+	}
+}
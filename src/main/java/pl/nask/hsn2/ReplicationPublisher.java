@@ -0,0 +1,471 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.handlers.DataHandler;
+
+/**
+ * Asynchronous replication to follower instances. Every committed entry, entry deletion and job removal gets next
+ * sequence number and is queued for all followers. Each follower has its own persistent connection, backlog and sender
+ * thread, so slow or unavailable follower holds up neither requests nor other followers.
+ * <p>
+ * Stream (all numbers big endian): primary sends its epoch (start time) once per connection, then events: type byte,
+ * sequence number, commit time, job id and for entry also entry id and data as chunks (int length, bytes) ended with 0
+ * length chunk or with {@link #NO_DATA} if entry is gone on primary, for entry deletion also entry id. Follower
+ * acknowledges every applied event with its sequence number. Events not acknowledged before connection is lost are sent
+ * again.
+ * <p>
+ * When follower backlog is full, incremental events are no longer queued for it: the follower is fully resynchronized
+ * instead. Resync events share one sequence number (reserved when resync starts, so all events queued later follow
+ * it): {@link #SYNC_JOBS} with ids of all jobs (int count, ids), then for every job {@link #SYNC_JOB} with ids of all its
+ * entries (int count, ids) followed by {@link #ENTRY_ADDED} for each of them, at the end {@link #SYNC_END}. Follower
+ * removes jobs and entries missing on primary, stores entries it does not have and acknowledges only the end of resync.
+ * Resync not acknowledged before connection is lost is started again.
+ */
+public class ReplicationPublisher implements JobCleaningListener {
+	static final byte ENTRY_ADDED = 1;
+	static final byte JOB_REMOVED = 2;
+	static final byte ENTRY_REMOVED = 3;
+	static final byte SYNC_JOBS = 4;
+	static final byte SYNC_JOB = 5;
+	static final byte SYNC_END = 6;
+	static final int NO_DATA = -1;
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReplicationPublisher.class);
+	private static final int CONNECT_TIMEOUT = 5000;
+	private static final long RECONNECT_DELAY = 1000;
+	private static final int CHUNK_SIZE = 65536;
+
+	private final long epoch = System.currentTimeMillis();
+	private final AtomicLong sequence = new AtomicLong();
+	private final List<FollowerLink> links = new ArrayList<>();
+	private volatile DataHandler entrySource;
+	private volatile boolean stopped;
+
+	/**
+	 * Creates replication publisher.
+	 *
+	 * @param followers
+	 *            Followers addresses ('host:port').
+	 * @param backlogLimit
+	 *            Maximum number of events waiting for one follower. Follower which falls further behind is fully
+	 *            resynchronized.
+	 */
+	public ReplicationPublisher(List<String> followers, int backlogLimit) {
+		for (String follower : followers) {
+			int separator = follower.lastIndexOf(':');
+			if (separator < 1) {
+				throw new IllegalArgumentException("Invalid follower address (host:port expected): " + follower);
+			}
+			int port = Integer.parseInt(follower.substring(separator + 1));
+			links.add(new FollowerLink(new InetSocketAddress(follower.substring(0, separator), port), backlogLimit));
+		}
+	}
+
+	/**
+	 * Starts sender threads.
+	 *
+	 * @param source
+	 *            Data handler from which entries data is read when they are sent.
+	 */
+	public final void start(DataHandler source) {
+		entrySource = source;
+		for (FollowerLink link : links) {
+			Thread thread = new Thread(link, "Replication-" + link.address);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		LOGGER.info("Replication started. (followers={})", links);
+	}
+
+	public final void shutdown() {
+		stopped = true;
+		for (FollowerLink link : links) {
+			link.disconnect();
+		}
+	}
+
+	/**
+	 * Called when entry has been committed.
+	 */
+	public final void entryAdded(long jobId, long entryId) {
+		publish(ENTRY_ADDED, jobId, entryId);
+	}
+
+	/**
+	 * Called when entry has been deleted.
+	 */
+	public final void entryRemoved(long jobId, long entryId) {
+		publish(ENTRY_REMOVED, jobId, entryId);
+	}
+
+	@Override
+	public final void jobDataRemoved(long jobId) {
+		publish(JOB_REMOVED, jobId, 0);
+	}
+
+	@Override
+	public void jobDataRemovalFailed(long jobId, IOException cause) {
+		// Job is still on primary, so it stays on followers too.
+	}
+
+	private synchronized void publish(byte type, long jobId, long entryId) {
+		// Synchronized, so events are queued in sequence order.
+		Event event = new Event(type, sequence.incrementAndGet(), System.currentTimeMillis(), jobId, entryId);
+		for (FollowerLink link : links) {
+			link.offer(event);
+		}
+	}
+
+	/**
+	 * @return Replication status, one tab separated line per follower: address, connected flag, events waiting,
+	 *         last acknowledged sequence number, number of events not queued (backlog full), lag (age in ms of oldest
+	 *         event not acknowledged) and resync flag (follower is being or has to be fully resynchronized).
+	 */
+	public final String getStatus() {
+		StringBuilder sb = new StringBuilder("follower\tconnected\tpending\tacked\tlost\tlagMs\tresync\n");
+		long now = System.currentTimeMillis();
+		for (FollowerLink link : links) {
+			sb.append(link.address).append('\t').append(link.connected).append('\t').append(link.getPendingCount()).append('\t')
+					.append(link.ackedSequence).append('\t').append(link.lost.get()).append('\t').append(link.getLag(now))
+					.append('\t').append(link.resyncNeeded || link.resyncPending).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return Maximum lag (ms) of all followers.
+	 */
+	public final long getLag() {
+		long now = System.currentTimeMillis();
+		long lag = 0;
+		for (FollowerLink link : links) {
+			lag = Math.max(lag, link.getLag(now));
+		}
+		return lag;
+	}
+
+	private static final class Event {
+		private final byte type;
+		private final long sequence;
+		private final long time;
+		private final long jobId;
+		private final long entryId;
+
+		private Event(byte type, long sequence, long time, long jobId, long entryId) {
+			this.type = type;
+			this.sequence = sequence;
+			this.time = time;
+			this.jobId = jobId;
+			this.entryId = entryId;
+		}
+	}
+
+	/**
+	 * Writes entry data as chunks.
+	 */
+	private static final class ChunkOutputStream extends OutputStream {
+		private final DataOutputStream out;
+
+		private ChunkOutputStream(DataOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			int written = 0;
+			while (written < len) {
+				int size = Math.min(CHUNK_SIZE, len - written);
+				out.writeInt(size);
+				out.write(b, off + written, size);
+				written += size;
+			}
+		}
+	}
+
+	private final class FollowerLink implements Runnable {
+		private final InetSocketAddress address;
+		private final BlockingQueue<Event> backlog;
+		// Sent, but not acknowledged yet. Guarded by itself.
+		private final Deque<Event> inFlight = new ArrayDeque<>();
+		private final AtomicLong lost = new AtomicLong();
+		private volatile long ackedSequence;
+		private volatile boolean connected;
+		private volatile Socket socket;
+		// Backlog has been full, incremental events are not queued until resync starts.
+		private volatile boolean resyncNeeded;
+		// Resync sent (or being sent), but not acknowledged yet.
+		private volatile boolean resyncPending;
+		private volatile long resyncSequence;
+
+		private FollowerLink(InetSocketAddress address, int backlogLimit) {
+			this.address = address;
+			backlog = new LinkedBlockingQueue<>(backlogLimit);
+		}
+
+		private void offer(Event event) {
+			if (resyncNeeded) {
+				lost.incrementAndGet();
+			} else if (!backlog.offer(event)) {
+				lost.incrementAndGet();
+				resyncNeeded = true;
+				LOGGER.warn("Replication backlog full, follower {} will be fully resynchronized.", address);
+			}
+		}
+
+		private int getPendingCount() {
+			synchronized (inFlight) {
+				return backlog.size() + inFlight.size();
+			}
+		}
+
+		private long getLag(long now) {
+			Event oldest;
+			synchronized (inFlight) {
+				oldest = inFlight.peekFirst();
+			}
+			if (oldest == null) {
+				oldest = backlog.peek();
+			}
+			return oldest == null ? 0 : now - oldest.time;
+		}
+
+		@Override
+		public void run() {
+			while (!stopped) {
+				try (Socket s = new Socket()) {
+					socket = s;
+					s.connect(address, CONNECT_TIMEOUT);
+					s.setTcpNoDelay(true);
+					connected = true;
+					LOGGER.info("Connected to replication follower {}", address);
+					startAckReader(new DataInputStream(new BufferedInputStream(s.getInputStream())));
+					send(new DataOutputStream(new BufferedOutputStream(s.getOutputStream())));
+				} catch (IOException e) {
+					if (!stopped) {
+						LOGGER.warn("Replication to {} interrupted: {}", address, e.getMessage());
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				} finally {
+					connected = false;
+				}
+				sleep();
+			}
+		}
+
+		private void sleep() {
+			try {
+				Thread.sleep(RECONNECT_DELAY);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				stopped = true;
+			}
+		}
+
+		private void send(DataOutputStream out) throws IOException, InterruptedException {
+			out.writeLong(epoch);
+			if (resyncPending) {
+				resyncNeeded = true;
+			}
+			List<Event> unacked;
+			synchronized (inFlight) {
+				unacked = new ArrayList<>(inFlight);
+			}
+			if (!resyncNeeded) {
+				for (Event event : unacked) {
+					write(out, event);
+				}
+			}
+			out.flush();
+			while (!stopped) {
+				if (resyncNeeded) {
+					resync(out);
+					continue;
+				}
+				Event event = backlog.poll(RECONNECT_DELAY, TimeUnit.MILLISECONDS);
+				if (event != null) {
+					synchronized (inFlight) {
+						inFlight.addLast(event);
+					}
+					write(out, event);
+				}
+				if (backlog.isEmpty()) {
+					out.flush();
+				}
+				if (socket.isClosed()) {
+					throw new IOException("Connection closed.");
+				}
+			}
+		}
+
+		/**
+		 * Sends all jobs and entries. Incremental events are dropped when it starts, events published later are sent
+		 * after it.
+		 */
+		private void resync(DataOutputStream out) throws IOException {
+			long syncSequence;
+			synchronized (ReplicationPublisher.this) {
+				// No event is published meanwhile.
+				resyncNeeded = false;
+				backlog.clear();
+				synchronized (inFlight) {
+					inFlight.clear();
+				}
+				syncSequence = sequence.incrementAndGet();
+				resyncSequence = syncSequence;
+				resyncPending = true;
+			}
+			LOGGER.info("Full resync of replication follower {} started.", address);
+			long time = System.currentTimeMillis();
+			Set<Long> jobIds = DataStore.getJobIds();
+			writeHeader(out, SYNC_JOBS, syncSequence, time, 0);
+			writeIds(out, jobIds);
+			for (long jobId : jobIds) {
+				if (resyncNeeded || socket.isClosed()) {
+					// Backlog full again (or connection lost), resync starts from the beginning.
+					return;
+				}
+				List<Long> entryIds;
+				try {
+					entryIds = entrySource.getEntryIds(jobId);
+				} catch (SQLException e) {
+					throw new IOException("Could not list entries for resync. (jobId=" + jobId + ")", e);
+				}
+				if (entryIds == null) {
+					// Job removed meanwhile, its removal is queued.
+					continue;
+				}
+				writeHeader(out, SYNC_JOB, syncSequence, time, jobId);
+				writeIds(out, entryIds);
+				for (long entryId : entryIds) {
+					write(out, new Event(ENTRY_ADDED, syncSequence, time, jobId, entryId));
+				}
+			}
+			writeHeader(out, SYNC_END, syncSequence, time, 0);
+			out.flush();
+		}
+
+		private void writeIds(DataOutputStream out, Collection<Long> ids) throws IOException {
+			out.writeInt(ids.size());
+			for (long id : ids) {
+				out.writeLong(id);
+			}
+		}
+
+		private void writeHeader(DataOutputStream out, byte type, long eventSequence, long time, long jobId)
+				throws IOException {
+			out.writeByte(type);
+			out.writeLong(eventSequence);
+			out.writeLong(time);
+			out.writeLong(jobId);
+		}
+
+		private void write(DataOutputStream out, Event event) throws IOException {
+			writeHeader(out, event.type, event.sequence, event.time, event.jobId);
+			if (event.type == ENTRY_ADDED) {
+				out.writeLong(event.entryId);
+				boolean found;
+				try {
+					found = entrySource.copyEntry(event.jobId, event.entryId, new ChunkOutputStream(out));
+				} catch (SQLException e) {
+					LOGGER.warn("Could not read entry for replication. (jobId=" + event.jobId + ", entryId=" + event.entryId + ")",
+							e);
+					found = false;
+				}
+				out.writeInt(found ? 0 : NO_DATA);
+			} else if (event.type == ENTRY_REMOVED) {
+				out.writeLong(event.entryId);
+			}
+		}
+
+		private void startAckReader(final DataInputStream in) {
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							long acked = in.readLong();
+							synchronized (inFlight) {
+								while (!inFlight.isEmpty() && inFlight.peekFirst().sequence <= acked) {
+									inFlight.removeFirst();
+								}
+							}
+							ackedSequence = acked;
+							if (resyncPending && acked >= resyncSequence) {
+								resyncPending = false;
+								LOGGER.info("Replication follower {} resynchronized.", address);
+							}
+						}
+					} catch (IOException e) {
+						LOGGER.debug("Replication acknowledgements from {} ended: {}", address, e.getMessage());
+						disconnect();
+					}
+				}
+			}, "ReplicationAck-" + address);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		private void disconnect() {
+			Socket s = socket;
+			if (s != null) {
+				try {
+					s.close();
+				} catch (IOException e) {
+					LOGGER.debug("Could not close replication connection.", e);
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return String.valueOf(address);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import pl.nask.hsn2.JobCatalog.JobInfo;
+
+/**
+ * Retention policy for data of kept jobs (see leave data option). Job data is evicted when it is older than maximum
+ * age, when total size of kept jobs exceeds limit, or when free disk space drops below low watermark (then jobs are
+ * evicted until free space reaches high watermark). Limit set to 0 is disabled.
+ */
+public class RetentionPolicy {
+	public static enum EvictionOrder {
+		/**
+		 * Oldest jobs (by creation time) are evicted first.
+		 */
+		OLDEST,
+		/**
+		 * Least recently read jobs are evicted first. Jobs never read are ordered by last write time.
+		 */
+		LEAST_RECENTLY_READ
+	}
+
+	private final long maxAge;
+	private final long maxTotalBytes;
+	private final long freeDiskLowWatermark;
+	private final long freeDiskHighWatermark;
+	private final EvictionOrder evictionOrder;
+
+	/**
+	 * Creates new policy.
+	 *
+	 * @param maxAgeMillis
+	 *            Maximum age of job data in ms.
+	 * @param maxTotalSize
+	 *            Maximum total size of kept jobs in bytes.
+	 * @param freeDiskLow
+	 *            Free disk space (bytes) below which eviction starts.
+	 * @param freeDiskHigh
+	 *            Free disk space (bytes) which eviction tries to reach.
+	 * @param order
+	 *            Order of eviction.
+	 */
+	public RetentionPolicy(long maxAgeMillis, long maxTotalSize, long freeDiskLow, long freeDiskHigh, EvictionOrder order) {
+		if (freeDiskHigh < freeDiskLow) {
+			throw new IllegalArgumentException("Free disk high watermark is lower than low watermark.");
+		}
+		maxAge = maxAgeMillis;
+		maxTotalBytes = maxTotalSize;
+		freeDiskLowWatermark = freeDiskLow;
+		freeDiskHighWatermark = freeDiskHigh;
+		evictionOrder = order;
+	}
+
+	/**
+	 * @return {@code True} if at least one limit is set.
+	 */
+	public final boolean isEnabled() {
+		return maxAge > 0 || maxTotalBytes > 0 || freeDiskLowWatermark > 0;
+	}
+
+	/**
+	 * Selects jobs to evict.
+	 *
+	 * @param keptJobs
+	 *            Kept jobs.
+	 * @param freeDiskBytes
+	 *            Current free disk space.
+	 * @param now
+	 *            Current time.
+	 * @return Ids of jobs to evict, in eviction order.
+	 */
+	public final List<Long> selectJobsToEvict(List<JobInfo> keptJobs, long freeDiskBytes, long now) {
+		List<JobInfo> jobs = new ArrayList<>(keptJobs);
+		Collections.sort(jobs, new EvictionComparator(evictionOrder));
+		List<Long> toEvict = new ArrayList<>();
+		long totalBytes = 0;
+		long freeBytes = freeDiskBytes;
+
+		// Age limit.
+		for (Iterator<JobInfo> i = jobs.iterator(); i.hasNext();) {
+			JobInfo job = i.next();
+			if (maxAge > 0 && now - job.getCreated() > maxAge) {
+				toEvict.add(job.getJobId());
+				freeBytes += job.getSize();
+				i.remove();
+			} else {
+				totalBytes += job.getSize();
+			}
+		}
+
+		// Size limit and free disk space watermarks.
+		boolean lowDiskSpace = freeDiskLowWatermark > 0 && freeBytes < freeDiskLowWatermark;
+		for (Iterator<JobInfo> i = jobs.iterator(); i.hasNext();) {
+			boolean sizeExceeded = maxTotalBytes > 0 && totalBytes > maxTotalBytes;
+			boolean diskSpaceNeeded = lowDiskSpace && freeBytes < freeDiskHighWatermark;
+			if (!sizeExceeded && !diskSpaceNeeded) {
+				break;
+			}
+			JobInfo job = i.next();
+			toEvict.add(job.getJobId());
+			totalBytes -= job.getSize();
+			freeBytes += job.getSize();
+		}
+		return toEvict;
+	}
+
+	@Override
+	public final String toString() {
+		return "RetentionPolicy(maxAge[ms]=" + maxAge + ", maxTotalBytes=" + maxTotalBytes + ", freeDiskLow=" + freeDiskLowWatermark
+				+ ", freeDiskHigh=" + freeDiskHighWatermark + ", order=" + evictionOrder + ")";
+	}
+
+	private static final class EvictionComparator implements Comparator<JobInfo> {
+		private final EvictionOrder order;
+
+		private EvictionComparator(EvictionOrder evictionOrder) {
+			order = evictionOrder;
+		}
+
+		@Override
+		public int compare(JobInfo o1, JobInfo o2) {
+			int result;
+			if (order == EvictionOrder.LEAST_RECENTLY_READ) {
+				result = Long.compare(lastAccess(o1), lastAccess(o2));
+			} else {
+				result = Long.compare(o1.getCreated(), o2.getCreated());
+			}
+			return result == 0 ? Long.compare(o1.getJobId(), o2.getJobId()) : result;
+		}
+
+		private static long lastAccess(JobInfo job) {
+			return job.getLastRead() > 0 ? job.getLastRead() : job.getLastWrite();
+		}
+	}
+}
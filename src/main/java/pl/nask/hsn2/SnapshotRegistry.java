@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.exceptions.JobNotFoundException;
+
+/**
+ * Registry of job snapshots. Entries never change and entry ids grow, so point-in-time snapshot of job is its id and
+ * last entry id assigned when snapshot was taken. Creating snapshot costs O(1), it neither touches job data nor blocks
+ * writers. Snapshot is read through database of its job until the job is removed. Before that database file is hard
+ * linked under snapshot name, so data stays readable (removing job only unlinks job name).
+ * <p>
+ * Registry file has one line per snapshot: snapshot id, job id, last entry id, creation time and database file name (if
+ * job has been removed already).
+ */
+public class SnapshotRegistry {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotRegistry.class);
+	private static final String SNAPSHOT_FILE_PREFIX = "snapshot-";
+	private static final String[] DB_FILE_SUFFIXES = { ".h2.db", ".lock.db", ".trace.db" };
+	private final File registryFile;
+	private final Map<Long, Snapshot> snapshots = new ConcurrentHashMap<>();
+	// Jobs which data is being removed. Guarded by this.
+	private final Set<Long> removingJobs = new HashSet<>();
+
+	/**
+	 * Creates registry which is not saved.
+	 */
+	public SnapshotRegistry() {
+		registryFile = null;
+	}
+
+	/**
+	 * Creates registry saved in given file and loads it.
+	 *
+	 * @throws IOException
+	 *             When registry file exists but could not be read.
+	 */
+	public SnapshotRegistry(String registryPath) throws IOException {
+		registryFile = new File(registryPath);
+		if (registryFile.exists()) {
+			try (BufferedReader reader = Files.newBufferedReader(registryFile.toPath(), StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (!line.trim().isEmpty()) {
+						Snapshot snapshot = Snapshot.parse(line);
+						snapshots.put(snapshot.getSnapshotId(), snapshot);
+					}
+				}
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Invalid snapshot registry: " + registryPath, e);
+			}
+			LOGGER.info("Snapshots loaded: {}", snapshots.size());
+		}
+	}
+
+	/**
+	 * @return Snapshot or {@code null} if there is no snapshot with given id.
+	 */
+	public final Snapshot get(long snapshotId) {
+		return snapshots.get(snapshotId);
+	}
+
+	public final List<Snapshot> getSnapshots() {
+		return new ArrayList<>(snapshots.values());
+	}
+
+	/**
+	 * Takes snapshot of job.
+	 *
+	 * @param jobId
+	 *            Job id.
+	 * @param snapshotId
+	 *            Id under which snapshot is read, must not be used by any job nor snapshot.
+	 * @param lastEntryId
+	 *            Last entry id assigned so far.
+	 * @throws JobNotFoundException
+	 *             When job has no data or it is being removed.
+	 * @throws IllegalStateException
+	 *             When snapshot id is already used.
+	 */
+	public final synchronized Snapshot create(long jobId, long snapshotId, long lastEntryId) throws IOException,
+			JobNotFoundException {
+		if (snapshots.containsKey(jobId) || removingJobs.contains(jobId) || !DataStore.isDbFileExists(jobId)) {
+			throw new JobNotFoundException("Job not found (id=" + jobId + ")");
+		}
+		if (snapshots.containsKey(snapshotId) || DataStore.isDbFileExists(snapshotId)) {
+			throw new IllegalStateException("Id already used by job or snapshot (id=" + snapshotId + ")");
+		}
+		Snapshot snapshot = new Snapshot(snapshotId, jobId, lastEntryId, System.currentTimeMillis(), null);
+		snapshots.put(snapshotId, snapshot);
+		save();
+		LOGGER.info("Snapshot created. (snapshotId={}, jobId={}, lastEntryId={})", new Object[] { snapshotId, jobId, lastEntryId });
+		return snapshot;
+	}
+
+	/**
+	 * Removes snapshot (and its database file, if job was removed before).
+	 *
+	 * @return {@code false} if there was no such snapshot.
+	 */
+	public final synchronized boolean remove(long jobId, long snapshotId) throws IOException {
+		Snapshot snapshot = snapshots.get(snapshotId);
+		if (snapshot == null || snapshot.getJobId() != jobId) {
+			return false;
+		}
+		snapshots.remove(snapshotId);
+		save();
+		if (snapshot.getDbFileName() != null) {
+			for (String suffix : DB_FILE_SUFFIXES) {
+				Files.deleteIfExists(new File(snapshot.getDbFileName() + suffix).toPath());
+			}
+		}
+		LOGGER.info("Snapshot removed. (snapshotId={}, jobId={})", snapshotId, jobId);
+		return true;
+	}
+
+	/**
+	 * Called before job database file is removed. Links file under name of every snapshot of the job, no snapshot of
+	 * the job can be taken until {@link #jobDataRemoved(long)} is called.
+	 *
+	 * @return {@code true} if file has been linked, so it must not be truncated when removed.
+	 */
+	public final synchronized boolean preserveJobData(long jobId, Path dbFile) throws IOException {
+		removingJobs.add(jobId);
+		boolean linked = false;
+		for (Snapshot snapshot : snapshots.values()) {
+			if (snapshot.getJobId() == jobId && snapshot.getDbFileName() == null && Files.exists(dbFile)) {
+				String dbFileName = dbFile.resolveSibling(SNAPSHOT_FILE_PREFIX + snapshot.getSnapshotId()).toString();
+				Path link = new File(dbFileName + DB_FILE_SUFFIXES[0]).toPath();
+				Files.deleteIfExists(link);
+				Files.createLink(link, dbFile);
+				snapshots.put(snapshot.getSnapshotId(), new Snapshot(snapshot.getSnapshotId(), jobId, snapshot.getLastEntryId(),
+						snapshot.getCreated(), dbFileName));
+				linked = true;
+				LOGGER.info("Snapshot data preserved. (snapshotId={}, file={})", snapshot.getSnapshotId(), link);
+			}
+		}
+		if (linked) {
+			save();
+		}
+		return linked;
+	}
+
+	public final synchronized void jobDataRemoved(long jobId) {
+		removingJobs.remove(jobId);
+	}
+
+	private void save() throws IOException {
+		if (registryFile == null) {
+			return;
+		}
+		Path tmp = new File(registryFile.getPath() + ".tmp").toPath();
+		try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			for (Snapshot snapshot : snapshots.values()) {
+				writer.write(snapshot.toString());
+				writer.newLine();
+			}
+		}
+		Files.move(tmp, registryFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Snapshot of job. Immutable.
+	 */
+	public static final class Snapshot {
+		private final long snapshotId;
+		private final long jobId;
+		private final long lastEntryId;
+		private final long created;
+		private final String dbFileName;
+
+		private Snapshot(long snapshotId, long jobId, long lastEntryId, long created, String dbFileName) {
+			this.snapshotId = snapshotId;
+			this.jobId = jobId;
+			this.lastEntryId = lastEntryId;
+			this.created = created;
+			this.dbFileName = dbFileName;
+		}
+
+		private static Snapshot parse(String line) {
+			String[] fields = line.split("\t");
+			if (fields.length < 4) {
+				throw new IllegalArgumentException("Invalid snapshot line: " + line);
+			}
+			return new Snapshot(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+					Long.parseLong(fields[3]), fields.length > 4 ? fields[4] : null);
+		}
+
+		public long getSnapshotId() {
+			return snapshotId;
+		}
+
+		public long getJobId() {
+			return jobId;
+		}
+
+		/**
+		 * @return Last entry id assigned when snapshot was taken. Entries with bigger ids are not part of snapshot.
+		 */
+		public long getLastEntryId() {
+			return lastEntryId;
+		}
+
+		public long getCreated() {
+			return created;
+		}
+
+		/**
+		 * @return Database file name (without suffix) of snapshot or {@code null} if job database is still used.
+		 */
+		public String getDbFileName() {
+			return dbFileName;
+		}
+
+		@Override
+		public String toString() {
+			return snapshotId + "\t" + jobId + "\t" + lastEntryId + "\t" + created + (dbFileName == null ? "" : "\t" + dbFileName);
+		}
+	}
+}
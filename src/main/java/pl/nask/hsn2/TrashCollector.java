@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Two phase file removal. File is first atomically renamed into trash directory (so job data disappears immediately),
+ * then it is unlinked in background. Unlinking is throttled: large files are truncated in steps and every step waits
+ * according to bytes per second budget, so removal of big job databases does not compete with live requests for disk
+ * bandwidth. Files left in trash directory (e.g. after restart) are unlinked on start.
+ * <p>
+ * Rename works only within one file system, so every data directory has its own trash directory (file goes to trash
+ * directory next to the data directory it is stored in). One background thread serves all of them.
+ */
+public class TrashCollector implements Runnable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(TrashCollector.class);
+	private static final long ONE_SEC_IN_MS = 1000;
+	private static final long DEFAULT_TRUNCATE_STEP = 32 * 1024 * 1024;
+	private final List<File> trashDirs;
+	private final long bytesPerSecond;
+	private final long truncateStep;
+	private final LinkedBlockingQueue<Path> queue = new LinkedBlockingQueue<>();
+	/**
+	 * Number of queued files plus file being unlinked.
+	 */
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicLong uniqueSuffix = new AtomicLong(System.currentTimeMillis());
+	private Thread thread;
+
+	/**
+	 * Creates new trash collector.
+	 *
+	 * @param trashDirPath
+	 *            Trash directory. Has to be on the same file system as data directory.
+	 * @param bytesPerSecondBudget
+	 *            Unlinking budget, 0 means unlimited (files are deleted at once).
+	 */
+	public TrashCollector(String trashDirPath, long bytesPerSecondBudget) {
+		this(trashDirPath, bytesPerSecondBudget, DEFAULT_TRUNCATE_STEP);
+	}
+
+	/**
+	 * Creates new trash collector.
+	 *
+	 * @param trashDirPath
+	 *            Trash directory. Has to be on the same file system as data directory.
+	 * @param bytesPerSecondBudget
+	 *            Unlinking budget, 0 means unlimited (files are deleted at once).
+	 * @param truncateStepBytes
+	 *            Number of bytes truncated in one step.
+	 */
+	public TrashCollector(String trashDirPath, long bytesPerSecondBudget, long truncateStepBytes) {
+		this(Collections.singletonList(new File(trashDirPath)), bytesPerSecondBudget, truncateStepBytes);
+	}
+
+	/**
+	 * Creates new trash collector for many data directories.
+	 *
+	 * @param trashDirList
+	 *            Trash directories, every one inside data directory it serves (see {@link #moveToTrash(Path)}).
+	 * @param bytesPerSecondBudget
+	 *            Unlinking budget, 0 means unlimited (files are deleted at once).
+	 */
+	public TrashCollector(List<File> trashDirList, long bytesPerSecondBudget) {
+		this(trashDirList, bytesPerSecondBudget, DEFAULT_TRUNCATE_STEP);
+	}
+
+	private TrashCollector(List<File> trashDirList, long bytesPerSecondBudget, long truncateStepBytes) {
+		if (trashDirList.isEmpty()) {
+			throw new IllegalArgumentException("No trash directory given.");
+		}
+		trashDirs = new ArrayList<>(trashDirList);
+		bytesPerSecond = bytesPerSecondBudget;
+		truncateStep = truncateStepBytes;
+	}
+
+	/**
+	 * Creates trash directories if needed, queues files left in them and starts background unlinking.
+	 *
+	 * @throws IOException
+	 *             When trash directory could not be created or listed.
+	 */
+	public final synchronized void start() throws IOException {
+		for (File trashDir : trashDirs) {
+			Files.createDirectories(trashDir.toPath());
+			try (DirectoryStream<Path> trash = Files.newDirectoryStream(trashDir.toPath())) {
+				for (Path path : trash) {
+					pending.incrementAndGet();
+					queue.add(path);
+				}
+			}
+		}
+		if (pending.get() > 0) {
+			LOGGER.info("Files left in trash found. (count={})", pending.get());
+		}
+		thread = new Thread(this, "TrashCollector");
+		thread.setDaemon(true);
+		thread.start();
+		LOGGER.info("Trash collector started. (dirs={}, bytesPerSecond={})", trashDirs, bytesPerSecond);
+	}
+
+	public final synchronized void shutdown() {
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * Moves file into trash and queues it for unlinking. Trash directory is the one whose data directory (parent)
+	 * contains the file, first one if there is no such. If atomic move is not possible (trash directory on other file
+	 * system), file is deleted at once.
+	 *
+	 * @param file
+	 *            File to remove.
+	 * @throws IOException
+	 *             When file could not be moved nor deleted.
+	 */
+	public final void moveToTrash(Path file) throws IOException {
+		Path target = getTrashDir(file).resolve(file.getFileName() + "." + uniqueSuffix.incrementAndGet());
+		// Trash directory may not exist yet (collector not started).
+		Files.createDirectories(target.getParent());
+		try {
+			Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			LOGGER.warn("Trash directory on different file system. File deleted directly. ({})", file);
+			Files.delete(file);
+			return;
+		}
+		pending.incrementAndGet();
+		queue.add(target);
+	}
+
+	private Path getTrashDir(Path file) {
+		Path absolute = file.toAbsolutePath().normalize();
+		for (File trashDir : trashDirs) {
+			Path dataDir = trashDir.getAbsoluteFile().toPath().normalize().getParent();
+			if (dataDir != null && absolute.startsWith(dataDir)) {
+				return trashDir.toPath();
+			}
+		}
+		return trashDirs.get(0).toPath();
+	}
+
+	/**
+	 * @return Number of files waiting for unlinking (including file being unlinked).
+	 */
+	public final int getPendingCount() {
+		return pending.get();
+	}
+
+	@Override
+	public final void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Path file = queue.take();
+				try {
+					unlink(file);
+				} catch (IOException e) {
+					LOGGER.warn("Could not unlink file from trash. (" + file + ")", e);
+				} finally {
+					pending.decrementAndGet();
+				}
+			}
+		} catch (InterruptedException e) {
+			LOGGER.debug("Trash collector interrupted.");
+		}
+	}
+
+	private void unlink(Path file) throws IOException, InterruptedException {
+		if (bytesPerSecond > 0) {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				long size = channel.size();
+				while (size > 0) {
+					long newSize = Math.max(0, size - truncateStep);
+					channel.truncate(newSize);
+					Thread.sleep((size - newSize) * ONE_SEC_IN_MS / bytesPerSecond);
+					size = newSize;
+				}
+			}
+		}
+		Files.deleteIfExists(file);
+		LOGGER.debug("File unlinked from trash. ({})", file);
+	}
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.client.HttpConnection.Response;
+import pl.nask.hsn2.client.HttpConnection.StaleConnectionException;
+import pl.nask.hsn2.exceptions.RequestFailedException;
+
+/**
+ * Data store client which keeps pool of keep-alive connections. Uploads of files are streamed straight from file
+ * channel to socket, downloads are streamed to given output stream.
+ * <p>
+ * Blocking methods run in caller thread. Asynchronous methods run in client threads (one per connection) and return
+ * {@link Future}, result is also passed to optional {@link CompletionHandler}. Thread safe.
+ */
+public class DataStoreClient implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(DataStoreClient.class);
+	private static final int DEFAULT_PORT = 80;
+	private static final int TIMEOUT = 60000;
+	// Server drops idle connections after 30 sec by default, so older ones are not reused.
+	private static final long MAX_IDLE_TIME = 10000;
+
+	private final InetSocketAddress address;
+	private final BlockingDeque<HttpConnection> idleConnections = new LinkedBlockingDeque<>();
+	private final Semaphore permits;
+	private final ExecutorService executor;
+	private volatile boolean closed;
+
+	/**
+	 * Creates client.
+	 *
+	 * @param url
+	 *            Data store URL, e.g. {@code http://localhost:8080/}.
+	 * @param maxConnections
+	 *            Maximum number of connections (and of concurrent requests).
+	 */
+	public DataStoreClient(String url, int maxConnections) {
+		URI uri = URI.create(url);
+		if (!"http".equals(uri.getScheme()) || uri.getHost() == null) {
+			throw new IllegalArgumentException("Invalid data store URL: " + url);
+		}
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("At least one connection required. Got: " + maxConnections);
+		}
+		address = new InetSocketAddress(uri.getHost(), uri.getPort() < 0 ? DEFAULT_PORT : uri.getPort());
+		permits = new Semaphore(maxConnections, true);
+		executor = Executors.newFixedThreadPool(maxConnections, new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "DataStoreClient-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Uploads data of unknown length.
+	 *
+	 * @return New entry id.
+	 */
+	public final long post(final long jobId, final InputStream data) throws IOException {
+		return execute(new Request<Long>(false) {
+			@Override
+			Long execute(HttpConnection connection) throws IOException {
+				connection.send("POST", "/data/" + jobId, data);
+				return readEntryId(connection);
+			}
+		});
+	}
+
+	/**
+	 * Uploads file. File is sent straight from its channel to socket. Upload is sent again on stale connection, with
+	 * the same Idempotency-Key, so entry is added only once.
+	 *
+	 * @return New entry id.
+	 */
+	public final long post(final long jobId, final Path file) throws IOException {
+		final String idempotencyKey = UUID.randomUUID().toString();
+		return execute(new Request<Long>(true) {
+			@Override
+			Long execute(HttpConnection connection) throws IOException {
+				try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+					connection.send("POST", "/data/" + jobId, channel, idempotencyKey);
+				}
+				return readEntryId(connection);
+			}
+		});
+	}
+
+	/**
+	 * Offers data by its SHA-256 and size instead of uploading it. Data store adds entry with copy of identical data if
+	 * job already has it.
+	 *
+	 * @param sha256
+	 *            SHA-256 of data (hex).
+	 * @return New entry id or -1 if job has no such data and it has to be uploaded.
+	 */
+	public final long offer(final long jobId, final String sha256, final long size) throws IOException {
+		// Not repeated: offer which reached server adds entry, Idempotency-Key applies to uploads only.
+		return execute(new Request<Long>(false) {
+			@Override
+			Long execute(HttpConnection connection) throws IOException {
+				connection.send("POST", "/data/" + jobId + "?sha256=" + sha256 + "&size=" + size);
+				Response response = connection.readResponse();
+				if (response.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+					connection.readBodyText(response);
+					return -1L;
+				}
+				return readEntryId(connection, response);
+			}
+		});
+	}
+
+	/**
+	 * Downloads entry to given stream.
+	 *
+	 * @return Number of bytes copied.
+	 */
+	public final long get(final long jobId, final long entryId, final OutputStream out) throws IOException {
+		return execute(new Request<Long>(true) {
+			@Override
+			Long execute(HttpConnection connection) throws IOException {
+				connection.send("GET", "/data/" + jobId + "/" + entryId);
+				Response response = connection.readResponse();
+				checkStatus(connection, response);
+				try (InputStream body = connection.openBody(response, false)) {
+					return connection.copy(body, out);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Downloads entry.
+	 *
+	 * @return Entry data.
+	 */
+	public final byte[] get(long jobId, long entryId) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		get(jobId, entryId, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Uploads file asynchronously (see {@link #post(long, Path)}).
+	 *
+	 * @param handler
+	 *            Handler notified about result, may be {@code null}.
+	 * @return New entry id.
+	 */
+	public final <A> Future<Long> postAsync(final long jobId, final Path file, A attachment,
+			CompletionHandler<Long, ? super A> handler) {
+		return submit(new Callable<Long>() {
+			@Override
+			public Long call() throws IOException {
+				return post(jobId, file);
+			}
+		}, attachment, handler);
+	}
+
+	/**
+	 * Downloads entry asynchronously (see {@link #get(long, long)}).
+	 *
+	 * @param handler
+	 *            Handler notified about result, may be {@code null}.
+	 * @return Entry data.
+	 */
+	public final <A> Future<byte[]> getAsync(final long jobId, final long entryId, A attachment,
+			CompletionHandler<byte[], ? super A> handler) {
+		return submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				return get(jobId, entryId);
+			}
+		}, attachment, handler);
+	}
+
+	/**
+	 * @return Number of idle connections kept in pool.
+	 */
+	public final int getIdleConnectionsCount() {
+		return idleConnections.size();
+	}
+
+	@Override
+	public final void close() {
+		closed = true;
+		executor.shutdown();
+		HttpConnection connection;
+		while ((connection = idleConnections.poll()) != null) {
+			connection.close();
+		}
+	}
+
+	private <V, A> Future<V> submit(final Callable<V> task, final A attachment, final CompletionHandler<V, ? super A> handler) {
+		return executor.submit(new Callable<V>() {
+			@Override
+			public V call() throws Exception {
+				V result;
+				try {
+					result = task.call();
+				} catch (Exception e) {
+					if (handler != null) {
+						handler.failed(e, attachment);
+					}
+					throw e;
+				}
+				if (handler != null) {
+					handler.completed(result, attachment);
+				}
+				return result;
+			}
+		});
+	}
+
+	private <T> T execute(Request<T> request) throws IOException {
+		if (closed) {
+			throw new IOException("Client closed.");
+		}
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for connection.");
+		}
+		try {
+			while (true) {
+				HttpConnection connection = borrowConnection();
+				try {
+					T result = request.execute(connection);
+					releaseConnection(connection);
+					return result;
+				} catch (RequestFailedException e) {
+					// Error response has been read whole, connection is still usable.
+					releaseConnection(connection);
+					throw e;
+				} catch (StaleConnectionException e) {
+					connection.close();
+					// Fresh connection gets one more try, if request body can be sent again.
+					if (!connection.isReused() || !request.replayable) {
+						throw e;
+					}
+					LOGGER.debug("Stale connection dropped, request repeated.");
+				} catch (IOException | RuntimeException e) {
+					connection.close();
+					throw e;
+				}
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	private HttpConnection borrowConnection() throws IOException {
+		long oldest = System.currentTimeMillis() - MAX_IDLE_TIME;
+		HttpConnection connection;
+		while ((connection = idleConnections.pollFirst()) != null) {
+			if (connection.getLastUsed() >= oldest) {
+				return connection;
+			}
+			connection.close();
+		}
+		return new HttpConnection(address, TIMEOUT);
+	}
+
+	private void releaseConnection(HttpConnection connection) {
+		if (connection.isKeepAlive() && !closed) {
+			connection.released();
+			// Most recently used connection is reused first.
+			idleConnections.offerFirst(connection);
+		} else {
+			connection.close();
+		}
+	}
+
+	private static Long readEntryId(HttpConnection connection) throws IOException {
+		return readEntryId(connection, connection.readResponse());
+	}
+
+	private static Long readEntryId(HttpConnection connection, Response response) throws IOException {
+		checkStatus(connection, response);
+		connection.readBodyText(response);
+		String entryId = response.getHeader("content-id");
+		if (entryId == null) {
+			throw new IOException("No entry id in response.");
+		}
+		return Long.valueOf(entryId);
+	}
+
+	private static void checkStatus(HttpConnection connection, Response response) throws IOException {
+		int status = response.getStatusCode();
+		if (status < HttpStatus.SC_OK || status >= HttpStatus.SC_MULTIPLE_CHOICES) {
+			throw new RequestFailedException(status, connection.readBodyText(response));
+		}
+	}
+
+	private abstract static class Request<T> {
+		private final boolean replayable;
+
+		Request(boolean replayable) {
+			this.replayable = replayable;
+		}
+
+		abstract T execute(HttpConnection connection) throws IOException;
+	}
+}
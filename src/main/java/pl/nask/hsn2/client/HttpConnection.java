@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.httpclient.HttpStatus;
+
+/**
+ * Single keep-alive HTTP/1.1 connection. Not thread safe, used by one request at a time.
+ */
+final class HttpConnection {
+	static final int BUFFER_SIZE = 65536;
+	private static final String CRLF = "\r\n";
+	private static final int HEX = 16;
+	private final SocketChannel channel;
+	private final InputStream in;
+	private final OutputStream out;
+	private final String host;
+	/**
+	 * Transfer buffer shared by all requests of connection (one at a time), reused as long as connection is kept alive.
+	 */
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private boolean reused;
+	private boolean keepAlive = true;
+	private long lastUsed;
+
+	HttpConnection(InetSocketAddress address, int timeout) throws IOException {
+		channel = SocketChannel.open();
+		try {
+			channel.socket().connect(address, timeout);
+			channel.socket().setSoTimeout(timeout);
+			channel.socket().setTcpNoDelay(true);
+			in = new BufferedInputStream(channel.socket().getInputStream(), BUFFER_SIZE);
+			out = new BufferedOutputStream(new SocketOutputStream(channel.socket().getOutputStream()), BUFFER_SIZE);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		host = address.getHostString() + ":" + address.getPort();
+	}
+
+	/**
+	 * @return {@code true} if connection has been used before (so server could have closed it meanwhile).
+	 */
+	boolean isReused() {
+		return reused;
+	}
+
+	boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	long getLastUsed() {
+		return lastUsed;
+	}
+
+	void released() {
+		reused = true;
+		lastUsed = System.currentTimeMillis();
+	}
+
+	void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Nothing to do, connection is dropped anyway.
+			keepAlive = false;
+		}
+	}
+
+	/**
+	 * Sends request without body.
+	 */
+	void send(String method, String path) throws IOException {
+		writeHead(method, path, null);
+		out.flush();
+	}
+
+	/**
+	 * Sends request with body of known length streamed straight from file.
+	 *
+	 * @param idempotencyKey
+	 *            Idempotency-Key of request (server adds entry only once however many times request is sent), may be
+	 *            {@code null}.
+	 */
+	void send(String method, String path, FileChannel body, String idempotencyKey) throws IOException {
+		long size = body.size();
+		String bodyHeaders = "Content-Length: " + size;
+		if (idempotencyKey != null) {
+			bodyHeaders += CRLF + "Idempotency-Key: " + idempotencyKey;
+		}
+		writeHead(method, path, bodyHeaders);
+		out.flush();
+		long position = 0;
+		try {
+			while (position < size) {
+				position += body.transferTo(position, size - position, channel);
+			}
+		} catch (IOException e) {
+			throw toStale(e);
+		}
+	}
+
+	/**
+	 * Sends request with body of unknown length (chunked transfer encoding).
+	 */
+	void send(String method, String path, InputStream body) throws IOException {
+		writeHead(method, path, "Transfer-Encoding: chunked");
+		int count;
+		while ((count = body.read(buffer)) >= 0) {
+			if (count > 0) {
+				out.write((Integer.toHexString(count) + CRLF).getBytes(StandardCharsets.US_ASCII));
+				out.write(buffer, 0, count);
+				out.write(CRLF.getBytes(StandardCharsets.US_ASCII));
+			}
+		}
+		out.write(("0" + CRLF + CRLF).getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+	}
+
+	private void writeHead(String method, String path, String bodyHeader) throws IOException {
+		StringBuilder sb = new StringBuilder(method).append(' ').append(path).append(" HTTP/1.1").append(CRLF);
+		sb.append("Host: ").append(host).append(CRLF);
+		if (bodyHeader != null) {
+			sb.append("Content-Type: application/octet-stream").append(CRLF).append(bodyHeader).append(CRLF);
+		}
+		sb.append(CRLF);
+		out.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Reads status line and headers of response.
+	 *
+	 * @throws StaleConnectionException
+	 *             When connection was closed or reset before response started (not when response is late: server may
+	 *             be still handling the request).
+	 */
+	Response readResponse() throws IOException {
+		String statusLine;
+		try {
+			statusLine = readLine();
+		} catch (IOException e) {
+			throw toStale(e);
+		}
+		if (statusLine == null) {
+			throw new StaleConnectionException(null);
+		}
+		String[] status = statusLine.split(" ", 3);
+		if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+			throw new IOException("Invalid HTTP status line: " + statusLine);
+		}
+		Map<String, String> headers = new HashMap<>();
+		String line;
+		while ((line = readLine()) != null && !line.isEmpty()) {
+			int separator = line.indexOf(':');
+			if (separator > 0) {
+				headers.put(line.substring(0, separator).trim().toLowerCase(Locale.ENGLISH), line.substring(separator + 1).trim());
+			}
+		}
+		if (line == null) {
+			throw new EOFException("Connection closed while reading response headers.");
+		}
+		keepAlive = "HTTP/1.1".equals(status[0]) && !"close".equalsIgnoreCase(headers.get("connection"));
+		return new Response(Integer.parseInt(status[1]), headers);
+	}
+
+	/**
+	 * Opens stream of response body. Body has to be read to the end before connection is used again.
+	 */
+	InputStream openBody(Response response, boolean headRequest) {
+		String length = response.getHeader("content-length");
+		if (headRequest || response.getStatusCode() == HttpStatus.SC_NO_CONTENT
+				|| response.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+			return new BoundedInputStream(0);
+		} else if ("chunked".equalsIgnoreCase(response.getHeader("transfer-encoding"))) {
+			return new ChunkedInputStream();
+		} else if (length != null) {
+			return new BoundedInputStream(Long.parseLong(length));
+		} else {
+			// Body ends with connection.
+			keepAlive = false;
+			return in;
+		}
+	}
+
+	/**
+	 * Reads whole response body as text (used for short messages).
+	 */
+	String readBodyText(Response response) throws IOException {
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		try (InputStream body = openBody(response, false)) {
+			copy(body, text);
+		}
+		return new String(text.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	long copy(InputStream from, OutputStream to) throws IOException {
+		long total = 0;
+		int count;
+		while ((count = from.read(buffer)) >= 0) {
+			to.write(buffer, 0, count);
+			total += count;
+		}
+		return total;
+	}
+
+	private String readLine() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int b;
+		while ((b = in.read()) >= 0) {
+			if (b == '\n') {
+				int end = sb.length();
+				return end > 0 && sb.charAt(end - 1) == '\r' ? sb.substring(0, end - 1) : sb.toString();
+			}
+			sb.append((char) b);
+		}
+		return sb.length() == 0 ? null : sb.toString();
+	}
+
+	/**
+	 * Parsed status and headers of response.
+	 */
+	static final class Response {
+		private final int statusCode;
+		private final Map<String, String> headers;
+
+		private Response(int statusCode, Map<String, String> headers) {
+			this.statusCode = statusCode;
+			this.headers = headers;
+		}
+
+		int getStatusCode() {
+			return statusCode;
+		}
+
+		/**
+		 * @param name
+		 *            Header name, lower case.
+		 */
+		String getHeader(String name) {
+			return headers.get(name);
+		}
+	}
+
+	/**
+	 * Connection has been closed by server before response, request may be repeated on new connection.
+	 */
+	static final class StaleConnectionException extends IOException {
+		private static final long serialVersionUID = 7300823419528153296L;
+
+		private StaleConnectionException(Throwable cause) {
+			super("Connection closed by server.", cause);
+		}
+	}
+
+	/**
+	 * Failure of socket read or write (closed or reset connection) means stale connection, timeout does not.
+	 */
+	private static IOException toStale(IOException e) {
+		if (e instanceof InterruptedIOException || e instanceof StaleConnectionException) {
+			return e;
+		}
+		return new StaleConnectionException(e);
+	}
+
+	/**
+	 * Socket output, failed write (e.g. broken pipe of connection closed by server) means stale connection.
+	 */
+	private static final class SocketOutputStream extends FilterOutputStream {
+		private SocketOutputStream(OutputStream socketOutput) {
+			super(socketOutput);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			try {
+				out.write(b);
+			} catch (IOException e) {
+				throw toStale(e);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				throw toStale(e);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				throw toStale(e);
+			}
+		}
+	}
+
+	/**
+	 * Body with known length. Closing it skips unread bytes, so connection can be reused.
+	 */
+	private final class BoundedInputStream extends InputStream {
+		private long remaining;
+
+		private BoundedInputStream(long length) {
+			remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Response body truncated.");
+			}
+			remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int count = in.read(b, off, (int) Math.min(len, remaining));
+			if (count < 0) {
+				throw new EOFException("Response body truncated.");
+			}
+			remaining -= count;
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			while (remaining > 0) {
+				long skipped = in.skip(remaining);
+				if (skipped <= 0 && read() < 0) {
+					break;
+				}
+				remaining -= skipped;
+			}
+		}
+	}
+
+	/**
+	 * Body in chunked transfer encoding. Closing it skips unread bytes, so connection can be reused.
+	 */
+	private final class ChunkedInputStream extends InputStream {
+		private long remaining;
+		private boolean ended;
+
+		private boolean nextChunk() throws IOException {
+			if (remaining == 0 && !ended) {
+				String line = readLine();
+				if (line == null) {
+					throw new EOFException("Response body truncated.");
+				}
+				int extension = line.indexOf(';');
+				remaining = Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), HEX);
+				if (remaining == 0) {
+					ended = true;
+					// Trailers.
+					while ((line = readLine()) != null && !line.isEmpty()) {
+						continue;
+					}
+				}
+			}
+			return !ended;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (!nextChunk()) {
+				return -1;
+			}
+			int count = in.read(b, off, (int) Math.min(len, remaining));
+			if (count < 0) {
+				throw new EOFException("Response body truncated.");
+			}
+			remaining -= count;
+			if (remaining == 0) {
+				// CRLF after chunk data.
+				readLine();
+			}
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			while (read(buffer, 0, buffer.length) >= 0) {
+				continue;
+			}
+		}
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.exceptions;
+
+import java.io.IOException;
+
+/**
+ * Data store answered request with error status.
+ */
+public class RequestFailedException extends IOException {
+	/**
+	 * Serial ID.
+	 */
+	private static final long serialVersionUID = -2286409153622741583L;
+	private final int statusCode;
+
+	public RequestFailedException(int statusCode, String message) {
+		super("Request failed with status " + statusCode + ": " + message);
+		this.statusCode = statusCode;
+	}
+
+	public final int getStatusCode() {
+		return statusCode;
+	}
+}
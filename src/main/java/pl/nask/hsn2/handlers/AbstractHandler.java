@@ -22,11 +22,15 @@ package pl.nask.hsn2.handlers;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.commons.httpclient.HttpStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import pl.nask.hsn2.AccessLog;
+
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
@@ -35,9 +39,12 @@ import com.sun.net.httpserver.HttpHandler;
 public abstract class AbstractHandler implements HttpHandler {
 
 	protected static final Logger LOGGER = LoggerFactory.getLogger(HttpHandler.class);
+	private volatile AccessLog accessLog;
 
 	@Override
 	public final void handle(HttpExchange exchange) throws IOException {
+		long startTime = System.currentTimeMillis();
+		long startNanos = System.nanoTime();
 		Headers headers = exchange.getResponseHeaders();
 		headers.set("Content-Type", "text/plain");
 		headers.set("Server", "HSN2-DataStore");
@@ -50,6 +57,12 @@ public abstract class AbstractHandler implements HttpHandler {
 		} catch (Exception e) {
 			handleError(exchange, HttpStatus.SC_INTERNAL_SERVER_ERROR, e);
 		} finally {
+			// Recorded before exchange is closed: server stopping waits for open exchanges only.
+			AccessLog log = accessLog;
+			if (log != null) {
+				log.record(requestMethod, uri.getRawPath(), exchange.getResponseCode(), startTime, System.nanoTime()
+						- startNanos);
+			}
 			OutputStream responseBody = exchange.getResponseBody();
 			if (responseBody != null) {
 				try {
@@ -61,6 +74,13 @@ public abstract class AbstractHandler implements HttpHandler {
 		}
 	}
 
+	/**
+	 * Sets access log to record handled requests in ({@code null} disables recording).
+	 */
+	public final void setAccessLog(AccessLog log) {
+		accessLog = log;
+	}
+
 	protected final void handleError(HttpExchange exchange, int httpCode, String msg, Exception e) {
 		LOGGER.error(msg, e);
 		try {
@@ -75,5 +95,21 @@ public abstract class AbstractHandler implements HttpHandler {
 		handleError(exchange, httpCode, e.getMessage(), e);
 	}
 
+	/**
+	 * Parses URL query (without decoding).
+	 */
+	protected static Map<String, String> parseQuery(String query) {
+		Map<String, String> params = new HashMap<>();
+		if (query != null) {
+			for (String param : query.split("&")) {
+				int separator = param.indexOf('=');
+				if (separator > 0) {
+					params.put(param.substring(0, separator), param.substring(separator + 1));
+				}
+			}
+		}
+		return params;
+	}
+
 	protected abstract void handleRequest(HttpExchange exchange, URI uri, String requestMethod) throws IOException;
 }
\ No newline at end of file
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.handlers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.BufferPool;
+import pl.nask.hsn2.ClusterRing;
+import pl.nask.hsn2.ClusterRing.Node;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Routes job requests to node owning the job. Request is either forwarded (proxied) to owner or client is redirected
+ * to it. Forwarded requests are marked, so they are never forwarded again (served locally if cluster configs differ).
+ */
+@SuppressWarnings("restriction")
+class ClusterRouter {
+	static final String FORWARDED_BY_HEADER = "X-HSN2-Forwarded-By";
+	private static final Logger LOGGER = LoggerFactory.getLogger(ClusterRouter.class);
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final int CONNECT_TIMEOUT = 5000;
+	/**
+	 * Request headers passed to owner node, hop-by-hop headers are not. Digests of body are passed, so owner verifies
+	 * forwarded upload.
+	 */
+	private static final String[] FORWARDED_REQUEST_HEADERS = { "Content-Type", "Accept", "If-None-Match",
+			"Idempotency-Key", "Content-MD5", "Digest" };
+	private final ClusterRing ring;
+	private final boolean redirect;
+
+	/**
+	 * Creates new router.
+	 *
+	 * @param clusterRing
+	 *            Cluster ring.
+	 * @param redirectToOwner
+	 *            If {@code true} clients are redirected to owner, otherwise requests are forwarded.
+	 */
+	ClusterRouter(ClusterRing clusterRing, boolean redirectToOwner) {
+		ring = clusterRing;
+		redirect = redirectToOwner;
+	}
+
+	/**
+	 * @return {@code True} if both jobs are owned by the same node.
+	 */
+	final boolean isSameOwner(long jobId, long otherJobId) {
+		return ring.getOwner(jobId) == ring.getOwner(otherJobId);
+	}
+
+	/**
+	 * Routes request to job owner if it is other node.
+	 *
+	 * @param bufferPool
+	 *            Pool of buffers for forwarded request and response bodies.
+	 * @return {@code False} if request should be served locally, {@code true} if response has been sent.
+	 * @throws IOException
+	 *             When request could not be forwarded.
+	 */
+	final boolean route(HttpExchange exchange, long jobId, BufferPool bufferPool) throws IOException {
+		Node owner = ring.getOwner(jobId);
+		if (owner == ring.getLocalNode()) {
+			return false;
+		}
+		String forwardedBy = exchange.getRequestHeaders().getFirst(FORWARDED_BY_HEADER);
+		if (forwardedBy != null) {
+			LOGGER.warn("Request for job of other node forwarded by {}, served locally. Cluster configs differ? (jobId={}, owner={})",
+					new Object[] { forwardedBy, jobId, owner });
+			return false;
+		}
+		String ownerUrl = owner.getUrl() + exchange.getRequestURI();
+		if (redirect) {
+			LOGGER.debug("Redirecting to owner: {}", ownerUrl);
+			exchange.getResponseHeaders().set("Location", ownerUrl);
+			// 307 keeps method and body of request.
+			exchange.sendResponseHeaders(HttpStatus.SC_TEMPORARY_REDIRECT, -1);
+		} else {
+			LOGGER.debug("Forwarding to owner: {}", ownerUrl);
+			forward(exchange, new URL(ownerUrl), bufferPool);
+		}
+		return true;
+	}
+
+	/**
+	 * @return Length of request body, -1 if it is unknown (chunked transfer encoding).
+	 */
+	private static long getRequestBodyLength(Headers requestHeaders) {
+		if (requestHeaders.getFirst("Transfer-Encoding") != null) {
+			return -1;
+		}
+		String contentLength = requestHeaders.getFirst("Content-Length");
+		return contentLength == null ? 0 : Long.parseLong(contentLength.trim());
+	}
+
+	private void forward(HttpExchange exchange, URL ownerUrl, BufferPool bufferPool) throws IOException {
+		// Connection is not disconnected, so it may be reused for next request to owner (keep-alive).
+		HttpURLConnection connection = (HttpURLConnection) ownerUrl.openConnection();
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setInstanceFollowRedirects(false);
+		String method = exchange.getRequestMethod().toUpperCase();
+		connection.setRequestMethod(method);
+		connection.setRequestProperty(FORWARDED_BY_HEADER, ring.getLocalNode().getId());
+		Headers requestHeaders = exchange.getRequestHeaders();
+		for (String name : FORWARDED_REQUEST_HEADERS) {
+			String value = requestHeaders.getFirst(name);
+			if (value != null) {
+				connection.setRequestProperty(name, value);
+			}
+		}
+		if ("POST".equals(method) || "PUT".equals(method)) {
+			connection.setDoOutput(true);
+			// Body is forwarded as it came: bodiless request (e.g. offer) stays bodiless.
+			long length = getRequestBodyLength(requestHeaders);
+			if (length < 0) {
+				connection.setChunkedStreamingMode(CHUNK_SIZE);
+			} else {
+				connection.setFixedLengthStreamingMode(length);
+			}
+			try (OutputStream out = connection.getOutputStream()) {
+				if (length != 0) {
+					bufferPool.copy(exchange.getRequestBody(), out);
+				}
+			}
+		}
+
+		int status = connection.getResponseCode();
+		Headers responseHeaders = exchange.getResponseHeaders();
+		for (Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+			String name = header.getKey();
+			// Status line has null name, length and encoding are set by this server.
+			if (name != null && !"Content-Length".equalsIgnoreCase(name) && !"Transfer-Encoding".equalsIgnoreCase(name)
+					&& !"Date".equalsIgnoreCase(name) && !"Connection".equalsIgnoreCase(name)) {
+				responseHeaders.put(name, header.getValue());
+			}
+		}
+		long length = connection.getContentLengthLong();
+		try (InputStream body = status < HttpStatus.SC_BAD_REQUEST ? connection.getInputStream() : connection.getErrorStream()) {
+			if (body == null || length == 0 || status == HttpStatus.SC_NO_CONTENT || status == HttpStatus.SC_NOT_MODIFIED) {
+				exchange.sendResponseHeaders(status, -1);
+			} else {
+				// Size 0 means: unknown.
+				exchange.sendResponseHeaders(status, length < 0 ? 0 : length);
+				bufferPool.copy(body, exchange.getResponseBody());
+			}
+		}
+	}
+}
@@ -19,9 +19,19 @@
 
 package pl.nask.hsn2.handlers;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.Writer;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -29,11 +39,27 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 
+import pl.nask.hsn2.BufferPool;
+import pl.nask.hsn2.ClusterRing;
 import pl.nask.hsn2.DataStore;
+import pl.nask.hsn2.DurabilityManager;
+import pl.nask.hsn2.JobCatalog;
+import pl.nask.hsn2.JobCompactor;
+import pl.nask.hsn2.ReplicationPublisher;
+import pl.nask.hsn2.SnapshotRegistry.Snapshot;
 import pl.nask.hsn2.exceptions.EntryNotFoundException;
 import pl.nask.hsn2.exceptions.JobNotFoundException;
 
@@ -45,34 +71,226 @@ public class DataHandler extends AbstractHandler {
 	private static final String H2_DB_PASSWORD = "hsn2";
 	private static final int ARGS_NUMBER_FOR_POST = 2;
 	private static final int ARGS_NUMBER_FOR_GET = 3;
+	private static final int IMPORT_BATCH_SIZE = 1000;
+	private static final int EXPORT_BATCH_SIZE = 100;
+	private static final long EXPORT_BATCH_BYTES = 1024 * 1024;
+	private static final int COMPACT_BATCH_SIZE = 100;
+	private static final long COMPACT_BATCH_BYTES = 4 * 1024 * 1024;
+	private static final String COMPACT_SUFFIX = ".compact";
+	private static final String[] DB_FILE_SUFFIXES = { ".h2.db", ".lock.db", ".trace.db" };
+	private static final long COMPACT_SWAP_WAIT_MS = 1000;
+	private static final long ONE_SEC_IN_MS = 1000;
+	private static final int DEFAULT_LIST_LIMIT = 1000;
+	private static final int MAX_LIST_LIMIT = 100000;
 	/**
-	 * Maps jobId to h2Connector.
+	 * H2 error code of missing column.
 	 */
+	private static final int H2_COLUMN_NOT_FOUND = 42122;
+	/**
+	 * H2 error code of unique constraint violation.
+	 */
+	private static final int H2_DUPLICATE_KEY = 23505;
+	private static final int SHA_256_HEX_LENGTH = 64;
+	private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+	private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+	private static final int DEFAULT_IDEMPOTENCY_KEYS = 100000;
+	/**
+	 * Entries never change after they are added, so they may be cached for a year (longest period allowed by RFC 2616).
+	 * Deleted entry may still be served by caches until then.
+	 */
+	private static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+	private final JobCatalog jobCatalog;
+	private final DurabilityManager durabilityManager;
+	private WriteBehindQueue writeBehindQueue;
+	private int writeBehindMaxSize;
+	private JobDbPool jobDbPool;
+	private ClusterRouter clusterRouter;
+	private ReplicationPublisher replicationPublisher;
+	private JobCompactor jobCompactor;
+	private volatile boolean readOnly;
+	private volatile IdempotencyKeys idempotencyKeys = new IdempotencyKeys(DEFAULT_IDEMPOTENCY_KEYS);
+	private volatile BufferPool bufferPool = new BufferPool();
+	private final PendingEntries pendingEntries = new PendingEntries();
+
+	public DataHandler(JobCatalog catalog) {
+		this(catalog, new DurabilityManager());
+	}
+
+	public DataHandler(JobCatalog catalog, DurabilityManager durability) {
+		jobCatalog = catalog;
+		durabilityManager = durability;
+	}
+
+	/**
+	 * Enables write-behind pipeline: uploads not bigger than given size are inserted in per job batches.
+	 *
+	 * @param threads
+	 *            Number of writer threads.
+	 * @param maxPayloadSize
+	 *            Maximum size (bytes) of upload handled by pipeline. Bigger uploads are written directly.
+	 */
+	public final synchronized void enableWriteBehind(int threads, int maxPayloadSize) {
+		if (writeBehindQueue == null) {
+			writeBehindQueue = new WriteBehindQueue(this, threads);
+			writeBehindMaxSize = maxPayloadSize;
+			LOGGER.info("Write-behind enabled. (threads={}, maxPayloadSize={})", threads, maxPayloadSize);
+		}
+	}
 
-	public DataHandler() {
+	/**
+	 * Enables pool of prepared (empty, initialized) job databases. New job gets its database from the pool instead of
+	 * creating it on first upload.
+	 *
+	 * @param size
+	 *            Number of databases kept ready in every data directory.
+	 * @throws IOException
+	 *             When pool directory could not be prepared.
+	 * @throws SQLException
+	 *             When template database could not be created.
+	 */
+	public final synchronized void enableJobDbPool(int size) throws IOException, SQLException {
+		if (jobDbPool == null) {
+			JobDbPool pool = new JobDbPool(size, H2_DB_PASSWORD);
+			pool.start();
+			jobDbPool = pool;
+		}
+	}
+
+	/**
+	 * Enables cluster mode: requests for jobs owned by other nodes are forwarded or redirected to them.
+	 *
+	 * @param ring
+	 *            Cluster ring.
+	 * @param redirect
+	 *            If {@code true} clients are redirected to owner, otherwise requests are forwarded.
+	 */
+	public final synchronized void enableCluster(ClusterRing ring, boolean redirect) {
+		clusterRouter = new ClusterRouter(ring, redirect);
+	}
+
+	/**
+	 * Enables replication: committed entries are published to followers.
+	 *
+	 * @param publisher
+	 *            Replication publisher, started here.
+	 */
+	public final synchronized void enableReplication(ReplicationPublisher publisher) {
+		publisher.start(this);
+		replicationPublisher = publisher;
+	}
+
+	/**
+	 * Enables background compaction of job databases with deleted entries.
+	 *
+	 * @param compactor
+	 *            Job compactor, started here.
+	 */
+	public final synchronized void enableCompaction(JobCompactor compactor) {
+		compactor.start(this);
+		jobCompactor = compactor;
+	}
+
+	/**
+	 * Sets number of recent upload Idempotency-Key headers kept in memory. Older keys are looked up in job database.
+	 */
+	public final void setIdempotencyKeysLimit(int limit) {
+		idempotencyKeys = new IdempotencyKeys(limit);
+	}
+
+	/**
+	 * Sets pool of buffers used for all request and response bodies.
+	 */
+	public final void setBufferPool(BufferPool pool) {
+		bufferPool = pool;
+	}
+
+	/**
+	 * Makes handler read-only (follower mode), uploads are rejected.
+	 */
+	public final void enableReadOnly() {
+		readOnly = true;
+	}
+
+	final boolean isReadOnly() {
+		return readOnly;
+	}
+
+	static boolean isSnapshot(long jobId) {
+		return DataStore.getSnapshotRegistry().get(jobId) != null;
+	}
+
+	/**
+	 * Routes job request to owner node in cluster mode.
+	 *
+	 * @return {@code True} if response has been sent by router.
+	 */
+	final boolean routeToOwner(HttpExchange exchange, long jobId) throws IOException {
+		ClusterRouter router = clusterRouter;
+		return router != null && router.route(exchange, jobId, bufferPool);
+	}
+
+	public final synchronized void shutdown() {
+		if (writeBehindQueue != null) {
+			writeBehindQueue.shutdown();
+		}
+		if (jobDbPool != null) {
+			jobDbPool.shutdown();
+		}
+		if (jobCompactor != null) {
+			jobCompactor.shutdown();
+		}
+		BufferPool pool = bufferPool;
+		LOGGER.info("Buffer pool usage. (bufferSize={}, hits={}, misses={})", new Object[] { pool.getBufferSize(),
+				pool.getHitsCount(), pool.getMissesCount() });
 	}
 
 	@Override
 	protected final void handleRequest(HttpExchange exchange, URI uri, String requestMethod) throws IOException {
 		String[] args = exchange.getRequestURI().getPath().split("/");
 		try {
+			ClusterRouter router = clusterRouter;
+			// Snapshot is on the node of its job (see createSnapshot()), it is served where it is found.
+			if (router != null && args.length > 2 && !isSnapshot(Long.parseLong(args[2]))
+					&& router.route(exchange, Long.parseLong(args[2]), bufferPool)) {
+				return;
+			}
 			if ("GET".equalsIgnoreCase(requestMethod)) {
 				if (args.length > ARGS_NUMBER_FOR_GET) {
 					handleGet(exchange, Long.parseLong(args[2]), Long.parseLong(args[ARGS_NUMBER_FOR_GET]));
+				} else if (args.length == ARGS_NUMBER_FOR_GET) {
+					handleList(exchange, Long.parseLong(args[2]), parseQuery(uri.getRawQuery()));
 				} else {
 					throw new JobNotFoundException("Job or entry id not found.");
 				}
 			} else if ("POST".equalsIgnoreCase(requestMethod)) {
-				if (args.length > ARGS_NUMBER_FOR_POST) {
+				if (readOnly) {
+					handleError(exchange, HttpStatus.SC_METHOD_NOT_ALLOWED, "Read-only replica, upload to primary.", null);
+				} else if (args.length > ARGS_NUMBER_FOR_POST && isSnapshot(Long.parseLong(args[2]))) {
+					handleError(exchange, HttpStatus.SC_METHOD_NOT_ALLOWED, "Snapshot is read-only.", null);
+				} else if (args.length > ARGS_NUMBER_FOR_POST && isOffer(exchange, uri)) {
+					handleOffer(exchange, Long.parseLong(args[2]), parseQuery(uri.getRawQuery()));
+				} else if (args.length > ARGS_NUMBER_FOR_POST) {
 					handlePost(exchange, Long.parseLong(args[2]));
 				} else {
 					throw new JobNotFoundException("Job not found.");
 				}
+			} else if ("DELETE".equalsIgnoreCase(requestMethod)) {
+				if (readOnly) {
+					handleError(exchange, HttpStatus.SC_METHOD_NOT_ALLOWED, "Read-only replica, delete on primary.", null);
+				} else if (args.length > ARGS_NUMBER_FOR_GET && isSnapshot(Long.parseLong(args[2]))) {
+					handleError(exchange, HttpStatus.SC_METHOD_NOT_ALLOWED, "Snapshot is read-only.", null);
+				} else if (args.length > ARGS_NUMBER_FOR_GET) {
+					handleDelete(exchange, Long.parseLong(args[2]), Long.parseLong(args[ARGS_NUMBER_FOR_GET]));
+				} else {
+					throw new JobNotFoundException("Job or entry id not found.");
+				}
 			} else {
 				throw new UnsupportedOperationException("Unsupported method: " + requestMethod);
 			}
 		} catch (NumberFormatException e) {
 			handleError(exchange, HttpStatus.SC_INTERNAL_SERVER_ERROR, "Job or entry id is not a number!", e);
+		} catch (IllegalArgumentException e) {
+			handleError(exchange, HttpStatus.SC_BAD_REQUEST, e);
 		} catch (IllegalStateException | SQLException e) {
 			handleError(exchange, HttpStatus.SC_INTERNAL_SERVER_ERROR, e);
 		} catch (JobNotFoundException e) {
@@ -83,9 +301,104 @@ public class DataHandler extends AbstractHandler {
 	}
 
 	private void handlePost(HttpExchange exchange, long jobId) throws IOException, JobNotFoundException, SQLException {
-		LOGGER.info("Post method. {}", exchange.getRequestURI().getPath());
+		EntryDigest digest = new EntryDigest(exchange.getRequestHeaders());
+		String requestKey = exchange.getRequestHeaders().getFirst(IDEMPOTENCY_KEY);
+		if (requestKey == null) {
+			sendCreated(exchange, jobId, addData(exchange.getRequestBody(), jobId, digest, null));
+			return;
+		}
+		if (requestKey.isEmpty() || requestKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+			throw new IllegalArgumentException("Invalid " + IDEMPOTENCY_KEY + " (1-" + MAX_IDEMPOTENCY_KEY_LENGTH
+					+ " characters expected).");
+		}
+
+		// Retried upload gets id of entry added by the original one, its body is not read.
+		IdempotencyKeys keys = idempotencyKeys;
+		long entryId = keys.begin(jobId, requestKey);
+		boolean replayed = entryId >= 0;
+		if (!replayed) {
+			try {
+				entryId = findByRequestKey(jobId, requestKey);
+				replayed = entryId >= 0;
+				if (!replayed) {
+					entryId = addData(exchange.getRequestBody(), jobId, digest, requestKey);
+				}
+			} finally {
+				keys.finish(jobId, requestKey, entryId);
+			}
+		}
+		if (replayed) {
+			LOGGER.debug("Upload already done, entry not added again. (jobId={}, entryId={})", jobId, entryId);
+			exchange.getResponseHeaders().set("Idempotent-Replayed", "true");
+		}
+		sendCreated(exchange, jobId, entryId);
+	}
+
+	/**
+	 * @return Id of entry added by upload with given Idempotency-Key or -1 if there is no such entry.
+	 */
+	private long findByRequestKey(long jobId, String requestKey) throws SQLException {
+		Lock jobLock = DataStore.getDataPlacement().getJobLock(jobId);
+		jobLock.lock();
+		try {
+			if (!DataStore.isDbFileExists(jobId)) {
+				return -1;
+			}
+			try (Connection h2Connection = connect(jobId);
+					PreparedStatement statement = prepareUpgrading(h2Connection,
+							"SELECT ID FROM JOB_DATA WHERE REQUEST_KEY=? LIMIT 1")) {
+				statement.setString(1, requestKey);
+				try (ResultSet result = statement.executeQuery()) {
+					return result.next() ? result.getLong(1) : -1;
+				}
+			}
+		} finally {
+			jobLock.unlock();
+		}
+	}
 
-		String dataId = String.valueOf(addData(exchange.getRequestBody(), jobId));
+	/**
+	 * Offer is a POST with {@code sha256} parameter and empty body. Any other POST (also one with other query
+	 * parameters) is an upload.
+	 */
+	private static boolean isOffer(HttpExchange exchange, URI uri) {
+		if (uri.getRawQuery() == null || !parseQuery(uri.getRawQuery()).containsKey("sha256")) {
+			return false;
+		}
+		Headers headers = exchange.getRequestHeaders();
+		String contentLength = headers.getFirst("Content-Length");
+		return headers.getFirst("Transfer-Encoding") == null && (contentLength == null || "0".equals(contentLength.trim()));
+	}
+
+	/**
+	 * Upload avoidance: {@code POST /data/{jobId}?sha256=<hex>&size=<bytes>} with empty body offers data by its
+	 * digest. If the job already has identical data, new entry with copy of it is added and response is the same as
+	 * for upload. Otherwise response is 404 and client has to upload the data.
+	 */
+	private void handleOffer(HttpExchange exchange, long jobId, Map<String, String> params) throws IOException,
+			SQLException {
+		String digest = params.get("sha256");
+		if (digest == null || !digest.matches("[0-9a-fA-F]{" + SHA_256_HEX_LENGTH + "}")) {
+			throw new IllegalArgumentException("SHA-256 (hex) of offered data expected. (sha256=" + digest + ")");
+		}
+		long size;
+		try {
+			size = Long.parseLong(params.get("size"));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Size of offered data expected. (size=" + params.get("size") + ")", e);
+		}
+		long newId = addCopy(jobId, digest.toLowerCase(), size);
+		if (newId < 0) {
+			String message = "Data not stored, upload it.";
+			exchange.sendResponseHeaders(HttpStatus.SC_NOT_FOUND, message.length());
+			exchange.getResponseBody().write(message.getBytes());
+			return;
+		}
+		sendCreated(exchange, jobId, newId);
+	}
+
+	private void sendCreated(HttpExchange exchange, long jobId, long newId) throws IOException {
+		String dataId = String.valueOf(newId);
 		Headers headers = exchange.getResponseHeaders();
 		headers.set("Content-ID", dataId);
 		headers.set("Location", jobId + "/" + dataId);
@@ -93,70 +406,1035 @@ public class DataHandler extends AbstractHandler {
 
 		exchange.sendResponseHeaders(HttpStatus.SC_CREATED, message.length());
 		exchange.getResponseBody().write(message.getBytes());
-		LOGGER.info(message);
+		LOGGER.debug("New entry added. (jobId={}, entryId={})", jobId, newId);
 	}
 
-	private long addData(InputStream inputStream, long jobId) throws IOException, SQLException {
-		long newId = DataStore.updateIdCount();
+	private long addData(InputStream inputStream, long jobId, EntryDigest digest, String requestKey) throws IOException,
+			SQLException {
+		long newId = addEntry(inputStream, jobId, digest, requestKey);
+		ReplicationPublisher publisher = replicationPublisher;
+		if (publisher != null) {
+			publisher.entryAdded(jobId, newId);
+		}
+		return newId;
+	}
 
-		try(Connection h2Connection = createNewDatabaseIfNeeded(jobId)){
+	/**
+	 * Adds entry with copy of data already stored in job. Copy is cheap: H2 shares LOB blocks with the same hash, so
+	 * only block references are written.
+	 *
+	 * @return New entry id or -1 if job has no data with given digest and size.
+	 */
+	private long addCopy(long jobId, String digest, long size) throws IOException, SQLException {
+		long newId;
+		long sourceId;
+		Lock jobLock = DataStore.getDataPlacement().getJobLock(jobId);
+		jobLock.lock();
+		try {
+			if (!DataStore.isDbFileExists(jobId)) {
+				return -1;
+			}
+			try (Connection h2Connection = connect(jobId)) {
+				sourceId = findSameData(h2Connection, digest, size);
+				if (sourceId < 0) {
+					return -1;
+				}
+				newId = DataStore.updateIdCount();
+				try (PreparedStatement statement = h2Connection.prepareStatement(
+						"INSERT INTO JOB_DATA (ID, DATA, DIGEST) SELECT ?, DATA, DIGEST FROM JOB_DATA WHERE ID=?")) {
+					statement.setLong(1, newId);
+					statement.setLong(2, sourceId);
+					if (statement.executeUpdate() < 1) {
+						// Source deleted concurrently.
+						return -1;
+					}
+				}
+			}
+		} finally {
+			jobLock.unlock();
+		}
+		jobCatalog.dataAdded(jobId, size);
+		durabilityManager.dataWritten(jobId, 0);
+		ReplicationPublisher publisher = replicationPublisher;
+		if (publisher != null) {
+			publisher.entryAdded(jobId, newId);
+		}
+		LOGGER.debug("Entry added as copy of stored data. (jobId={}, entryId={}, sourceId={})", new Object[] { jobId,
+				newId, sourceId });
+		return newId;
+	}
+
+	/**
+	 * @return Id of entry with data of given digest and size, -1 if there is no such entry.
+	 */
+	private static long findSameData(Connection h2Connection, String digest, long size) throws SQLException {
+		try (PreparedStatement statement = prepareUpgrading(h2Connection,
+				"SELECT ID FROM JOB_DATA WHERE DIGEST=? AND LENGTH(DATA)=? LIMIT 1")) {
+			statement.setString(1, digest);
+			statement.setLong(2, size);
+			try (ResultSet result = statement.executeQuery()) {
+				return result.next() ? result.getLong(1) : -1;
+			}
+		}
+	}
+
+	private long addEntry(InputStream inputStream, long jobId, EntryDigest digest, String requestKey) throws IOException,
+			SQLException {
+		WriteBehindQueue queue = writeBehindQueue;
+		if (queue == null) {
+			long newId = pendingEntries.begin(jobId);
+			try {
+				return addData(inputStream, jobId, newId, digest, requestKey);
+			} finally {
+				pendingEntries.end(jobId, newId);
+			}
+		}
+
+		// Small uploads are read whole and handed to job writer, other ones are streamed as usual.
+		BufferPool pool = bufferPool;
+		int maxSize = writeBehindMaxSize;
+		byte[] buffer = maxSize <= pool.getBufferSize() ? pool.acquire() : new byte[maxSize];
+		try {
+			int size = read(inputStream, buffer, maxSize);
+			// One more byte tells whether upload is bigger, so buffer of max size is enough.
+			int next = size < maxSize ? -1 : inputStream.read();
+			long newId = pendingEntries.begin(jobId);
+			try {
+				if (next >= 0) {
+					InputStream head = new SequenceInputStream(new ByteArrayInputStream(buffer, 0, size),
+							new ByteArrayInputStream(new byte[] { (byte) next }));
+					return addData(new SequenceInputStream(head, inputStream), jobId, newId, digest, requestKey);
+				}
+				digest.update(buffer, 0, size);
+				queue.write(jobId, newId, Arrays.copyOf(buffer, size), digest.verify(), requestKey);
+			} finally {
+				pendingEntries.end(jobId, newId);
+			}
+			jobCatalog.dataAdded(jobId, size);
+			durabilityManager.dataWritten(jobId, size);
+			return newId;
+		} finally {
+			pool.release(buffer);
+		}
+	}
 
-			// Add data to database.
-			String sqlQuery = "INSERT INTO JOB_DATA VALUES(?, ?)";
-			try (PreparedStatement statement = h2Connection.prepareStatement(sqlQuery)) {
-				statement.setLong(1, newId);
-				statement.setBlob(2, inputStream);
-				int rowsChanged = statement.executeUpdate();
-				if (rowsChanged < 1) {
-					throw new SQLException("Add data, failure. Nothing inserted.");
+	/**
+	 * Creates snapshot of job. Snapshot includes entries up to highest id below which every entry is committed, so
+	 * uploads still in progress never appear in it. Job is locked meanwhile: imports and copies of stored data (which do
+	 * not have pending ids) are either finished or not started.
+	 *
+	 * @throws IllegalStateException
+	 *             When snapshot id is used already or (cluster mode) it is owned by other node than the job.
+	 */
+	final Snapshot createSnapshot(long jobId, long snapshotId) throws IOException, JobNotFoundException {
+		ClusterRouter router = clusterRouter;
+		if (router != null && !router.isSameOwner(jobId, snapshotId)) {
+			// Snapshot reads are routed by snapshot id, so it has to be on the node of its job.
+			throw new IllegalStateException("Snapshot id owned by other node than job. (jobId=" + jobId + ", snapshotId="
+					+ snapshotId + ")");
+		}
+		Lock jobLock = DataStore.getDataPlacement().getJobLock(jobId);
+		jobLock.lock();
+		try {
+			return DataStore.getSnapshotRegistry().create(jobId, snapshotId, pendingEntries.getCommittedLimit(jobId));
+		} finally {
+			jobLock.unlock();
+		}
+	}
+
+	/**
+	 * @return {@code True} if there is snapshot which reads job database (created before job has been removed).
+	 */
+	private static boolean hasLiveSnapshot(long jobId) {
+		for (Snapshot snapshot : DataStore.getSnapshotRegistry().getSnapshots()) {
+			if (snapshot.getJobId() == jobId && snapshot.getDbFileName() == null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads stream until limit is reached or stream ends.
+	 *
+	 * @return Number of bytes read.
+	 */
+	private static int read(InputStream inputStream, byte[] buffer, int limit) throws IOException {
+		int size = 0;
+		while (size < limit) {
+			int count = inputStream.read(buffer, size, limit - size);
+			if (count < 0) {
+				break;
+			}
+			size += count;
+		}
+		return size;
+	}
+
+	private long addData(InputStream inputStream, long jobId, long newId, EntryDigest digest, String requestKey)
+			throws IOException, SQLException {
+		// Digest is computed in the same pass as data is written. Body is read in pooled buffer sized blocks.
+		CountingInputStream countingInputStream = new CountingInputStream(digest.wrap(bufferPool.buffered(inputStream)));
+
+		Lock jobLock = DataStore.getDataPlacement().getJobLock(jobId);
+		jobLock.lock();
+		try(Connection h2Connection = createNewDatabaseIfNeeded(jobId)){
+			h2Connection.setAutoCommit(false);
+			try {
+				// Add data to database.
+				String sqlQuery = "INSERT INTO JOB_DATA (ID, DATA) VALUES(?, ?)";
+				try (PreparedStatement statement = h2Connection.prepareStatement(sqlQuery)) {
+					statement.setLong(1, newId);
+					statement.setBlob(2, countingInputStream);
+					int rowsChanged = statement.executeUpdate();
+					if (rowsChanged < 1) {
+						throw new SQLException("Add data, failure. Nothing inserted.");
+					}
 				}
+				// Whole body has been read, corrupted one is not committed.
+				storeDigest(h2Connection, newId, digest.verify(), requestKey);
+				h2Connection.commit();
+			} catch (SQLException | RuntimeException e) {
+				h2Connection.rollback();
+				throw e;
 			}
+		} finally {
+			jobLock.unlock();
 		}
+		jobCatalog.dataAdded(jobId, countingInputStream.getByteCount());
+		// Response is sent after data is durable (according to durability mode).
+		durabilityManager.dataWritten(jobId, countingInputStream.getByteCount());
 
 		return newId;
 	}
 
+	/**
+	 * Stores entry received from replication primary. Entry keeps its id. Entries never change, so entry which is
+	 * already stored (e.g. resent after reconnect) is left as is and given stream is not read.
+	 *
+	 * @return {@code false} if entry was already stored.
+	 */
+	public final boolean putReplicatedEntry(long jobId, long entryId, InputStream inputStream) throws IOException,
+			SQLException {
+		EntryDigest digest = new EntryDigest();
+		CountingInputStream countingInputStream = new CountingInputStream(digest.wrap(inputStream));
+
+		Lock jobLock = DataStore.getDataPlacement().getJobLock(jobId);
+		jobLock.lock();
+		try (Connection h2Connection = createNewDatabaseIfNeeded(jobId)) {
+			if (findData(h2Connection, entryId) != null) {
+				return false;
+			}
+			try (PreparedStatement statement = h2Connection.prepareStatement("INSERT INTO JOB_DATA (ID, DATA) VALUES(?, ?)")) {
+				statement.setLong(1, entryId);
+				statement.setBlob(2, countingInputStream);
+				statement.executeUpdate();
+			}
+			storeDigest(h2Connection, entryId, digest.verify(), null);
+		} finally {
+			jobLock.unlock();
+		}
+		jobCatalog.dataAdded(jobId, countingInputStream.getByteCount());
+		durabilityManager.dataWritten(jobId, countingInputStream.getByteCount());
+		return true;
+	}
+
+	private void handleDelete(HttpExchange exchange, long jobId, long entryId) throws IOException, JobNotFoundException,
+			EntryNotFoundException, SQLException {
+		// Snapshot reads its entries from job database until the job is removed.
+		for (Snapshot snapshot : DataStore.getSnapshotRegistry().getSnapshots()) {
+			if (snapshot.getJobId() == jobId && snapshot.getDbFileName() == null && entryId <= snapshot.getLastEntryId()) {
+				handleError(exchange, HttpStatus.SC_CONFLICT, "Entry is part of snapshot " + snapshot.getSnapshotId(), null);
+				return;
+			}
+		}
+		if (!deleteEntry(jobId, entryId)) {
+			throw new EntryNotFoundException("Entry not found (id=" + jobId + ", entry=" + entryId + ")", null);
+		}
+		exchange.sendResponseHeaders(HttpStatus.SC_NO_CONTENT, -1);
+		LOGGER.debug("Entry deleted. (jobId={}, entryId={})", jobId, entryId);
+	}
+
+	/**
+	 * Deletes job entry. Space of the entry is reclaimed by job compactor (if enabled).
+	 *
+	 * @return {@code false} if there is no such entry.
+	 * @throws JobNotFoundException
+	 *             When there is no data of the job.
+	 */
+	public final boolean deleteEntry(long jobId, long entryId) throws IOException, SQLException, JobNotFoundException {
+		long size = -1;
+		String digest = null;
+		boolean dataShared = false;
+		Lock jobLock = DataStore.getDataPlacement().getJobLock(jobId);
+		jobLock.lock();
+		try {
+			if (!DataStore.isDbFileExists(jobId)) {
+				throw new JobNotFoundException("Job not found (id=" + jobId + ")");
+			}
+			try (Connection h2Connection = connect(jobId)) {
+				try (PreparedStatement statement = prepareUpgrading(h2Connection,
+						"SELECT LENGTH(DATA), DIGEST FROM JOB_DATA WHERE ID=?")) {
+					statement.setLong(1, entryId);
+					try (ResultSet result = statement.executeQuery()) {
+						if (result.next()) {
+							size = result.getLong(1);
+							digest = result.getString(2);
+						}
+					}
+				}
+				if (size < 0) {
+					return false;
+				}
+				try (PreparedStatement statement = h2Connection.prepareStatement("DELETE FROM JOB_DATA WHERE ID=?")) {
+					statement.setLong(1, entryId);
+					if (statement.executeUpdate() < 1) {
+						// Deleted concurrently.
+						return false;
+					}
+				}
+				dataShared = digest != null && findSameData(h2Connection, digest, size) >= 0;
+			}
+		} finally {
+			jobLock.unlock();
+		}
+		jobCatalog.dataRemoved(jobId, size);
+		durabilityManager.dataWritten(jobId, 0);
+		JobCompactor compactor = jobCompactor;
+		if (compactor != null) {
+			// Data still used by other entry (e.g. added as copy) takes the same space as before.
+			compactor.entryDeleted(jobId, dataShared ? 0 : size);
+		}
+		ReplicationPublisher publisher = replicationPublisher;
+		if (publisher != null) {
+			publisher.entryRemoved(jobId, entryId);
+		}
+		return true;
+	}
+
+	/**
+	 * Rewrites job database without free pages. Entries are copied to new database in batches under shared job lock, so
+	 * requests of the job go on meanwhile. After every batch copying waits according to bytes per second budget (with no
+	 * lock held). Only at the end exclusive lock is taken: entries added or deleted meanwhile are applied to the copy and
+	 * the copy replaces job database. Entries with the same data (see {@link #addCopy(long, String, long)}) share it in
+	 * the copy too. If job is still in use after a second of waiting, nothing is replaced and compaction has to
+	 * be retried later.
+	 *
+	 * @param bytesPerSecond
+	 *            Copying budget, 0 means unlimited.
+	 * @return {@code false} if job database has been removed or moved meanwhile or job has been in use (nothing is
+	 *         replaced then).
+	 */
+	public final boolean compactJob(long jobId, long bytesPerSecond) throws IOException, SQLException,
+			InterruptedException {
+		String dbFileName = DataStore.getDbFileName(jobId);
+		String compactFileName = dbFileName + COMPACT_SUFFIX;
+		// Copy left by interrupted compaction.
+		deleteDbFiles(compactFileName);
+		// Not in try-with-resources: the copy has to be closed before it replaces job database.
+		Connection target = connect(compactFileName);
+		try {
+			createTables(target);
+			if (!copyEntries(jobId, dbFileName, target, bytesPerSecond)) {
+				return false;
+			}
+			Lock moveLock = DataStore.getDataPlacement().getJobMoveLock(jobId);
+			if (!moveLock.tryLock(COMPACT_SWAP_WAIT_MS, TimeUnit.MILLISECONDS)) {
+				return false;
+			}
+			try {
+				if (!isJobDatabase(jobId, dbFileName)) {
+					return false;
+				}
+				try (Connection source = connect(dbFileName)) {
+					applyChanges(source, target);
+				}
+				target.close();
+				Files.move(Paths.get(compactFileName + DB_FILE_SUFFIXES[0]), Paths.get(dbFileName + DB_FILE_SUFFIXES[0]),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				return true;
+			} finally {
+				moveLock.unlock();
+			}
+		} finally {
+			try {
+				target.close();
+			} finally {
+				deleteDbFiles(compactFileName);
+			}
+		}
+	}
+
+	/**
+	 * Copies job entries to compacted database, batch by batch.
+	 *
+	 * @return {@code false} if job database has been removed or moved meanwhile.
+	 */
+	private boolean copyEntries(long jobId, String dbFileName, Connection target, long bytesPerSecond)
+			throws SQLException, InterruptedException {
+		long lastId = -1;
+		boolean more = true;
+		while (more) {
+			long bytes = 0;
+			Lock jobLock = DataStore.getDataPlacement().getJobLock(jobId);
+			jobLock.lock();
+			try {
+				if (!isJobDatabase(jobId, dbFileName)) {
+					return false;
+				}
+				try (Connection source = connect(dbFileName);
+						PreparedStatement statement = prepareCompactSelect(source, "ID>? ORDER BY ID LIMIT ?")) {
+					statement.setLong(1, lastId);
+					statement.setInt(2, COMPACT_BATCH_SIZE);
+					try (ResultSet rows = statement.executeQuery()) {
+						int count = 0;
+						while (bytes < COMPACT_BATCH_BYTES && rows.next()) {
+							lastId = rows.getLong(1);
+							count++;
+							try {
+								bytes += copyEntry(rows, target);
+							} catch (SQLException e) {
+								// Entry deleted while its data was read is left out.
+								if (findData(source, lastId) != null) {
+									throw e;
+								}
+							}
+						}
+						more = count == COMPACT_BATCH_SIZE || bytes >= COMPACT_BATCH_BYTES;
+					}
+				}
+			} finally {
+				jobLock.unlock();
+			}
+			if (bytesPerSecond > 0) {
+				Thread.sleep(bytes * ONE_SEC_IN_MS / bytesPerSecond);
+			}
+		}
+		return true;
+	}
+
+	private static boolean isJobDatabase(long jobId, String dbFileName) {
+		return dbFileName.equals(DataStore.getDbFileName(jobId)) && DataStore.isDbFileExists(jobId);
+	}
+
+	/**
+	 * Prepares select of entries to copy with given condition (and order).
+	 */
+	private static PreparedStatement prepareCompactSelect(Connection source, String condition) throws SQLException {
+		// Databases created before creation time was stored have no such column.
+		String created = hasColumn(source, "CREATED") ? "CREATED" : "NULL";
+		return prepareUpgrading(source, "SELECT ID, DATA, " + created + ", DIGEST, REQUEST_KEY FROM JOB_DATA WHERE "
+				+ condition);
+	}
+
+	/**
+	 * Copies entry (row of {@link #prepareCompactSelect(Connection, String)}) to target database. Data already stored
+	 * there is shared instead of copied.
+	 *
+	 * @return Number of copied data bytes.
+	 */
+	private static long copyEntry(ResultSet row, Connection target) throws SQLException {
+		Blob data = row.getBlob(2);
+		long length = data.length();
+		String digest = row.getString(4);
+		if (digest != null) {
+			try (PreparedStatement statement = target.prepareStatement("INSERT INTO JOB_DATA "
+					+ "(ID, DATA, CREATED, DIGEST, REQUEST_KEY) SELECT ?, DATA, ?, DIGEST, ? FROM JOB_DATA "
+					+ "WHERE DIGEST=? AND LENGTH(DATA)=? LIMIT 1")) {
+				statement.setLong(1, row.getLong(1));
+				statement.setTimestamp(2, row.getTimestamp(3));
+				statement.setString(3, row.getString(5));
+				statement.setString(4, digest);
+				statement.setLong(5, length);
+				if (statement.executeUpdate() > 0) {
+					return 0;
+				}
+			}
+		}
+		try (PreparedStatement statement = target.prepareStatement("INSERT INTO JOB_DATA "
+				+ "(ID, DATA, CREATED, DIGEST, REQUEST_KEY) VALUES(?, ?, ?, ?, ?)")) {
+			statement.setLong(1, row.getLong(1));
+			statement.setBinaryStream(2, data.getBinaryStream(), length);
+			statement.setTimestamp(3, row.getTimestamp(3));
+			statement.setString(4, digest);
+			statement.setString(5, row.getString(5));
+			statement.executeUpdate();
+		}
+		return length;
+	}
+
+	/**
+	 * Applies changes of source database made since entries were copied to target: copies added entries, deletes
+	 * removed ones and updates digests stored after entry was copied. Both id lists are walked in id order at once.
+	 */
+	private static void applyChanges(Connection source, Connection target) throws SQLException {
+		String idsQuery = "SELECT ID, DIGEST, REQUEST_KEY FROM JOB_DATA ORDER BY ID";
+		try (PreparedStatement sourceStatement = prepareUpgrading(source, idsQuery);
+				PreparedStatement targetStatement = target.prepareStatement(idsQuery);
+				PreparedStatement select = prepareCompactSelect(source, "ID=?");
+				ResultSet sourceIds = sourceStatement.executeQuery();
+				ResultSet targetIds = targetStatement.executeQuery()) {
+			boolean inSource = sourceIds.next();
+			boolean inTarget = targetIds.next();
+			while (inSource || inTarget) {
+				long sourceId = inSource ? sourceIds.getLong(1) : Long.MAX_VALUE;
+				long targetId = inTarget ? targetIds.getLong(1) : Long.MAX_VALUE;
+				if (sourceId < targetId) {
+					select.setLong(1, sourceId);
+					try (ResultSet row = select.executeQuery()) {
+						if (row.next()) {
+							copyEntry(row, target);
+						}
+					}
+					inSource = sourceIds.next();
+				} else if (sourceId > targetId) {
+					try (PreparedStatement statement = target.prepareStatement("DELETE FROM JOB_DATA WHERE ID=?")) {
+						statement.setLong(1, targetId);
+						statement.executeUpdate();
+					}
+					inTarget = targetIds.next();
+				} else {
+					String digest = sourceIds.getString(2);
+					String requestKey = sourceIds.getString(3);
+					if (!equal(digest, targetIds.getString(2)) || !equal(requestKey, targetIds.getString(3))) {
+						storeDigest(target, sourceId, digest, requestKey);
+					}
+					inSource = sourceIds.next();
+					inTarget = targetIds.next();
+				}
+			}
+		}
+	}
+
+	private static boolean equal(String first, String second) {
+		return first == null ? second == null : first.equals(second);
+	}
+
+	private static void deleteDbFiles(String dbFileName) throws IOException {
+		for (String suffix : DB_FILE_SUFFIXES) {
+			Files.deleteIfExists(Paths.get(dbFileName + suffix));
+		}
+	}
+
+	/**
+	 * Writes all entries of job as job archive (see {@link JobArchive}) straight from job database. Highest entry id is
+	 * taken under job lock, then entries up to it are read in batches, each batch under job lock of its own. Batch is
+	 * read into memory and written with no lock held, so slow client does not keep job database from being compacted or
+	 * removed. Only entry bigger than batch limit is streamed to client under job lock. Entries deleted during export
+	 * are left out.
+	 *
+	 * @return Number of exported entries.
+	 * @throws IOException
+	 *             Also when job has been removed during export (archive is left unfinished).
+	 */
+	final long exportJob(long jobId, OutputStream out) throws IOException, SQLException, JobNotFoundException {
+		Snapshot snapshot = DataStore.getSnapshotRegistry().get(jobId);
+		Lock jobLock = DataStore.getDataPlacement().getJobLock(snapshot == null ? jobId : snapshot.getJobId());
+		long maxId;
+		jobLock.lock();
+		try {
+			String dbFileName = getReadDbFileName(jobId, snapshot);
+			if (dbFileName == null) {
+				throw new JobNotFoundException("Job not found (id=" + jobId + ")");
+			}
+			try (Connection h2Connection = connect(dbFileName)) {
+				maxId = getMaxEntryId(h2Connection, snapshot == null ? Long.MAX_VALUE : snapshot.getLastEntryId());
+			}
+		} finally {
+			jobLock.unlock();
+		}
+
+		JobArchive.Writer writer = new JobArchive.Writer(out, maxId, bufferPool);
+		long lastId = 0;
+		while (lastId < maxId) {
+			Map<Long, byte[]> batch = new LinkedHashMap<>();
+			jobLock.lock();
+			try {
+				String dbFileName = getReadDbFileName(jobId, snapshot);
+				if (dbFileName == null) {
+					throw new IOException("Job removed during export. (jobId=" + jobId + ")");
+				}
+				try (Connection h2Connection = connect(dbFileName);
+						PreparedStatement statement = h2Connection
+								.prepareStatement("SELECT ID, DATA FROM JOB_DATA WHERE ID>? AND ID<=? ORDER BY ID LIMIT ?")) {
+					statement.setLong(1, lastId);
+					statement.setLong(2, maxId);
+					statement.setInt(3, EXPORT_BATCH_SIZE);
+					try (ResultSet result = statement.executeQuery()) {
+						lastId = readExportBatch(result, writer, batch, maxId);
+					}
+				}
+			} finally {
+				jobLock.unlock();
+			}
+			for (Map.Entry<Long, byte[]> entry : batch.entrySet()) {
+				writer.writeEntry(entry.getKey(), entry.getValue().length, new ByteArrayInputStream(entry.getValue()));
+			}
+		}
+		writer.finish();
+		return writer.getEntriesCount();
+	}
+
+	/**
+	 * @return Highest entry id not greater than limit, 0 if there is no such entry.
+	 */
+	private static long getMaxEntryId(Connection h2Connection, long limit) throws SQLException {
+		try (PreparedStatement statement = h2Connection.prepareStatement("SELECT MAX(ID) FROM JOB_DATA WHERE ID<=?")) {
+			statement.setLong(1, limit);
+			try (ResultSet result = statement.executeQuery()) {
+				return result.next() ? result.getLong(1) : 0;
+			}
+		}
+	}
+
+	/**
+	 * Reads entries into batch until it takes batch limit. Entry bigger than the limit is written straight to archive,
+	 * alone.
+	 *
+	 * @return Id of last read entry, or highest id to export if there are no more entries.
+	 */
+	private static long readExportBatch(ResultSet result, JobArchive.Writer writer, Map<Long, byte[]> batch, long maxId)
+			throws IOException, SQLException {
+		long bytes = 0;
+		int rows = 0;
+		long lastId = maxId;
+		while (result.next()) {
+			Blob data = result.getBlob(2);
+			long length = data.length();
+			if (length > EXPORT_BATCH_BYTES && !batch.isEmpty()) {
+				// Starts next batch.
+				return lastId;
+			}
+			lastId = result.getLong(1);
+			rows++;
+			try (InputStream is = data.getBinaryStream()) {
+				if (length > EXPORT_BATCH_BYTES) {
+					writer.writeEntry(lastId, length, is);
+					return lastId;
+				}
+				batch.put(lastId, IOUtils.toByteArray(is));
+			}
+			bytes += length;
+			if (bytes >= EXPORT_BATCH_BYTES) {
+				return lastId;
+			}
+		}
+		return rows < EXPORT_BATCH_SIZE ? maxId : lastId;
+	}
+
+	/**
+	 * Stores all entries of job archive (see {@link JobArchive}) in job. Entries keep their ids. Id sequence is moved
+	 * past highest archive id before anything is stored, so new uploads never get imported ids. Entries are committed
+	 * (and published to replication followers) in batches.
+	 *
+	 * @return Number of imported entries.
+	 * @throws IllegalStateException
+	 *             When entry with archive id exists in job (entries are never replaced), batches committed before stay
+	 *             imported. Also when job has snapshot: imported entries would appear in it.
+	 */
+	final long importJob(long jobId, InputStream in) throws IOException, SQLException {
+		try (InputStream buffered = bufferPool.buffered(in)) {
+			return importEntries(jobId, new JobArchive.Reader(buffered));
+		}
+	}
+
+	private long importEntries(long jobId, JobArchive.Reader reader) throws IOException, SQLException {
+		if (reader.getMaxEntryId() != JobArchive.UNKNOWN_MAX_ID) {
+			DataStore.reserveIds(reader.getMaxEntryId());
+		}
+		long count = 0;
+		long bytes = 0;
+		Lock jobLock = DataStore.getDataPlacement().getJobLock(jobId);
+		jobLock.lock();
+		if (hasLiveSnapshot(jobId)) {
+			jobLock.unlock();
+			throw new IllegalStateException("Job has snapshot, import into it is not allowed. (jobId=" + jobId + ")");
+		}
+		try (Connection h2Connection = createNewDatabaseIfNeeded(jobId);
+				PreparedStatement statement = h2Connection.prepareStatement("INSERT INTO JOB_DATA (ID, DATA) VALUES(?, ?)")) {
+			h2Connection.setAutoCommit(false);
+			long[] batch = new long[IMPORT_BATCH_SIZE];
+			long[] batchLengths = new long[IMPORT_BATCH_SIZE];
+			int batchSize = 0;
+			while (reader.next()) {
+				long entryId = reader.getEntryId();
+				if (reader.getMaxEntryId() == JobArchive.UNKNOWN_MAX_ID) {
+					// First version archive: id is reserved just before entry is stored.
+					DataStore.reserveIds(entryId);
+				}
+				EntryDigest digest = new EntryDigest();
+				statement.setLong(1, entryId);
+				statement.setBinaryStream(2, digest.wrap(reader.getData()), reader.getLength());
+				try {
+					statement.executeUpdate();
+				} catch (SQLException e) {
+					h2Connection.rollback();
+					if (e.getErrorCode() == H2_DUPLICATE_KEY) {
+						throw new IllegalStateException("Entry already exists, import stopped. (jobId=" + jobId + ", entryId="
+								+ entryId + ", imported=" + count + ")", e);
+					}
+					throw e;
+				}
+				storeDigest(h2Connection, entryId, digest.verify(), null);
+				batch[batchSize] = entryId;
+				batchLengths[batchSize++] = reader.getLength();
+				if (batchSize == batch.length) {
+					bytes += commitImported(h2Connection, jobId, batch, batchLengths, batchSize);
+					count += batchSize;
+					batchSize = 0;
+				}
+			}
+			bytes += commitImported(h2Connection, jobId, batch, batchLengths, batchSize);
+			count += batchSize;
+		} finally {
+			jobLock.unlock();
+		}
+		durabilityManager.dataWritten(jobId, bytes);
+		LOGGER.info("Job imported. (jobId={}, entries={}, bytes={})", new Object[] { jobId, count, bytes });
+		return count;
+	}
+
+	/**
+	 * Commits batch of imported entries and counts them in job catalog.
+	 *
+	 * @return Number of committed bytes.
+	 */
+	private long commitImported(Connection h2Connection, long jobId, long[] entryIds, long[] lengths, int size)
+			throws SQLException {
+		h2Connection.commit();
+		long bytes = 0;
+		ReplicationPublisher publisher = replicationPublisher;
+		for (int i = 0; i < size; i++) {
+			jobCatalog.dataAdded(jobId, lengths[i]);
+			bytes += lengths[i];
+			if (publisher != null) {
+				publisher.entryAdded(jobId, entryIds[i]);
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Copies entry data to given stream.
+	 *
+	 * @return {@code false} if job or entry does not exist.
+	 */
+	public final boolean copyEntry(long jobId, long entryId, OutputStream out) throws IOException, SQLException {
+		Lock jobLock = DataStore.getDataPlacement().getJobLock(jobId);
+		jobLock.lock();
+		try {
+			if (!DataStore.isDbFileExists(jobId)) {
+				return false;
+			}
+			try (Connection h2Connection = connect(jobId)) {
+				InputStream is;
+				try {
+					is = getData(h2Connection, entryId).getBinaryStream();
+				} catch (SQLException | JobNotFoundException e) {
+					return false;
+				}
+				try {
+					bufferPool.copy(is, out);
+				} finally {
+					is.close();
+				}
+				return true;
+			}
+		} finally {
+			jobLock.unlock();
+		}
+	}
+
+	/**
+	 * @return Ids of all job entries in ascending order or {@code null} if job does not exist.
+	 */
+	public final List<Long> getEntryIds(long jobId) throws SQLException {
+		Lock jobLock = DataStore.getDataPlacement().getJobLock(jobId);
+		jobLock.lock();
+		try {
+			if (!DataStore.isDbFileExists(jobId)) {
+				return null;
+			}
+			try (Connection h2Connection = connect(jobId);
+					Statement statement = h2Connection.createStatement();
+					ResultSet result = statement.executeQuery("SELECT ID FROM JOB_DATA ORDER BY ID")) {
+				List<Long> entryIds = new ArrayList<>();
+				while (result.next()) {
+					entryIds.add(result.getLong(1));
+				}
+				return entryIds;
+			}
+		} finally {
+			jobLock.unlock();
+		}
+	}
+
 	private Connection connect(long jobId) throws SQLException{
-		return DriverManager.getConnection("jdbc:h2:" + DataStore.getDbFileName(jobId) + ";LOG=0", "sa", H2_DB_PASSWORD); //NOPMD
+		return connect(DataStore.getDbFileName(jobId));
 	}
 
-	private synchronized Connection createNewDatabaseIfNeeded(long jobId) throws SQLException {
+	private Connection connect(String dbFileName) throws SQLException {
+		return DriverManager.getConnection("jdbc:h2:" + dbFileName + durabilityManager.getDbUrlOptions(), "sa", H2_DB_PASSWORD); //NOPMD
+	}
+
+	final Connection createNewDatabaseIfNeeded(long jobId) throws SQLException {
+		JobDbPool pool = jobDbPool;
+		if (pool == null) {
+			return createNewDatabaseLocked(jobId);
+		}
+		// Prepared database appears under job name at once, so no locking is needed.
+		if (!DataStore.isDbFileExists(jobId)) {
+			try {
+				pool.claim(jobId);
+			} catch (IOException e) {
+				throw new SQLException("Could not claim prepared database (jobId=" + jobId + ")", e);
+			}
+		}
+		return connect(jobId);
+	}
+
+	private synchronized Connection createNewDatabaseLocked(long jobId) throws SQLException {
 		// Create new database.
 		boolean isDbExistsBefore = DataStore.isDbFileExists(jobId);
 		Connection h2Connection = connect(jobId);
 
 		if(!isDbExistsBefore){
-			// Create new table.
+			createTables(h2Connection);
+		}
+
+		return h2Connection;
+	}
+
+	/**
+	 * Creates job data table in new job database.
+	 */
+	static void createTables(Connection h2Connection) throws SQLException {
+		try (Statement s = h2Connection.createStatement()) {
+			s.execute("SET MAX_LOG_SIZE 1");
+			s.execute("CREATE TABLE JOB_DATA (ID BIGINT, DATA IMAGE, CREATED TIMESTAMP DEFAULT CURRENT_TIMESTAMP, "
+					+ "DIGEST VARCHAR(64), REQUEST_KEY VARCHAR(255))");
+			s.execute("ALTER TABLE JOB_DATA ADD UNIQUE (ID)");
+			s.execute("CREATE INDEX JOB_DATA_DIGEST ON JOB_DATA (DIGEST)");
+			s.execute("CREATE INDEX JOB_DATA_REQUEST_KEY ON JOB_DATA (REQUEST_KEY)");
+		}
+	}
+
+	/**
+	 * Stores SHA-256 (hex) of entry data and Idempotency-Key of upload which added the entry (may be {@code null}).
+	 */
+	private static void storeDigest(Connection h2Connection, long entryId, String digest, String requestKey)
+			throws SQLException {
+		try (PreparedStatement statement = prepareUpgrading(h2Connection,
+				"UPDATE JOB_DATA SET DIGEST=?, REQUEST_KEY=? WHERE ID=?")) {
+			statement.setString(1, digest);
+			statement.setString(2, requestKey);
+			statement.setLong(3, entryId);
+			statement.executeUpdate();
+		}
+	}
+
+	/**
+	 * Prepares statement which uses digest or request key column. Databases created before these were stored get the
+	 * columns first.
+	 */
+	static PreparedStatement prepareUpgrading(Connection h2Connection, String sql) throws SQLException {
+		try {
+			return h2Connection.prepareStatement(sql);
+		} catch (SQLException e) {
+			if (e.getErrorCode() != H2_COLUMN_NOT_FOUND) {
+				throw e;
+			}
 			try (Statement s = h2Connection.createStatement()) {
-				s.execute("SET MAX_LOG_SIZE 1");
-				s.execute("CREATE TABLE JOB_DATA (ID BIGINT, DATA IMAGE)");
-				s.execute("ALTER TABLE JOB_DATA ADD UNIQUE (ID)");
+				s.execute("ALTER TABLE JOB_DATA ADD IF NOT EXISTS DIGEST VARCHAR(64)");
+				s.execute("CREATE INDEX IF NOT EXISTS JOB_DATA_DIGEST ON JOB_DATA (DIGEST)");
+				s.execute("ALTER TABLE JOB_DATA ADD IF NOT EXISTS REQUEST_KEY VARCHAR(255)");
+				s.execute("CREATE INDEX IF NOT EXISTS JOB_DATA_REQUEST_KEY ON JOB_DATA (REQUEST_KEY)");
 			}
+			return h2Connection.prepareStatement(sql);
 		}
+	}
 
-		return h2Connection;
+	/**
+	 * @return SHA-256 (hex) of entry data or {@code null} if it is unknown (entry added before digests were stored).
+	 */
+	private static String getDigest(Connection h2Connection, long entryId) throws SQLException {
+		try (PreparedStatement statement = h2Connection.prepareStatement("SELECT DIGEST FROM JOB_DATA WHERE ID=?")) {
+			statement.setLong(1, entryId);
+			try (ResultSet result = statement.executeQuery()) {
+				return result.next() ? result.getString(1) : null;
+			}
+		} catch (SQLException e) {
+			if (e.getErrorCode() == H2_COLUMN_NOT_FOUND) {
+				return null;
+			}
+			throw e;
+		}
 	}
 
 	private void handleGet(HttpExchange exchange, long jobId, long entryId) throws IOException, JobNotFoundException,
 			EntryNotFoundException, SQLException {
+		// Entry ids are never reused, so id based tag is as strong as content hash.
+		String entityTag = "\"" + jobId + "-" + entryId + "\"";
+		Snapshot snapshot = DataStore.getSnapshotRegistry().get(jobId);
+		if (snapshot != null && entryId > snapshot.getLastEntryId()) {
+			throw new EntryNotFoundException("Entry not in snapshot (id=" + jobId + ", entry=" + entryId + ")", null);
+		}
+		// Job files are not moved while they are read.
+		Lock jobLock = DataStore.getDataPlacement().getJobLock(snapshot == null ? jobId : snapshot.getJobId());
+		jobLock.lock();
+		try {
+			String dbFileName = getReadDbFileName(jobId, snapshot);
+			if (dbFileName == null) {
+				throw new JobNotFoundException("Job not found (id=" + jobId + ")");
+			}
+			try (Connection h2Connection = connect(dbFileName)) {
+				Blob data = findData(h2Connection, entryId);
+				if (data == null) {
+					throw new EntryNotFoundException("Entry not found (id=" + jobId + ", entry=" + entryId + ")", null);
+				}
+				// Tag (also '*') matches only existing entry, data is not read then.
+				if (isEntityTagMatched(exchange.getRequestHeaders().getFirst("If-None-Match"), entityTag)) {
+					setCacheHeaders(exchange.getResponseHeaders(), entityTag);
+					exchange.sendResponseHeaders(HttpStatus.SC_NOT_MODIFIED, -1);
+				} else {
+					sendData(exchange, h2Connection, entryId, entityTag, data);
+				}
+			}
+		} finally {
+			jobLock.unlock();
+		}
+		jobCatalog.dataRead(jobId);
+	}
+
+	private void sendData(HttpExchange exchange, Connection h2Connection, long entryId, String entityTag, Blob data)
+			throws IOException, SQLException {
+		Headers headers = exchange.getResponseHeaders();
+		headers.set("Content-Type", "application/octet-stream");
+		setCacheHeaders(headers, entityTag);
+		String digest = getDigest(h2Connection, entryId);
+		if (digest != null) {
+			headers.set("Digest", EntryDigest.toDigestHeader(digest));
+		}
+
+		// Known length is sent as is (not in chunks), -1 means: no body.
+		long length = data.length();
+		exchange.sendResponseHeaders(HttpStatus.SC_OK, length == 0 ? -1 : length);
+		try (InputStream is = data.getBinaryStream()) {
+			bufferPool.copy(is, exchange.getResponseBody());
+		}
+	}
+
+	/**
+	 * Reads numeric parameter of listing.
+	 * 
+	 * @return Parameter value or default value if parameter is not given.
+	 * @throws IllegalArgumentException
+	 *             When parameter is not a number.
+	 */
+	private static long getListParam(Map<String, String> params, String name, long defaultValue) {
+		String value = params.get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid " + name + ", number expected. (" + name + "=" + value + ")", e);
+		}
+	}
+
+	/**
+	 * Lists entries of job (or snapshot) in id order, one page of {@code GET /data/{jobId}?after=0&limit=1000}. Every
+	 * entry is one tab separated line: entry id, size in bytes and creation time (ms since epoch, 0 if unknown: entry
+	 * added before creation time was stored). Page is read through id index and streamed, next page starts after last
+	 * listed id. Page shorter than limit is the last one.
+	 */
+	private void handleList(HttpExchange exchange, long jobId, Map<String, String> params) throws IOException,
+			JobNotFoundException, SQLException {
+		long after = getListParam(params, "after", 0);
+		long limit = getListParam(params, "limit", DEFAULT_LIST_LIMIT);
+		if (limit < 1 || limit > MAX_LIST_LIMIT) {
+			throw new IllegalArgumentException("Invalid limit. (limit=" + limit + ", max limit=" + MAX_LIST_LIMIT + ")");
+		}
+		Snapshot snapshot = DataStore.getSnapshotRegistry().get(jobId);
+		Lock jobLock = DataStore.getDataPlacement().getJobLock(snapshot == null ? jobId : snapshot.getJobId());
+		jobLock.lock();
+		try {
+			String dbFileName = getReadDbFileName(jobId, snapshot);
+			if (dbFileName == null) {
+				throw new JobNotFoundException("Job not found (id=" + jobId + ")");
+			}
+			try (Connection h2Connection = connect(dbFileName)) {
+				// Databases created before creation time was stored have no such column.
+				String created = hasColumn(h2Connection, "CREATED") ? "CREATED" : "NULL";
+				try (PreparedStatement statement = h2Connection.prepareStatement("SELECT ID, LENGTH(DATA), " + created
+						+ " FROM JOB_DATA WHERE ID>? AND ID<=? ORDER BY ID LIMIT ?")) {
+					statement.setLong(1, after);
+					statement.setLong(2, snapshot == null ? Long.MAX_VALUE : snapshot.getLastEntryId());
+					statement.setInt(3, (int) limit);
+					try (ResultSet result = statement.executeQuery()) {
+						exchange.sendResponseHeaders(HttpStatus.SC_OK, 0);
+						Writer writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.US_ASCII));
+						writer.write("entryId\tsize\tcreated\n");
+						while (result.next()) {
+							Timestamp time = result.getTimestamp(3);
+							writer.write(result.getLong(1) + "\t" + result.getLong(2) + "\t" + (time == null ? 0 : time.getTime()) + "\n");
+						}
+						writer.flush();
+					}
+				}
+			}
+		} finally {
+			jobLock.unlock();
+		}
+	}
+
+	private static boolean hasColumn(Connection h2Connection, String column) throws SQLException {
+		try (ResultSet result = h2Connection.getMetaData().getColumns(null, null, "JOB_DATA", column)) {
+			return result.next();
+		}
+	}
 
-		LOGGER.info("Get method. {}", exchange.getRequestURI().getPath());
-		if(!DataStore.isDbFileExists(jobId)){
-			throw new JobNotFoundException("Job not found (id=" + jobId + ")");
+	/**
+	 * Gets database from which job or snapshot is read. Snapshot is read from database of its job until the job is
+	 * removed, then from its own database file.
+	 *
+	 * @return Database file name (without suffix) or {@code null} if there is no data.
+	 */
+	private static String getReadDbFileName(long jobId, Snapshot snapshot) {
+		if (snapshot == null) {
+			return DataStore.isDbFileExists(jobId) ? DataStore.getDbFileName(jobId) : null;
+		}
+		if (snapshot.getDbFileName() == null && DataStore.isDbFileExists(snapshot.getJobId())) {
+			return DataStore.getDbFileName(snapshot.getJobId());
 		}
-		try (
-				Connection h2Connection = connect(jobId);
-				InputStream is = getData(h2Connection, entryId);
-			) {
+		// Job could have been removed meanwhile.
+		Snapshot current = DataStore.getSnapshotRegistry().get(jobId);
+		return current == null ? null : current.getDbFileName();
+	}
 
-			Headers headers = exchange.getResponseHeaders();
-			headers.set("Content-Type", "application/octet-stream");
+	private static void setCacheHeaders(Headers headers, String entityTag) {
+		headers.set("ETag", entityTag);
+		headers.set("Cache-Control", CACHE_CONTROL);
+	}
 
-			// Size 0 means: unknown.
-			int size = 0;
-			exchange.sendResponseHeaders(HttpStatus.SC_OK, size);
-			IOUtils.copyLarge(is, exchange.getResponseBody());
+	/**
+	 * Checks If-None-Match header (weak comparison, as RFC 2616 requires for GET).
+	 */
+	private static boolean isEntityTagMatched(String ifNoneMatch, String entityTag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if ("*".equals(tag) || entityTag.equals(tag)) {
+				return true;
+			}
 		}
+		return false;
 	}
 
 	/**
@@ -167,28 +1445,31 @@ public class DataHandler extends AbstractHandler {
 	 *            Job id.
 	 * @param entryId
 	 *            Entry id.
-	 * @return Input stream representing requested data.
+	 * @return Blob with requested data.
 	 * @throws SQLException
 	 *             When nothing has been found or other SQL issue appears.
 	 * @throws JobNotFoundException
 	 *             When there's request for data for job that does not have h2 connection created (means no job data
 	 *             exists).
 	 */
-	private InputStream getData(Connection h2Connection, long entryId) throws SQLException, JobNotFoundException {
-		Blob data = null;
+	private Blob getData(Connection h2Connection, long entryId) throws SQLException, JobNotFoundException {
+		Blob data = findData(h2Connection, entryId);
+		if (data == null) {
+			throw new SQLException("No data found.");
+		} else {
+			return data;
+		}
+	}
+
+	/**
+	 * @return Blob with data of entry, {@code null} if there is no such entry.
+	 */
+	private static Blob findData(Connection h2Connection, long entryId) throws SQLException {
 		try (PreparedStatement statement = h2Connection.prepareStatement("SELECT DATA FROM JOB_DATA WHERE ID=?")) {
 			statement.setLong(1, entryId);
 			try (ResultSet result = statement.executeQuery()) {
-				if (result.next()) {
-					data = result.getBlob(1);
-				}
+				return result.next() ? result.getBlob(1) : null;
 			}
 		}
-
-		if (data == null) {
-			throw new SQLException("No data found.");
-		} else {
-			return data.getBinaryStream();
-		}
 	}
 }
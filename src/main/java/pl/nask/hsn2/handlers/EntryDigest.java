@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.handlers;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+
+import com.sun.net.httpserver.Headers;
+
+/**
+ * Digest of entry data computed while the data streams into database. SHA-256 is always computed and stored with the
+ * entry (hex), MD5 only when client sent one to compare with. Expected values are taken from Content-MD5 (RFC 1864)
+ * and Digest (RFC 3230, SHA-256 and MD5 instance digests, other algorithms are ignored) request headers.
+ */
+@SuppressWarnings("restriction")
+final class EntryDigest {
+	static final String SHA_256 = "SHA-256";
+	static final String MD5 = "MD5";
+	private final MessageDigest sha256 = newDigest(SHA_256);
+	private final MessageDigest md5;
+	private final byte[] expectedSha256;
+	private final byte[] expectedMd5;
+
+	/**
+	 * Creates digest without expected values.
+	 */
+	EntryDigest() {
+		md5 = null;
+		expectedSha256 = null;
+		expectedMd5 = null;
+	}
+
+	/**
+	 * Creates digest which is verified against values sent by client.
+	 *
+	 * @throws IllegalArgumentException
+	 *             When digest header is malformed.
+	 */
+	EntryDigest(Headers requestHeaders) {
+		byte[] sha = null;
+		byte[] md = decode(requestHeaders.getFirst("Content-MD5"));
+		String digestHeader = requestHeaders.getFirst("Digest");
+		if (digestHeader != null) {
+			for (String instance : digestHeader.split(",")) {
+				int separator = instance.indexOf('=');
+				if (separator < 1) {
+					throw new IllegalArgumentException("Malformed Digest header: " + digestHeader);
+				}
+				String algorithm = instance.substring(0, separator).trim();
+				if (SHA_256.equalsIgnoreCase(algorithm)) {
+					sha = decode(instance.substring(separator + 1));
+				} else if (MD5.equalsIgnoreCase(algorithm)) {
+					md = decode(instance.substring(separator + 1));
+				}
+			}
+		}
+		expectedSha256 = sha;
+		expectedMd5 = md;
+		md5 = md == null ? null : newDigest(MD5);
+	}
+
+	/**
+	 * @return Stream which updates digest with everything read through it.
+	 */
+	InputStream wrap(InputStream inputStream) {
+		InputStream is = new DigestInputStream(inputStream, sha256);
+		return md5 == null ? is : new DigestInputStream(is, md5);
+	}
+
+	void update(byte[] data, int offset, int length) {
+		sha256.update(data, offset, length);
+		if (md5 != null) {
+			md5.update(data, offset, length);
+		}
+	}
+
+	/**
+	 * Finishes digest and compares it with values sent by client. Has to be called once, after all data is read.
+	 *
+	 * @return SHA-256 of data (hex).
+	 * @throws IllegalArgumentException
+	 *             When data does not match digest sent by client.
+	 */
+	String verify() {
+		byte[] sha = sha256.digest();
+		if (expectedSha256 != null && !Arrays.equals(sha, expectedSha256)) {
+			throw new IllegalArgumentException("SHA-256 digest mismatch, data corrupted in transfer.");
+		}
+		if (md5 != null && !Arrays.equals(md5.digest(), expectedMd5)) {
+			throw new IllegalArgumentException("MD5 digest mismatch, data corrupted in transfer.");
+		}
+		return new String(Hex.encodeHex(sha));
+	}
+
+	/**
+	 * @return Digest header value (RFC 3230) for stored SHA-256 (hex).
+	 */
+	static String toDigestHeader(String sha256Hex) {
+		try {
+			byte[] sha = Hex.decodeHex(sha256Hex.toCharArray());
+			return SHA_256 + "=" + new String(Base64.encodeBase64(sha), StandardCharsets.US_ASCII);
+		} catch (DecoderException e) {
+			throw new IllegalStateException("Invalid stored digest: " + sha256Hex, e);
+		}
+	}
+
+	private static byte[] decode(String base64) {
+		if (base64 == null) {
+			return null;
+		}
+		byte[] bytes = base64.trim().getBytes(StandardCharsets.US_ASCII);
+		if (!Base64.isArrayByteBase64(bytes)) {
+			throw new IllegalArgumentException("Digest is not Base64 encoded: " + base64);
+		}
+		return Base64.decodeBase64(bytes);
+	}
+
+	private static MessageDigest newDigest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has to support MD5 and SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.handlers;
+
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Recent Idempotency-Key headers of uploads with ids of entries they added, so retried upload gets id of the original
+ * entry instead of adding the data again. Keys are kept per job in bounded LRU map, older keys have to be looked up in
+ * job database. Upload with key which is being processed by other request waits for it.
+ */
+final class IdempotencyKeys {
+	private final Map<String, Long> recent;
+	private final ConcurrentHashMap<String, CountDownLatch> inProgress = new ConcurrentHashMap<>();
+
+	/**
+	 * @param capacity
+	 *            Maximum number of keys kept.
+	 */
+	IdempotencyKeys(final int capacity) {
+		recent = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Starts upload with given key. If other upload with the same key is in progress, waits until it ends.
+	 *
+	 * @return Id of entry added with this key or -1 if key is not known: caller processes the upload and has to call
+	 *         {@link #finish(long, String, long)}.
+	 * @throws InterruptedIOException
+	 *             When interrupted while waiting.
+	 */
+	long begin(long jobId, String key) throws InterruptedIOException {
+		String jobKey = jobId + "/" + key;
+		CountDownLatch latch = new CountDownLatch(1);
+		while (true) {
+			Long entryId = getRecent(jobKey);
+			if (entryId != null) {
+				return entryId;
+			}
+			CountDownLatch other = inProgress.putIfAbsent(jobKey, latch);
+			if (other == null) {
+				// Other upload could have finished in the meantime.
+				entryId = getRecent(jobKey);
+				if (entryId != null) {
+					inProgress.remove(jobKey, latch);
+					latch.countDown();
+					return entryId;
+				}
+				return -1;
+			}
+			try {
+				other.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for upload with the same key.");
+			}
+		}
+	}
+
+	/**
+	 * Ends upload started with {@link #begin(long, String)}.
+	 *
+	 * @param entryId
+	 *            Id of entry added with the key or -1 if upload failed.
+	 */
+	void finish(long jobId, String key, long entryId) {
+		String jobKey = jobId + "/" + key;
+		if (entryId >= 0) {
+			synchronized (recent) {
+				recent.put(jobKey, entryId);
+			}
+		}
+		CountDownLatch latch = inProgress.remove(jobKey);
+		if (latch != null) {
+			latch.countDown();
+		}
+	}
+
+	private Long getRecent(String jobKey) {
+		synchronized (recent) {
+			return recent.get(jobKey);
+		}
+	}
+}
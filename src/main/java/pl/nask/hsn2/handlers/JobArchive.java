@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.handlers;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import pl.nask.hsn2.BufferPool;
+
+/**
+ * Job archive: all entries of job in one stream. Format (numbers big endian): {@link #MAGIC}, highest entry id in
+ * archive (so importer can reserve ids before any entry is stored), then for every entry its id, data length and data,
+ * ended with id {@link #END_MARKER}. Exported entries are written in id order. Archives of first version
+ * ({@link #MAGIC_V1}, without highest entry id) are still read.
+ */
+final class JobArchive {
+	static final String CONTENT_TYPE = "application/x-hsn2-job-archive";
+	private static final byte[] MAGIC = "HSN2JA02".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] MAGIC_V1 = "HSN2JA01".getBytes(StandardCharsets.US_ASCII);
+	/**
+	 * Highest entry id of first version archive (unknown).
+	 */
+	static final long UNKNOWN_MAX_ID = -1;
+	private static final long END_MARKER = -1;
+	private static final int LONG_BYTES = Long.SIZE / Byte.SIZE;
+
+	private JobArchive() {
+	}
+
+	/**
+	 * Writes archive. Header fields and entry data are gathered in one pooled buffer, which is written to output when it
+	 * is full.
+	 */
+	static final class Writer {
+		private final OutputStream out;
+		private final BufferPool pool;
+		private byte[] buffer;
+		private int position;
+		private long entries;
+
+		/**
+		 * @param maxEntryId
+		 *            Highest id of entries which will be written.
+		 */
+		Writer(OutputStream outputStream, long maxEntryId, BufferPool bufferPool) throws IOException {
+			out = outputStream;
+			pool = bufferPool;
+			buffer = bufferPool.getBufferSize() < LONG_BYTES ? new byte[LONG_BYTES] : bufferPool.acquire();
+			System.arraycopy(MAGIC, 0, buffer, 0, MAGIC.length);
+			position = MAGIC.length;
+			writeLong(maxEntryId);
+		}
+
+		void writeEntry(long entryId, long length, InputStream data) throws IOException {
+			writeLong(entryId);
+			writeLong(length);
+			long remaining = length;
+			while (remaining > 0) {
+				if (position == buffer.length) {
+					flushBuffer();
+				}
+				int count = data.read(buffer, position, (int) Math.min(buffer.length - position, remaining));
+				if (count < 0) {
+					throw new EOFException("Entry data shorter than its length. (entryId=" + entryId + ")");
+				}
+				position += count;
+				remaining -= count;
+			}
+			entries++;
+		}
+
+		/**
+		 * @return Number of written entries.
+		 */
+		long getEntriesCount() {
+			return entries;
+		}
+
+		/**
+		 * Writes end of archive and gives buffer back to the pool (if writing fails before, buffer is left to garbage
+		 * collector).
+		 */
+		void finish() throws IOException {
+			writeLong(END_MARKER);
+			flushBuffer();
+			out.flush();
+			pool.release(buffer);
+			buffer = null;
+		}
+
+		private void writeLong(long value) throws IOException {
+			if (buffer.length - position < LONG_BYTES) {
+				flushBuffer();
+			}
+			for (int shift = Long.SIZE - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+				buffer[position++] = (byte) (value >>> shift);
+			}
+		}
+
+		private void flushBuffer() throws IOException {
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+	/**
+	 * Reads archive entry by entry. Data of current entry has to be read before next entry.
+	 */
+	static final class Reader {
+		private final DataInputStream in;
+		private final long maxEntryId;
+		private long entryId;
+		private long length;
+		private long remaining;
+
+		/**
+		 * @param inputStream
+		 *            Buffered stream of archive (header fields are read in small pieces).
+		 * @throws IllegalArgumentException
+		 *             When stream is not job archive.
+		 */
+		Reader(InputStream inputStream) throws IOException {
+			in = new DataInputStream(inputStream);
+			byte[] magic = new byte[MAGIC.length];
+			try {
+				in.readFully(magic);
+			} catch (EOFException e) {
+				throw new IllegalArgumentException("Not a job archive (too short).", e);
+			}
+			if (Arrays.equals(magic, MAGIC)) {
+				maxEntryId = in.readLong();
+			} else if (Arrays.equals(magic, MAGIC_V1)) {
+				maxEntryId = UNKNOWN_MAX_ID;
+			} else {
+				throw new IllegalArgumentException("Not a job archive (unknown format).");
+			}
+		}
+
+		/**
+		 * @return Highest entry id in archive, {@link #UNKNOWN_MAX_ID} for first version archive.
+		 */
+		long getMaxEntryId() {
+			return maxEntryId;
+		}
+
+		/**
+		 * Moves to next entry.
+		 *
+		 * @return {@code false} if there are no more entries.
+		 */
+		boolean next() throws IOException {
+			if (remaining > 0) {
+				throw new IllegalStateException("Entry data not read. (entryId=" + entryId + ")");
+			}
+			entryId = in.readLong();
+			if (entryId == END_MARKER) {
+				return false;
+			}
+			length = in.readLong();
+			if (entryId < 0 || length < 0 || maxEntryId != UNKNOWN_MAX_ID && entryId > maxEntryId) {
+				throw new IllegalArgumentException("Corrupted job archive. (entryId=" + entryId + ", length=" + length + ")");
+			}
+			remaining = length;
+			return true;
+		}
+
+		long getEntryId() {
+			return entryId;
+		}
+
+		long getLength() {
+			return length;
+		}
+
+		/**
+		 * @return Data of current entry, stream ends with entry.
+		 */
+		InputStream getData() {
+			return new InputStream() {
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					if (remaining <= 0) {
+						return -1;
+					}
+					int count = in.read(b, off, (int) Math.min(len, remaining));
+					if (count < 0) {
+						throw new EOFException("Job archive truncated. (entryId=" + entryId + ")");
+					}
+					remaining -= count;
+					return count;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.DataStore;
+
+/**
+ * Pool of prepared job databases. Template database (with job data table) is created once, background thread keeps
+ * given number of its copies ready in every data directory. New job database is claimed by linking prepared file under
+ * job database name, so the first upload of a job does not create any table.
+ */
+class JobDbPool implements Runnable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(JobDbPool.class);
+	/**
+	 * Pool directory inside data directory (link works only within one file system).
+	 */
+	private static final String POOL_DIR_NAME = "prepared";
+	private static final String TEMPLATE_NAME = "template";
+	private static final String PREPARED_PREFIX = "prepared-";
+	private static final String DB_FILE_SUFFIX = ".h2.db";
+	private final int size;
+	private final String dbPassword;
+	private final Map<File, BlockingQueue<Path>> ready = new HashMap<>();
+	/**
+	 * Data directories which need one more prepared database.
+	 */
+	private final LinkedBlockingQueue<File> refills = new LinkedBlockingQueue<>();
+	private final AtomicLong uniqueSuffix = new AtomicLong(System.currentTimeMillis());
+	private final AtomicLong misses = new AtomicLong();
+	private Path template;
+	private Thread thread;
+
+	/**
+	 * Creates new pool.
+	 *
+	 * @param poolSize
+	 *            Number of databases kept ready in every data directory.
+	 * @param password
+	 *            Job database password.
+	 */
+	JobDbPool(int poolSize, String password) {
+		size = poolSize;
+		dbPassword = password;
+	}
+
+	/**
+	 * Creates template database, reuses databases prepared before restart and starts background preparing.
+	 */
+	final synchronized void start() throws IOException, SQLException {
+		List<File> dataDirs = DataStore.getDataPlacement().getDataDirs();
+		for (File dataDir : dataDirs) {
+			BlockingQueue<Path> queue = new ArrayBlockingQueue<>(size);
+			Path poolDir = getPoolDir(dataDir);
+			Files.createDirectories(poolDir);
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(poolDir)) {
+				for (Path path : files) {
+					String name = path.getFileName().toString();
+					boolean prepared = name.startsWith(PREPARED_PREFIX) && name.endsWith(DB_FILE_SUFFIX);
+					if (!prepared || !queue.offer(path)) {
+						// Old template, unfinished copy or pool has been shrunk.
+						Files.delete(path);
+					}
+				}
+			}
+			ready.put(dataDir, queue);
+			for (int i = queue.remainingCapacity(); i > 0; i--) {
+				refills.add(dataDir);
+			}
+		}
+		File templateDir = getPoolDir(dataDirs.get(0)).toFile();
+		try (Connection h2Connection = DriverManager.getConnection("jdbc:h2:" + new File(templateDir, TEMPLATE_NAME) + ";LOG=0",
+				"sa", dbPassword)) {
+			DataHandler.createTables(h2Connection);
+		}
+		template = templateDir.toPath().resolve(TEMPLATE_NAME + DB_FILE_SUFFIX);
+		thread = new Thread(this, "JobDbPool");
+		thread.setDaemon(true);
+		thread.start();
+		LOGGER.info("Job database pool started. (dataDirs={}, size={}, toPrepare={})", new Object[] { dataDirs.size(), size,
+				refills.size() });
+	}
+
+	final synchronized void shutdown() {
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * Makes prepared database the database of given job. If pool is empty database is prepared at once. Nothing is done
+	 * if job database exists already (e.g. claimed by concurrent request).
+	 *
+	 * @param jobId
+	 *            Job id.
+	 * @throws IOException
+	 *             When prepared database could not be created or linked.
+	 */
+	final void claim(long jobId) throws IOException {
+		File dataDir = DataStore.getDataPlacement().getDataDir(jobId);
+		BlockingQueue<Path> queue = ready.get(dataDir);
+		Path prepared = queue == null ? null : queue.poll();
+		if (prepared == null) {
+			long count = misses.incrementAndGet();
+			LOGGER.debug("Job database pool empty, preparing database on demand. (jobId={}, misses={})", jobId, count);
+			prepared = prepare(dataDir);
+		} else {
+			refills.add(dataDir);
+		}
+		Path dbFile = DataStore.getDbFile(jobId).toPath();
+		// Fan-out directory may not exist yet.
+		Files.createDirectories(dbFile.getParent());
+		try {
+			// Link fails when job database exists, while rename would silently replace it.
+			Files.createLink(dbFile, prepared);
+		} catch (FileAlreadyExistsException e) {
+			LOGGER.debug("Job database already exists. (jobId={})", jobId);
+			if (queue != null && queue.offer(prepared)) {
+				return;
+			}
+		}
+		Files.delete(prepared);
+	}
+
+	/**
+	 * @return Number of claims which found pool empty.
+	 */
+	final long getMissesCount() {
+		return misses.get();
+	}
+
+	@Override
+	public final void run() {
+		Path prepared = null;
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				File dataDir = refills.take();
+				prepared = prepare(dataDir);
+				if (!ready.get(dataDir).offer(prepared)) {
+					Files.delete(prepared);
+				}
+				prepared = null;
+			}
+		} catch (InterruptedException e) {
+			LOGGER.debug("Job database pool interrupted.");
+		} catch (IOException e) {
+			LOGGER.error("Could not prepare job database, pool stopped.", e);
+		}
+		if (prepared != null) {
+			try {
+				Files.deleteIfExists(prepared);
+			} catch (IOException e) {
+				LOGGER.warn("Could not delete prepared database: {}", prepared);
+			}
+		}
+		LOGGER.info("Job database pool stopped.");
+	}
+
+	/**
+	 * Copies template into pool directory of given data directory. Copy gets its final name when it is complete.
+	 */
+	private Path prepare(File dataDir) throws IOException {
+		String name = PREPARED_PREFIX + uniqueSuffix.incrementAndGet() + DB_FILE_SUFFIX;
+		Path poolDir = getPoolDir(dataDir);
+		Files.createDirectories(poolDir);
+		Path temp = poolDir.resolve(name + ".tmp");
+		Files.copy(template, temp);
+		return Files.move(temp, temp.resolveSibling(name), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static Path getPoolDir(File dataDir) {
+		return new File(dataDir, POOL_DIR_NAME).toPath();
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.handlers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.httpclient.HttpStatus;
+
+import pl.nask.hsn2.DataStore;
+import pl.nask.hsn2.JobCatalog;
+import pl.nask.hsn2.JobCatalog.JobInfo;
+import pl.nask.hsn2.JobCatalog.SortOrder;
+import pl.nask.hsn2.SnapshotRegistry;
+import pl.nask.hsn2.SnapshotRegistry.Snapshot;
+import pl.nask.hsn2.exceptions.JobNotFoundException;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Serves job catalog. {@code GET /jobs?sort=size&offset=0&limit=100} returns page of jobs (sort: id, size, lastWrite,
+ * lastRead), {@code GET /jobs/{jobId}} returns single job. Every job is one tab separated line: job id, size in bytes,
+ * entries number, creation time, last write time, last read time (times in ms since epoch, 0 means never).
+ * <p>
+ * {@code GET /jobs/{jobId}/export} streams all entries of job as job archive, {@code POST /jobs/{jobId}/import} stores
+ * entries of such archive keeping their ids. {@code POST /jobs/{jobId}/snapshot/{snapshotId}} takes point-in-time
+ * snapshot of job, which is read as job with snapshot id, {@code DELETE} on the same path removes it.
+ */
+@SuppressWarnings("restriction")
+public class JobsHandler extends AbstractHandler {
+	private static final int DEFAULT_LIMIT = 100;
+	private static final int MAX_LIMIT = 10000;
+	private static final int ARGS_NUMBER_FOR_OPERATION = 3;
+	private static final int ARGS_NUMBER_FOR_SNAPSHOT = 4;
+	private static final String HEADER_LINE = "jobId\tsize\tentries\tcreated\tlastWrite\tlastRead\n";
+	private final JobCatalog jobCatalog;
+	private final DataHandler dataHandler;
+
+	public JobsHandler(JobCatalog catalog) {
+		this(catalog, null);
+	}
+
+	/**
+	 * Creates handler.
+	 *
+	 * @param catalog
+	 *            Job catalog.
+	 * @param handler
+	 *            Data handler used for export and import of jobs, if {@code null} they are not available.
+	 */
+	public JobsHandler(JobCatalog catalog, DataHandler handler) {
+		jobCatalog = catalog;
+		dataHandler = handler;
+	}
+
+	@Override
+	protected final void handleRequest(HttpExchange exchange, URI uri, String requestMethod) throws IOException {
+		String[] args = uri.getPath().split("/");
+		try {
+			if (args.length > ARGS_NUMBER_FOR_OPERATION && dataHandler != null) {
+				handleJobOperation(exchange, args, requestMethod);
+				return;
+			}
+			if (!"GET".equalsIgnoreCase(requestMethod)) {
+				throw new UnsupportedOperationException("Unsupported method: " + requestMethod);
+			}
+			if (args.length > 2) {
+				handleGetJob(exchange, Long.parseLong(args[2]));
+			} else {
+				handleGetJobs(exchange, parseQuery(uri.getRawQuery()));
+			}
+		} catch (NumberFormatException e) {
+			handleError(exchange, HttpStatus.SC_BAD_REQUEST, "Job id or paging parameter is not a number!", e);
+		} catch (IllegalArgumentException e) {
+			handleError(exchange, HttpStatus.SC_BAD_REQUEST, e);
+		} catch (IllegalStateException e) {
+			handleError(exchange, HttpStatus.SC_CONFLICT, e);
+		} catch (JobNotFoundException e) {
+			handleError(exchange, HttpStatus.SC_FORBIDDEN, e);
+		} catch (SQLException e) {
+			handleError(exchange, HttpStatus.SC_INTERNAL_SERVER_ERROR, e);
+		}
+	}
+
+	private void handleJobOperation(HttpExchange exchange, String[] args, String requestMethod) throws IOException,
+			JobNotFoundException, SQLException {
+		long jobId = Long.parseLong(args[2]);
+		String operation = args[ARGS_NUMBER_FOR_OPERATION];
+		if (dataHandler.routeToOwner(exchange, jobId)) {
+			return;
+		}
+		if ("export".equals(operation) && "GET".equalsIgnoreCase(requestMethod)) {
+			LOGGER.info("Export of job {}", jobId);
+			// Fails before response is sent when job does not exist.
+			exchange.getResponseHeaders().set("Content-Type", JobArchive.CONTENT_TYPE);
+			long count = dataHandler.exportJob(jobId, new HeadersSendingOutputStream(exchange));
+			LOGGER.info("Job exported. (jobId={}, entries={})", jobId, count);
+		} else if ("import".equals(operation) && "POST".equalsIgnoreCase(requestMethod)) {
+			if (dataHandler.isReadOnly() || DataHandler.isSnapshot(jobId)) {
+				handleError(exchange, HttpStatus.SC_METHOD_NOT_ALLOWED, "Read-only replica or snapshot.", null);
+				return;
+			}
+			long count = dataHandler.importJob(jobId, exchange.getRequestBody());
+			sendText(exchange, "Imported entries: " + count);
+		} else if ("snapshot".equals(operation) && args.length > ARGS_NUMBER_FOR_SNAPSHOT) {
+			handleSnapshot(exchange, jobId, Long.parseLong(args[ARGS_NUMBER_FOR_SNAPSHOT]), requestMethod);
+		} else {
+			throw new UnsupportedOperationException("Unsupported job operation: " + requestMethod + " " + operation);
+		}
+	}
+
+	private void handleGetJob(HttpExchange exchange, long jobId) throws IOException, JobNotFoundException {
+		JobInfo info = jobCatalog.getJob(jobId);
+		if (info == null) {
+			throw new JobNotFoundException("Job not found (id=" + jobId + ")");
+		}
+		StringBuilder sb = new StringBuilder(HEADER_LINE);
+		appendJob(sb, info);
+		sendText(exchange, sb.toString());
+	}
+
+	private void handleGetJobs(HttpExchange exchange, Map<String, String> params) throws IOException {
+		int offset = params.containsKey("offset") ? Integer.parseInt(params.get("offset")) : 0;
+		int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : DEFAULT_LIMIT;
+		if (offset < 0 || limit < 0 || limit > MAX_LIMIT) {
+			throw new IllegalArgumentException("Invalid paging parameters. (offset=" + offset + ", limit=" + limit + ", max limit="
+					+ MAX_LIMIT + ")");
+		}
+		SortOrder order = parseSortOrder(params.get("sort"));
+
+		List<JobInfo> jobs = jobCatalog.getJobs(order, offset, limit);
+		StringBuilder sb = new StringBuilder(HEADER_LINE);
+		for (JobInfo info : jobs) {
+			appendJob(sb, info);
+		}
+		exchange.getResponseHeaders().set("X-Total-Count", String.valueOf(jobCatalog.getJobsCount()));
+		sendText(exchange, sb.toString());
+	}
+
+	private void handleSnapshot(HttpExchange exchange, long jobId, long snapshotId, String requestMethod)
+			throws IOException, JobNotFoundException {
+		SnapshotRegistry registry = DataStore.getSnapshotRegistry();
+		if ("POST".equalsIgnoreCase(requestMethod)) {
+			if (dataHandler.isReadOnly()) {
+				// Replicated entries may arrive in any id order.
+				handleError(exchange, HttpStatus.SC_METHOD_NOT_ALLOWED, "Read-only replica, create snapshot on primary.", null);
+				return;
+			}
+			Snapshot snapshot = dataHandler.createSnapshot(jobId, snapshotId);
+			exchange.getResponseHeaders().set("Location", "/data/" + snapshotId);
+			sendText(exchange, HttpStatus.SC_CREATED, "Snapshot created with last entry id: " + snapshot.getLastEntryId());
+		} else if ("DELETE".equalsIgnoreCase(requestMethod)) {
+			if (dataHandler.isReadOnly()) {
+				handleError(exchange, HttpStatus.SC_METHOD_NOT_ALLOWED, "Read-only replica, remove snapshot on primary.", null);
+				return;
+			}
+			if (!registry.remove(jobId, snapshotId)) {
+				throw new JobNotFoundException("Snapshot not found (id=" + snapshotId + ", jobId=" + jobId + ")");
+			}
+			sendText(exchange, "Snapshot removed.");
+		} else {
+			throw new UnsupportedOperationException("Unsupported method: " + requestMethod);
+		}
+	}
+
+	private static SortOrder parseSortOrder(String sort) {
+		if (sort == null || "id".equals(sort)) {
+			return SortOrder.ID;
+		} else if ("size".equals(sort)) {
+			return SortOrder.SIZE;
+		} else if ("lastWrite".equals(sort)) {
+			return SortOrder.LAST_WRITE;
+		} else if ("lastRead".equals(sort)) {
+			return SortOrder.LAST_READ;
+		} else {
+			throw new IllegalArgumentException("Unknown sort order: " + sort);
+		}
+	}
+
+	private static void appendJob(StringBuilder sb, JobInfo info) {
+		sb.append(info.getJobId()).append('\t').append(info.getSize()).append('\t').append(info.getEntries()).append('\t')
+				.append(info.getCreated()).append('\t').append(info.getLastWrite()).append('\t').append(info.getLastRead())
+				.append('\n');
+	}
+
+	private static void sendText(HttpExchange exchange, String text) throws IOException {
+		sendText(exchange, HttpStatus.SC_OK, text);
+	}
+
+	private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+		byte[] bytes = text.getBytes();
+		exchange.sendResponseHeaders(status, bytes.length);
+		exchange.getResponseBody().write(bytes);
+	}
+
+	/**
+	 * Sends response headers (unknown length) before first byte of body, so error found earlier can still be reported
+	 * with proper status.
+	 */
+	private static final class HeadersSendingOutputStream extends OutputStream {
+		private final HttpExchange exchange;
+		private OutputStream body;
+
+		private HeadersSendingOutputStream(HttpExchange exchange) {
+			this.exchange = exchange;
+		}
+
+		private OutputStream body() throws IOException {
+			if (body == null) {
+				exchange.sendResponseHeaders(HttpStatus.SC_OK, 0);
+				body = exchange.getResponseBody();
+			}
+			return body;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			body().write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			body().write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			body().flush();
+		}
+	}
+}
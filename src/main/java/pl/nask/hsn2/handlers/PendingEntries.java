@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.handlers;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import pl.nask.hsn2.DataStore;
+
+/**
+ * Entry ids given to uploads which are not committed yet. Id is given before upload body is read, so entry with lower
+ * id may be committed after entry with higher id. Snapshot must not include ids which are still pending, otherwise
+ * entry would appear in it after it has been taken.
+ */
+final class PendingEntries {
+	/**
+	 * Pending ids by job id.
+	 */
+	private final Map<Long, SortedSet<Long>> jobs = new HashMap<>();
+
+	/**
+	 * Gives new entry id and marks it pending.
+	 */
+	synchronized long begin(long jobId) throws IOException {
+		long entryId = DataStore.updateIdCount();
+		SortedSet<Long> ids = jobs.get(jobId);
+		if (ids == null) {
+			ids = new TreeSet<>();
+			jobs.put(jobId, ids);
+		}
+		ids.add(entryId);
+		return entryId;
+	}
+
+	/**
+	 * Marks id as no longer pending (entry committed or upload failed).
+	 */
+	synchronized void end(long jobId, long entryId) {
+		SortedSet<Long> ids = jobs.get(jobId);
+		if (ids != null && ids.remove(entryId) && ids.isEmpty()) {
+			jobs.remove(jobId);
+		}
+	}
+
+	/**
+	 * @return Highest id up to which all entries of job given so far are committed (or failed).
+	 */
+	synchronized long getCommittedLimit(long jobId) {
+		SortedSet<Long> ids = jobs.get(jobId);
+		return ids == null ? DataStore.getLastAssignedId() : ids.first() - 1;
+	}
+}
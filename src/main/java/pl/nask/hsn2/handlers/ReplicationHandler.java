@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.handlers;
+
+import java.io.IOException;
+import java.net.URI;
+
+import org.apache.commons.httpclient.HttpStatus;
+
+import pl.nask.hsn2.ReplicationFollower;
+import pl.nask.hsn2.ReplicationPublisher;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Serves replication status: {@code GET /replication} returns tab separated lines with lag of every follower (on
+ * primary) or of this follower.
+ */
+@SuppressWarnings("restriction")
+public class ReplicationHandler extends AbstractHandler {
+	private final ReplicationPublisher publisher;
+	private final ReplicationFollower follower;
+
+	public ReplicationHandler(ReplicationPublisher publisher) {
+		this(publisher, null);
+	}
+
+	public ReplicationHandler(ReplicationFollower follower) {
+		this(null, follower);
+	}
+
+	private ReplicationHandler(ReplicationPublisher publisher, ReplicationFollower follower) {
+		this.publisher = publisher;
+		this.follower = follower;
+	}
+
+	@Override
+	protected final void handleRequest(HttpExchange exchange, URI uri, String requestMethod) throws IOException {
+		if (!"GET".equalsIgnoreCase(requestMethod)) {
+			throw new UnsupportedOperationException("Unsupported method: " + requestMethod);
+		}
+		byte[] bytes = (publisher != null ? publisher.getStatus() : follower.getStatus()).getBytes();
+		exchange.sendResponseHeaders(HttpStatus.SC_OK, bytes.length);
+		exchange.getResponseBody().write(bytes);
+	}
+}
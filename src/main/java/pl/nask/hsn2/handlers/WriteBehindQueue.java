@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.handlers;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.DataStore;
+
+/**
+ * Write-behind pipeline for small uploads. Request threads queue payloads per job, one writer at a time drains job
+ * queue and inserts everything waiting in single transaction, then wakes all waiting requests. Bursts of tiny uploads
+ * to the same job end up in few commits instead of one commit per upload.
+ */
+class WriteBehindQueue {
+	private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindQueue.class);
+	private final DataHandler dataHandler;
+	private final ConcurrentMap<Long, JobQueue> jobs = new ConcurrentHashMap<>();
+	private final ExecutorService writers;
+
+	/**
+	 * Creates new pipeline.
+	 *
+	 * @param handler
+	 *            Handler used to open job databases.
+	 * @param threads
+	 *            Number of writer threads (jobs written at the same time).
+	 */
+	WriteBehindQueue(DataHandler handler, int threads) {
+		dataHandler = handler;
+		writers = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Queues entry and waits until it is committed.
+	 *
+	 * @param jobId
+	 *            Job id.
+	 * @param entryId
+	 *            Entry id.
+	 * @param data
+	 *            Entry data.
+	 * @param digest
+	 *            SHA-256 of entry data (hex).
+	 * @param requestKey
+	 *            Idempotency-Key of upload, may be {@code null}.
+	 * @throws SQLException
+	 *             When batch the entry belongs to could not be inserted.
+	 */
+	final void write(long jobId, long entryId, byte[] data, String digest, String requestKey) throws SQLException {
+		PendingWrite write = new PendingWrite(entryId, data, digest, requestKey);
+		while (true) {
+			JobQueue queue = jobs.get(jobId);
+			if (queue == null) {
+				queue = new JobQueue(jobId);
+				JobQueue old = jobs.putIfAbsent(jobId, queue);
+				if (old != null) {
+					queue = old;
+				}
+			}
+			if (queue.add(write)) {
+				break;
+			}
+			// Queue has just been retired by its writer, new one is needed.
+		}
+		write.await();
+	}
+
+	final void shutdown() {
+		writers.shutdown();
+	}
+
+	/**
+	 * Writes batch in one transaction.
+	 */
+	private void insert(long jobId, List<PendingWrite> batch) throws SQLException {
+		Lock jobLock = DataStore.getDataPlacement().getJobLock(jobId);
+		jobLock.lock();
+		try (Connection h2Connection = dataHandler.createNewDatabaseIfNeeded(jobId)) {
+			h2Connection.setAutoCommit(false);
+			try (PreparedStatement statement = DataHandler.prepareUpgrading(h2Connection,
+					"INSERT INTO JOB_DATA (ID, DATA, DIGEST, REQUEST_KEY) VALUES(?, ?, ?, ?)")) {
+				for (PendingWrite write : batch) {
+					statement.setLong(1, write.entryId);
+					statement.setBytes(2, write.data);
+					statement.setString(3, write.digest);
+					statement.setString(4, write.requestKey);
+					statement.addBatch();
+				}
+				statement.executeBatch();
+				h2Connection.commit();
+			} catch (SQLException e) {
+				h2Connection.rollback();
+				throw e;
+			}
+		} finally {
+			jobLock.unlock();
+		}
+	}
+
+	/**
+	 * Queue of one job. It is scheduled on writers pool when first write arrives and retired when writer finds it empty.
+	 */
+	private final class JobQueue implements Runnable {
+		private final long jobId;
+		private List<PendingWrite> pending = new ArrayList<>();
+		private boolean scheduled;
+		private boolean retired;
+
+		private JobQueue(long id) {
+			jobId = id;
+		}
+
+		/**
+		 * @return {@code False} if queue is retired and write has not been added.
+		 */
+		private synchronized boolean add(PendingWrite write) {
+			if (retired) {
+				return false;
+			}
+			pending.add(write);
+			if (!scheduled) {
+				scheduled = true;
+				try {
+					writers.execute(this);
+				} catch (RejectedExecutionException e) {
+					pending.remove(write);
+					scheduled = false;
+					write.complete(new SQLException("Write pipeline is stopped.", e));
+				}
+			}
+			return true;
+		}
+
+		private synchronized List<PendingWrite> takeBatch() {
+			List<PendingWrite> batch = pending;
+			if (batch.isEmpty()) {
+				retired = true;
+				jobs.remove(jobId, this);
+			} else {
+				pending = new ArrayList<>();
+			}
+			return batch;
+		}
+
+		@Override
+		public void run() {
+			List<PendingWrite> batch = takeBatch();
+			while (!batch.isEmpty()) {
+				SQLException failure = null;
+				try {
+					insert(jobId, batch);
+					LOGGER.debug("Batch of {} entries written. (jobId={})", batch.size(), jobId);
+				} catch (SQLException e) {
+					LOGGER.error("Batch write failed. (jobId=" + jobId + ")", e);
+					failure = e;
+				}
+				for (PendingWrite write : batch) {
+					write.complete(failure);
+				}
+				batch = takeBatch();
+			}
+		}
+	}
+
+	private static final class PendingWrite {
+		private final long entryId;
+		private final byte[] data;
+		private final String digest;
+		private final String requestKey;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile SQLException failure;
+
+		private PendingWrite(long id, byte[] bytes, String dataDigest, String key) {
+			entryId = id;
+			data = bytes;
+			digest = dataDigest;
+			requestKey = key;
+		}
+
+		private void complete(SQLException e) {
+			failure = e;
+			done.countDown();
+		}
+
+		private void await() throws SQLException {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for write.", e);
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AccessLogTest {
+	private static final int PORT = 5574;
+
+	@Test
+	public void recordsWrittenInBatch() throws Exception {
+		StringWriter writer = new StringWriter();
+		AccessLog log = new AccessLog(writer, 16, 2);
+		log.record("GET", "/data/1/1", HttpStatus.SC_OK, System.currentTimeMillis(), 1500000);
+		log.record("POST", "/data/1", HttpStatus.SC_CREATED, System.currentTimeMillis(), 2000);
+		Assert.assertEquals(writer.toString(), "");
+
+		Assert.assertEquals(log.writeBatch(), 2);
+		String[] lines = writer.toString().split("\n");
+		Assert.assertEquals(lines.length, 2);
+		Assert.assertTrue(lines[0].endsWith(" GET /data/1/1 200 1500us"), lines[0]);
+		Assert.assertTrue(lines[1].endsWith(" POST /data/1 201 2us"), lines[1]);
+		Assert.assertEquals(log.writeBatch(), 0);
+	}
+
+	@Test
+	public void overloadSampledThenDropped() throws Exception {
+		StringWriter writer = new StringWriter();
+		AccessLog log = new AccessLog(writer, 8, 2);
+		for (int i = 0; i < 20; i++) {
+			log.record("GET", "/data/1/" + i, HttpStatus.SC_OK, System.currentTimeMillis(), 0);
+		}
+		// First half of buffer takes every request, second half every second one, the rest is dropped.
+		Assert.assertEquals(log.getSampledOutCount(), 4);
+		Assert.assertEquals(log.getDroppedCount(), 8);
+
+		Assert.assertEquals(log.writeBatch(), 8);
+		Assert.assertTrue(writer.toString().endsWith("# access log overloaded (sampledOut=4, dropped=8)\n"),
+				writer.toString());
+		log.record("GET", "/data/1/20", HttpStatus.SC_OK, System.currentTimeMillis(), 0);
+		Assert.assertEquals(log.writeBatch(), 1);
+		Assert.assertTrue(writer.toString().endsWith(" GET /data/1/20 200 0us\n"), writer.toString());
+	}
+
+	@Test
+	public void serverRequestsLogged() throws Exception {
+		StringWriter writer = new StringWriter();
+		DataStoreServer server = new DataStoreServer(PORT);
+		server.enableAccessLog(new AccessLog(writer));
+		server.start();
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + PORT + "/data/1501/1")
+					.openConnection();
+			Assert.assertEquals(connection.getResponseCode(), HttpStatus.SC_FORBIDDEN);
+			try (InputStream in = connection.getErrorStream()) {
+				Assert.assertTrue(IOUtils.toString(in).length() > 0);
+			}
+		} finally {
+			server.close();
+		}
+		Assert.assertTrue(writer.toString().contains(" GET /data/1501/1 403 "), writer.toString());
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class BufferPoolTest {
+
+	@Test
+	public void buffersReused() {
+		BufferPool pool = new BufferPool(16, 1);
+		byte[] first = pool.acquire();
+		byte[] second = pool.acquire();
+		Assert.assertEquals(first.length, 16);
+		Assert.assertEquals(pool.getMissesCount(), 2);
+
+		pool.release(first);
+		// Over idle limit.
+		pool.release(second);
+		// Other size.
+		pool.release(new byte[8]);
+		Assert.assertSame(pool.acquire(), first);
+		Assert.assertEquals(pool.getHitsCount(), 1);
+		Assert.assertNotSame(pool.acquire(), second);
+		Assert.assertEquals(pool.getMissesCount(), 3);
+	}
+
+	@Test
+	public void copy() throws Exception {
+		BufferPool pool = new BufferPool(1024, 4);
+		byte[] data = randomData(10000);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assert.assertEquals(pool.copy(new ByteArrayInputStream(data), out), data.length);
+		Assert.assertTrue(Arrays.equals(out.toByteArray(), data));
+		pool.copy(new ByteArrayInputStream(data), new ByteArrayOutputStream());
+		Assert.assertEquals(pool.getMissesCount(), 1);
+		Assert.assertEquals(pool.getHitsCount(), 1);
+	}
+
+	@Test
+	public void bufferedStream() throws Exception {
+		BufferPool pool = new BufferPool(1024, 4);
+		byte[] data = randomData(5000);
+		InputStream in = pool.buffered(new ByteArrayInputStream(data));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(in.read());
+		byte[] small = new byte[100];
+		int count = in.read(small);
+		out.write(small, 0, count);
+		byte[] big = new byte[2048];
+		while ((count = in.read(big, 0, big.length)) >= 0) {
+			out.write(big, 0, count);
+		}
+		Assert.assertTrue(Arrays.equals(out.toByteArray(), data));
+		Assert.assertEquals(in.read(), -1);
+
+		// Buffer has been given back at the end of stream.
+		pool.acquire();
+		Assert.assertEquals(pool.getHitsCount(), 1);
+		Assert.assertEquals(pool.getMissesCount(), 1);
+	}
+
+	private static byte[] randomData(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+}
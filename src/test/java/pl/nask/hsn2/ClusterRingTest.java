@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.ClusterRing.Node;
+import pl.nask.hsn2.client.DataStoreClient;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+@SuppressWarnings("restriction")
+public class ClusterRingTest {
+	private static final int PORT = 5564;
+	private static final int OTHER_NODE_PORT = 5565;
+	private static final int FIRST_NODE_PORT = 5575;
+	private static final int SECOND_NODE_PORT = 5576;
+
+	@Test
+	public void configFile() throws Exception {
+		Path config = Files.createTempFile("cluster-", ".conf");
+		try (PrintWriter writer = new PrintWriter(config.toFile())) {
+			writer.println("# Test cluster");
+			writer.println("node1 localhost:8080");
+			writer.println("node2   localhost:8081");
+			writer.println("node3 localhost:8082");
+		}
+		ClusterRing ring = new ClusterRing(config.toString(), "node2");
+		Assert.assertEquals(ring.getNodes().size(), 3);
+		Assert.assertEquals(ring.getLocalNode().getUrl(), "http://localhost:8081");
+
+		int local = 0;
+		for (long jobId = 1; jobId <= 3000; jobId++) {
+			if (ring.isLocal(jobId)) {
+				local++;
+			}
+		}
+		Assert.assertTrue(local > 700 && local < 1300, "Uneven ring: " + local);
+
+		try {
+			new ClusterRing(config.toString(), "node4");
+			Assert.fail("Unknown local node accepted.");
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage().contains("node4"));
+		} finally {
+			Files.delete(config);
+		}
+	}
+
+	@Test
+	public void requestsRoutedToOwner() throws Exception {
+		ClusterRing ring = new ClusterRing(Arrays.asList(new Node("a", "localhost", PORT), new Node("b", "localhost",
+				OTHER_NODE_PORT)), "a");
+		long localJob = 1;
+		while (!ring.isLocal(localJob)) {
+			localJob++;
+		}
+		long remoteJob = 1;
+		while (ring.isLocal(remoteJob)) {
+			remoteJob++;
+		}
+
+		// Other node only records forwarded request.
+		final AtomicReference<String> forwarded = new AtomicReference<>();
+		HttpServer otherNode = HttpServer.create(new InetSocketAddress(OTHER_NODE_PORT), 0);
+		otherNode.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				forwarded.set(exchange.getRequestMethod() + " " + exchange.getRequestURI() + " "
+						+ exchange.getRequestHeaders().getFirst("X-HSN2-Forwarded-By") + " "
+						+ IOUtils.toString(exchange.getRequestBody()));
+				exchange.getResponseHeaders().set("Content-ID", "77");
+				exchange.sendResponseHeaders(201, 2);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write("ok".getBytes());
+				}
+			}
+		});
+		otherNode.start();
+		DataStoreServer server = new DataStoreServer(PORT);
+		server.enableCluster(ring, false);
+		server.start();
+		try {
+			HttpURLConnection connection = post("/data/" + remoteJob, "forward me");
+			Assert.assertEquals(connection.getResponseCode(), 201);
+			Assert.assertEquals(connection.getHeaderField("Content-ID"), "77");
+			Assert.assertEquals(forwarded.get(), "POST /data/" + remoteJob + " a forward me");
+
+			// Local job is stored here.
+			forwarded.set(null);
+			connection = post("/data/" + localJob, "keep me");
+			Assert.assertEquals(connection.getResponseCode(), 201);
+			Assert.assertNull(forwarded.get());
+			Assert.assertTrue(DataStore.isDbFileExists(localJob));
+
+			server.enableCluster(ring, true);
+			connection = (HttpURLConnection) new URL("http://localhost:" + PORT + "/data/" + remoteJob + "/5").openConnection();
+			connection.setInstanceFollowRedirects(false);
+			Assert.assertEquals(connection.getResponseCode(), 307);
+			Assert.assertEquals(connection.getHeaderField("Location"), "http://localhost:" + OTHER_NODE_PORT + "/data/"
+					+ remoteJob + "/5");
+		} finally {
+			server.close();
+			otherNode.stop(0);
+			Files.deleteIfExists(DataStore.getDbFile(localJob).toPath());
+		}
+	}
+
+	@Test
+	public void offerForwardedToOwner() throws Exception {
+		DataStoreServer[] nodes = startTwoNodes();
+		long jobId = getJobOfSecondNode(1601);
+		try (DataStoreClient client = new DataStoreClient("http://localhost:" + FIRST_NODE_PORT + "/", 1)) {
+			byte[] data = "offered through other node".getBytes();
+			String sha256 = new String(Hex.encodeHex(MessageDigest.getInstance("SHA-256").digest(data)));
+			Assert.assertEquals(client.offer(jobId, sha256, data.length), -1);
+			long stored = client.post(jobId, new ByteArrayInputStream(data));
+			long copy = client.offer(jobId, sha256, data.length);
+			Assert.assertTrue(copy > stored);
+			Assert.assertTrue(Arrays.equals(client.get(jobId, copy), data));
+		} finally {
+			stopNodes(nodes);
+			Files.deleteIfExists(DataStore.getDbFile(jobId).toPath());
+		}
+	}
+
+	@Test
+	public void forwardedRetryIsIdempotent() throws Exception {
+		DataStoreServer[] nodes = startTwoNodes();
+		long jobId = getJobOfSecondNode(1701);
+		try {
+			String path = "/data/" + jobId;
+			HttpURLConnection first = post(path, "sent twice", "Idempotency-Key", "retry-1");
+			Assert.assertEquals(first.getResponseCode(), 201);
+			HttpURLConnection retry = post(path, "sent twice", "Idempotency-Key", "retry-1");
+			Assert.assertEquals(retry.getResponseCode(), 201);
+			Assert.assertEquals(retry.getHeaderField("Content-ID"), first.getHeaderField("Content-ID"));
+			Assert.assertEquals(retry.getHeaderField("Idempotent-Replayed"), "true");
+		} finally {
+			stopNodes(nodes);
+			Files.deleteIfExists(DataStore.getDbFile(jobId).toPath());
+		}
+	}
+
+	@Test
+	public void forwardedUploadVerified() throws Exception {
+		DataStoreServer[] nodes = startTwoNodes();
+		long jobId = getJobOfSecondNode(1801);
+		try {
+			String path = "/data/" + jobId;
+			byte[] data = "verified by owner".getBytes();
+			String md5 = new String(Base64.encodeBase64(MessageDigest.getInstance("MD5").digest(data)));
+			HttpURLConnection corrupted = post(path, "verified by 0wner", "Content-MD5", md5);
+			Assert.assertEquals(corrupted.getResponseCode(), 400);
+			HttpURLConnection uploaded = post(path, new String(data), "Content-MD5", md5);
+			Assert.assertEquals(uploaded.getResponseCode(), 201);
+
+			String sha256 = new String(Base64.encodeBase64(MessageDigest.getInstance("SHA-256").digest(data)));
+			HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + FIRST_NODE_PORT + path + "/"
+					+ uploaded.getHeaderField("Content-ID")).openConnection();
+			Assert.assertEquals(connection.getResponseCode(), 200);
+			Assert.assertEquals(connection.getHeaderField("Digest"), "SHA-256=" + sha256);
+			connection.getInputStream().close();
+		} finally {
+			stopNodes(nodes);
+			Files.deleteIfExists(DataStore.getDbFile(jobId).toPath());
+		}
+	}
+
+	/**
+	 * Starts two nodes forwarding to each other (on the same data directory).
+	 */
+	private static DataStoreServer[] startTwoNodes() throws IOException {
+		DataStoreServer[] nodes = { new DataStoreServer(FIRST_NODE_PORT), new DataStoreServer(SECOND_NODE_PORT) };
+		nodes[0].enableCluster(new ClusterRing(getTwoNodes(), "a"), false);
+		nodes[1].enableCluster(new ClusterRing(getTwoNodes(), "b"), false);
+		for (DataStoreServer node : nodes) {
+			node.start();
+		}
+		return nodes;
+	}
+
+	private static List<Node> getTwoNodes() {
+		return Arrays.asList(new Node("a", "localhost", FIRST_NODE_PORT), new Node("b", "localhost", SECOND_NODE_PORT));
+	}
+
+	private static long getJobOfSecondNode(long firstCandidate) throws IOException {
+		ClusterRing ring = new ClusterRing(getTwoNodes(), "b");
+		long jobId = firstCandidate;
+		while (!ring.isLocal(jobId)) {
+			jobId++;
+		}
+		return jobId;
+	}
+
+	private static void stopNodes(DataStoreServer[] nodes) throws SQLException {
+		for (DataStoreServer node : nodes) {
+			node.close();
+		}
+	}
+
+	private static HttpURLConnection post(String path, String body) throws IOException {
+		return post(PORT, path, body);
+	}
+
+	/**
+	 * Posts to first of two nodes with given request headers (name, value pairs).
+	 */
+	private static HttpURLConnection post(String path, String body, String... headers) throws IOException {
+		return post(FIRST_NODE_PORT, path, body, headers);
+	}
+
+	private static HttpURLConnection post(int port, String path, String body, String... headers) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		for (int i = 0; i + 1 < headers.length; i += 2) {
+			connection.setRequestProperty(headers[i], headers[i + 1]);
+		}
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(body.getBytes());
+		}
+		return connection;
+	}
+}
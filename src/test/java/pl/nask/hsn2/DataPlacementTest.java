@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.DataPlacement.Layout;
+import pl.nask.hsn2.DataPlacement.Strategy;
+
+public class DataPlacementTest {
+	private static final int JOBS = 30000;
+	private Path root;
+	private List<String> dataPaths;
+
+	@BeforeMethod
+	public void createDataDirs() throws Exception {
+		root = Files.createTempDirectory("placement-test-");
+		dataPaths = Arrays.asList(root.resolve("disk1").toString(), root.resolve("disk2").toString(), root.resolve("disk3")
+				.toString());
+		for (String path : dataPaths) {
+			Files.createDirectories(new File(path).toPath());
+		}
+	}
+
+	@AfterMethod
+	public void deleteDataDirs() {
+		DataStore.setDataPlacement(new DataPlacement(DataStore.getDataPath()));
+		DataStoreCleaner.deleteNonEmptyDirectory(root.toFile());
+	}
+
+	@Test
+	public void jobsSpreadEvenly() {
+		DataPlacement placement = new DataPlacement(dataPaths, Strategy.HASH, Layout.FLAT);
+		Map<File, Integer> counts = new HashMap<>();
+		for (long jobId = 1; jobId <= JOBS; jobId++) {
+			File dir = placement.getDataDir(jobId);
+			Integer count = counts.get(dir);
+			counts.put(dir, count == null ? 1 : count + 1);
+		}
+		Assert.assertEquals(counts.size(), dataPaths.size());
+		for (int count : counts.values()) {
+			Assert.assertTrue(Math.abs(count - JOBS / dataPaths.size()) < JOBS / 10, "Uneven placement: " + counts);
+		}
+
+		// Placement is stable and does not depend on order of directories.
+		DataPlacement reordered = new DataPlacement(Arrays.asList(dataPaths.get(2), dataPaths.get(0), dataPaths.get(1)),
+				Strategy.HASH, Layout.FLAT);
+		for (long jobId = 1; jobId <= 100; jobId++) {
+			Assert.assertEquals(reordered.getDataDir(jobId), placement.getDataDir(jobId));
+		}
+	}
+
+	@Test
+	public void existingDataFoundInOtherDirectory() throws Exception {
+		DataPlacement placement = new DataPlacement(dataPaths, Strategy.FREE_SPACE, Layout.FLAT);
+		long jobId = 17;
+		File preferred = placement.getPreferredDataDir(jobId);
+		File other = preferred.getPath().equals(dataPaths.get(0)) ? new File(dataPaths.get(1)) : new File(dataPaths.get(0));
+		Files.createFile(new File(other, "data-store-17.h2.db").toPath());
+
+		Assert.assertEquals(placement.getDataDir(jobId), other);
+
+		DataStore.setDataPlacement(placement);
+		Assert.assertEquals(DataStore.getDbFile(jobId), new File(other, "data-store-17.h2.db"));
+		Assert.assertTrue(DataStore.isDbFileExists(jobId));
+		Assert.assertEquals(new File(DataStore.getDbFileName(18)).getParentFile(), placement.getPreferredDataDir(18));
+	}
+}
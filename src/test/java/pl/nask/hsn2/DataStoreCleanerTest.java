@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.exceptions.InvalidArgument;
+
+public class DataStoreCleanerTest {
+	private static final long MS_IN_DAY = 86400000L;
+	private Path dataDir;
+
+	@BeforeMethod
+	public void createDataDir() throws IOException {
+		dataDir = Files.createTempDirectory("cleaner-test-");
+		for (long jobId = 1; jobId <= 10; jobId++) {
+			createFile("data-store-" + jobId + ".h2.db", 1000);
+			createFile("data-store-" + jobId + ".trace.db", 10);
+		}
+		createFile("data-store-5.lock.db", 1);
+		createFile("some-other.file", 1);
+		File legacyJobDir = dataDir.resolve("3").toFile();
+		Assert.assertTrue(legacyJobDir.mkdir());
+		createFile("3/1", 100);
+	}
+
+	@AfterMethod
+	public void deleteDataDir() {
+		DataStoreCleaner.deleteNonEmptyDirectory(dataDir.toFile());
+	}
+
+	@Test
+	public void cleanPreviousJobs() throws Exception {
+		DataStoreCleaner.Summary summary = clean("-j", "4");
+
+		Assert.assertEquals(summary.getJobs(), 3);
+		// Files of jobs 1-3 and legacy directory of job 3.
+		Assert.assertEquals(summary.getFiles(), 7);
+		Assert.assertEquals(summary.getBytes(), 3 * 1010 + 100);
+		Assert.assertFalse(exists("data-store-3.h2.db"));
+		Assert.assertFalse(exists("3"));
+		Assert.assertTrue(exists("data-store-4.h2.db"));
+		Assert.assertTrue(exists("some-other.file"));
+	}
+
+	@Test
+	public void cleanRange() throws Exception {
+		DataStoreCleaner.Summary summary = clean("-r", "5-6", "-t", "2");
+
+		Assert.assertEquals(summary.getJobs(), 2);
+		Assert.assertEquals(summary.getFiles(), 5);
+		Assert.assertEquals(summary.getBytes(), 2 * 1010 + 1);
+		Assert.assertTrue(exists("data-store-4.h2.db"));
+		Assert.assertFalse(exists("data-store-5.lock.db"));
+		Assert.assertFalse(exists("data-store-6.trace.db"));
+		Assert.assertTrue(exists("data-store-7.h2.db"));
+	}
+
+	@Test
+	public void dryRun() throws Exception {
+		DataStoreCleaner.Summary summary = clean("-j", "11", "-n");
+
+		Assert.assertEquals(summary.getJobs(), 10);
+		Assert.assertEquals(summary.getBytes(), 10 * 1010 + 1 + 100);
+		Assert.assertEquals(dataDir.toFile().list().length, 23);
+	}
+
+	@Test
+	public void cleanOldJobs() throws Exception {
+		long old = System.currentTimeMillis() - 3 * MS_IN_DAY;
+		for (String name : new String[] { "data-store-8.h2.db", "data-store-8.trace.db", "data-store-9.h2.db" }) {
+			Assert.assertTrue(dataDir.resolve(name).toFile().setLastModified(old));
+		}
+		DataStoreCleaner.Summary summary = clean("-a", "2");
+
+		// Job 9 trace file is new, so job 9 is kept.
+		Assert.assertEquals(summary.getJobs(), 1);
+		Assert.assertFalse(exists("data-store-8.h2.db"));
+		Assert.assertTrue(exists("data-store-9.h2.db"));
+	}
+
+	@Test(expectedExceptions = InvalidArgument.class)
+	public void noJobsSelected() throws Exception {
+		clean("-n");
+	}
+
+	@Test(expectedExceptions = InvalidArgument.class)
+	public void invalidRange() throws Exception {
+		clean("-r", "7-5");
+	}
+
+	private DataStoreCleaner.Summary clean(String... args) throws InvalidArgument, IOException {
+		String[] allArgs = new String[args.length + 2];
+		allArgs[0] = "-d";
+		allArgs[1] = dataDir.toString();
+		System.arraycopy(args, 0, allArgs, 2, args.length);
+		DataStoreCleaner cleaner = new DataStoreCleaner();
+		cleaner.parseStartArguments(allArgs);
+		return cleaner.clean();
+	}
+
+	private boolean exists(String name) {
+		return Files.exists(dataDir.resolve(name));
+	}
+
+	private void createFile(String name, long size) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(dataDir.resolve(name).toFile(), "rw")) {
+			file.setLength(size);
+		}
+	}
+}
@@ -19,6 +19,8 @@
 
 package pl.nask.hsn2;
 
+import java.util.Arrays;
+
 import org.apache.commons.cli.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -65,6 +67,80 @@ public class DataStoreCmdLineOptTest {
 		Assert.assertEquals(opt.getLeaveData(), LeaveJobOption.NONE);
 	}
 
+	@Test
+	public void notifyQueueOptions() throws Exception {
+		String[] args = { "-rnq", "data-store-notify", "-rpf", "50" };
+		DataStoreCmdLineOptions opt = new DataStoreCmdLineOptions(args);
+
+		Assert.assertEquals(opt.getRbtNotifyQueue(), "data-store-notify");
+		Assert.assertEquals(opt.getRbtPrefetch(), 50);
+
+		opt = new DataStoreCmdLineOptions(new String[] {});
+		Assert.assertNull(opt.getRbtNotifyQueue());
+	}
+
+	@Test
+	public void reconciliationOptions() throws Exception {
+		String[] args = { "-jsf", "/tmp/status", "-ri", "0" };
+		DataStoreCmdLineOptions opt = new DataStoreCmdLineOptions(args);
+
+		Assert.assertEquals(opt.getJobStatusFile(), "/tmp/status");
+		Assert.assertEquals(opt.getReconcileInterval(), 0);
+
+		try {
+			new DataStoreCmdLineOptions(new String[] { "-ri", NEGATIVE_ARGUMENT });
+			Assert.fail("Should throw an exception at this point.");
+		} catch (IllegalArgumentException e) {
+			LOGGER.debug("Exception detected as expected. ({}: {})", e.getClass().getSimpleName(), e.getMessage());
+		}
+	}
+
+	@Test
+	public void retentionOptions() throws Exception {
+		DataStoreCmdLineOptions opt = new DataStoreCmdLineOptions(new String[] {});
+		Assert.assertFalse(opt.getRetentionPolicy().isEnabled());
+
+		String[] args = { "-rma", "24", "-rfl", "1024", "-rfh", "2048", "-ro", "lru" };
+		opt = new DataStoreCmdLineOptions(args);
+		Assert.assertTrue(opt.getRetentionPolicy().isEnabled());
+
+		try {
+			new DataStoreCmdLineOptions(new String[] { "-rfl", "2048", "-rfh", "1024" });
+			Assert.fail("Should throw an exception at this point.");
+		} catch (ParseException e) {
+			LOGGER.debug("Exception detected as expected. ({}: {})", e.getClass().getSimpleName(), e.getMessage());
+		}
+	}
+
+	@Test
+	public void durabilityOptions() throws Exception {
+		DataStoreCmdLineOptions opt = new DataStoreCmdLineOptions(new String[] {});
+		Assert.assertEquals(opt.getDurabilityMode(), DurabilityManager.Mode.NONE);
+
+		opt = new DataStoreCmdLineOptions(new String[] { "-dm", "group", "-gci", "5", "-gcs", "64" });
+		Assert.assertEquals(opt.getDurabilityMode(), DurabilityManager.Mode.GROUP_COMMIT);
+		Assert.assertEquals(opt.getGroupCommitInterval(), 5);
+		Assert.assertEquals(opt.getGroupCommitBytes(), 64 * 1024);
+
+		try {
+			new DataStoreCmdLineOptions(new String[] { "-dm", INVALID_ARGUMENT });
+			Assert.fail("Should throw an exception at this point.");
+		} catch (ParseException e) {
+			LOGGER.debug("Exception detected as expected. ({}: {})", e.getClass().getSimpleName(), e.getMessage());
+		}
+	}
+
+	@Test
+	public void dataPlacementOptions() throws Exception {
+		DataStoreCmdLineOptions opt = new DataStoreCmdLineOptions(new String[] {});
+		Assert.assertNull(opt.getDataDirs());
+		Assert.assertEquals(opt.getDataPlacementStrategy(), DataPlacement.Strategy.HASH);
+
+		opt = new DataStoreCmdLineOptions(new String[] { "-dd", "/mnt/disk1, /mnt/disk2", "-dps", "space" });
+		Assert.assertEquals(opt.getDataDirs(), Arrays.asList("/mnt/disk1", "/mnt/disk2"));
+		Assert.assertEquals(opt.getDataPlacementStrategy(), DataPlacement.Strategy.FREE_SPACE);
+	}
+
 	@Test
 	public void leaveJobData() {
 		// Check for '-ld all' option.
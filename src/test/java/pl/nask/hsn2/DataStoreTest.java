@@ -24,11 +24,15 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.file.Files;
+import java.security.MessageDigest;
 
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.httpclient.HttpStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.Assert;
@@ -125,6 +129,91 @@ public class DataStoreTest {
 		Assert.assertEquals(conn.getHeaderField("Content-type"), "application/octet-stream");
 	}
 
+	@Test(dependsOnMethods = { "addData" })
+	public void getDataConditionalRequest() throws IOException {
+		URL url = new URL(urlString + DATA_URL + URL_SEPARATOR + job + URL_SEPARATOR + id);
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		String entityTag = conn.getHeaderField("ETag");
+		Assert.assertNotNull(entityTag);
+		Assert.assertTrue(conn.getHeaderField("Cache-Control").contains("immutable"));
+		conn.getInputStream().close();
+
+		conn = (HttpURLConnection) url.openConnection();
+		conn.setRequestProperty("If-None-Match", entityTag);
+		Assert.assertEquals(conn.getResponseCode(), HttpStatus.SC_NOT_MODIFIED);
+		Assert.assertEquals(conn.getHeaderField("ETag"), entityTag);
+	}
+
+	@Test(dependsOnMethods = { "addData" })
+	public void getDataConditionalAnyTag() throws IOException {
+		Assert.assertEquals(getIfNoneMatchAny(job + URL_SEPARATOR + id), HttpStatus.SC_NOT_MODIFIED);
+		// '*' matches existing entries only.
+		Assert.assertEquals(getIfNoneMatchAny(job + URL_SEPARATOR + Long.MAX_VALUE), HttpStatus.SC_NOT_FOUND);
+		Assert.assertEquals(getIfNoneMatchAny("1502" + URL_SEPARATOR + id), HttpStatus.SC_FORBIDDEN);
+	}
+
+	private int getIfNoneMatchAny(String path) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(urlString + DATA_URL + URL_SEPARATOR + path).openConnection();
+		conn.setRequestProperty("If-None-Match", "*");
+		return conn.getResponseCode();
+	}
+
+	@Test(dependsOnMethods = { "addData" })
+	public void getDataDigest() throws Exception {
+		URL url = new URL(urlString + DATA_URL + URL_SEPARATOR + job + URL_SEPARATOR + id);
+		URLConnection conn = url.openConnection();
+		Assert.assertEquals(conn.getHeaderField("Digest"), "SHA-256=" + digest("SHA-256", TEST_STRING));
+		conn.getInputStream().close();
+	}
+
+	@Test
+	public void addDataRequestWithDigest() throws Exception {
+		Assert.assertEquals(post("Content-MD5", digest("MD5", TEST_STRING)), HttpStatus.SC_CREATED);
+		Assert.assertEquals(post("Digest", "SHA-256=" + digest("SHA-256", TEST_STRING)), HttpStatus.SC_CREATED);
+		Assert.assertEquals(post("Content-MD5", digest("MD5", TEST_STRING + "!")), HttpStatus.SC_BAD_REQUEST);
+		Assert.assertEquals(post("Digest", "MD5=" + digest("MD5", "tes")), HttpStatus.SC_BAD_REQUEST);
+	}
+
+	@Test
+	public void addDataRequestWithIdempotencyKey() throws Exception {
+		HttpURLConnection first = postWithHeader("Idempotency-Key", "upload-1");
+		Assert.assertEquals(first.getResponseCode(), HttpStatus.SC_CREATED);
+		Assert.assertNull(first.getHeaderField("Idempotent-Replayed"));
+		String entryId = first.getHeaderField("Content-ID");
+
+		HttpURLConnection retry = postWithHeader("Idempotency-Key", "upload-1");
+		Assert.assertEquals(retry.getResponseCode(), HttpStatus.SC_CREATED);
+		Assert.assertEquals(retry.getHeaderField("Content-ID"), entryId);
+		Assert.assertEquals(retry.getHeaderField("Idempotent-Replayed"), "true");
+
+		// Keys not kept in memory are found in job database.
+		server.setIdempotencyKeysLimit(0);
+		try {
+			Assert.assertEquals(postWithHeader("Idempotency-Key", "upload-1").getHeaderField("Content-ID"), entryId);
+			Assert.assertNotEquals(postWithHeader("Idempotency-Key", "upload-2").getHeaderField("Content-ID"), entryId);
+		} finally {
+			server.setIdempotencyKeysLimit(100);
+		}
+	}
+
+	private int post(String digestHeader, String digest) throws IOException {
+		return postWithHeader(digestHeader, digest).getResponseCode();
+	}
+
+	private HttpURLConnection postWithHeader(String name, String value) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(urlString + DATA_URL + URL_SEPARATOR + job).openConnection();
+		conn.setDoOutput(true);
+		conn.setRequestProperty(name, value);
+		try (OutputStream wr = conn.getOutputStream()) {
+			wr.write(TEST_STRING.getBytes());
+		}
+		return conn;
+	}
+
+	private static String digest(String algorithm, String data) throws Exception {
+		return new String(Base64.encodeBase64(MessageDigest.getInstance(algorithm).digest(data.getBytes())));
+	}
+
 	@Test
 	public void addDataRequest() throws IOException {
 		String getData = DATA_URL + URL_SEPARATOR + job;
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.DurabilityManager.Mode;
+
+public class DurabilityManagerTest {
+	private static final int UPLOADS = 50;
+
+	@Test
+	public void groupCommitReleasesConcurrentUploads() throws Exception {
+		File idFile = createFile(700);
+		createFile(701);
+		createFile(702);
+		final DurabilityManager manager = new DurabilityManager(Mode.GROUP_COMMIT, idFile.getPath(), 50, Long.MAX_VALUE);
+		manager.start();
+		ExecutorService executor = Executors.newFixedThreadPool(UPLOADS);
+		try {
+			List<Future<Long>> uploads = new ArrayList<>();
+			for (int i = 0; i < UPLOADS; i++) {
+				final long jobId = 701 + i % 2;
+				uploads.add(executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws IOException {
+						long time = System.currentTimeMillis();
+						manager.dataWritten(jobId, 1);
+						return System.currentTimeMillis() - time;
+					}
+				}));
+			}
+			for (Future<Long> upload : uploads) {
+				// Nobody waits much longer than group commit interval.
+				Assert.assertTrue(upload.get() < 1000, "Upload waited too long: " + upload.get());
+			}
+		} finally {
+			executor.shutdown();
+			manager.shutdown();
+		}
+	}
+
+	@Test
+	public void groupCommitTriggeredBySize() throws Exception {
+		DurabilityManager manager = new DurabilityManager(Mode.GROUP_COMMIT, null, 60000, 100);
+		manager.start();
+		long time = System.currentTimeMillis();
+		manager.dataWritten(703, 100);
+		time = System.currentTimeMillis() - time;
+		manager.shutdown();
+		Assert.assertTrue(time < 10000, "Group commit not triggered by size.");
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void groupCommitNotStarted() throws Exception {
+		new DurabilityManager(Mode.GROUP_COMMIT, null, 10, 1).dataWritten(704, 1);
+	}
+
+	@Test
+	public void requestSync() throws Exception {
+		File idFile = createFile(705);
+		DurabilityManager manager = new DurabilityManager(Mode.REQUEST, idFile.getPath(), 0, 0);
+		manager.dataWritten(705, 1);
+		// Removed job data is not an error.
+		manager.dataWritten(706, 1);
+		Assert.assertEquals(manager.getDbUrlOptions(), ";LOG=1");
+		Assert.assertEquals(new DurabilityManager().getDbUrlOptions(), ";LOG=0");
+	}
+
+	private static File createFile(long jobId) throws IOException {
+		File file = DataStore.getDbFile(jobId);
+		Files.createDirectories(file.getParentFile().toPath());
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(1);
+		}
+		file.deleteOnExit();
+		return file;
+	}
+}
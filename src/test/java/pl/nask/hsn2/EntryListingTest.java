@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.client.DataStoreClient;
+
+public class EntryListingTest {
+	private static final int PORT = 5572;
+	private static final String URL = "http://localhost:" + PORT + "/";
+
+	@Test
+	public void pagesInIdOrder() throws Exception {
+		DataStoreServer server = new DataStoreServer(PORT);
+		server.start();
+		long jobId = 1301;
+		long start = System.currentTimeMillis() - 1000;
+		try (DataStoreClient client = new DataStoreClient(URL, 1)) {
+			List<Long> ids = new ArrayList<>();
+			for (int i = 1; i <= 5; i++) {
+				ids.add(client.post(jobId, new ByteArrayInputStream(new byte[i])));
+			}
+
+			List<Long> listed = new ArrayList<>();
+			long after = 0;
+			List<String> page;
+			do {
+				page = list("data/" + jobId + "?limit=2&after=" + after);
+				Assert.assertEquals(page.get(0), "entryId\tsize\tcreated");
+				for (String line : page.subList(1, page.size())) {
+					String[] fields = line.split("\t");
+					after = Long.parseLong(fields[0]);
+					listed.add(after);
+					Assert.assertEquals(Long.parseLong(fields[1]), ids.indexOf(after) + 1);
+					Assert.assertTrue(Long.parseLong(fields[2]) >= start, line);
+				}
+			} while (page.size() - 1 == 2);
+			Assert.assertEquals(listed, ids);
+		} finally {
+			server.close();
+			Files.deleteIfExists(DataStore.getDbFile(jobId).toPath());
+		}
+	}
+
+	@Test
+	public void invalidRequests() throws Exception {
+		DataStoreServer server = new DataStoreServer(PORT);
+		server.start();
+		try {
+			Assert.assertEquals(status("data/1302"), HttpStatus.SC_FORBIDDEN);
+			Assert.assertEquals(status("data/1302?limit=0"), HttpStatus.SC_BAD_REQUEST);
+			Assert.assertEquals(status("data/1302?limit=ten"), HttpStatus.SC_BAD_REQUEST);
+			Assert.assertEquals(status("data/1302?after=x"), HttpStatus.SC_BAD_REQUEST);
+		} finally {
+			server.close();
+		}
+	}
+
+	private static List<String> list(String path) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(URL + path).openConnection();
+		Assert.assertEquals(connection.getResponseCode(), HttpStatus.SC_OK);
+		List<String> lines = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"))) {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+	private static int status(String path) throws IOException {
+		return ((HttpURLConnection) new URL(URL + path).openConnection()).getResponseCode();
+	}
+}
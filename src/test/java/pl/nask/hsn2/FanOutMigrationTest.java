@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Lock;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.DataPlacement.Layout;
+import pl.nask.hsn2.DataPlacement.Strategy;
+
+public class FanOutMigrationTest {
+	private Path dataDir;
+	private DataPlacement placement;
+
+	@BeforeMethod
+	public void createDataDir() throws Exception {
+		dataDir = Files.createTempDirectory("fanout-test-");
+		placement = new DataPlacement(Collections.singletonList(dataDir.toString()), Strategy.HASH, Layout.FAN_OUT);
+	}
+
+	@AfterMethod
+	public void deleteDataDir() {
+		DataStoreCleaner.deleteNonEmptyDirectory(dataDir.toFile());
+	}
+
+	@Test
+	public void flatJobsMoved() throws Exception {
+		for (long jobId = 1; jobId <= 20; jobId++) {
+			Files.createFile(dataDir.resolve("data-store-" + jobId + ".h2.db"));
+		}
+		Files.createFile(dataDir.resolve("data-store-3.trace.db"));
+		// Not migrated job is found in data directory, new one is placed in fan-out directory.
+		Assert.assertEquals(placement.getJobDir(3), dataDir.toFile());
+		File newJobDir = placement.getJobDir(21);
+		Assert.assertEquals(newJobDir.getParentFile().getParentFile(), new File(dataDir.toFile(), "jobs"));
+
+		FanOutMigration migration = new FanOutMigration(placement);
+		migration.run();
+
+		Assert.assertEquals(migration.getMovedJobsCount(), 20);
+		File jobDir = placement.getJobDir(3);
+		Assert.assertNotEquals(jobDir, dataDir.toFile());
+		Assert.assertTrue(new File(jobDir, "data-store-3.h2.db").exists());
+		Assert.assertTrue(new File(jobDir, "data-store-3.trace.db").exists());
+		Assert.assertEquals(dataDir.toFile().list(), new String[] { "jobs" });
+		// All jobs are found when fan-out directories are listed.
+		int dbFiles = 0;
+		for (File dir : placement.getJobDirs()) {
+			for (String name : dir.list()) {
+				if (DataStore.getJobIdFromDbFileName(name) != null) {
+					dbFiles++;
+				}
+			}
+		}
+		Assert.assertEquals(dbFiles, 20);
+	}
+
+	@Test
+	public void jobInUseNotMoved() throws Exception {
+		final long jobId = 5;
+		Files.createFile(dataDir.resolve("data-store-" + jobId + ".h2.db"));
+		final CountDownLatch locked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Thread user = new Thread() {
+			@Override
+			public void run() {
+				Lock lock = placement.getJobLock(jobId);
+				lock.lock();
+				try {
+					locked.countDown();
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					lock.unlock();
+				}
+			}
+		};
+		user.start();
+		locked.await();
+		FanOutMigration migration = new FanOutMigration(placement);
+		Assert.assertFalse(migration.migrate(dataDir.toFile(), jobId));
+		Assert.assertEquals(placement.getJobDir(jobId), dataDir.toFile());
+
+		release.countDown();
+		user.join();
+		Assert.assertTrue(migration.migrate(dataDir.toFile(), jobId));
+		Assert.assertNotEquals(placement.getJobDir(jobId), dataDir.toFile());
+	}
+}
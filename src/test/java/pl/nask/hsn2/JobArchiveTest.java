@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.client.DataStoreClient;
+
+public class JobArchiveTest {
+	private static final int PORT = 5570;
+	private static final String URL = "http://localhost:" + PORT + "/";
+	private static final int ENTRY_SIZE = 512 * 1024;
+	private static final long WAIT_TIMEOUT = 10000;
+
+	@Test
+	public void exportAndImport() throws Exception {
+		JobCatalog catalog = new JobCatalog();
+		DataStoreServer server = new DataStoreServer(PORT, catalog);
+		server.start();
+		long sourceJob = 1101;
+		long targetJob = 1102;
+		try (DataStoreClient client = new DataStoreClient(URL, 2)) {
+			long[] ids = new long[3];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = client.post(sourceJob, new ByteArrayInputStream(("entry " + i).getBytes()));
+			}
+
+			HttpURLConnection export = (HttpURLConnection) new URL(URL + "jobs/" + sourceJob + "/export").openConnection();
+			Assert.assertEquals(export.getResponseCode(), HttpStatus.SC_OK);
+			byte[] archive;
+			try (InputStream in = export.getInputStream()) {
+				archive = IOUtils.toByteArray(in);
+			}
+
+			Assert.assertEquals(postArchive(targetJob, archive), HttpStatus.SC_OK);
+			for (int i = 0; i < ids.length; i++) {
+				Assert.assertEquals(new String(client.get(targetJob, ids[i])), "entry " + i);
+			}
+			// New entries never get imported ids.
+			Assert.assertTrue(client.post(targetJob, new ByteArrayInputStream(new byte[1])) > ids[ids.length - 1]);
+
+			// Entries are never replaced.
+			Assert.assertEquals(postArchive(targetJob, archive), HttpStatus.SC_CONFLICT);
+			Assert.assertEquals(catalog.getJob(targetJob).getEntries(), ids.length + 1);
+			Assert.assertEquals(new String(client.get(targetJob, ids[0])), "entry 0");
+		} finally {
+			server.close();
+			Files.deleteIfExists(DataStore.getDbFile(sourceJob).toPath());
+			Files.deleteIfExists(DataStore.getDbFile(targetJob).toPath());
+		}
+	}
+
+	@Test
+	public void invalidArchiveAndMissingJob() throws Exception {
+		DataStoreServer server = new DataStoreServer(PORT);
+		server.start();
+		try {
+			Assert.assertEquals(postArchive(1103, "not an archive".getBytes()), HttpStatus.SC_BAD_REQUEST);
+			HttpURLConnection export = (HttpURLConnection) new URL(URL + "jobs/1104/export").openConnection();
+			Assert.assertEquals(export.getResponseCode(), HttpStatus.SC_FORBIDDEN);
+		} finally {
+			server.close();
+			Files.deleteIfExists(DataStore.getDbFile(1103).toPath());
+		}
+	}
+
+	@Test
+	public void firstVersionArchive() throws Exception {
+		DataStoreServer server = new DataStoreServer(PORT);
+		server.start();
+		long jobId = 1105;
+		long entryId = DataStore.updateIdCount() + 1000;
+		try (DataStoreClient client = new DataStoreClient(URL, 1)) {
+			ByteArrayOutputStream archive = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(archive);
+			out.writeBytes("HSN2JA01");
+			out.writeLong(entryId);
+			out.writeLong(2);
+			out.writeBytes("v1");
+			out.writeLong(-1);
+
+			Assert.assertEquals(postArchive(jobId, archive.toByteArray()), HttpStatus.SC_OK);
+			Assert.assertEquals(new String(client.get(jobId, entryId)), "v1");
+			Assert.assertTrue(client.post(jobId, new ByteArrayInputStream(new byte[1])) > entryId);
+		} finally {
+			server.close();
+			Files.deleteIfExists(DataStore.getDbFile(jobId).toPath());
+		}
+	}
+
+	@Test
+	public void slowExportDoesNotHoldJob() throws Exception {
+		DataStoreServer server = new DataStoreServer(PORT);
+		server.start();
+		long sourceJob = 1106;
+		long targetJob = 1107;
+		try (DataStoreClient client = new DataStoreClient(URL, 1)) {
+			// More than socket buffers take, so export waits for the client. Biggest entry is over batch limit.
+			List<byte[]> entries = new ArrayList<>();
+			List<Long> ids = new ArrayList<>();
+			Random random = new Random(sourceJob);
+			for (int i = 0; i < 32; i++) {
+				byte[] data = new byte[i == 16 ? 3 * ENTRY_SIZE : ENTRY_SIZE];
+				random.nextBytes(data);
+				entries.add(data);
+				ids.add(client.post(sourceJob, new ByteArrayInputStream(data)));
+			}
+
+			HttpURLConnection export = (HttpURLConnection) new URL(URL + "jobs/" + sourceJob + "/export").openConnection();
+			Assert.assertEquals(export.getResponseCode(), HttpStatus.SC_OK);
+			ByteArrayOutputStream archive = new ByteArrayOutputStream();
+			try (InputStream in = export.getInputStream()) {
+				archive.write(in.read());
+				Lock moveLock = DataStore.getDataPlacement().getJobMoveLock(sourceJob);
+				Assert.assertTrue(moveLock.tryLock(WAIT_TIMEOUT, TimeUnit.MILLISECONDS), "Job held by export.");
+				moveLock.unlock();
+				IOUtils.copy(in, archive);
+			}
+
+			Assert.assertEquals(postArchive(targetJob, archive.toByteArray()), HttpStatus.SC_OK);
+			for (int i = 0; i < ids.size(); i++) {
+				Assert.assertTrue(Arrays.equals(client.get(targetJob, ids.get(i)), entries.get(i)));
+			}
+		} finally {
+			server.close();
+			Files.deleteIfExists(DataStore.getDbFile(sourceJob).toPath());
+			Files.deleteIfExists(DataStore.getDbFile(targetJob).toPath());
+		}
+	}
+
+	private static int postArchive(long jobId, byte[] archive) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(URL + "jobs/" + jobId + "/import").openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(archive);
+		}
+		int status = connection.getResponseCode();
+		InputStream body = status < HttpStatus.SC_BAD_REQUEST ? connection.getInputStream() : connection.getErrorStream();
+		if (body != null) {
+			IOUtils.copy(body, new ByteArrayOutputStream());
+			body.close();
+		}
+		return status;
+	}
+}
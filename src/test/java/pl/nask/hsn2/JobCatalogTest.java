@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Scanner;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.JobCatalog.JobInfo;
+import pl.nask.hsn2.JobCatalog.SortOrder;
+import pl.nask.hsn2.connector.REST.DataStoreConnector;
+import pl.nask.hsn2.connector.REST.DataStoreConnectorImpl;
+
+public class JobCatalogTest {
+	private static final int PORT = 5561;
+
+	@Test
+	public void persistence() throws Exception {
+		Path dir = Files.createTempDirectory("hsn2-data-store-catalog-");
+		String dbName = dir.resolve("catalog").toString();
+		try {
+			JobCatalog catalog = new JobCatalog(dbName);
+			catalog.open();
+			catalog.dataAdded(401, 100);
+			catalog.dataAdded(401, 50);
+			catalog.dataAdded(402, 10);
+			catalog.dataAdded(403, 10);
+			catalog.dataRead(402);
+			catalog.flush();
+			catalog.jobDataRemoved(403);
+			catalog.close();
+
+			catalog = new JobCatalog(dbName);
+			catalog.open();
+			JobInfo info = catalog.getJob(401);
+			Assert.assertEquals(info.getSize(), 150);
+			Assert.assertEquals(info.getEntries(), 2);
+			Assert.assertEquals(info.getLastRead(), 0);
+			Assert.assertTrue(info.getLastWrite() >= info.getCreated());
+			Assert.assertTrue(catalog.getJob(402).getLastRead() > 0);
+			Assert.assertNull(catalog.getJob(403));
+			catalog.close();
+		} finally {
+			for (File file : dir.toFile().listFiles()) {
+				Files.delete(file.toPath());
+			}
+			Files.delete(dir);
+		}
+	}
+
+	@Test
+	public void paging() {
+		JobCatalog catalog = new JobCatalog();
+		for (long jobId = 1; jobId <= 10; jobId++) {
+			catalog.dataAdded(jobId, jobId * 10 % 70);
+		}
+
+		List<JobInfo> page = catalog.getJobs(SortOrder.ID, 3, 4);
+		Assert.assertEquals(page.size(), 4);
+		Assert.assertEquals(page.get(0).getJobId(), 4);
+		Assert.assertEquals(page.get(3).getJobId(), 7);
+
+		page = catalog.getJobs(SortOrder.SIZE, 0, 3);
+		Assert.assertEquals(page.get(0).getJobId(), 6);
+		Assert.assertEquals(page.get(1).getJobId(), 5);
+		Assert.assertEquals(page.get(2).getJobId(), 4);
+
+		Assert.assertTrue(catalog.getJobs(SortOrder.LAST_READ, 20, 5).isEmpty());
+	}
+
+	@Test
+	public void jobsEndpoint() throws Exception {
+		JobCatalog catalog = new JobCatalog();
+		DataStoreServer server = new DataStoreServer(PORT, catalog);
+		server.start();
+		long jobId = 404;
+		try {
+			DataStoreConnector dsConnector = new DataStoreConnectorImpl("http://localhost:" + PORT + "/");
+			long entryId;
+			try (InputStream inputStream = new ByteArrayInputStream("test".getBytes())) {
+				entryId = dsConnector.sendPost(inputStream, jobId).getKeyId();
+			}
+			dsConnector.getResourceAsStream(jobId, entryId).close();
+
+			String response = read(new URL("http://localhost:" + PORT + "/jobs/" + jobId));
+			String[] fields = response.split("\n")[1].split("\t");
+			Assert.assertEquals(fields[0], String.valueOf(jobId));
+			Assert.assertEquals(fields[1], "4");
+			Assert.assertEquals(fields[2], "1");
+
+			response = read(new URL("http://localhost:" + PORT + "/jobs?sort=size&limit=10"));
+			Assert.assertTrue(response.contains("\n" + jobId + "\t"));
+		} finally {
+			server.close();
+			Files.deleteIfExists(new File(DataStore.getDbFileName(jobId) + ".h2.db").toPath());
+		}
+	}
+
+	private static String read(URL url) throws Exception {
+		try (Scanner scanner = new Scanner(url.openStream(), "UTF-8")) {
+			return scanner.useDelimiter("\\A").next();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.JobCleaningScheduler.CleaningState;
+
+public class JobCleaningSchedulerTest {
+	private static final long WAIT_LIMIT = 5000;
+
+	@Test
+	public void jobDataCleaning() throws Exception {
+		long jobId = 101;
+		Path dbFile = createDbFile(jobId);
+		JobCleaningScheduler scheduler = new JobCleaningScheduler(1);
+
+		Assert.assertTrue(scheduler.schedule(jobId));
+		waitUntilCleaned(scheduler, jobId);
+		scheduler.shutdown();
+
+		Assert.assertTrue(Files.notExists(dbFile), "H2 db file should be removed, but it exists. " + dbFile);
+	}
+
+	@Test
+	public void missingJobData() throws Exception {
+		JobCleaningScheduler scheduler = new JobCleaningScheduler(1);
+
+		Assert.assertTrue(scheduler.schedule(102));
+		waitUntilCleaned(scheduler, 102);
+		scheduler.shutdown();
+	}
+
+	@Test
+	public void retryAfterFailure() throws Exception {
+		long jobId = 103;
+		// Non empty directory in place of database file can't be deleted.
+		Path dbFile = createUndeletableDbFile(jobId);
+		JobCleaningScheduler scheduler = new JobCleaningScheduler(1, 50, 200, 100);
+
+		Assert.assertTrue(scheduler.schedule(jobId));
+		waitForState(scheduler, jobId, CleaningState.WAITING_FOR_RETRY);
+		Assert.assertFalse(scheduler.schedule(jobId), "Job waiting for retry should not be scheduled twice.");
+
+		Files.delete(dbFile.resolve("blocker"));
+		waitUntilCleaned(scheduler, jobId);
+		scheduler.shutdown();
+
+		Assert.assertTrue(Files.notExists(dbFile), "H2 db file should be removed, but it exists. " + dbFile);
+	}
+
+	@Test
+	public void dropAfterMaxAttempts() throws Exception {
+		long jobId = 104;
+		Path dbFile = createUndeletableDbFile(jobId);
+		JobCleaningScheduler scheduler = new JobCleaningScheduler(1, 10, 20, 3);
+
+		Assert.assertTrue(scheduler.schedule(jobId));
+		waitUntilCleaned(scheduler, jobId);
+		scheduler.shutdown();
+
+		Assert.assertTrue(Files.exists(dbFile));
+		Files.delete(dbFile.resolve("blocker"));
+		Files.delete(dbFile);
+	}
+
+	private void waitUntilCleaned(JobCleaningScheduler scheduler, long jobId) throws InterruptedException {
+		waitForState(scheduler, jobId, null);
+	}
+
+	private void waitForState(JobCleaningScheduler scheduler, long jobId, CleaningState expected)
+			throws InterruptedException {
+		long limit = System.currentTimeMillis() + WAIT_LIMIT;
+		while (scheduler.getState(jobId) != expected) {
+			Assert.assertTrue(System.currentTimeMillis() < limit, "Job state not reached: " + expected);
+			Thread.sleep(10);
+		}
+	}
+
+	private Path createDbFile(long jobId) throws IOException {
+		Path path = new File(DataStore.getDbFileName(jobId) + ".h2.db").toPath();
+		Files.createDirectories(path.getParent());
+		Files.deleteIfExists(path);
+		return Files.createFile(path);
+	}
+
+	private Path createUndeletableDbFile(long jobId) throws IOException {
+		Path path = new File(DataStore.getDbFileName(jobId) + ".h2.db").toPath();
+		Files.createDirectories(path);
+		Files.deleteIfExists(path.resolve("blocker"));
+		Files.createFile(path.resolve("blocker"));
+		return path;
+	}
+}
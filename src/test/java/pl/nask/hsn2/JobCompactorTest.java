@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.httpclient.HttpStatus;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.client.DataStoreClient;
+
+public class JobCompactorTest {
+	private static final int PORT = 5573;
+	private static final String URL = "http://localhost:" + PORT + "/";
+	private static final int ENTRY_SIZE = 256 * 1024;
+	private static final long WAIT_TIMEOUT = 10000;
+
+	@Test
+	public void deletedSpaceReclaimed() throws Exception {
+		DataStoreServer server = new DataStoreServer(PORT);
+		JobCompactor compactor = new JobCompactor(0.5, 0, 0);
+		server.enableCompaction(compactor);
+		server.start();
+		long jobId = 1401;
+		try (DataStoreClient client = new DataStoreClient(URL, 1)) {
+			Random random = new Random(jobId);
+			List<byte[]> entries = new ArrayList<>();
+			List<Long> ids = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				byte[] data = new byte[ENTRY_SIZE];
+				random.nextBytes(data);
+				entries.add(data);
+				ids.add(client.post(jobId, new ByteArrayInputStream(data)));
+			}
+			File dbFile = DataStore.getDbFile(jobId);
+			long sizeBefore = dbFile.length();
+
+			for (int i = 1; i < ids.size(); i++) {
+				Assert.assertEquals(delete("data/" + jobId + "/" + ids.get(i)), HttpStatus.SC_NO_CONTENT);
+			}
+			Assert.assertEquals(delete("data/" + jobId + "/" + ids.get(1)), HttpStatus.SC_NOT_FOUND);
+
+			long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+			while ((compactor.getCompactionsCount() == 0 || dbFile.length() >= sizeBefore / 2)
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			Assert.assertTrue(compactor.getCompactionsCount() > 0);
+			Assert.assertTrue(dbFile.length() < sizeBefore / 2, "Database not compacted: " + dbFile.length());
+			Assert.assertTrue(Arrays.equals(client.get(jobId, ids.get(0)), entries.get(0)));
+		} finally {
+			server.close();
+			Files.deleteIfExists(DataStore.getDbFile(jobId).toPath());
+		}
+	}
+
+	@Test
+	public void changesDuringCompactionKept() throws Exception {
+		DataStoreServer server = new DataStoreServer(PORT);
+		// Budget makes compaction wait after copying, job is used meanwhile.
+		JobCompactor compactor = new JobCompactor(0.5, ENTRY_SIZE, 0);
+		server.enableCompaction(compactor);
+		server.start();
+		long jobId = 1403;
+		try (DataStoreClient client = new DataStoreClient(URL, 1)) {
+			Random random = new Random(jobId);
+			List<byte[]> entries = new ArrayList<>();
+			List<Long> ids = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				byte[] data = new byte[ENTRY_SIZE];
+				random.nextBytes(data);
+				entries.add(data);
+				ids.add(client.post(jobId, new ByteArrayInputStream(data)));
+			}
+			for (int i = 4; i < ids.size(); i++) {
+				Assert.assertEquals(delete("data/" + jobId + "/" + ids.get(i)), HttpStatus.SC_NO_CONTENT);
+			}
+			File copy = new File(DataStore.getDbFileName(jobId) + ".compact.h2.db");
+			long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+			while (!copy.exists() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertTrue(copy.exists(), "Compaction not started.");
+			long added = client.post(jobId, new ByteArrayInputStream("added during compaction".getBytes()));
+			Assert.assertEquals(delete("data/" + jobId + "/" + ids.get(0)), HttpStatus.SC_NO_CONTENT);
+			Assert.assertEquals(compactor.getCompactionsCount(), 0);
+
+			while (compactor.getCompactionsCount() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			Assert.assertEquals(compactor.getCompactionsCount(), 1);
+			Assert.assertFalse(copy.exists());
+			Assert.assertEquals(new String(client.get(jobId, added)), "added during compaction");
+			for (int i = 1; i < 4; i++) {
+				Assert.assertTrue(Arrays.equals(client.get(jobId, ids.get(i)), entries.get(i)));
+			}
+			Assert.assertEquals(status("data/" + jobId + "/" + ids.get(0)), HttpStatus.SC_NOT_FOUND);
+		} finally {
+			server.close();
+			Files.deleteIfExists(DataStore.getDbFile(jobId).toPath());
+		}
+	}
+
+	@Test
+	public void sharedDataNotCountedAsDead() throws Exception {
+		DataStoreServer server = new DataStoreServer(PORT);
+		JobCompactor compactor = new JobCompactor(0.5, 0, 0);
+		server.enableCompaction(compactor);
+		server.start();
+		long jobId = 1404;
+		try (DataStoreClient client = new DataStoreClient(URL, 1)) {
+			byte[] data = new byte[ENTRY_SIZE];
+			new Random(jobId).nextBytes(data);
+			long stored = client.post(jobId, new ByteArrayInputStream(data));
+			String sha256 = new String(Hex.encodeHex(MessageDigest.getInstance("SHA-256").digest(data)));
+			for (int i = 0; i < 3; i++) {
+				long copy = client.offer(jobId, sha256, data.length);
+				Assert.assertEquals(delete("data/" + jobId + "/" + copy), HttpStatus.SC_NO_CONTENT);
+			}
+			Thread.sleep(500);
+			Assert.assertEquals(compactor.getCompactionsCount(), 0);
+
+			Assert.assertEquals(delete("data/" + jobId + "/" + stored), HttpStatus.SC_NO_CONTENT);
+			long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+			while (compactor.getCompactionsCount() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			Assert.assertEquals(compactor.getCompactionsCount(), 1);
+		} finally {
+			server.close();
+			Files.deleteIfExists(DataStore.getDbFile(jobId).toPath());
+		}
+	}
+
+	@Test
+	public void busyJobCompactedLater() throws Exception {
+		DataStoreServer server = new DataStoreServer(PORT);
+		JobCompactor compactor = new JobCompactor(0.5, 0, 0);
+		server.enableCompaction(compactor);
+		server.start();
+		long jobId = 1405;
+		// Held as by long request of the job.
+		Lock jobLock = DataStore.getDataPlacement().getJobLock(jobId);
+		try (DataStoreClient client = new DataStoreClient(URL, 1)) {
+			byte[] data = new byte[ENTRY_SIZE];
+			new Random(jobId).nextBytes(data);
+			long kept = client.post(jobId, new ByteArrayInputStream(data));
+			long deleted = client.post(jobId, new ByteArrayInputStream(new byte[ENTRY_SIZE]));
+			jobLock.lock();
+			try {
+				Assert.assertEquals(delete("data/" + jobId + "/" + deleted), HttpStatus.SC_NO_CONTENT);
+				// Copy is ready but cannot replace job database.
+				Thread.sleep(2500);
+				Assert.assertEquals(compactor.getCompactionsCount(), 0);
+			} finally {
+				jobLock.unlock();
+			}
+			long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+			while (compactor.getCompactionsCount() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			Assert.assertEquals(compactor.getCompactionsCount(), 1);
+			Assert.assertTrue(Arrays.equals(client.get(jobId, kept), data));
+		} finally {
+			server.close();
+			Files.deleteIfExists(DataStore.getDbFile(jobId).toPath());
+		}
+	}
+
+	@Test
+	public void deleteOfMissingJob() throws Exception {
+		DataStoreServer server = new DataStoreServer(PORT);
+		server.start();
+		try {
+			Assert.assertEquals(delete("data/1402/1"), HttpStatus.SC_FORBIDDEN);
+		} finally {
+			server.close();
+		}
+	}
+
+	private static int status(String path) throws IOException {
+		return ((HttpURLConnection) new URL(URL + path).openConnection()).getResponseCode();
+	}
+
+	private static int delete(String path) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(URL + path).openConnection();
+		connection.setRequestMethod("DELETE");
+		return connection.getResponseCode();
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.DataStoreActiveCleaner.LeaveJobOption;
+
+public class JobDataReconcilerTest {
+	private static final long WAIT_LIMIT = 5000;
+
+	@Test
+	public void orphanedJobsCleaned() throws Exception {
+		for (long jobId = 301; jobId <= 304; jobId++) {
+			createDbFile(jobId);
+		}
+		Path statusFile = Files.createTempFile("hsn2-data-store-status-", "");
+		Files.write(statusFile, Arrays.asList("# test statuses", "301 COMPLETED", "302 FAILED", "303 PROCESSING", "304 cancelled",
+				"invalid line"), StandardCharsets.UTF_8);
+
+		DataStoreActiveCleaner cleaner = new DataStoreActiveCleaner("", "", LeaveJobOption.FAILED, 2);
+		JobDataReconciler reconciler = new JobDataReconciler(cleaner, new FileJobStatusSource(statusFile.toString()), 2);
+		try {
+			Assert.assertEquals(reconciler.reconcile(), 2);
+			waitForCleaning(cleaner);
+		} finally {
+			reconciler.shutdown();
+			cleaner.shutdown();
+			Files.delete(statusFile);
+		}
+
+		Assert.assertFalse(DataStore.isDbFileExists(301));
+		Assert.assertTrue(DataStore.isDbFileExists(302), "Failed job should be left.");
+		Assert.assertTrue(DataStore.isDbFileExists(303), "Running job should be left.");
+		Assert.assertFalse(DataStore.isDbFileExists(304));
+		Files.delete(new File(DataStore.getDbFileName(302) + ".h2.db").toPath());
+		Files.delete(new File(DataStore.getDbFileName(303) + ".h2.db").toPath());
+	}
+
+	@Test
+	public void missingStatusFile() throws Exception {
+		createDbFile(305);
+		DataStoreActiveCleaner cleaner = new DataStoreActiveCleaner("", "", LeaveJobOption.NONE, 1);
+		JobDataReconciler reconciler = new JobDataReconciler(cleaner, new FileJobStatusSource("/nonexistent/status"), 1);
+		try {
+			Assert.assertEquals(reconciler.reconcile(), 0);
+		} finally {
+			reconciler.shutdown();
+			cleaner.shutdown();
+		}
+		Assert.assertTrue(DataStore.isDbFileExists(305));
+		Files.delete(new File(DataStore.getDbFileName(305) + ".h2.db").toPath());
+	}
+
+	private void waitForCleaning(DataStoreActiveCleaner cleaner) throws InterruptedException {
+		long limit = System.currentTimeMillis() + WAIT_LIMIT;
+		while (cleaner.getScheduler().getPendingJobsCount() > 0) {
+			Assert.assertTrue(System.currentTimeMillis() < limit, "Cleaning not finished.");
+			Thread.sleep(10);
+		}
+	}
+
+	private static Path createDbFile(long jobId) throws IOException {
+		Path path = new File(DataStore.getDbFileName(jobId) + ".h2.db").toPath();
+		Files.createDirectories(path.getParent());
+		Files.deleteIfExists(path);
+		return Files.createFile(path);
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.connector.REST.DataStoreConnector;
+import pl.nask.hsn2.connector.REST.DataStoreConnectorImpl;
+
+public class JobDbPoolTest {
+	private static final int PORT = 5563;
+	private static final int POOL_SIZE = 3;
+	private static final long WAIT_LIMIT = 5000;
+
+	@Test
+	public void newJobsUsePreparedDatabases() throws Exception {
+		Path poolDir = new File(DataStore.getDataPath(), "prepared").toPath();
+		Files.createDirectories(poolDir);
+		// Unfinished copy left by previous run.
+		Files.createFile(poolDir.resolve("prepared-1.h2.db.tmp"));
+
+		DataStoreServer server = new DataStoreServer(PORT);
+		server.enableJobDbPool(POOL_SIZE);
+		server.start();
+		try {
+			waitForPreparedFiles(poolDir);
+			Assert.assertFalse(Files.exists(poolDir.resolve("prepared-1.h2.db.tmp")));
+
+			DataStoreConnector dsConnector = new DataStoreConnectorImpl("http://localhost:" + PORT + "/");
+			for (long jobId = 901; jobId <= 905; jobId++) {
+				long entryId;
+				try (InputStream inputStream = new ByteArrayInputStream(("job " + jobId).getBytes())) {
+					entryId = dsConnector.sendPost(inputStream, jobId).getKeyId();
+				}
+				try (InputStream inputStream = dsConnector.getResourceAsStream(jobId, entryId)) {
+					Assert.assertEquals(IOUtils.toString(inputStream), "job " + jobId);
+				}
+			}
+			// Pool is refilled.
+			waitForPreparedFiles(poolDir);
+		} finally {
+			server.close();
+			for (long jobId = 901; jobId <= 905; jobId++) {
+				Files.deleteIfExists(DataStore.getDbFile(jobId).toPath());
+			}
+			DataStoreCleaner.deleteNonEmptyDirectory(poolDir.toFile());
+		}
+	}
+
+	private static void waitForPreparedFiles(Path poolDir) throws InterruptedException {
+		long limit = System.currentTimeMillis() + WAIT_LIMIT;
+		while (countPreparedFiles(poolDir) < POOL_SIZE) {
+			Assert.assertTrue(System.currentTimeMillis() < limit, "Pool not filled.");
+			Thread.sleep(10);
+		}
+	}
+
+	private static int countPreparedFiles(Path poolDir) {
+		int count = 0;
+		for (String name : poolDir.toFile().list()) {
+			if (name.startsWith("prepared-") && name.endsWith(".h2.db")) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
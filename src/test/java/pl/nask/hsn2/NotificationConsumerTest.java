@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import mockit.Delegate;
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.DataStoreActiveCleaner.LeaveJobOption;
+import pl.nask.hsn2.protobuff.Jobs.JobFinished;
+import pl.nask.hsn2.protobuff.Jobs.JobStatus;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Manual acknowledgement mode tests. Test acts as a broker: it pushes deliveries to consumer and records
+ * acknowledgements sent through mocked channel.
+ */
+public class NotificationConsumerTest {
+	private static final long WAIT_LIMIT = 5000;
+
+	@Mocked
+	Channel channel;
+
+	/**
+	 * Acknowledged delivery tags. (Multiple acknowledgement is expanded to all tags it covers.)
+	 */
+	private final List<Long> acked = Collections.synchronizedList(new ArrayList<Long>());
+
+	@SuppressWarnings({ "rawtypes", "unused" })
+	@BeforeMethod
+	public void mockChannel() throws Exception {
+		acked.clear();
+		new NonStrictExpectations() {
+			{
+				channel.basicAck(anyLong, anyBoolean);
+				result = new Delegate() {
+					public void basicAck(long deliveryTag, boolean multiple) {
+						synchronized (acked) {
+							if (multiple) {
+								for (long tag = 1; tag <= deliveryTag; tag++) {
+									if (!acked.contains(tag)) {
+										acked.add(tag);
+									}
+								}
+							} else {
+								Assert.assertFalse(acked.contains(deliveryTag), "Delivery acknowledged twice: " + deliveryTag);
+								acked.add(deliveryTag);
+							}
+						}
+					}
+				};
+			}
+		};
+	}
+
+	@Test
+	public void ackAfterJobDataRemoved() throws Exception {
+		DataStoreActiveCleaner cleaner = new DataStoreActiveCleaner("", "", LeaveJobOption.NONE, 2);
+		NotificationAckTracker tracker = new NotificationAckTracker(channel, 100);
+		cleaner.getScheduler().addListener(tracker);
+		NotificationConsumer consumer = new NotificationConsumer(channel, cleaner, tracker);
+
+		Path dbFile = createDbFile(201);
+		consumer.handleDelivery("", new Envelope(1, false, "", ""), props("TaskAccepted"), new byte[] { 1 });
+		consumer.handleDelivery("", new Envelope(2, false, "", ""), props("JobFinished"), jobFinished(201, JobStatus.COMPLETED));
+		consumer.handleDelivery("", new Envelope(3, false, "", ""), props("JobFinished"), jobFinished(202, JobStatus.COMPLETED));
+
+		waitForCleaning(cleaner, 201);
+		waitForCleaning(cleaner, 202);
+		Assert.assertTrue(Files.notExists(dbFile));
+		Assert.assertEquals(tracker.flush(), 3);
+		Assert.assertEquals(acked.size(), 3);
+		Assert.assertEquals(tracker.getUnackedCount(), 0);
+		cleaner.shutdown();
+	}
+
+	@Test
+	public void batchedAcksOnBurst() throws Exception {
+		DataStoreActiveCleaner cleaner = new DataStoreActiveCleaner("", "", LeaveJobOption.FAILED, 3);
+		NotificationAckTracker tracker = new NotificationAckTracker(channel, 10);
+		cleaner.getScheduler().addListener(tracker);
+		NotificationConsumer consumer = new NotificationConsumer(channel, cleaner, tracker);
+
+		int notifications = 500;
+		for (int tag = 1; tag <= notifications; tag++) {
+			// Every job is notified twice (JobFinished and reminder), every tenth job failed.
+			long jobId = 1000 + tag / 2;
+			JobStatus status = jobId % 10 == 0 ? JobStatus.FAILED : JobStatus.COMPLETED;
+			consumer.handleDelivery("", new Envelope(tag, false, "", ""), props("JobFinished"), jobFinished(jobId, status));
+		}
+
+		long limit = System.currentTimeMillis() + WAIT_LIMIT;
+		while (cleaner.getScheduler().getPendingJobsCount() > 0) {
+			Assert.assertTrue(System.currentTimeMillis() < limit, "Cleaning not finished.");
+			Thread.sleep(10);
+		}
+		tracker.flush();
+		Assert.assertEquals(acked.size(), notifications);
+		Assert.assertEquals(tracker.getUnackedCount(), 0);
+		cleaner.shutdown();
+	}
+
+	@Test
+	public void notAckedBeforeRemoval() throws Exception {
+		DataStoreActiveCleaner cleaner = new DataStoreActiveCleaner("", "", LeaveJobOption.NONE, 1);
+		NotificationAckTracker tracker = new NotificationAckTracker(channel, 100);
+		NotificationConsumer consumer = new NotificationConsumer(channel, cleaner, tracker);
+
+		// Tracker is not registered in scheduler so it never learns about removal.
+		consumer.handleDelivery("", new Envelope(1, false, "", ""), props("JobFinished"), jobFinished(203, JobStatus.COMPLETED));
+		consumer.handleDelivery("", new Envelope(2, false, "", ""), props("TaskAccepted"), new byte[] { 1 });
+		waitForCleaning(cleaner, 203);
+
+		Assert.assertEquals(tracker.flush(), 1);
+		Assert.assertEquals(acked, Collections.singletonList(2L));
+		Assert.assertEquals(tracker.getUnackedCount(), 1);
+		cleaner.shutdown();
+	}
+
+	private void waitForCleaning(DataStoreActiveCleaner cleaner, long jobId) throws InterruptedException {
+		long limit = System.currentTimeMillis() + WAIT_LIMIT;
+		while (cleaner.getScheduler().getState(jobId) != null) {
+			Assert.assertTrue(System.currentTimeMillis() < limit, "Job not cleaned: " + jobId);
+			Thread.sleep(10);
+		}
+	}
+
+	private static BasicProperties props(String type) {
+		return new BasicProperties.Builder().type(type).build();
+	}
+
+	private static byte[] jobFinished(long jobId, JobStatus status) {
+		return JobFinished.newBuilder().setJob(jobId).setStatus(status).build().toByteArray();
+	}
+
+	private static Path createDbFile(long jobId) throws IOException {
+		Path path = new File(DataStore.getDbFileName(jobId) + ".h2.db").toPath();
+		Files.createDirectories(path.getParent());
+		Files.deleteIfExists(path);
+		return Files.createFile(path);
+	}
+}
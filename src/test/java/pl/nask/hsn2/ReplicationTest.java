@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.client.DataStoreClient;
+import pl.nask.hsn2.connector.REST.DataStoreConnector;
+import pl.nask.hsn2.connector.REST.DataStoreConnectorImpl;
+
+public class ReplicationTest {
+	private static final int PRIMARY_PORT = 5566;
+	private static final int FOLLOWER_PORT = 5567;
+	private static final int REPLICATION_PORT = 5568;
+	private static final long TIMEOUT = 10000;
+
+	@Test
+	public void entriesAndRemovalsAreAcknowledged() throws Exception {
+		DataStoreServer follower = new DataStoreServer(FOLLOWER_PORT);
+		follower.enableFollower(REPLICATION_PORT);
+		follower.start();
+		DataStoreServer primary = new DataStoreServer(PRIMARY_PORT);
+		ReplicationPublisher publisher = new ReplicationPublisher(Collections.singletonList("localhost:" + REPLICATION_PORT), 100);
+		primary.enableReplication(publisher);
+		primary.start();
+		long jobId = 901;
+		try {
+			DataStoreConnector dsConnector = new DataStoreConnectorImpl("http://localhost:" + PRIMARY_PORT + "/");
+			long entryId;
+			try (InputStream inputStream = new ByteArrayInputStream("replicated".getBytes())) {
+				entryId = dsConnector.sendPost(inputStream, jobId).getKeyId();
+			}
+			waitForAck(publisher, 1);
+
+			DataStoreConnector followerConnector = new DataStoreConnectorImpl("http://localhost:" + FOLLOWER_PORT + "/");
+			try (InputStream inputStream = followerConnector.getResourceAsStream(jobId, entryId)) {
+				Assert.assertEquals(IOUtils.toString(inputStream), "replicated");
+			}
+			HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + FOLLOWER_PORT + "/data/" + jobId)
+					.openConnection();
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.getOutputStream().write(1);
+			Assert.assertEquals(connection.getResponseCode(), HttpStatus.SC_METHOD_NOT_ALLOWED);
+
+			new DataStoreCleanSingleJob(new ConcurrentSkipListSet<Long>(), jobId, publisher, null).run();
+			waitForAck(publisher, 2);
+			Assert.assertEquals(publisher.getLag(), 0);
+		} finally {
+			primary.close();
+			follower.close();
+			Files.deleteIfExists(DataStore.getDbFile(jobId).toPath());
+		}
+	}
+
+	@Test
+	public void followerAppliesStream() throws Exception {
+		DataStoreServer follower = new DataStoreServer(FOLLOWER_PORT);
+		follower.enableFollower(REPLICATION_PORT);
+		follower.start();
+		long jobId = 902;
+		long entryId = 42;
+		try (Socket socket = new Socket("localhost", REPLICATION_PORT)) {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			out.writeLong(1);
+			out.writeByte(ReplicationPublisher.ENTRY_ADDED);
+			out.writeLong(1);
+			out.writeLong(System.currentTimeMillis());
+			out.writeLong(jobId);
+			out.writeLong(entryId);
+			out.writeInt(4);
+			out.write("abcd".getBytes());
+			out.writeInt(0);
+			out.flush();
+			Assert.assertEquals(in.readLong(), 1);
+
+			DataStoreConnector followerConnector = new DataStoreConnectorImpl("http://localhost:" + FOLLOWER_PORT + "/");
+			try (InputStream inputStream = followerConnector.getResourceAsStream(jobId, entryId)) {
+				Assert.assertEquals(IOUtils.toString(inputStream), "abcd");
+			}
+
+			out.writeByte(ReplicationPublisher.JOB_REMOVED);
+			out.writeLong(2);
+			out.writeLong(System.currentTimeMillis());
+			out.writeLong(jobId);
+			out.flush();
+			Assert.assertEquals(in.readLong(), 2);
+			Assert.assertFalse(DataStore.isDbFileExists(jobId));
+		} finally {
+			follower.close();
+			Files.deleteIfExists(DataStore.getDbFile(jobId).toPath());
+		}
+	}
+
+	@Test
+	public void fullResyncAfterBacklogOverflow() throws Exception {
+		DataStoreServer primary = new DataStoreServer(PRIMARY_PORT);
+		ReplicationPublisher publisher = new ReplicationPublisher(Collections.singletonList("localhost:" + REPLICATION_PORT), 2);
+		primary.enableReplication(publisher);
+		primary.start();
+		long jobId = 911;
+		try (DataStoreClient client = new DataStoreClient("http://localhost:" + PRIMARY_PORT + "/", 1)) {
+			// Follower is down, backlog overflows.
+			List<Long> entryIds = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				entryIds.add(client.post(jobId, new ByteArrayInputStream(("entry " + i).getBytes())));
+			}
+			Assert.assertEquals(getStatusColumn(publisher, 6), "true");
+
+			try (ServerSocket follower = new ServerSocket()) {
+				follower.setReuseAddress(true);
+				follower.bind(new InetSocketAddress(REPLICATION_PORT));
+				try (Socket socket = follower.accept()) {
+					DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+					DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+					in.readLong();
+					Assert.assertEquals(in.readByte(), ReplicationPublisher.SYNC_JOBS);
+					long syncSequence = in.readLong();
+					in.readLong();
+					in.readLong();
+					Assert.assertTrue(readIds(in).contains(jobId));
+					Map<Long, String> synced = new HashMap<>();
+					byte type;
+					while ((type = in.readByte()) != ReplicationPublisher.SYNC_END) {
+						Assert.assertEquals(in.readLong(), syncSequence);
+						in.readLong();
+						long eventJobId = in.readLong();
+						if (type == ReplicationPublisher.SYNC_JOB) {
+							List<Long> ids = readIds(in);
+							if (eventJobId == jobId) {
+								Assert.assertEquals(ids, entryIds);
+							}
+						} else {
+							Assert.assertEquals(type, ReplicationPublisher.ENTRY_ADDED);
+							long entryId = in.readLong();
+							String data = new String(readChunks(in));
+							if (eventJobId == jobId) {
+								synced.put(entryId, data);
+							}
+						}
+					}
+					Assert.assertEquals(in.readLong(), syncSequence);
+					in.readLong();
+					in.readLong();
+					Assert.assertEquals(synced.size(), entryIds.size());
+					for (int i = 0; i < entryIds.size(); i++) {
+						Assert.assertEquals(synced.get(entryIds.get(i)), "entry " + i);
+					}
+					out.writeLong(syncSequence);
+					out.flush();
+					waitForAck(publisher, syncSequence);
+					Assert.assertEquals(getStatusColumn(publisher, 6), "false");
+
+					// Incremental events follow resync.
+					long entryId = client.post(jobId, new ByteArrayInputStream("after resync".getBytes()));
+					Assert.assertEquals(in.readByte(), ReplicationPublisher.ENTRY_ADDED);
+					Assert.assertTrue(in.readLong() > syncSequence);
+					in.readLong();
+					Assert.assertEquals(in.readLong(), jobId);
+					Assert.assertEquals(in.readLong(), entryId);
+					Assert.assertEquals(new String(readChunks(in)), "after resync");
+				}
+			}
+		} finally {
+			primary.close();
+			Files.deleteIfExists(DataStore.getDbFile(jobId).toPath());
+		}
+	}
+
+	@Test
+	public void followerResyncRemovesMissingData() throws Exception {
+		DataStoreServer follower = new DataStoreServer(FOLLOWER_PORT);
+		follower.enableFollower(REPLICATION_PORT);
+		follower.start();
+		long jobId = 912;
+		long removedJobId = 913;
+		try (Socket socket = new Socket("localhost", REPLICATION_PORT)) {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			out.writeLong(1);
+			writeEntry(out, 1, jobId, 42, "kept");
+			writeEntry(out, 2, jobId, 43, "removed on primary");
+			writeEntry(out, 3, removedJobId, 44, "job removed on primary");
+			out.flush();
+			Assert.assertEquals(in.readLong(), 1);
+			Assert.assertEquals(in.readLong(), 2);
+			Assert.assertEquals(in.readLong(), 3);
+
+			Set<Long> primaryJobIds = DataStore.getJobIds();
+			primaryJobIds.remove(removedJobId);
+			writeHeader(out, ReplicationPublisher.SYNC_JOBS, 5, 0);
+			writeIds(out, primaryJobIds);
+			writeHeader(out, ReplicationPublisher.SYNC_JOB, 5, jobId);
+			writeIds(out, Collections.singleton(42L));
+			writeEntry(out, 5, jobId, 42, "kept");
+			writeHeader(out, ReplicationPublisher.SYNC_END, 5, 0);
+			out.flush();
+			// Only end of resync is acknowledged.
+			Assert.assertEquals(in.readLong(), 5);
+
+			Assert.assertFalse(DataStore.isDbFileExists(removedJobId));
+			Assert.assertEquals(status("data/" + jobId + "/43"), HttpStatus.SC_NOT_FOUND);
+			DataStoreConnector followerConnector = new DataStoreConnectorImpl("http://localhost:" + FOLLOWER_PORT + "/");
+			try (InputStream inputStream = followerConnector.getResourceAsStream(jobId, 42)) {
+				Assert.assertEquals(IOUtils.toString(inputStream), "kept");
+			}
+
+			HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + FOLLOWER_PORT + "/jobs/" + jobId
+					+ "/snapshot/914").openConnection();
+			connection.setRequestMethod("DELETE");
+			Assert.assertEquals(connection.getResponseCode(), HttpStatus.SC_METHOD_NOT_ALLOWED);
+		} finally {
+			follower.close();
+			Files.deleteIfExists(DataStore.getDbFile(jobId).toPath());
+			Files.deleteIfExists(DataStore.getDbFile(removedJobId).toPath());
+		}
+	}
+
+	private static int status(String path) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + FOLLOWER_PORT + "/" + path)
+				.openConnection();
+		return connection.getResponseCode();
+	}
+
+	private static void writeHeader(DataOutputStream out, byte type, long sequence, long jobId) throws IOException {
+		out.writeByte(type);
+		out.writeLong(sequence);
+		out.writeLong(System.currentTimeMillis());
+		out.writeLong(jobId);
+	}
+
+	private static void writeIds(DataOutputStream out, Collection<Long> ids) throws IOException {
+		out.writeInt(ids.size());
+		for (long id : ids) {
+			out.writeLong(id);
+		}
+	}
+
+	private static void writeEntry(DataOutputStream out, long sequence, long jobId, long entryId, String data)
+			throws IOException {
+		writeHeader(out, ReplicationPublisher.ENTRY_ADDED, sequence, jobId);
+		out.writeLong(entryId);
+		out.writeInt(data.length());
+		out.write(data.getBytes());
+		out.writeInt(0);
+	}
+
+	private static List<Long> readIds(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<Long> ids = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			ids.add(in.readLong());
+		}
+		return ids;
+	}
+
+	private static byte[] readChunks(DataInputStream in) throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for (int length = in.readInt(); length > 0; length = in.readInt()) {
+			byte[] chunk = new byte[length];
+			in.readFully(chunk);
+			data.write(chunk);
+		}
+		return data.toByteArray();
+	}
+
+	private static String getStatusColumn(ReplicationPublisher publisher, int column) {
+		return publisher.getStatus().split("\n")[1].split("\t")[column];
+	}
+
+	private static void waitForAck(ReplicationPublisher publisher, long sequence) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		// Second line, columns: follower, connected, pending, acked, lost, lag, resync.
+		while (Long.parseLong(getStatusColumn(publisher, 3)) < sequence) {
+			Assert.assertTrue(System.currentTimeMillis() < deadline, publisher.getStatus());
+			Thread.sleep(10);
+		}
+	}
+}
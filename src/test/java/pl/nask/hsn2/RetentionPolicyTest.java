@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.DataStoreActiveCleaner.LeaveJobOption;
+import pl.nask.hsn2.RetentionPolicy.EvictionOrder;
+import pl.nask.hsn2.protobuff.Jobs.JobStatus;
+
+public class RetentionPolicyTest {
+	private static final long HOUR = 3600000L;
+	private static final long WAIT_LIMIT = 5000;
+
+	/**
+	 * Creates catalog with kept jobs 1..5 (created in that order, 100 bytes each). Job 2 and 4 are read afterwards.
+	 */
+	private JobCatalog createCatalog() throws InterruptedException {
+		JobCatalog catalog = new JobCatalog();
+		for (long jobId = 1; jobId <= 5; jobId++) {
+			catalog.dataAdded(jobId, 100);
+			catalog.jobKept(jobId);
+			Thread.sleep(2);
+		}
+		catalog.dataRead(4);
+		Thread.sleep(2);
+		catalog.dataRead(2);
+		return catalog;
+	}
+
+	@Test
+	public void noLimits() throws Exception {
+		RetentionPolicy policy = new RetentionPolicy(0, 0, 0, 0, EvictionOrder.OLDEST);
+		Assert.assertFalse(policy.isEnabled());
+		Assert.assertTrue(policy.selectJobsToEvict(createCatalog().getKeptJobs(), 0, System.currentTimeMillis()).isEmpty());
+	}
+
+	@Test
+	public void maxAge() throws Exception {
+		RetentionPolicy policy = new RetentionPolicy(HOUR, 0, 0, 0, EvictionOrder.OLDEST);
+		JobCatalog catalog = createCatalog();
+		long now = System.currentTimeMillis();
+		Assert.assertTrue(policy.selectJobsToEvict(catalog.getKeptJobs(), 0, now).isEmpty());
+		Assert.assertEquals(policy.selectJobsToEvict(catalog.getKeptJobs(), 0, now + 2 * HOUR), Arrays.asList(1L, 2L, 3L, 4L, 5L));
+	}
+
+	@Test
+	public void maxTotalSizeOldestFirst() throws Exception {
+		RetentionPolicy policy = new RetentionPolicy(0, 250, 0, 0, EvictionOrder.OLDEST);
+		Assert.assertEquals(policy.selectJobsToEvict(createCatalog().getKeptJobs(), 0, System.currentTimeMillis()),
+				Arrays.asList(1L, 2L, 3L));
+	}
+
+	@Test
+	public void maxTotalSizeLeastRecentlyReadFirst() throws Exception {
+		RetentionPolicy policy = new RetentionPolicy(0, 250, 0, 0, EvictionOrder.LEAST_RECENTLY_READ);
+		Assert.assertEquals(policy.selectJobsToEvict(createCatalog().getKeptJobs(), 0, System.currentTimeMillis()),
+				Arrays.asList(1L, 3L, 5L));
+	}
+
+	@Test
+	public void freeDiskWatermarks() throws Exception {
+		RetentionPolicy policy = new RetentionPolicy(0, 0, 1000, 1150, EvictionOrder.OLDEST);
+		JobCatalog catalog = createCatalog();
+		long now = System.currentTimeMillis();
+		// Above low watermark - nothing to do.
+		Assert.assertTrue(policy.selectJobsToEvict(catalog.getKeptJobs(), 1000, now).isEmpty());
+		// Below low watermark - evict until high watermark is reached.
+		Assert.assertEquals(policy.selectJobsToEvict(catalog.getKeptJobs(), 999, now), Arrays.asList(1L, 2L));
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void invalidWatermarks() {
+		new RetentionPolicy(0, 0, 1000, 999, EvictionOrder.OLDEST);
+	}
+
+	@Test
+	public void keptJobsEvictedByCleaner() throws Exception {
+		JobCatalog catalog = new JobCatalog();
+		DataStoreActiveCleaner cleaner = new DataStoreActiveCleaner("", "", LeaveJobOption.FAILED, 1);
+		cleaner.setJobCatalog(catalog);
+		cleaner.setRetentionPolicy(new RetentionPolicy(0, 150, 0, 0, EvictionOrder.OLDEST));
+		try {
+			for (long jobId = 501; jobId <= 502; jobId++) {
+				Path path = new File(DataStore.getDbFileName(jobId) + ".h2.db").toPath();
+				Files.createDirectories(path.getParent());
+				Files.deleteIfExists(path);
+				Files.createFile(path);
+				catalog.dataAdded(jobId, 100);
+				Thread.sleep(2);
+				Assert.assertFalse(cleaner.startJobDataRemoving(jobId, JobStatus.FAILED));
+			}
+			Assert.assertEquals(catalog.getKeptJobs().size(), 2);
+
+			Assert.assertEquals(cleaner.enforceRetention(), 1);
+			long limit = System.currentTimeMillis() + WAIT_LIMIT;
+			while (catalog.getJob(501) != null) {
+				Assert.assertTrue(System.currentTimeMillis() < limit, "Job not evicted.");
+				Thread.sleep(10);
+			}
+			Assert.assertFalse(DataStore.isDbFileExists(501));
+			Assert.assertTrue(DataStore.isDbFileExists(502));
+			Assert.assertEquals(cleaner.enforceRetention(), 0);
+		} finally {
+			cleaner.shutdown();
+			Files.deleteIfExists(new File(DataStore.getDbFileName(502) + ".h2.db").toPath());
+		}
+		Assert.assertEquals(catalog.getKeptJobs().size(), 1);
+		Assert.assertEquals(catalog.getKeptJobs().get(0).getJobId(), 502);
+	}
+}
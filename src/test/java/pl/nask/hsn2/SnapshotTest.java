@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.client.DataStoreClient;
+import pl.nask.hsn2.exceptions.RequestFailedException;
+
+public class SnapshotTest {
+	private static final int PORT = 5571;
+	private static final String URL = "http://localhost:" + PORT + "/";
+	private static final int CHUNK_SIZE = 1024;
+	private static final long WAIT_LIMIT = 5000;
+
+	@Test
+	public void snapshotOutlivesJob() throws Exception {
+		DataStoreServer server = new DataStoreServer(PORT);
+		server.start();
+		long jobId = 1201;
+		long snapshotId = 1299;
+		try (DataStoreClient client = new DataStoreClient(URL, 2)) {
+			long first = client.post(jobId, new ByteArrayInputStream("first".getBytes()));
+			Assert.assertEquals(request("POST", "jobs/" + jobId + "/snapshot/" + snapshotId), HttpStatus.SC_CREATED);
+			Assert.assertEquals(request("POST", "jobs/" + jobId + "/snapshot/" + snapshotId), HttpStatus.SC_CONFLICT);
+			long second = client.post(jobId, new ByteArrayInputStream("second".getBytes()));
+
+			Assert.assertEquals(new String(client.get(snapshotId, first)), "first");
+			assertNotInSnapshot(client, snapshotId, second);
+			Assert.assertEquals(request("POST", "data/" + snapshotId), HttpStatus.SC_METHOD_NOT_ALLOWED);
+			Assert.assertEquals(request("DELETE", "data/" + snapshotId + "/" + first), HttpStatus.SC_METHOD_NOT_ALLOWED);
+			Assert.assertEquals(request("DELETE", "data/" + jobId + "/" + first), HttpStatus.SC_CONFLICT);
+
+			// Job removal leaves snapshot data.
+			new DataStoreCleanSingleJob(new ConcurrentSkipListSet<Long>(), jobId).run();
+			Assert.assertFalse(DataStore.isDbFileExists(jobId));
+			Assert.assertEquals(new String(client.get(snapshotId, first)), "first");
+			assertNotInSnapshot(client, snapshotId, second);
+
+			Assert.assertEquals(request("DELETE", "jobs/" + jobId + "/snapshot/" + snapshotId), HttpStatus.SC_OK);
+			Assert.assertNull(DataStore.getSnapshotRegistry().get(snapshotId));
+		} finally {
+			server.close();
+			Files.deleteIfExists(DataStore.getDbFile(jobId).toPath());
+		}
+	}
+
+	@Test
+	public void snapshotOfMissingJob() throws Exception {
+		DataStoreServer server = new DataStoreServer(PORT);
+		server.start();
+		try {
+			Assert.assertEquals(request("POST", "jobs/1202/snapshot/1298"), HttpStatus.SC_FORBIDDEN);
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void uploadInProgressNotInSnapshot() throws Exception {
+		DataStoreServer server = new DataStoreServer(PORT);
+		server.start();
+		long jobId = 1203;
+		long snapshotId = 1297;
+		try (DataStoreClient client = new DataStoreClient(URL, 2)) {
+			client.post(jobId, new ByteArrayInputStream("first".getBytes()));
+			long lastId = DataStore.getLastAssignedId();
+			HttpURLConnection upload = (HttpURLConnection) new URL(URL + "data/" + jobId).openConnection();
+			upload.setRequestMethod("POST");
+			upload.setDoOutput(true);
+			upload.setChunkedStreamingMode(CHUNK_SIZE);
+			OutputStream body = upload.getOutputStream();
+			body.write(new byte[CHUNK_SIZE]);
+			body.flush();
+			// Wait until upload gets its id.
+			long deadline = System.currentTimeMillis() + WAIT_LIMIT;
+			while (DataStore.getLastAssignedId() == lastId && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			long pendingId = DataStore.getLastAssignedId();
+			Assert.assertTrue(pendingId > lastId);
+			Assert.assertEquals(request("POST", "jobs/" + jobId + "/snapshot/" + snapshotId), HttpStatus.SC_CREATED);
+			Assert.assertTrue(DataStore.getSnapshotRegistry().get(snapshotId).getLastEntryId() < pendingId);
+
+			body.close();
+			Assert.assertEquals(upload.getResponseCode(), HttpStatus.SC_CREATED);
+			Assert.assertEquals(client.get(jobId, pendingId).length, CHUNK_SIZE);
+			assertNotInSnapshot(client, snapshotId, pendingId);
+
+			// Imported entries would appear in snapshot.
+			HttpURLConnection importJob = (HttpURLConnection) new URL(URL + "jobs/" + jobId + "/import").openConnection();
+			importJob.setRequestMethod("POST");
+			importJob.setDoOutput(true);
+			try (DataOutputStream archive = new DataOutputStream(importJob.getOutputStream())) {
+				archive.writeBytes("HSN2JA02");
+				archive.writeLong(1);
+				archive.writeLong(1);
+				archive.writeLong(1);
+				archive.writeByte(1);
+				archive.writeLong(-1);
+			}
+			Assert.assertEquals(importJob.getResponseCode(), HttpStatus.SC_CONFLICT);
+
+			Assert.assertEquals(request("DELETE", "jobs/" + jobId + "/snapshot/" + snapshotId), HttpStatus.SC_OK);
+		} finally {
+			server.close();
+			Files.deleteIfExists(DataStore.getDbFile(jobId).toPath());
+		}
+	}
+
+	private static void assertNotInSnapshot(DataStoreClient client, long snapshotId, long entryId) throws IOException {
+		try {
+			client.get(snapshotId, entryId);
+			Assert.fail("Entry added after snapshot.");
+		} catch (RequestFailedException e) {
+			Assert.assertEquals(e.getStatusCode(), HttpStatus.SC_NOT_FOUND);
+		}
+	}
+
+	private static int request(String method, String path) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(URL + path).openConnection();
+		connection.setRequestMethod(method);
+		if ("POST".equals(method)) {
+			connection.setDoOutput(true);
+			connection.getOutputStream().close();
+		}
+		return connection.getResponseCode();
+	}
+}
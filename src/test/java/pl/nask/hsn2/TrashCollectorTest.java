@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TrashCollectorTest {
+	private static final long WAIT_LIMIT = 5000;
+	private static final int MB = 1024 * 1024;
+	private Path trashDir;
+
+	@BeforeMethod
+	public void createTrashDir() throws IOException {
+		// Trash has to be on the same file system as data directory.
+		Path dataStoreDir = new File(DataStore.getDataPath()).toPath().getParent();
+		trashDir = Files.createTempDirectory(dataStoreDir, "trash-test-");
+	}
+
+	@AfterMethod
+	public void deleteTrashDir() throws IOException {
+		for (File file : trashDir.toFile().listFiles()) {
+			Files.delete(file.toPath());
+		}
+		Files.delete(trashDir);
+	}
+
+	@Test
+	public void throttledUnlinking() throws Exception {
+		TrashCollector trash = new TrashCollector(trashDir.toString(), 10 * MB, MB);
+		trash.start();
+		Path file = createFile(trashDir.resolveSibling(trashDir.getFileName() + "-file"), 3 * MB);
+
+		long time = System.currentTimeMillis();
+		trash.moveToTrash(file);
+		Assert.assertTrue(Files.notExists(file));
+		waitUntilEmpty(trash);
+		time = System.currentTimeMillis() - time;
+		trash.shutdown();
+
+		// 3 MB at 10 MB/s.
+		Assert.assertTrue(time >= 250, "Unlinking not throttled. (time[ms]=" + time + ")");
+		Assert.assertEquals(trashDir.toFile().list().length, 0);
+	}
+
+	@Test
+	public void leftoversUnlinkedOnStart() throws Exception {
+		createFile(trashDir.resolve("data-store-1.h2.db.1"), MB);
+		createFile(trashDir.resolve("data-store-2.h2.db.2"), MB);
+		TrashCollector trash = new TrashCollector(trashDir.toString(), 0);
+		trash.start();
+		waitUntilEmpty(trash);
+		trash.shutdown();
+
+		Assert.assertEquals(trashDir.toFile().list().length, 0);
+	}
+
+	@Test
+	public void singleJobCleanerUsesTrash() throws Exception {
+		long jobId = 601;
+		TrashCollector trash = new TrashCollector(trashDir.toString(), 0);
+		Path dbFile = new File(DataStore.getDbFileName(jobId) + ".h2.db").toPath();
+		Files.createDirectories(dbFile.getParent());
+		createFile(dbFile, MB);
+		// Collector not started yet, so file stays in trash.
+		new DataStoreCleanSingleJob(new ConcurrentSkipListSet<Long>(), jobId, null, trash).run();
+
+		Assert.assertTrue(Files.notExists(dbFile));
+		Assert.assertEquals(trash.getPendingCount(), 1);
+		Assert.assertEquals(trashDir.toFile().list().length, 1);
+
+		trash.start();
+		waitUntilEmpty(trash);
+		trash.shutdown();
+		Assert.assertEquals(trashDir.toFile().list().length, 0);
+	}
+
+	@Test
+	public void trashInDataDirOfFile() throws Exception {
+		List<File> trashDirs = new ArrayList<>();
+		List<Path> files = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			Path dataDir = Files.createDirectory(trashDir.resolve("data" + i));
+			trashDirs.add(dataDir.resolve("trash").toFile());
+			files.add(createFile(dataDir.resolve("data-store-" + i + ".h2.db"), MB));
+		}
+		TrashCollector trash = new TrashCollector(trashDirs, 0);
+		trash.moveToTrash(files.get(1));
+
+		Assert.assertTrue(Files.notExists(files.get(1)));
+		Assert.assertFalse(trashDirs.get(0).exists());
+		Assert.assertEquals(trashDirs.get(1).list().length, 1);
+		trash.start();
+		waitUntilEmpty(trash);
+		trash.shutdown();
+		Assert.assertEquals(trashDirs.get(1).list().length, 0);
+
+		Files.delete(files.get(0));
+		for (File dir : trashDirs) {
+			Files.delete(dir.toPath());
+			Files.delete(dir.getParentFile().toPath());
+		}
+	}
+
+	private void waitUntilEmpty(TrashCollector trash) throws InterruptedException {
+		long limit = System.currentTimeMillis() + WAIT_LIMIT;
+		while (trash.getPendingCount() > 0) {
+			Assert.assertTrue(System.currentTimeMillis() < limit, "Trash not emptied.");
+			Thread.sleep(10);
+		}
+	}
+
+	private static Path createFile(Path path, long size) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+			file.setLength(size);
+		}
+		return path;
+	}
+}
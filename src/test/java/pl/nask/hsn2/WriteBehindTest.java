@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.connector.REST.DataStoreConnector;
+import pl.nask.hsn2.connector.REST.DataStoreConnectorImpl;
+
+public class WriteBehindTest {
+	private static final int PORT = 5562;
+	private static final int UPLOADS = 100;
+	private static final int MAX_SIZE = 1024;
+
+	@Test
+	public void concurrentSmallAndBigUploads() throws Exception {
+		DataStoreServer server = new DataStoreServer(PORT);
+		server.enableWriteBehind(2, MAX_SIZE);
+		server.start();
+		final long jobId = 801;
+		ExecutorService executor = Executors.newFixedThreadPool(20);
+		try {
+			final DataStoreConnector dsConnector = new DataStoreConnectorImpl("http://localhost:" + PORT + "/");
+			List<Future<Long>> uploads = new ArrayList<>();
+			for (int i = 0; i < UPLOADS; i++) {
+				final byte[] data = payload(i, size(i));
+				uploads.add(executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						try (InputStream inputStream = new ByteArrayInputStream(data)) {
+							return dsConnector.sendPost(inputStream, jobId).getKeyId();
+						}
+					}
+				}));
+			}
+			for (int i = 0; i < UPLOADS; i++) {
+				try (InputStream inputStream = dsConnector.getResourceAsStream(jobId, uploads.get(i).get())) {
+					byte[] expected = payload(i, size(i));
+					Assert.assertTrue(Arrays.equals(IOUtils.toByteArray(inputStream), expected), "Entry " + i + " differs.");
+				}
+			}
+		} finally {
+			executor.shutdown();
+			server.close();
+			Files.deleteIfExists(DataStore.getDbFile(jobId).toPath());
+		}
+	}
+
+	/**
+	 * Every tenth upload is too big for write-behind, some are exactly of maximum size or one byte over it.
+	 */
+	private static int size(int upload) {
+		switch (upload % 10) {
+		case 0:
+			return 5000;
+		case 1:
+			return MAX_SIZE + 1;
+		case 2:
+			return MAX_SIZE;
+		default:
+			return 10;
+		}
+	}
+
+	private static byte[] payload(int seed, int size) {
+		byte[] data = new byte[size];
+		Arrays.fill(data, (byte) seed);
+		return data;
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) NASK, NCSC
+ * 
+ * This file is part of HoneySpider Network 2.1.
+ * 
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.client;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.httpclient.HttpStatus;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.DataStore;
+import pl.nask.hsn2.DataStoreServer;
+import pl.nask.hsn2.exceptions.RequestFailedException;
+
+public class DataStoreClientTest {
+	private static final int PORT = 5569;
+	private static final long JOB_ID = 1001;
+	private static final int FAKE_SERVER_PORT = 5577;
+	private DataStoreServer server;
+	private DataStoreClient client;
+
+	@BeforeClass
+	public void startServer() {
+		server = new DataStoreServer(PORT);
+		server.start();
+		client = new DataStoreClient("http://localhost:" + PORT + "/", 4);
+	}
+
+	@AfterClass
+	public void stopServer() throws Exception {
+		client.close();
+		server.close();
+		Files.deleteIfExists(DataStore.getDbFile(JOB_ID).toPath());
+	}
+
+	@Test
+	public void connectionsAreReused() throws Exception {
+		byte[] data = new byte[200000];
+		Arrays.fill(data, (byte) 7);
+		long first = client.post(JOB_ID, new ByteArrayInputStream(data));
+		long second = client.post(JOB_ID, new ByteArrayInputStream("second".getBytes()));
+		Assert.assertTrue(Arrays.equals(client.get(JOB_ID, first), data));
+		Assert.assertEquals(new String(client.get(JOB_ID, second)), "second");
+		Assert.assertEquals(client.getIdleConnectionsCount(), 1);
+	}
+
+	@Test
+	public void offerAvoidsUpload() throws Exception {
+		byte[] data = "offered content".getBytes();
+		String sha256 = new String(Hex.encodeHex(MessageDigest.getInstance("SHA-256").digest(data)));
+		Assert.assertEquals(client.offer(JOB_ID, sha256, data.length), -1);
+		long stored = client.post(JOB_ID, new ByteArrayInputStream(data));
+		long copy = client.offer(JOB_ID, sha256, data.length);
+		Assert.assertTrue(copy > stored);
+		Assert.assertTrue(Arrays.equals(client.get(JOB_ID, copy), data));
+		Assert.assertEquals(client.offer(JOB_ID, sha256, data.length + 1), -1);
+		try {
+			client.offer(JOB_ID, "123", data.length);
+			Assert.fail("Invalid digest accepted.");
+		} catch (RequestFailedException e) {
+			Assert.assertEquals(e.getStatusCode(), HttpStatus.SC_BAD_REQUEST);
+		}
+	}
+
+	@Test
+	public void postWithQueryAndBodyIsUpload() throws Exception {
+		byte[] data = "uploaded with query".getBytes();
+		String sha256 = new String(Hex.encodeHex(MessageDigest.getInstance("SHA-256").digest(data)));
+		for (String query : new String[] { "?source=test", "?sha256=" + sha256 + "&size=" + data.length }) {
+			HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + PORT + "/data/" + JOB_ID
+					+ query).openConnection();
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(data.length);
+			try (OutputStream out = connection.getOutputStream()) {
+				out.write(data);
+			}
+			Assert.assertEquals(connection.getResponseCode(), HttpStatus.SC_CREATED, query);
+			long id = Long.parseLong(connection.getHeaderField("Content-ID"));
+			connection.getInputStream().close();
+			Assert.assertTrue(Arrays.equals(client.get(JOB_ID, id), data), query);
+		}
+	}
+
+	@Test
+	public void fileUploadAndAsyncDownload() throws Exception {
+		Path file = Files.createTempFile("hsn2-data-store-client-", "");
+		try {
+			Files.write(file, "file content".getBytes());
+			final AtomicInteger completed = new AtomicInteger();
+			CompletionHandler<Long, Object> handler = new CompletionHandler<Long, Object>() {
+				@Override
+				public void completed(Long result, Object attachment) {
+					completed.incrementAndGet();
+				}
+
+				@Override
+				public void failed(Throwable exc, Object attachment) {
+					// Checked by future.
+				}
+			};
+			List<Future<Long>> uploads = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				uploads.add(client.postAsync(JOB_ID, file, null, handler));
+			}
+			for (Future<Long> upload : uploads) {
+				Future<byte[]> download = client.getAsync(JOB_ID, upload.get(), null, null);
+				Assert.assertEquals(new String(download.get()), "file content");
+			}
+			Assert.assertEquals(completed.get(), 20);
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void errorStatus() throws Exception {
+		try {
+			client.get(JOB_ID + 1, 1);
+			Assert.fail("Job should not exist.");
+		} catch (RequestFailedException e) {
+			Assert.assertEquals(e.getStatusCode(), HttpStatus.SC_FORBIDDEN);
+		}
+		Assert.assertTrue(client.getIdleConnectionsCount() > 0);
+	}
+
+	@Test
+	public void lateResponseIsNotStale() throws Exception {
+		try (ServerSocket fakeServer = new ServerSocket(FAKE_SERVER_PORT)) {
+			HttpConnection connection = new HttpConnection(new InetSocketAddress("localhost", FAKE_SERVER_PORT), 500);
+			try (Socket accepted = fakeServer.accept()) {
+				connection.send("GET", "/data/" + JOB_ID + "/1");
+				connection.readResponse();
+				Assert.fail("Server does not respond.");
+			} catch (SocketTimeoutException e) {
+				// Expected: request may be still handled, so it must not be sent again.
+			} finally {
+				connection.close();
+			}
+		}
+	}
+
+	@Test
+	public void fileUploadRetriedWithSameKey() throws Exception {
+		final List<String> keys = new ArrayList<>();
+		try (final ServerSocket fakeServer = new ServerSocket(FAKE_SERVER_PORT);
+				DataStoreClient fakeServerClient = new DataStoreClient("http://localhost:" + FAKE_SERVER_PORT + "/", 1)) {
+			Thread serverThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						// First connection answers download, then drops upload without response as stale one does.
+						try (Socket socket = fakeServer.accept()) {
+							BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+									StandardCharsets.US_ASCII));
+							readRequest(reader);
+							socket.getOutputStream().write(
+									"HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(StandardCharsets.US_ASCII));
+							keys.add(readRequest(reader));
+						}
+						try (Socket socket = fakeServer.accept()) {
+							BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+									StandardCharsets.US_ASCII));
+							keys.add(readRequest(reader));
+							socket.getOutputStream().write(
+									"HTTP/1.1 201 Created\r\nContent-ID: 5\r\nContent-Length: 0\r\n\r\n"
+											.getBytes(StandardCharsets.US_ASCII));
+						}
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			});
+			serverThread.start();
+			Path file = Files.createTempFile("hsn2-data-store-client-", "");
+			try {
+				Files.write(file, "file content".getBytes());
+				Assert.assertEquals(new String(fakeServerClient.get(JOB_ID, 1)), "ok");
+				Assert.assertEquals(fakeServerClient.post(JOB_ID, file), 5);
+			} finally {
+				Files.delete(file);
+			}
+			serverThread.join();
+		}
+		Assert.assertEquals(keys.size(), 2);
+		Assert.assertNotNull(keys.get(0));
+		Assert.assertEquals(keys.get(1), keys.get(0));
+	}
+
+	/**
+	 * Reads request head and body (of known length).
+	 *
+	 * @return Idempotency-Key of request.
+	 */
+	private static String readRequest(BufferedReader reader) throws IOException {
+		String key = null;
+		int length = 0;
+		for (String line = reader.readLine(); line != null && !line.isEmpty(); line = reader.readLine()) {
+			String[] header = line.split(": ", 2);
+			if ("Content-Length".equalsIgnoreCase(header[0])) {
+				length = Integer.parseInt(header[1]);
+			} else if ("Idempotency-Key".equalsIgnoreCase(header[0])) {
+				key = header[1];
+			}
+		}
+		for (int i = 0; i < length; i++) {
+			reader.read();
+		}
+		return key;
+	}
+}
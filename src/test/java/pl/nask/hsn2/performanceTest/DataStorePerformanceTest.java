@@ -18,12 +18,9 @@
 
 package pl.nask.hsn2.performanceTest;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
-import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.HashMap;
@@ -37,11 +34,10 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
+import org.apache.commons.io.output.NullOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import pl.nask.hsn2.ResourceException;
-import pl.nask.hsn2.StorageException;
 import pl.nask.hsn2.bus.api.Destination;
 import pl.nask.hsn2.bus.api.Message;
 import pl.nask.hsn2.bus.operations.JobFinished;
@@ -51,9 +47,7 @@ import pl.nask.hsn2.bus.rabbitmq.RbtDestination;
 import pl.nask.hsn2.bus.serializer.MessageSerializer;
 import pl.nask.hsn2.bus.serializer.MessageSerializerException;
 import pl.nask.hsn2.bus.serializer.protobuf.ProtoBufMessageSerializer;
-import pl.nask.hsn2.connector.REST.DataResponse;
-import pl.nask.hsn2.connector.REST.DataStoreConnector;
-import pl.nask.hsn2.connector.REST.DataStoreConnectorImpl;
+import pl.nask.hsn2.client.DataStoreClient;
 
 import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Channel;
@@ -71,7 +65,7 @@ public class DataStorePerformanceTest {
 	private static MessageSerializer<Operation> defaultSerializer;
 	private static ExecutorService executor;
 	private static long jobId;
-	private static DataStoreConnector dsConnector;
+	private static DataStoreClient dsClient;
 	private static String rbtHostName;
 	private static String rbtNotifyExchName;
 	private static String rbtMainExchName;
@@ -128,6 +122,7 @@ public class DataStorePerformanceTest {
 		executor.execute(new DeleteJobDataTask());
 
 		// Cleaning.
+		dsClient.close();
 		Files.delete(smallFile);
 		Files.delete(bigFile);
 		executor.shutdown();
@@ -137,7 +132,7 @@ public class DataStorePerformanceTest {
 		defaultSerializer = new ProtoBufMessageSerializer();
 		executor = Executors.newFixedThreadPool(cmdLineOpt.getThreadsNumber());
 		jobId = cmdLineOpt.getJobId();
-		dsConnector = new DataStoreConnectorImpl(cmdLineOpt.getDsUrl());
+		dsClient = new DataStoreClient(cmdLineOpt.getDsUrl(), cmdLineOpt.getThreadsNumber());
 		rbtHostName = cmdLineOpt.getRbtHost();
 		rbtMainExchName = cmdLineOpt.getRbtMainExch();
 		rbtNotifyExchName = cmdLineOpt.getRbtNotifyExch();
@@ -206,29 +201,19 @@ public class DataStorePerformanceTest {
 
 		@Override
 		public void run() {
-			DataResponse dr;
 			long key = 0;
-			boolean isSuccess = false;
 			try {
 				switch (actionToDo) {
 				case BIG_FILE:
 					LOGGER.debug("Adding big file...");
-					try (InputStream bigFileIs = new BufferedInputStream(new FileInputStream(bigFile.toFile()))) {
-						dr = dsConnector.sendPost(bigFileIs, jobId);
-						key = dr.getKeyId();
-						isSuccess = dr.isSuccesful();
-					}
+					key = dsClient.post(jobId, bigFile);
 					break;
 				case SMALL_FILE:
 					LOGGER.debug("Adding small file...");
-					try (InputStream smallFileIs = new BufferedInputStream(new FileInputStream(smallFile.toFile()))) {
-						dr = dsConnector.sendPost(smallFileIs, jobId);
-						key = dr.getKeyId();
-						isSuccess = dr.isSuccesful();
-					}
+					key = dsClient.post(jobId, smallFile);
 					break;
 				}
-				LOGGER.debug("Data added. Response(type={}, key={})", isSuccess, key);
+				LOGGER.debug("Data added. (key={})", key);
 				executor.execute(new GetDataTask(key, latch));
 				latch.countDown();
 			} catch (IOException e) {
@@ -250,18 +235,10 @@ public class DataStorePerformanceTest {
 		@Override
 		public void run() {
 			try {
-				try (BufferedInputStream bis = new BufferedInputStream(dsConnector.getResourceAsStream(jobId, referenceId))) {
-					StringBuilder sb = new StringBuilder();
-					int chInt;
-					int size = 0;
-					while ((chInt = bis.read()) != -1) {
-						sb.append((char) chInt);
-						size++;
-					}
-					LOGGER.debug("Data received. Stream size = {}", size);
-				}
+				long size = dsClient.get(jobId, referenceId, new NullOutputStream());
+				LOGGER.debug("Data received. Stream size = {}", size);
 				latch.countDown();
-			} catch (IOException | ResourceException | StorageException e) {
+			} catch (IOException e) {
 				LOGGER.info("Could not complete GET task (send string).", e);
 				latch.countDown();
 			}